@@ -0,0 +1,128 @@
+/*
+ * Copyright LWJGL. All rights reserved.
+ * License terms: https://www.lwjgl.org/license
+ */
+package org.lwjgl.demo.benchmark;
+
+import static org.joml.SimplexNoise.*;
+
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.joml.Matrix4f;
+import org.lwjgl.BufferUtils;
+import org.lwjgl.demo.util.ArrayQuadtree;
+import org.lwjgl.demo.util.TiledRasterizer;
+
+/**
+ * Headless benchmark of culling a terrain of <code>2^levels * 2^levels</code> cells with an {@link ArrayQuadtree},
+ * with the frustum only and additionally against a {@link TiledRasterizer} with a coarse, conservative terrain mesh
+ * as occluder, for a camera close to the ground turning around.
+ * <p>
+ * Reports the time per query when collecting all visible cells and when visiting the visible patches of several
+ * sizes with {@link ArrayQuadtree#visibleNodes(Matrix4f, TiledRasterizer, int, ArrayQuadtree.NodeVisitor)}.
+ * <p>
+ * Usage: <code>ArrayQuadtreeBenchmark [levels]</code>
+ *
+ * @author Kai Burjack
+ */
+public class ArrayQuadtreeBenchmark {
+
+    private static final int ITERATIONS = 100;
+    /* Number of cells between the vertices of the occluder mesh */
+    private static final int OCCLUDER_SPACING = 16;
+
+    public static void main(String[] args) {
+        int levels = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+        int size = 1 << levels;
+        ArrayQuadtree<Integer> quadtree = new ArrayQuadtree<>(levels, 1, 1);
+        for (int z = 0; z < size; z++)
+            for (int x = 0; x < size; x++) {
+                float h0 = height(x, z), h1 = height(x + 1, z), h2 = height(x, z + 1), h3 = height(x + 1, z + 1);
+                quadtree.set(x, z, x + z * size, Math.min(Math.min(h0, h1), Math.min(h2, h3)),
+                        Math.max(Math.max(h0, h1), Math.max(h2, h3)));
+            }
+        int vertices = size / OCCLUDER_SPACING;
+        ByteBuffer vb = BufferUtils.createByteBuffer(vertices * vertices * 3);
+        ShortBuffer ib = BufferUtils.createShortBuffer((vertices - 1) * (vertices - 1) * 6);
+        createOccluder(vertices, vb, ib);
+        /* The occluder vertices are bytes, which are scaled to the spacing in x and z */
+        float scale = OCCLUDER_SPACING / (float) (256 / vertices);
+        TiledRasterizer rasterizer = new TiledRasterizer(256, 128);
+        System.out.printf("%dx%d cells, %d occluder triangles%n", size, size, ib.remaining() / 3);
+
+        List<Integer> visible = new ArrayList<>();
+        int[] count = { 0 };
+        ArrayQuadtree.NodeVisitor counter = (x, z) -> count[0]++;
+        for (int round = 0; round < 3; round++) {
+            for (boolean occlusion : new boolean[] { false, true }) {
+                TiledRasterizer occluder = occlusion ? rasterizer : null;
+                long cellsNanos = 0L;
+                long[] patchNanos = new long[3];
+                int cells = 0;
+                int[] patches = new int[3];
+                for (int i = 0; i < ITERATIONS; i++) {
+                    float angle = (float) (2.0 * Math.PI * i / ITERATIONS);
+                    float cx = size * 0.5f, cz = size * 0.5f, cy = height((int) cx, (int) cz) + 5.0f;
+                    Matrix4f m = new Matrix4f()
+                            .perspective((float) Math.toRadians(70), 2.0f, 0.5f, size * 2.0f)
+                            .rotateX(0.1f).rotateY(angle).translate(-cx, -cy, -cz);
+                    if (occlusion) {
+                        rasterizer.clearDepth();
+                        rasterizer.rasterize_Vu8_Iu16(new Matrix4f(m).scale(scale, 1.0f, scale), vb, ib);
+                    }
+                    visible.clear();
+                    long time = System.nanoTime();
+                    quadtree.visible(m, occluder, visible);
+                    cellsNanos += System.nanoTime() - time;
+                    cells += visible.size();
+                    for (int p = 0; p < 3; p++) {
+                        count[0] = 0;
+                        time = System.nanoTime();
+                        quadtree.visibleNodes(m, occluder, levels - 6 + 2 * p, counter);
+                        patchNanos[p] += System.nanoTime() - time;
+                        patches[p] += count[0];
+                    }
+                }
+                String name = occlusion ? "frustum + occlusion" : "frustum            ";
+                System.out.printf("%s: cells %8.1f us (%d visible)", name, cellsNanos * 1E-3 / ITERATIONS,
+                        cells / ITERATIONS);
+                for (int p = 0; p < 3; p++)
+                    System.out.printf(", %d^2 patches %6.1f us (%d visible)", 1 << 6 - 2 * p,
+                            patchNanos[p] * 1E-3 / ITERATIONS, patches[p] / ITERATIONS);
+                System.out.println();
+            }
+        }
+    }
+
+    private static float height(int x, int z) {
+        return 128.0f + 100.0f * noise(x * 0.004f, z * 0.004f) + 20.0f * noise(x * 0.02f, z * 0.02f);
+    }
+
+    /*
+     * Grid of vertices every OCCLUDER_SPACING cells, each with the minimum height of all cells within one spacing
+     * around it, so that each triangle lies below the terrain and only occludes what the terrain occludes.
+     */
+    private static void createOccluder(int vertices, ByteBuffer vb, ShortBuffer ib) {
+        int step = 256 / vertices;
+        for (int gz = 0; gz < vertices; gz++)
+            for (int gx = 0; gx < vertices; gx++) {
+                float min = Float.POSITIVE_INFINITY;
+                for (int z = (gz - 1) * OCCLUDER_SPACING; z <= (gz + 1) * OCCLUDER_SPACING; z++)
+                    for (int x = (gx - 1) * OCCLUDER_SPACING; x <= (gx + 1) * OCCLUDER_SPACING; x++)
+                        min = Math.min(min, height(x, z));
+                vb.put((byte) (gx * step)).put((byte) Math.max(0, (int) min)).put((byte) (gz * step));
+            }
+        for (int gz = 0; gz < vertices - 1; gz++)
+            for (int gx = 0; gx < vertices - 1; gx++) {
+                int v = gx + gz * vertices;
+                ib.put((short) v).put((short) (v + vertices)).put((short) (v + vertices + 1));
+                ib.put((short) v).put((short) (v + vertices + 1)).put((short) (v + 1));
+            }
+        vb.flip();
+        ib.flip();
+    }
+
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright LWJGL. All rights reserved.
+ * License terms: https://www.lwjgl.org/license
+ */
+package org.lwjgl.demo.benchmark;
+
+import static org.lwjgl.demo.util.ChunkIteratorVisitor.*;
+
+import java.lang.management.ManagementFactory;
+
+import org.joml.Matrix4f;
+import org.joml.Quaternionf;
+import org.joml.Vector3f;
+import org.lwjgl.demo.util.ChunkIterator;
+import org.lwjgl.demo.util.ChunkIteratorVisitor;
+
+/**
+ * Headless benchmark of the front-to-back iteration of {@link ChunkIterator} over a bounded grid of chunks and over
+ * an unbounded grid with a maximum view distance, while turning the camera around.
+ * <p>
+ * Reports the time per iteration, the number of visited chunks and the bytes allocated on the Java heap.
+ * <p>
+ * Usage: <code>ChunkIteratorBenchmark [view distance in chunks]</code>
+ *
+ * @author Kai Burjack
+ */
+public class ChunkIteratorBenchmark {
+
+    private static final int ITERATIONS = 200;
+
+    public static void main(String[] args) {
+        float viewDistance = args.length > 0 ? Float.parseFloat(args[0]) : 32.0f;
+        int size = (int) (2 * viewDistance);
+        Matrix4f proj = new Matrix4f().perspective((float) Math.toRadians(90), 16.0f / 9.0f, 0.1f, 1000.0f);
+        ChunkIterator bounded = new ChunkIterator(size, 16, size);
+        ChunkIterator unbounded = new ChunkIterator(viewDistance);
+        for (int round = 0; round < 3; round++) {
+            run(String.format("%dx16x%d grid       ", size, size), bounded, proj,
+                    new Vector3f(size * 0.5f + 0.3f, 8.2f, size * 0.5f + 0.7f));
+            run(String.format("unbounded, %5.1f view", viewDistance), unbounded, proj,
+                    new Vector3f(-1000.3f, 8.2f, 5000.7f));
+        }
+    }
+
+    private static void run(String name, ChunkIterator iterator, Matrix4f proj, Vector3f rp) {
+        com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        Quaternionf[] views = new Quaternionf[ITERATIONS];
+        for (int i = 0; i < ITERATIONS; i++)
+            views[i] = new Quaternionf().rotateY((float) (2.0 * Math.PI * i / ITERATIONS));
+        int[] count = { 0 };
+        ChunkIteratorVisitor counter = (x, y, z, d) -> {
+            count[0]++;
+            return CONTINUE;
+        };
+        long allocated = bean.getThreadAllocatedBytes(thread);
+        long time = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++)
+            iterator.iterateFrontToBack(rp, views[i], proj, counter);
+        time = System.nanoTime() - time;
+        allocated = bean.getThreadAllocatedBytes(thread) - allocated;
+        System.out.printf("%s: %8.2f us/iteration, %8.1f chunks/iteration, %,8d bytes allocated/iteration%n", name,
+                time * 1E-3 / ITERATIONS, (float) count[0] / ITERATIONS, allocated / ITERATIONS);
+    }
+
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright LWJGL. All rights reserved.
+ * License terms: https://www.lwjgl.org/license
+ */
+package org.lwjgl.demo.benchmark;
+
+import static org.joml.SimplexNoise.*;
+import static org.lwjgl.demo.util.ChunkIteratorVisitor.*;
+
+import org.joml.Matrix4f;
+import org.joml.Quaternionf;
+import org.joml.Vector3f;
+import org.lwjgl.demo.util.ChunkIteratorVisitor;
+import org.lwjgl.demo.util.ChunkVisibility;
+
+/**
+ * Headless benchmark comparing the number of chunks visited by the connectivity aware {@link ChunkVisibility} with
+ * a frustum culled traversal, for a camera above the ground and for several cameras in caves.
+ * <p>
+ * The frustum culled traversal is a {@link ChunkVisibility} which is never updated and so considers all faces of all
+ * chunks to be connected.
+ * <p>
+ * Also reports the time to compute the connectivity of all chunks and to recompute it after local edits.
+ * <p>
+ * Usage: <code>ChunkVisibilityBenchmark [chunks along x and z]</code>
+ *
+ * @author Kai Burjack
+ */
+public class ChunkVisibilityBenchmark {
+
+    private static final int CHUNK_SIZE = 16;
+    private static final int CHUNKS_Y = 8;
+    private static final int ITERATIONS = 100;
+
+    public static void main(String[] args) {
+        int chunks = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        int sx = chunks * CHUNK_SIZE, sy = CHUNKS_Y * CHUNK_SIZE, sz = chunks * CHUNK_SIZE;
+        byte[] world = createWorld(sx, sy, sz);
+        ChunkVisibility.VoxelSource source = (x, y, z, ds) -> {
+            for (int vz = 0; vz < CHUNK_SIZE; vz++)
+                for (int vy = 0; vy < CHUNK_SIZE; vy++)
+                    System.arraycopy(world, x * CHUNK_SIZE + sx * (y * CHUNK_SIZE + vy + sy * (z * CHUNK_SIZE + vz)),
+                            ds, CHUNK_SIZE * (vy + CHUNK_SIZE * vz), CHUNK_SIZE);
+        };
+        ChunkVisibility frustumOnly = new ChunkVisibility(chunks, CHUNKS_Y, chunks, CHUNK_SIZE, CHUNK_SIZE,
+                CHUNK_SIZE);
+        ChunkVisibility visibility = new ChunkVisibility(chunks, CHUNKS_Y, chunks, CHUNK_SIZE, CHUNK_SIZE,
+                CHUNK_SIZE);
+        System.out.printf("%dx%dx%d chunks of %d^3 voxels, %d threads%n", chunks, CHUNKS_Y, chunks, CHUNK_SIZE,
+                java.util.concurrent.ForkJoinPool.commonPool().getParallelism());
+
+        for (int round = 0; round < 3; round++) {
+            for (int x = 0; x < chunks; x++)
+                for (int y = 0; y < CHUNKS_Y; y++)
+                    for (int z = 0; z < chunks; z++)
+                        visibility.markDirty(x, y, z);
+            long time = System.nanoTime();
+            int count = visibility.update(source);
+            System.out.printf("update of all %d chunks: %8.2f ms%n", count, (System.nanoTime() - time) * 1E-6);
+        }
+        java.util.Random rnd = new java.util.Random(1234);
+        long time = System.nanoTime();
+        int edits = 100;
+        for (int i = 0; i < edits; i++) {
+            visibility.markDirty(rnd.nextInt(chunks), rnd.nextInt(CHUNKS_Y), rnd.nextInt(chunks));
+            visibility.update(source);
+        }
+        System.out.printf("update after editing a single chunk: %8.2f us%n", (System.nanoTime() - time) * 1E-3 / edits);
+
+        Matrix4f proj = new Matrix4f().perspective((float) Math.toRadians(90), 16.0f / 9.0f, 0.1f, 1000.0f);
+        Vector3f[] positions = { new Vector3f(sx * 0.5f, sy - 1, sz * 0.5f), findCave(world, sx, sy, sz, 0.25f),
+                findCave(world, sx, sy, sz, 0.5f), findCave(world, sx, sy, sz, 0.75f) };
+        String[] names = { "above ground", "cave 1      ", "cave 2      ", "cave 3      " };
+        for (int p = 0; p < positions.length; p++) {
+            Vector3f rp = positions[p].div(CHUNK_SIZE);
+            int frustum = 0, connected = 0;
+            long frustumNanos = 0L, connectedNanos = 0L;
+            for (int i = 0; i < ITERATIONS; i++) {
+                Quaternionf view = new Quaternionf().rotateX(p == 0 ? 0.6f : 0.0f)
+                        .rotateY((float) (2.0 * Math.PI * i / ITERATIONS));
+                int[] count = { 0 };
+                ChunkIteratorVisitor counter = (x, y, z, d) -> {
+                    count[0]++;
+                    return CONTINUE;
+                };
+                time = System.nanoTime();
+                frustumOnly.iterateFrontToBack(rp, view, proj, counter);
+                frustumNanos += System.nanoTime() - time;
+                frustum += count[0];
+                count[0] = 0;
+                time = System.nanoTime();
+                visibility.iterateFrontToBack(rp, view, proj, counter);
+                connectedNanos += System.nanoTime() - time;
+                connected += count[0];
+            }
+            System.out.printf("%s: frustum %6.1f chunks %6.1f us, connectivity %6.1f chunks %6.1f us%n",
+                    names[p], (float) frustum / ITERATIONS, frustumNanos * 1E-3 / ITERATIONS,
+                    (float) connected / ITERATIONS, connectedNanos * 1E-3 / ITERATIONS);
+        }
+    }
+
+    /*
+     * Find an empty voxel of a cave at the given relative height, closest to the center of the world.
+     */
+    private static Vector3f findCave(byte[] world, int sx, int sy, int sz, float height) {
+        int y = (int) (sy * height);
+        for (int r = 0; r < sx / 2; r++)
+            for (int z = sz / 2 - r; z <= sz / 2 + r; z++)
+                for (int x = sx / 2 - r; x <= sx / 2 + r; x++)
+                    if (world[x + sx * (y + sy * z)] == 0)
+                        return new Vector3f(x + 0.5f, y + 0.5f, z + 0.5f);
+        throw new IllegalStateException("no cave at height " + y);
+    }
+
+    private static int terrainHeight(int x, int z, int sy) {
+        return (int) (sy * (0.8f + 0.1f * noise(x * 0.01f, z * 0.01f)));
+    }
+
+    /*
+     * Solid ground below a noise heightfield, with tunnels where two noise functions are both close to zero.
+     */
+    private static byte[] createWorld(int sx, int sy, int sz) {
+        byte[] world = new byte[sx * sy * sz];
+        float scale = 0.02f;
+        for (int z = 0; z < sz; z++)
+            for (int x = 0; x < sx; x++) {
+                int h = terrainHeight(x, z, sy);
+                for (int y = 0; y < h; y++) {
+                    boolean cave = Math.abs(noise(x * scale, y * scale, z * scale)) < 0.1f
+                            && Math.abs(noise(x * scale + 100, y * scale, z * scale)) < 0.1f;
+                    world[x + sx * (y + sy * z)] = (byte) (cave ? 0 : 1);
+                }
+            }
+        return world;
+    }
+
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright LWJGL. All rights reserved.
+ * License terms: https://www.lwjgl.org/license
+ */
+package org.lwjgl.demo.benchmark;
+
+import static org.joml.SimplexNoise.*;
+import static org.lwjgl.system.MemoryUtil.*;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.lwjgl.demo.util.DynamicByteBuffer;
+import org.lwjgl.demo.util.FaceTriangulator;
+import org.lwjgl.demo.util.GreedyMeshing;
+import org.lwjgl.demo.util.GreedyMeshing.Face;
+
+/**
+ * Headless benchmark comparing two ways of meshing and triangulating a voxel volume with {@link GreedyMeshing} and
+ * {@link FaceTriangulator}:
+ * <ul>
+ * <li>collecting all faces in a {@link List} of {@link Face} objects and triangulating them afterwards</li>
+ * <li>streaming the faces through a {@link FaceTriangulator.Vsn16_Iu32} directly into the vertex and index
+ * buffers</li>
+ * </ul>
+ * Reports the time and the number of bytes allocated on the Java heap per remesh.
+ * <p>
+ * Additionally compares scalar and {@link GreedyMeshing#setBinary(boolean) binary} meshing of 32^3 and 64^3 chunks
+ * with {@link GreedyMeshing#setSingleOpaque(boolean) single opaque} voxels.
+ * <p>
+ * Usage: <code>GreedyMeshingBenchmark [size]</code>
+ *
+ * @author Kai Burjack
+ */
+public class GreedyMeshingBenchmark {
+
+    private static final int BITS_FOR_POSITIONS = 10;
+    private static final int ITERATIONS = 200;
+
+    public static void main(String[] args) {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 128;
+        byte[] vs = createVolume(size);
+        GreedyMeshing gm = new GreedyMeshing(size, size, size);
+        DynamicByteBuffer positions = new DynamicByteBuffer(), normals = new DynamicByteBuffer(),
+                indices = new DynamicByteBuffer();
+        DynamicByteBuffer positions2 = new DynamicByteBuffer(), normals2 = new DynamicByteBuffer(),
+                indices2 = new DynamicByteBuffer();
+
+        Runnable list = () -> {
+            positions.pos = normals.pos = indices.pos = 0;
+            List<Face> faces = new ArrayList<>();
+            gm.mesh(vs, faces);
+            FaceTriangulator.triangulate_Vsn16_Iu32(BITS_FOR_POSITIONS, faces, positions, normals, indices);
+        };
+        FaceTriangulator.Vsn16_Iu32 sink = new FaceTriangulator.Vsn16_Iu32(BITS_FOR_POSITIONS, positions2, normals2,
+                indices2);
+        Runnable stream = () -> {
+            positions2.pos = normals2.pos = indices2.pos = 0;
+            sink.count = 0;
+            gm.mesh(vs, sink);
+        };
+
+        list.run();
+        stream.run();
+        if (!equal(positions, positions2) || !equal(normals, normals2) || !equal(indices, indices2))
+            throw new AssertionError("List<Face> and FaceConsumer results differ");
+        System.out.printf("%d^3 voxels, %d faces%n", size, sink.count);
+        for (int round = 0; round < 3; round++) {
+            run("List<Face>  ", list);
+            run("FaceConsumer", stream);
+        }
+
+        for (int chunkSize : new int[] { 32, 64 })
+            compareBinary(chunkSize);
+
+        positions.free();
+        normals.free();
+        indices.free();
+        positions2.free();
+        normals2.free();
+        indices2.free();
+    }
+
+    private static void compareBinary(int size) {
+        byte[] vs = createVolume(size);
+        GreedyMeshing scalar = new GreedyMeshing(size, size, size);
+        scalar.setSingleOpaque(true);
+        GreedyMeshing binary = new GreedyMeshing(size, size, size);
+        binary.setSingleOpaque(true);
+        binary.setBinary(true);
+        long[] checksums = new long[2];
+        Runnable runScalar = () -> scalar.mesh(vs, (u0, v0, u1, v1, p, s, v) -> checksums[0] = checksum(checksums[0],
+                u0, v0, u1, v1, p, s, v));
+        Runnable runBinary = () -> binary.mesh(vs, (u0, v0, u1, v1, p, s, v) -> checksums[1] = checksum(checksums[1],
+                u0, v0, u1, v1, p, s, v));
+        runScalar.run();
+        runBinary.run();
+        if (checksums[0] != checksums[1])
+            throw new AssertionError("scalar and binary results differ");
+        System.out.printf("%d^3 voxels, single opaque%n", size);
+        for (int round = 0; round < 3; round++) {
+            run("scalar      ", runScalar);
+            run("binary      ", runBinary);
+        }
+    }
+
+    private static long checksum(long h, int u0, int v0, int u1, int v1, int p, int s, int v) {
+        return ((((((h * 31 + u0) * 31 + v0) * 31 + u1) * 31 + v1) * 31 + p) * 31 + s) * 31 + v;
+    }
+
+    private static void run(String name, Runnable r) {
+        com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        long allocated = bean.getThreadAllocatedBytes(thread);
+        long time = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++)
+            r.run();
+        time = System.nanoTime() - time;
+        allocated = bean.getThreadAllocatedBytes(thread) - allocated;
+        System.out.printf("%s: %8.3f ms/remesh, %,12d bytes allocated/remesh%n", name, time * 1E-6 / ITERATIONS,
+                allocated / ITERATIONS);
+    }
+
+    private static byte[] createVolume(int size) {
+        byte[] vs = new byte[(size + 2) * (size + 2) * (size + 2)];
+        float xzScale = 0.072343f, yScale = 0.13212f;
+        for (int z = 1; z < size + 1; z++)
+            for (int y = 1; y < size + 1; y++)
+                for (int x = 1; x < size + 1; x++)
+                    if (noise((x - 1) * xzScale, (y - 1) * yScale, (z - 1) * xzScale) > 0.0f)
+                        vs[x + (size + 2) * (y + z * (size + 2))] = (byte) (1 + (x + y + z & 3));
+        return vs;
+    }
+
+    private static boolean equal(DynamicByteBuffer a, DynamicByteBuffer b) {
+        return a.pos == b.pos && memByteBuffer(a.addr, a.pos).equals(memByteBuffer(b.addr, b.pos));
+    }
+
+}
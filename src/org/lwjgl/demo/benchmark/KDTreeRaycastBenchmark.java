@@ -0,0 +1,128 @@
+/*
+ * Copyright LWJGL. All rights reserved.
+ * License terms: https://www.lwjgl.org/license
+ */
+package org.lwjgl.demo.benchmark;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import org.joml.Vector3f;
+import org.lwjgl.demo.util.KDTree;
+import org.lwjgl.demo.util.KDTree.Box;
+import org.lwjgl.demo.util.KDTree.Split;
+import org.lwjgl.demo.util.KDTree.Triangle;
+import org.lwjgl.demo.util.WavefrontMeshLoader;
+import org.lwjgl.demo.util.WavefrontMeshLoader.Mesh;
+
+/**
+ * Headless benchmark of the CPU ray casting in {@link KDTree}.
+ * <p>
+ * Casts primary rays of a pinhole camera looking at the model (the same as in
+ * {@link org.lwjgl.demo.opengl.raytracing.DemoSsboTrianglesStacklessKdTree}) with single rays and with 4- and 8-ray
+ * packets and reports the throughput in rays per second per core. The rays are ordered in 4x2 pixel tiles, so that
+ * the rays of a packet are coherent.
+ * <p>
+ * Usage: <code>KDTreeRaycastBenchmark [model resource] [width] [height]</code>
+ *
+ * @author Kai Burjack
+ */
+public class KDTreeRaycastBenchmark {
+
+    private static final int ITERATIONS = 10;
+
+    public static void main(String[] args) throws IOException {
+        String resource = args.length > 0 ? args[0] : "org/lwjgl/demo/opengl/models/lwjgl3.obj.zip";
+        int width = args.length > 1 ? Integer.parseInt(args[1]) : 1024;
+        int height = args.length > 2 ? Integer.parseInt(args[2]) : 768;
+        if (width % 4 != 0 || height % 2 != 0) {
+            throw new IllegalArgumentException("width must be a multiple of 4 and height a multiple of 2");
+        }
+
+        Mesh mesh = new WavefrontMeshLoader().loadMesh(resource);
+        List<Triangle> triangles = new ArrayList<Triangle>();
+        Box bounds = new Box();
+        bounds.min = new Vector3f(Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE);
+        bounds.max = new Vector3f(-Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE);
+        int trianglesCount = mesh.positions.remaining() / 3 / 3;
+        for (int i = 0; i < trianglesCount; i++) {
+            Triangle t = new Triangle();
+            t.v0 = new Vector3f(mesh.positions.get(i * 9 + 0), mesh.positions.get(i * 9 + 1), mesh.positions.get(i * 9 + 2));
+            t.v1 = new Vector3f(mesh.positions.get(i * 9 + 3), mesh.positions.get(i * 9 + 4), mesh.positions.get(i * 9 + 5));
+            t.v2 = new Vector3f(mesh.positions.get(i * 9 + 6), mesh.positions.get(i * 9 + 7), mesh.positions.get(i * 9 + 8));
+            triangles.add(t);
+            bounds.min.min(t.v0).min(t.v1).min(t.v2);
+            bounds.max.max(t.v0).max(t.v1).max(t.v2);
+        }
+        KDTree tree = new KDTree();
+        tree.mSplitStrategy = Split.BINNED_SAH;
+        tree.mMaxDepth = 20;
+        tree.buildTree(triangles, bounds);
+
+        float[] rays = primaryRays(bounds, width, height);
+        int count = width * height;
+        for (int packetSize : new int[] { 1, 4, 8 }) {
+            float[] tuv = new float[count * 3];
+            // warm up
+            int hits = tree.intersect(rays, count, tuv, null, packetSize);
+            long time = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; i++) {
+                tree.intersect(rays, count, tuv, null, packetSize);
+            }
+            double seconds = (System.nanoTime() - time) * 1E-9;
+            System.out.printf("packet size %d: %.2f Mrays/s per core (%d of %d rays hit)%n", packetSize,
+                    ITERATIONS * count / seconds * 1E-6, hits, count);
+        }
+
+        // all cores, one row of tiles per task
+        int cores = Runtime.getRuntime().availableProcessors();
+        float[] tuv = new float[count * 3];
+        long time = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            IntStream.range(0, height / 2).parallel().forEach(row -> {
+                float[] rowRays = new float[width * 2 * 6];
+                float[] rowTuv = new float[width * 2 * 3];
+                System.arraycopy(rays, row * width * 2 * 6, rowRays, 0, rowRays.length);
+                tree.intersect(rowRays, width * 2, rowTuv, null, 8);
+                System.arraycopy(rowTuv, 0, tuv, row * width * 2 * 3, rowTuv.length);
+            });
+        }
+        double seconds = (System.nanoTime() - time) * 1E-9;
+        System.out.printf("packet size 8 on %d cores: %.2f Mrays/s (%.2f Mrays/s per core)%n", cores,
+                ITERATIONS * count / seconds * 1E-6, ITERATIONS * count / seconds * 1E-6 / cores);
+    }
+
+    /*
+     * Rays of a camera in front of the model, ordered in 4x2 pixel tiles.
+     */
+    private static float[] primaryRays(Box bounds, int width, int height) {
+        Vector3f center = new Vector3f(bounds.min).add(bounds.max).mul(0.5f);
+        float radius = new Vector3f(bounds.max).sub(bounds.min).length() * 0.5f;
+        Vector3f eye = new Vector3f(center).add(radius * 0.6f, radius * 0.4f, radius * 1.6f);
+        Vector3f forward = new Vector3f(center).sub(eye).normalize();
+        Vector3f right = new Vector3f(forward).cross(0, 1, 0).normalize();
+        Vector3f up = new Vector3f(right).cross(forward);
+        float aspect = (float) width / height;
+        float[] rays = new float[width * height * 6];
+        Vector3f dir = new Vector3f();
+        int r = 0;
+        for (int ty = 0; ty < height; ty += 2)
+            for (int tx = 0; tx < width; tx += 4)
+                for (int y = ty; y < ty + 2; y++)
+                    for (int x = tx; x < tx + 4; x++) {
+                        float u = ((x + 0.5f) / width * 2.0f - 1.0f) * aspect * 0.5f;
+                        float v = ((y + 0.5f) / height * 2.0f - 1.0f) * 0.5f;
+                        dir.set(forward).fma(u, right).fma(v, up).normalize();
+                        rays[r++] = eye.x;
+                        rays[r++] = eye.y;
+                        rays[r++] = eye.z;
+                        rays[r++] = dir.x;
+                        rays[r++] = dir.y;
+                        rays[r++] = dir.z;
+                    }
+        return rays;
+    }
+
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright LWJGL. All rights reserved.
+ * License terms: https://www.lwjgl.org/license
+ */
+package org.lwjgl.demo.benchmark;
+
+import static org.joml.SimplexNoise.*;
+import static org.lwjgl.system.MemoryUtil.*;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+
+import org.joml.Vector3i;
+import org.lwjgl.demo.util.DensityPyramid;
+import org.lwjgl.demo.util.DynamicByteBuffer;
+import org.lwjgl.demo.util.MarchingCubes;
+
+/**
+ * Headless benchmark comparing {@link MarchingCubes#march(byte[], byte, int, int, int)}, which returns a
+ * {@link Vector3i} per triangle corner, with the welded and slab-parallel
+ * {@link MarchingCubes#march(byte[], byte, int, int, int, DynamicByteBuffer, DynamicByteBuffer)}.
+ * <p>
+ * Reports the time per extraction, the bytes allocated on the Java heap and the size of the generated mesh.
+ * <p>
+ * Additionally compares the welded extraction of a terrain volume with and without a {@link DensityPyramid}, for
+ * several iso values and after local edits of the volume.
+ * <p>
+ * Usage: <code>MarchingCubesBenchmark [size]</code>
+ *
+ * @author Kai Burjack
+ */
+public class MarchingCubesBenchmark {
+
+    private static final int ITERATIONS = 5;
+
+    public static void main(String[] args) {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 256;
+        byte[] ds = createDensities(size);
+        byte iso = 0;
+        DynamicByteBuffer vertices = new DynamicByteBuffer(), indices = new DynamicByteBuffer();
+
+        List<Vector3i> corners = MarchingCubes.march(ds, iso, size, size, size);
+        int vertexCount = MarchingCubes.march(ds, iso, size, size, size, vertices, indices);
+        check(corners, vertices, indices);
+        System.out.printf("%d^3 densities, %d triangles%n", size, corners.size() / 3);
+        /* 16 bytes header + 3 ints per Vector3i, plus one reference per list element */
+        System.out.printf("List<Vector3i>: %,d vertices, ~%,d bytes%n", corners.size(), corners.size() * (16L + 12 + 4));
+        System.out.printf("welded:         %,d vertices, %,d bytes%n", vertexCount, (long) vertices.pos + indices.pos);
+        corners = null;
+
+        for (int round = 0; round < 3; round++) {
+            run("List<Vector3i>", () -> MarchingCubes.march(ds, iso, size, size, size));
+            run("welded        ", () -> {
+                vertices.reset();
+                indices.reset();
+                MarchingCubes.march(ds, iso, size, size, size, vertices, indices);
+            });
+        }
+        comparePyramid(size, vertices, indices);
+        vertices.free();
+        indices.free();
+    }
+
+    private static void comparePyramid(int size, DynamicByteBuffer vertices, DynamicByteBuffer indices) {
+        byte[] ds = createTerrain(size);
+        long time = System.nanoTime();
+        DensityPyramid pyramid = new DensityPyramid(ds, size, size, size);
+        System.out.printf("%d^3 terrain, pyramid with %d levels built in %.2f ms%n", size, pyramid.levels(),
+                (System.nanoTime() - time) * 1E-6);
+        DynamicByteBuffer vertices2 = new DynamicByteBuffer(), indices2 = new DynamicByteBuffer();
+        for (byte iso : new byte[] { -40, 0, 40 }) {
+            Runnable full = () -> {
+                vertices.reset();
+                indices.reset();
+                MarchingCubes.march(ds, iso, size, size, size, vertices, indices);
+            };
+            Runnable sparse = () -> {
+                vertices2.reset();
+                indices2.reset();
+                MarchingCubes.march(pyramid, iso, vertices2, indices2);
+            };
+            full.run();
+            sparse.run();
+            if (!equal(vertices, vertices2) || !equal(indices, indices2))
+                throw new AssertionError("full and pyramid results differ");
+            System.out.printf("iso %d: %,d triangles%n", iso, indices.pos / 12);
+            for (int round = 0; round < 2; round++) {
+                run("full          ", full);
+                run("pyramid       ", sparse);
+            }
+        }
+
+        /* Dig spherical holes into the terrain and update only the affected blocks */
+        int edits = 100, radius = 6;
+        java.util.Random rnd = new java.util.Random(1234);
+        long updateNanos = 0L;
+        for (int i = 0; i < edits; i++) {
+            int cx = rnd.nextInt(size), cz = rnd.nextInt(size), cy = terrainHeight(cx, cz, size);
+            for (int z = Math.max(0, cz - radius); z <= Math.min(size - 1, cz + radius); z++)
+                for (int y = Math.max(0, cy - radius); y <= Math.min(size - 1, cy + radius); y++)
+                    for (int x = Math.max(0, cx - radius); x <= Math.min(size - 1, cx + radius); x++)
+                        if ((x - cx) * (x - cx) + (y - cy) * (y - cy) + (z - cz) * (z - cz) <= radius * radius)
+                            ds[x + size * (y + size * z)] = -127;
+            time = System.nanoTime();
+            pyramid.update(cx - radius, cy - radius, cz - radius, cx + radius, cy + radius, cz + radius);
+            updateNanos += System.nanoTime() - time;
+        }
+        vertices.reset();
+        indices.reset();
+        vertices2.reset();
+        indices2.reset();
+        MarchingCubes.march(ds, (byte) 0, size, size, size, vertices, indices);
+        MarchingCubes.march(pyramid, (byte) 0, vertices2, indices2);
+        if (!equal(vertices, vertices2) || !equal(indices, indices2))
+            throw new AssertionError("full and pyramid results differ after edits");
+        System.out.printf("%d edits of radius %d: %.2f us/update%n", edits, radius, updateNanos * 1E-3 / edits);
+        vertices2.free();
+        indices2.free();
+    }
+
+    private static boolean equal(DynamicByteBuffer a, DynamicByteBuffer b) {
+        return a.pos == b.pos && memByteBuffer(a.addr, a.pos).equals(memByteBuffer(b.addr, b.pos));
+    }
+
+    private static void run(String name, Runnable r) {
+        com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        long allocated = bean.getThreadAllocatedBytes(thread);
+        long time = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++)
+            r.run();
+        time = System.nanoTime() - time;
+        allocated = bean.getThreadAllocatedBytes(thread) - allocated;
+        System.out.printf("%s: %8.2f ms/extraction, %,14d bytes allocated/extraction (calling thread)%n", name,
+                time * 1E-6 / ITERATIONS, allocated / ITERATIONS);
+    }
+
+    /*
+     * Check that the welded mesh contains the same triangles in the same order.
+     */
+    private static void check(List<Vector3i> corners, DynamicByteBuffer vertices, DynamicByteBuffer indices) {
+        if (corners.size() != indices.pos / 4)
+            throw new AssertionError("different number of triangle corners");
+        for (int i = 0; i < corners.size(); i++) {
+            Vector3i c = corners.get(i);
+            long v = vertices.addr + (long) memGetInt(indices.addr + 4L * i) * MarchingCubes.VERTEX_SIZE;
+            if (memGetShort(v) != c.x || memGetShort(v + 2) != c.y || memGetShort(v + 4) != c.z)
+                throw new AssertionError("different triangle corner " + i);
+        }
+    }
+
+    private static byte[] createDensities(int size) {
+        byte[] ds = new byte[size * size * size];
+        float scale = 0.03f;
+        for (int z = 0; z < size; z++)
+            for (int y = 0; y < size; y++)
+                for (int x = 0; x < size; x++)
+                    ds[x + size * (y + size * z)] = (byte) (noise(x * scale, y * scale, z * scale) * 127.0f);
+        return ds;
+    }
+
+    private static int terrainHeight(int x, int z, int size) {
+        return (int) (size * (0.5f + 0.2f * noise(x * 0.01f, z * 0.01f)));
+    }
+
+    /*
+     * Density falling off linearly above a noise heightfield.
+     */
+    private static byte[] createTerrain(int size) {
+        byte[] ds = new byte[size * size * size];
+        for (int z = 0; z < size; z++)
+            for (int x = 0; x < size; x++) {
+                int h = terrainHeight(x, z, size);
+                for (int y = 0; y < size; y++)
+                    ds[x + size * (y + size * z)] = (byte) Math.max(-127, Math.min(127, (h - y) * 16));
+            }
+        return ds;
+    }
+
+}
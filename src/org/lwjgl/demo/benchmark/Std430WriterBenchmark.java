@@ -0,0 +1,67 @@
+/*
+ * Copyright LWJGL. All rights reserved.
+ * License terms: https://www.lwjgl.org/license
+ */
+package org.lwjgl.demo.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.joml.Vector3f;
+import org.lwjgl.demo.util.DynamicByteBuffer;
+import org.lwjgl.demo.util.Std430Writer;
+import org.lwjgl.demo.util.Std430Writer.Layout;
+import org.lwjgl.demo.util.Std430Writer.Member;
+
+/**
+ * Headless benchmark of writing kd-tree nodes like the ones of the ray tracing tutorials with {@link Std430Writer} in
+ * std430 and std140 layout.
+ * <p>
+ * Usage: <code>Std430WriterBenchmark [nodes]</code>
+ *
+ * @author Kai Burjack
+ */
+public class Std430WriterBenchmark {
+
+    public static class GPUNode {
+        public Vector3f min, max;
+        public int dim;
+        public float plane;
+        public @Member(length = 6) int[] ropes;
+        public int left, right;
+        public int firstTri, numTris;
+    }
+
+    public static void main(String[] args) {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        List<GPUNode> nodes = new ArrayList<GPUNode>(count);
+        for (int i = 0; i < count; i++) {
+            GPUNode n = new GPUNode();
+            n.min = new Vector3f(i, i, i);
+            n.max = new Vector3f(i + 1, i + 1, i + 1);
+            n.dim = i % 3;
+            n.plane = i + 0.5f;
+            n.ropes = new int[] { i - 1, i + 1, -1, -1, i - 2, i + 2 };
+            n.left = 2 * i + 1;
+            n.right = 2 * i + 2;
+            n.firstTri = i;
+            n.numTris = 4;
+            nodes.add(n);
+        }
+        DynamicByteBuffer bb = new DynamicByteBuffer();
+        for (int round = 0; round < 3; round++) {
+            run("std430", Std430Writer.std430(GPUNode.class), nodes, bb);
+            run("std140", Std430Writer.std140(GPUNode.class), nodes, bb);
+        }
+        bb.free();
+    }
+
+    private static void run(String name, Layout layout, List<GPUNode> nodes, DynamicByteBuffer bb) {
+        bb.reset();
+        long time = System.nanoTime();
+        layout.write(nodes, bb);
+        time = System.nanoTime() - time;
+        System.out.printf("%s: %,d nodes of %d bytes in %.1f ms%n", name, nodes.size(), layout.size, time * 1E-6);
+    }
+
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright LWJGL. All rights reserved.
+ * License terms: https://www.lwjgl.org/license
+ */
+package org.lwjgl.demo.benchmark;
+
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+import java.util.Random;
+
+import org.joml.Matrix4f;
+import org.lwjgl.BufferUtils;
+import org.lwjgl.demo.util.Rasterizer;
+import org.lwjgl.demo.util.TiledRasterizer;
+
+/**
+ * Headless benchmark of the occlusion culling with {@link TiledRasterizer}.
+ * <p>
+ * Rasterizes a city of boxes as occluders and then tests many small boxes inside of the city against the depth
+ * buffer, for several resolutions. Reports the throughput in triangles per second, compared to the single-threaded
+ * {@link Rasterizer}, and in occlusion queries per second, also when rasterizing the occluders in several batches and
+ * with {@link TiledRasterizer#setConservativeDepth(boolean) conservative depth}.
+ * <p>
+ * Usage: <code>TiledRasterizerBenchmark [city size]</code>
+ *
+ * @author Kai Burjack
+ */
+public class TiledRasterizerBenchmark {
+
+    private static final int ITERATIONS = 50;
+    private static final int QUERIES = 100000;
+    private static final int[][] RESOLUTIONS = { { 256, 128 }, { 640, 360 }, { 1280, 720 }, { 1920, 1080 } };
+
+    public static void main(String[] args) {
+        int citySize = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        ByteBuffer vb = BufferUtils.createByteBuffer(citySize * citySize * 8 * 3);
+        ShortBuffer ib = BufferUtils.createShortBuffer(citySize * citySize * 36);
+        createCity(citySize, vb, ib);
+        float[] aabbs = createQueries(QUERIES);
+        boolean[] visible = new boolean[QUERIES];
+        int triangles = ib.remaining() / 3;
+        System.out.printf("%,d occluder triangles, %,d queries, %d threads%n", triangles, QUERIES,
+                java.util.concurrent.ForkJoinPool.commonPool().getParallelism());
+
+        for (int[] resolution : RESOLUTIONS) {
+            int width = resolution[0], height = resolution[1];
+            Matrix4f m = new Matrix4f()
+                    .perspective((float) Math.toRadians(60), (float) width / height, 1.0f, 1000.0f, true)
+                    .lookAt(-40, 120, -40, 128, 0, 128, 0, 1, 0);
+            Rasterizer scalar = new Rasterizer(width, height);
+            TiledRasterizer tiled = new TiledRasterizer(width, height);
+            scalar.rasterize_Vu8_Iu16(m, vb, ib, true, true, Integer.MAX_VALUE);
+            tiled.rasterize_Vu8_Iu16(m, vb, ib);
+            compare(scalar, tiled);
+
+            long time = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; i++) {
+                scalar.clearDepth();
+                scalar.rasterize_Vu8_Iu16(m, vb, ib, true, true, Integer.MAX_VALUE);
+            }
+            double seconds = (System.nanoTime() - time) * 1E-9;
+            System.out.printf("  Rasterizer                : %8.2f Mtriangles/s%n",
+                    ITERATIONS * triangles / seconds * 1E-6);
+            run("TiledRasterizer           ", tiled, m, vb, ib, 1, aabbs, visible);
+            run("TiledRasterizer, 8 batches", tiled, m, vb, ib, 8, aabbs, visible);
+            tiled.setConservativeDepth(true);
+            run("conservative, 8 batches   ", tiled, m, vb, ib, 8, aabbs, visible);
+        }
+    }
+
+    /*
+     * Rasterize the occluders in the given number of batches, which are roughly ordered front to back, so that later
+     * batches can skip tiles based on the maximum depths of the earlier ones.
+     */
+    private static void run(String name, TiledRasterizer tiled, Matrix4f m, ByteBuffer vb, ShortBuffer ib,
+            int batches, float[] aabbs, boolean[] visible) {
+        int triangles = ib.remaining() / 3;
+        long time = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            tiled.clearDepth();
+            for (int b = 0; b < batches; b++) {
+                ShortBuffer batch = ib.duplicate();
+                batch.position(triangles * b / batches * 3).limit(triangles * (b + 1) / batches * 3);
+                tiled.rasterize_Vu8_Iu16(m, vb, batch);
+            }
+        }
+        double seconds = (System.nanoTime() - time) * 1E-9;
+        int visibleCount = tiled.testAabbOcclusion(m, aabbs, QUERIES, visible);
+        time = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++)
+            tiled.testAabbOcclusion(m, aabbs, QUERIES, visible);
+        double querySeconds = (System.nanoTime() - time) * 1E-9;
+        System.out.printf("  %s: %8.2f Mtriangles/s, %8.2f Mqueries/s (%d of %d visible)%n", name,
+                ITERATIONS * triangles / seconds * 1E-6, ITERATIONS * QUERIES / querySeconds * 1E-6, visibleCount,
+                QUERIES);
+    }
+
+    /*
+     * Both rasterizers evaluate the edge functions and the depth differently, so pixels on the silhouettes of
+     * triangles may be covered by a different triangle.
+     */
+    private static void compare(Rasterizer scalar, TiledRasterizer tiled) {
+        int different = 0;
+        for (int y = 0; y < scalar.height; y++)
+            for (int x = 0; x < scalar.width; x++)
+                if (Math.abs(scalar.depthbuffer[x + y * scalar.width] - tiled.depth(x, y)) > 1E-4f)
+                    different++;
+        System.out.printf("%dx%d: depth of %d of %d pixels differs from Rasterizer%n", scalar.width, scalar.height,
+                different, scalar.width * scalar.height);
+    }
+
+    /*
+     * Grid of boxes with random heights in [0, 255]^3, each with counter-clockwise faces when seen from outside.
+     */
+    private static void createCity(int size, ByteBuffer vb, ShortBuffer ib) {
+        Random rnd = new Random(1234);
+        int spacing = 256 / size;
+        for (int z = 0, v = 0; z < size; z++) {
+            for (int x = 0; x < size; x++, v += 8) {
+                int x0 = x * spacing, z0 = z * spacing, x1 = x0 + spacing - 1, z1 = z0 + spacing - 1;
+                int h = 8 + rnd.nextInt(120);
+                for (int c = 0; c < 8; c++)
+                    vb.put((byte) ((c & 1) == 0 ? x0 : x1)).put((byte) ((c & 2) == 0 ? 0 : h))
+                            .put((byte) ((c & 4) == 0 ? z0 : z1));
+                int[] faces = { 0, 2, 3, 1, /* -z */ 4, 5, 7, 6, /* +z */ 0, 4, 6, 2, /* -x */ 1, 3, 7, 5, /* +x */
+                        2, 6, 7, 3, /* +y */ 0, 1, 5, 4 /* -y */ };
+                for (int f = 0; f < 24; f += 4) {
+                    ib.put((short) (v + faces[f])).put((short) (v + faces[f + 1])).put((short) (v + faces[f + 2]));
+                    ib.put((short) (v + faces[f])).put((short) (v + faces[f + 2])).put((short) (v + faces[f + 3]));
+                }
+            }
+        }
+        vb.flip();
+        ib.flip();
+    }
+
+    private static float[] createQueries(int count) {
+        Random rnd = new Random(4321);
+        float[] aabbs = new float[count * 6];
+        for (int i = 0; i < count; i++) {
+            float x = rnd.nextFloat() * 252, y = rnd.nextFloat() * 60, z = rnd.nextFloat() * 252;
+            aabbs[6 * i] = x;
+            aabbs[6 * i + 1] = y;
+            aabbs[6 * i + 2] = z;
+            aabbs[6 * i + 3] = x + 2;
+            aabbs[6 * i + 4] = y + 2;
+            aabbs[6 * i + 5] = z + 2;
+        }
+        return aabbs;
+    }
+
+}
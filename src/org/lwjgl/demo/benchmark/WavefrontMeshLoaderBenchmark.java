@@ -0,0 +1,76 @@
+/*
+ * Copyright LWJGL. All rights reserved.
+ * License terms: https://www.lwjgl.org/license
+ */
+package org.lwjgl.demo.benchmark;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Locale;
+
+import org.lwjgl.demo.util.WavefrontMeshLoader;
+import org.lwjgl.demo.util.WavefrontMeshLoader.Mesh;
+
+/**
+ * Headless benchmark of loading a memory-mapped obj file with {@link WavefrontMeshLoader}.
+ * <p>
+ * Writes a temporary obj file of a tessellated sphere with <code>segments * segments</code> quads, split into several
+ * objects, with positions and normals written with six decimals like most exporters do, and reports the throughput of
+ * loading it.
+ * <p>
+ * Usage: <code>WavefrontMeshLoaderBenchmark [segments]</code>
+ *
+ * @author Kai Burjack
+ */
+public class WavefrontMeshLoaderBenchmark {
+
+    private static final int ITERATIONS = 10;
+
+    public static void main(String[] args) throws IOException {
+        int segments = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        File file = File.createTempFile("sphere", ".obj");
+        file.deleteOnExit();
+        writeSphere(file, segments);
+        double megabytes = file.length() * 1E-6;
+        WavefrontMeshLoader loader = new WavefrontMeshLoader();
+        System.out.printf("%.1f MB, %d vertices%n", megabytes, loader.loadMesh(file).numVertices);
+        for (int round = 0; round < 3; round++) {
+            long time = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; i++) {
+                Mesh mesh = loader.loadMesh(file);
+                if (mesh.numVertices == 0)
+                    throw new AssertionError();
+            }
+            time = System.nanoTime() - time;
+            System.out.printf("%8.1f ms/load, %6.1f MB/s%n", time * 1E-6 / ITERATIONS,
+                    megabytes * ITERATIONS / (time * 1E-9));
+        }
+    }
+
+    private static void writeSphere(File file, int segments) throws IOException {
+        try (BufferedWriter w = new BufferedWriter(new FileWriter(file), 1 << 16)) {
+            for (int j = 0; j <= segments; j++) {
+                double theta = Math.PI * j / segments;
+                for (int i = 0; i <= segments; i++) {
+                    double phi = 2.0 * Math.PI * i / segments;
+                    double x = Math.sin(theta) * Math.cos(phi), y = Math.cos(theta), z = Math.sin(theta) * Math.sin(phi);
+                    w.write(String.format(Locale.ROOT, "v %.6f %.6f %.6f%nvn %.6f %.6f %.6f%n", x * 10.0, y * 10.0,
+                            z * 10.0, x, y, z));
+                }
+            }
+            int row = segments + 1;
+            for (int j = 0; j < segments; j++) {
+                if (j % (segments / 8 + 1) == 0)
+                    w.write("o band" + j + "\n");
+                for (int i = 0; i < segments; i++) {
+                    int v0 = j * row + i + 1, v1 = v0 + 1, v2 = v0 + row, v3 = v2 + 1;
+                    w.write(String.format("f %d//%d %d//%d %d//%d%nf %d//%d %d//%d %d//%d%n", v0, v0, v2, v2, v3, v3,
+                            v0, v0, v3, v3, v1, v1));
+                }
+            }
+        }
+    }
+
+}
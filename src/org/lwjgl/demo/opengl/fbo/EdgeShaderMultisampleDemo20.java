@@ -51,8 +51,11 @@ public class EdgeShaderMultisampleDemo20 {
     int tex;
 
     int cubeVbo;
+    int cubeIbo;
     long normalsOffset;
     int numVertices;
+    int numIndices;
+    int indexType;
     int quadVbo;
 
     int normalProgram;
@@ -247,6 +250,7 @@ public class EdgeShaderMultisampleDemo20 {
 
     void createCube() throws IOException {
         WavefrontMeshLoader loader = new WavefrontMeshLoader();
+        loader.setIndexed(true);
         Mesh mesh = loader.loadMesh("org/lwjgl/demo/opengl/models/cube.obj.zip");
         this.numVertices = mesh.numVertices;
         long bufferSize = 4 * (3 + 3) * mesh.numVertices;
@@ -257,6 +261,12 @@ public class EdgeShaderMultisampleDemo20 {
         glBufferSubData(GL_ARRAY_BUFFER, 0L, mesh.positions);
         glBufferSubData(GL_ARRAY_BUFFER, normalsOffset, mesh.normals);
         glBindBuffer(GL_ARRAY_BUFFER, 0);
+        this.numIndices = mesh.numIndices;
+        this.indexType = mesh.indexSize == 2 ? GL_UNSIGNED_SHORT : GL_UNSIGNED_INT;
+        this.cubeIbo = glGenBuffers();
+        glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, this.cubeIbo);
+        glBufferData(GL_ELEMENT_ARRAY_BUFFER, mesh.indices, GL_STATIC_DRAW);
+        glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, 0);
     }
 
     void createNormalProgram() throws IOException {
@@ -382,7 +392,9 @@ public class EdgeShaderMultisampleDemo20 {
         glVertexAttribPointer(0, 3, GL_FLOAT, false, 0, 0L);
         glEnableVertexAttribArray(1);
         glVertexAttribPointer(1, 3, GL_FLOAT, false, 0, this.normalsOffset);
-        glDrawArrays(GL_TRIANGLES, 0, this.numVertices);
+        glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, this.cubeIbo);
+        glDrawElements(GL_TRIANGLES, this.numIndices, this.indexType, 0L);
+        glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, 0);
         glDisableVertexAttribArray(0);
         glDisableVertexAttribArray(1);
         glBindBuffer(GL_ARRAY_BUFFER, 0);
@@ -7,7 +7,6 @@ package org.lwjgl.demo.opengl.raytracing;
 import org.lwjgl.BufferUtils;
 import org.lwjgl.demo.util.*;
 import org.lwjgl.demo.util.KDTree.*;
-import org.lwjgl.demo.util.Std430Writer.*;
 import org.lwjgl.demo.util.WavefrontMeshLoader.Mesh;
 import org.lwjgl.glfw.*;
 import org.lwjgl.opengl.GL;
@@ -18,14 +17,12 @@ import org.lwjgl.system.*;
 import org.joml.Matrix4f;
 import org.joml.Vector3f;
 
+import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.IntBuffer;
 import java.util.ArrayList;
-import java.util.LinkedHashMap;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
-import java.util.Queue;
 
 import static java.lang.Math.*;
 import static org.lwjgl.demo.opengl.util.DemoUtils.*;
@@ -219,101 +216,47 @@ public class DemoSsboTrianglesStacklessKdTree {
         }
     }
 
-    /**
-     * Java-pendant of the GLSL struct 'node' in the compute shader 'ssboTriangleStacklessKdTree.glsl'.
-     */
-    public static class GPUNode {
-        public Vector3f min;
-        public Vector3f max;
-        public int dim;
-        public float plane;
-        public @Member(length = 6) int[] ropes;
-        public int left;
-        public int right;
-        public int firstTri;
-        public int numTris;
-    }
-
-    static void kdTreeToBuffers(KDTree tree, DynamicByteBuffer nodesBuffer, DynamicByteBuffer trianglesBuffer) {
-        Map<Node, Integer> indexes = new LinkedHashMap<Node, Integer>();
-        // Allocate indexes for each of the nodes
-        allocate(tree.mRootNode, indexes);
-        int triangleIndex = 0;
-        List<GPUNode> gpuNodes = new ArrayList<GPUNode>();
-        // Iterate over each node in insertion order and write to the buffers
-        for (Map.Entry<Node, Integer> e : indexes.entrySet()) {
-            Node n = e.getKey();
-            GPUNode gn = new GPUNode();
-            gn.min = n.boundingBox.min;
-            gn.max = n.boundingBox.max;
-            gn.dim = n.splitAxis.dim;
-            gn.plane = n.splitPlane;
-            gn.ropes = new int[6];
-            /* Write ropes */
-            for (int i = 0; i < 6; i++) {
-                Node r = n.ropes[i];
-                if (r != null) {
-                    gn.ropes[i] = indexes.get(r).intValue();
-                } else {
-                    gn.ropes[i] = -1; // no neighbor
-                }
-            }
-            if (n.isLeafNode()) {
-                gn.left = -1; // no left child
-                gn.right = -1; // no right child
-                gn.firstTri = triangleIndex;
-                gn.numTris = n.triangles.size();
-                triangleIndex += n.triangles.size();
-                /* Write triangles to buffer */
-                for (int i = 0; i < n.triangles.size(); i++) {
-                    Triangle t = n.triangles.get(i);
-                    trianglesBuffer.putFloat(t.v0.x).putFloat(t.v0.y).putFloat(t.v0.z).putFloat(1.0f);
-                    trianglesBuffer.putFloat(t.v1.x).putFloat(t.v1.y).putFloat(t.v1.z).putFloat(1.0f);
-                    trianglesBuffer.putFloat(t.v2.x).putFloat(t.v2.y).putFloat(t.v2.z).putFloat(1.0f);
-                }
-            } else {
-                gn.left = indexes.get(n.left).intValue();
-                gn.right = indexes.get(n.right).intValue();
-                gn.firstTri = 0; // no triangles
-                gn.numTris = 0; // no triangles
-            }
-            gpuNodes.add(gn);
-        }
-        // Write GPUNode list to ByteBuffer in std430 layout
-        Std430Writer.write(gpuNodes, GPUNode.class, nodesBuffer);
-    }
-
-    static void allocate(Node node, Map<Node, Integer> indexes) {
-        Queue<Node> nodes = new LinkedList<Node>();
-        nodes.add(node);
-        while (!nodes.isEmpty()) {
-            Node n = nodes.poll();
-            if (n == null)
-                continue;
-            int index = indexes.size();
-            indexes.put(n, Integer.valueOf(index));
-            nodes.add(n.left);
-            nodes.add(n.right);
-        }
-    }
-
     /**
      * Build the kd-tree of the scene and create two SSBOs:
      * <ul>
      * <li>one for the nodes of the kd-tree
      * <li>and another one to hold all the triangles stored in the leaf nodes of the kd-tree
      * </ul>
+     * The std430 buffers of the flattened kd-tree are kept in a {@link TreeCache} file and uploaded directly from it,
+     * and the tree is only built again when the mesh or the build parameters changed.
      */
-    void createSceneSSBO() {
-        /* Build Kd-tree */
+    void createSceneSSBO() throws IOException {
         KDTree kdtree = new KDTree();
+        long sourceHash = kdtree.hashParameters(TreeCache.hash(0L, mesh.positions));
+        File cacheFile = new File(TreeCache.directory(), "DemoSsboTrianglesStacklessKdTree.kdtree");
+        ByteBuffer[] buffers = FlatTree.read(cacheFile, sourceHash);
+        if (buffers == null) {
+            buffers = buildTree(kdtree).buffers();
+            FlatTree.write(cacheFile, sourceHash, buffers);
+        }
+        ByteBuffer bounds = buffers[0];
+        sceneBounds = new Box();
+        sceneBounds.min = new Vector3f(bounds.getFloat(0), bounds.getFloat(4), bounds.getFloat(8));
+        sceneBounds.max = new Vector3f(bounds.getFloat(12), bounds.getFloat(16), bounds.getFloat(20));
+
+        this.nodesSsbo = glGenBuffers();
+        glBindBuffer(GL_ARRAY_BUFFER, nodesSsbo);
+        glBufferData(GL_ARRAY_BUFFER, buffers[1], GL_STATIC_DRAW);
+        glBindBuffer(GL_ARRAY_BUFFER, 0);
+        this.trianglesSsbo = glGenBuffers();
+        glBindBuffer(GL_ARRAY_BUFFER, trianglesSsbo);
+        glBufferData(GL_ARRAY_BUFFER, buffers[2], GL_STATIC_DRAW);
+        glBindBuffer(GL_ARRAY_BUFFER, 0);
+    }
+
+    private FlatTree buildTree(KDTree kdtree) {
         List<Triangle> triangles = new ArrayList<Triangle>();
         int trianglesCount = mesh.positions.remaining() / 3 / 3;
-        sceneBounds = new Box();
+        Box bounds = new Box();
         Vector3f min = new Vector3f(Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE);
         Vector3f max = new Vector3f(-Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE);
-        sceneBounds.min = min;
-        sceneBounds.max = max;
+        bounds.min = min;
+        bounds.max = max;
         for (int i = 0; i < trianglesCount; i++) {
             Triangle t = new Triangle();
             t.v0 = new Vector3f(mesh.positions.get(i * 3 * 3 + 0), mesh.positions.get(i * 3 * 3 + 1),
@@ -326,19 +269,8 @@ public class DemoSsboTrianglesStacklessKdTree {
             min.min(t.v0).min(t.v1).min(t.v2);
             max.max(t.v0).max(t.v1).max(t.v2);
         }
-        kdtree.buildTree(triangles, sceneBounds);
-        DynamicByteBuffer nodesBuffer = new DynamicByteBuffer();
-        DynamicByteBuffer trianglesBuffer = new DynamicByteBuffer();
-        kdTreeToBuffers(kdtree, nodesBuffer, trianglesBuffer);
-
-        this.nodesSsbo = glGenBuffers();
-        glBindBuffer(GL_ARRAY_BUFFER, nodesSsbo);
-        nglBufferData(GL_ARRAY_BUFFER, nodesBuffer.pos, nodesBuffer.addr, GL_STATIC_DRAW);
-        glBindBuffer(GL_ARRAY_BUFFER, 0);
-        this.trianglesSsbo = glGenBuffers();
-        glBindBuffer(GL_ARRAY_BUFFER, trianglesSsbo);
-        nglBufferData(GL_ARRAY_BUFFER, trianglesBuffer.pos, trianglesBuffer.addr, GL_STATIC_DRAW);
-        glBindBuffer(GL_ARRAY_BUFFER, 0);
+        kdtree.buildTree(triangles, bounds);
+        return kdtree.flatten();
     }
 
     /**
@@ -32,6 +32,7 @@ import org.lwjgl.system.*;
  * @author Kai Burjack
  */
 public class GL33KdTreeTrace {
+  private static final int KDTREE_CACHE_KIND = 'K' | 'V' << 8 | 1 << 16;
   private long window;
   private int width = 1200;
   private int height = 800;
@@ -103,7 +104,7 @@ public class GL33KdTreeTrace {
     // Create OpenGL resources
     quadVao = glGenVertexArrays();
     createRayTracingProgram();
-    createSceneTBOs(buildTerrainVoxels());
+    createSceneTBOs();
 
     glfwShowWindow(window);
   }
@@ -169,50 +170,72 @@ public class GL33KdTreeTrace {
     rayTracingProgram = program;
   }
 
-  private void createSceneTBOs(List<Voxel> voxels) {
-    KDTreei<Voxel> root = KDTreei.build(voxels, 15);
-    DynamicByteBuffer voxelsBuffer = new DynamicByteBuffer();
-    DynamicByteBuffer nodesBuffer = new DynamicByteBuffer();
-    DynamicByteBuffer nodeGeomsBuffer = new DynamicByteBuffer();
-    DynamicByteBuffer leafNodesBuffer = new DynamicByteBuffer();
-    kdTreeToBuffers(root, 0, 0, nodesBuffer, nodeGeomsBuffer, leafNodesBuffer, voxelsBuffer);
+  /**
+   * Build the kd-tree of the scene, or take its buffers from the {@link TreeCache} file when the scene did not change,
+   * and create the buffer textures from them.
+   */
+  private void createSceneTBOs() throws IOException {
+    ByteBuffer vox = ioResourceToByteBuffer("org/lwjgl/demo/models/mikelovesrobots_mmmm/scene_house6.vox", 8192);
+    long sourceHash = TreeCache.hash(0L, vox);
+    File cacheFile = new File(TreeCache.directory(), "GL33KdTreeTrace.kdtree");
+    ByteBuffer[] buffers = TreeCache.read(cacheFile, KDTREE_CACHE_KIND, sourceHash);
+    if (buffers == null) {
+      buffers = buildSceneBuffers(buildTerrainVoxels(vox));
+      TreeCache.write(cacheFile, KDTREE_CACHE_KIND, sourceHash, buffers);
+    }
     nodesBufferBO = glGenBuffers();
     glBindBuffer(GL_TEXTURE_BUFFER, nodesBufferBO);
-    nglBufferData(GL_TEXTURE_BUFFER, nodesBuffer.pos, nodesBuffer.addr, GL_STATIC_DRAW);
+    glBufferData(GL_TEXTURE_BUFFER, buffers[0], GL_STATIC_DRAW);
     nodesBufferTex = glGenTextures();
     glBindTexture(GL_TEXTURE_BUFFER, nodesBufferTex);
     glTexBuffer(GL_TEXTURE_BUFFER, GL_R32UI, nodesBufferBO);
     voxelsBufferBO = glGenBuffers();
     glBindBuffer(GL_TEXTURE_BUFFER, voxelsBufferBO);
-    nglBufferData(GL_TEXTURE_BUFFER, voxelsBuffer.pos, voxelsBuffer.addr, GL_STATIC_DRAW);
+    glBufferData(GL_TEXTURE_BUFFER, buffers[1], GL_STATIC_DRAW);
     voxelsBufferTex = glGenTextures();
     glBindTexture(GL_TEXTURE_BUFFER, voxelsBufferTex);
     glTexBuffer(GL_TEXTURE_BUFFER, GL_RG32UI, voxelsBufferBO);
     nodeGeomsBufferBO = glGenBuffers();
     glBindBuffer(GL_TEXTURE_BUFFER, nodeGeomsBufferBO);
-    nglBufferData(GL_TEXTURE_BUFFER, nodeGeomsBuffer.pos, nodeGeomsBuffer.addr, GL_STATIC_DRAW);
+    glBufferData(GL_TEXTURE_BUFFER, buffers[2], GL_STATIC_DRAW);
     nodeGeomsBufferTex = glGenTextures();
     glBindTexture(GL_TEXTURE_BUFFER, nodeGeomsBufferTex);
     glTexBuffer(GL_TEXTURE_BUFFER, GL_RG32UI, nodeGeomsBufferBO);
     leafNodesBufferBO = glGenBuffers();
     glBindBuffer(GL_TEXTURE_BUFFER, leafNodesBufferBO);
-    nglBufferData(GL_TEXTURE_BUFFER, leafNodesBuffer.pos, leafNodesBuffer.addr, GL_STATIC_DRAW);
+    glBufferData(GL_TEXTURE_BUFFER, buffers[3], GL_STATIC_DRAW);
     leafNodesBufferTex = glGenTextures();
     glBindTexture(GL_TEXTURE_BUFFER, leafNodesBufferTex);
     glTexBuffer(GL_TEXTURE_BUFFER, GL_RGBA32UI, leafNodesBufferBO);
-    //
+    materialsBufferBO = glGenBuffers();
+    glBindBuffer(GL_TEXTURE_BUFFER, materialsBufferBO);
+    glBufferData(GL_TEXTURE_BUFFER, buffers[4], GL_STATIC_DRAW);
+    materialsBufferTex = glGenTextures();
+    glBindTexture(GL_TEXTURE_BUFFER, materialsBufferTex);
+    glTexBuffer(GL_TEXTURE_BUFFER, GL_RGBA8, materialsBufferBO);
+  }
+
+  /**
+   * Build the kd-tree of the given voxels and return the buffers of the nodes, voxels, node bounds, leaf nodes and
+   * material colors.
+   */
+  private ByteBuffer[] buildSceneBuffers(List<Voxel> voxels) {
+    KDTreei<Voxel> root = KDTreei.build(voxels, 15);
+    DynamicByteBuffer voxelsBuffer = new DynamicByteBuffer();
+    DynamicByteBuffer nodesBuffer = new DynamicByteBuffer();
+    DynamicByteBuffer nodeGeomsBuffer = new DynamicByteBuffer();
+    DynamicByteBuffer leafNodesBuffer = new DynamicByteBuffer();
+    kdTreeToBuffers(root, 0, 0, nodesBuffer, nodeGeomsBuffer, leafNodesBuffer, voxelsBuffer);
     DynamicByteBuffer materialsBuffer = new DynamicByteBuffer();
     for (Material mat : materials)
         if (mat != null)
             materialsBuffer.putInt(mat.color);
         else
             materialsBuffer.putInt(0);
-    materialsBufferBO = glGenBuffers();
-    glBindBuffer(GL_TEXTURE_BUFFER, materialsBufferBO);
-    nglBufferData(GL_TEXTURE_BUFFER, materialsBuffer.pos, materialsBuffer.addr, GL_STATIC_DRAW);
-    materialsBufferTex = glGenTextures();
-    glBindTexture(GL_TEXTURE_BUFFER, materialsBufferTex);
-    glTexBuffer(GL_TEXTURE_BUFFER, GL_RGBA8, materialsBufferBO);
+    return new ByteBuffer[] { memByteBuffer(nodesBuffer.addr, nodesBuffer.pos),
+        memByteBuffer(voxelsBuffer.addr, voxelsBuffer.pos), memByteBuffer(nodeGeomsBuffer.addr, nodeGeomsBuffer.pos),
+        memByteBuffer(leafNodesBuffer.addr, leafNodesBuffer.pos),
+        memByteBuffer(materialsBuffer.addr, materialsBuffer.pos) };
   }
 
   private void kdTreeToBuffers(KDTreei<Voxel> root, int nodeIndexOffset, int voxelIndexOffset, DynamicByteBuffer nodesBuffer,
@@ -277,28 +300,17 @@ public class GL33KdTreeTrace {
       return x + width * (y + z * height);
   }
 
-  private List<KDTreei.Voxel> buildTerrainVoxels() throws IOException {
-    Vector3i dims = new Vector3i();
-    InputStream is = getSystemResourceAsStream("org/lwjgl/demo/models/mikelovesrobots_mmmm/scene_house6.vox");
-    BufferedInputStream bis = new BufferedInputStream(is);
+  private List<KDTreei.Voxel> buildTerrainVoxels(ByteBuffer vox) throws IOException {
+    MagicaVoxelLoader.Scene scene = new MagicaVoxelLoader().load(vox);
+    MagicaVoxelLoader.Model model = scene.models.get(0);
+    Vector3i dims = new Vector3i(model.sizeX, model.sizeZ, model.sizeY);
     byte[] field = new byte[256 * 256 * 256];
     boolean[] culled = new boolean[256 * 256 * 256];
-    new MagicaVoxelLoader().read(bis, new MagicaVoxelLoader.Callback() {
-      public void voxel(int x, int y, int z, byte c) {
-        y = dims.z - y - 1;
-        field[idx(x, z, y, dims.x, dims.y)] = c;
-      }
-
-      public void size(int x, int y, int z) {
-        dims.x = x;
-        dims.y = z;
-        dims.z = y;
-      }
-
-      public void paletteMaterial(int i, Material mat) {
-          materials[i] = mat;
-      }
-    });
+    for (int v : model.voxels) {
+      int x = v & 0xFF, y = dims.z - (v >>> 8 & 0xFF) - 1, z = v >>> 16 & 0xFF;
+      field[idx(x, z, y, dims.x, dims.y)] = (byte) (v >>> 24);
+    }
+    System.arraycopy(scene.materials, 0, materials, 0, scene.materials.length);
     // Cull voxels
     int numVoxels = 0, numRetainedVoxels = 0;
     for (int z = 0; z < dims.z; z++) {
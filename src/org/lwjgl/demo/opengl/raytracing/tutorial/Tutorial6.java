@@ -10,6 +10,7 @@ import static org.lwjgl.system.MemoryUtil.*;
 import static org.lwjgl.demo.util.Std430Writer.*;
 
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.nio.*;
 import java.util.*;
@@ -22,6 +23,7 @@ import org.lwjgl.PointerBuffer;
 import org.lwjgl.assimp.*;
 import org.lwjgl.demo.opengl.util.*;
 import org.lwjgl.demo.util.DynamicByteBuffer;
+import org.lwjgl.demo.util.TreeCache;
 import org.lwjgl.glfw.*;
 import org.lwjgl.opengl.*;
 import org.lwjgl.system.*;
@@ -453,11 +455,52 @@ public class Tutorial6 {
         }
     }
 
+    /**
+     * Kind of the {@link TreeCache} file holding the BVH buffers. Increment it
+     * whenever the way the BVH is built or laid out in memory changes.
+     */
+    private static final int BVH_CACHE_KIND = 'B' | 'V' << 8 | 1 << 16;
+
     /**
      * Convert the Assimp-imported scene into the Shader Storage Buffer Objects
      * needed for stackless BVH traversal in the compute shader.
      */
-    private void createSceneSSBOs() {
+    private void createSceneSSBOs() throws IOException {
+        /*
+         * Building the BVH takes a while for big scenes, so the two buffers are kept
+         * in a cache file together with a hash of the scene. When the scene did not
+         * change, the file is memory-mapped and uploaded as it is.
+         */
+        long sourceHash = 0L;
+        for (Model.Mesh mesh : model.meshes) {
+            sourceHash = TreeCache.hash(sourceHash, memByteBuffer(mesh.verticesFB));
+            sourceHash = TreeCache.hash(sourceHash, memByteBuffer(mesh.normalsFB));
+            sourceHash = TreeCache.hash(sourceHash, memByteBuffer(mesh.indicesIB));
+        }
+        File cacheFile = new File(TreeCache.directory(), "Tutorial6.bvh");
+        ByteBuffer[] buffers = TreeCache.read(cacheFile, BVH_CACHE_KIND, sourceHash);
+        if (buffers == null) {
+            buffers = buildBvhBuffers();
+            TreeCache.write(cacheFile, BVH_CACHE_KIND, sourceHash, buffers);
+        }
+        /*
+         * And finally we upload the two buffers to the SSBOs.
+         */
+        this.nodesSsbo = glGenBuffers();
+        glBindBuffer(GL_ARRAY_BUFFER, nodesSsbo);
+        glBufferData(GL_ARRAY_BUFFER, buffers[0], GL_STATIC_DRAW);
+        glBindBuffer(GL_ARRAY_BUFFER, 0);
+        this.trianglesSsbo = glGenBuffers();
+        glBindBuffer(GL_ARRAY_BUFFER, trianglesSsbo);
+        glBufferData(GL_ARRAY_BUFFER, buffers[1], GL_STATIC_DRAW);
+        glBindBuffer(GL_ARRAY_BUFFER, 0);
+    }
+
+    /**
+     * Build the BVH of the scene and return the buffers for the nodes and the
+     * triangles.
+     */
+    private ByteBuffer[] buildBvhBuffers() {
         /*
          * First, we clump all meshes into a linear list of non-indexed triangles.
          */
@@ -503,17 +546,8 @@ public class Tutorial6 {
         DynamicByteBuffer nodesBuffer = new DynamicByteBuffer();
         DynamicByteBuffer trianglesBuffer = new DynamicByteBuffer();
         bhvToBuffers(root, nodesBuffer, trianglesBuffer);
-        /*
-         * And finally we upload the two buffers to the SSBOs.
-         */
-        this.nodesSsbo = glGenBuffers();
-        glBindBuffer(GL_ARRAY_BUFFER, nodesSsbo);
-        nglBufferData(GL_ARRAY_BUFFER, nodesBuffer.pos, nodesBuffer.addr, GL_STATIC_DRAW);
-        glBindBuffer(GL_ARRAY_BUFFER, 0);
-        this.trianglesSsbo = glGenBuffers();
-        glBindBuffer(GL_ARRAY_BUFFER, trianglesSsbo);
-        nglBufferData(GL_ARRAY_BUFFER, trianglesBuffer.pos, trianglesBuffer.addr, GL_STATIC_DRAW);
-        glBindBuffer(GL_ARRAY_BUFFER, 0);
+        return new ByteBuffer[] { memByteBuffer(nodesBuffer.addr, nodesBuffer.pos),
+                memByteBuffer(trianglesBuffer.addr, trianglesBuffer.pos) };
     }
 
     /**
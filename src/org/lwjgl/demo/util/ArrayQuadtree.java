@@ -1,21 +1,46 @@
-/*  
- * Copyright LWJGL. All rights reserved.    
- * License terms: https://www.lwjgl.org/license 
+/*
+ * Copyright LWJGL. All rights reserved.
+ * License terms: https://www.lwjgl.org/license
  */
 package org.lwjgl.demo.util;
 
+import static java.lang.Float.*;
+import static java.util.Arrays.*;
+
 import java.util.List;
-import org.joml.FrustumIntersection;
 import org.joml.Matrix4f;
+import org.joml.Vector4f;
 
 /**
+ * Quadtree over a grid of <code>2^levels * 2^levels</code> cells stored in arrays, with the range of heights of all
+ * cells below each node.
+ * <p>
+ * The frustum planes are extracted once per query and each node is only tested against the planes its parent was
+ * not already fully inside of. Optionally, nodes are also tested against the depth buffer of a
+ * {@link TiledRasterizer} with the occluders already rasterized, so that subtrees hidden behind the occluders are
+ * skipped entirely.
+ *
  * @author Kai Burjack
  */
 public class ArrayQuadtree<T> {
-    private final FrustumIntersection fi = new FrustumIntersection();
+    /**
+     * Visits nodes of a level.
+     */
+    public interface NodeVisitor {
+        void visit(int x, int z);
+    }
+
+    private static final int ALL_PLANES = (1 << 6) - 1;
+
+    private final float[] planes = new float[6 * 4];
+    private final Vector4f plane = new Vector4f();
     private final int[][] innerNodes;
     private final Object[] leafNodes;
+    /* Minimum and maximum height of each node of all levels including the leaves */
+    private final float[][] minYs, maxYs;
     private final int sx, sz, levels;
+    private TiledRasterizer occluder;
+    private Matrix4f m;
 
     public ArrayQuadtree(int levels, int scaleX, int scaleZ) {
         if (levels < 0)
@@ -25,94 +50,237 @@ public class ArrayQuadtree<T> {
         this.sz = scaleZ;
         this.innerNodes = new int[levels][];
         this.leafNodes = new Object[1 << (levels << 1)];
+        this.minYs = new float[levels + 1][];
+        this.maxYs = new float[levels + 1][];
         for (int i = 0; i < levels; i++)
             this.innerNodes[i] = new int[1 << (i << 1)];
+        for (int i = 0; i <= levels; i++) {
+            this.minYs[i] = new float[1 << (i << 1)];
+            this.maxYs[i] = new float[1 << (i << 1)];
+            fill(minYs[i], POSITIVE_INFINITY);
+            fill(maxYs[i], NEGATIVE_INFINITY);
+        }
     }
 
     private static int idx(int x, int z, int lvl) {
         return z * (1 << lvl) + x;
     }
 
-    public List<T> visible(Matrix4f m, int height, List<T> visible) {
-        visible(m, visible, 0, 0, 0, height);
+    /**
+     * Collect the values of all cells intersecting the frustum of the given matrix.
+     */
+    public List<T> visible(Matrix4f m, List<T> visible) {
+        return visible(m, null, visible);
+    }
+
+    /**
+     * Collect the values of all cells intersecting the frustum of the given matrix which are not occluded in the
+     * depth buffer of the given rasterizer, if it is not <code>null</code>.
+     * <p>
+     * The rasterizer must have been used with the same matrix.
+     */
+    public List<T> visible(Matrix4f m, TiledRasterizer occluder, List<T> visible) {
+        query(m, occluder);
+        if (occupied(0, 0, 0))
+            collect(visible, true, 0, 0, 0, ALL_PLANES);
         return visible;
     }
 
-    public List<T> invisible(Matrix4f m, int height, List<T> invisible) {
-        invisible(m, invisible, 0, 0, 0, height);
+    /**
+     * Collect the values of all cells lying outside of the frustum of the given matrix.
+     */
+    public List<T> invisible(Matrix4f m, List<T> invisible) {
+        return invisible(m, null, invisible);
+    }
+
+    /**
+     * Collect the values of all cells lying outside of the frustum of the given matrix or which are occluded in the
+     * depth buffer of the given rasterizer, if it is not <code>null</code>.
+     */
+    public List<T> invisible(Matrix4f m, TiledRasterizer occluder, List<T> invisible) {
+        query(m, occluder);
+        if (occupied(0, 0, 0))
+            collect(invisible, false, 0, 0, 0, ALL_PLANES);
         return invisible;
     }
 
-    private void set(int x, int z, T v, int incr) {
-        leafNodes[idx(x, z, levels)] = v;
-        for (int lvl = levels - 1; lvl >= 0; lvl--)
-            innerNodes[lvl][idx(x >>>= 1, z >>>= 1, lvl)] += incr;
+    /**
+     * Visit all non-empty nodes of the given level which intersect the frustum of the given matrix and which are not
+     * occluded in the depth buffer of the given rasterizer, if it is not <code>null</code>.
+     * <p>
+     * This is meant for terrain, which is drawn in patches of <code>2^(levels - level)</code> cells each, so that a
+     * query visits at most <code>4^level</code> nodes regardless of the number of cells.
+     *
+     * @return the number of visited nodes
+     */
+    public int visibleNodes(Matrix4f m, TiledRasterizer occluder, int level, NodeVisitor visitor) {
+        if (level < 0 || level > levels)
+            throw new IllegalArgumentException("level");
+        query(m, occluder);
+        return occupied(0, 0, 0) ? visitNodes(visitor, level, 0, 0, 0, ALL_PLANES) : 0;
     }
 
-    public void set(int x, int z, T v) {
-        set(x, z, v, 1);
+    private void query(Matrix4f m, TiledRasterizer occluder) {
+        this.m = m;
+        this.occluder = occluder;
+        for (int i = 0; i < 6; i++) {
+            m.frustumPlane(i, plane);
+            planes[4 * i] = plane.x;
+            planes[4 * i + 1] = plane.y;
+            planes[4 * i + 2] = plane.z;
+            planes[4 * i + 3] = plane.w;
+        }
     }
 
-    public void unset(int x, int z) {
-        set(x, z, null, -1);
+    private void set(int x, int z, T v, int incr, float minY, float maxY) {
+        int i = idx(x, z, levels);
+        leafNodes[i] = v;
+        minYs[levels][i] = minY;
+        maxYs[levels][i] = maxY;
+        for (int lvl = levels - 1; lvl >= 0; lvl--) {
+            x >>>= 1;
+            z >>>= 1;
+            innerNodes[lvl][idx(x, z, lvl)] += incr;
+            updateHeights(x, z, lvl);
+        }
     }
 
-    private void visible(Matrix4f m, List<T> visible, int level, int x, int z, int height) {
-        if (level == levels)
-            visibleLeaf(m, visible, level, x, z, height);
-        else
-            visibleInnerNode(m, visible, level, x, z, height);
+    private void updateHeights(int x, int z, int lvl) {
+        float minY = POSITIVE_INFINITY, maxY = NEGATIVE_INFINITY;
+        for (int i = 0; i < 4; i++) {
+            int c = idx((x << 1) + (i & 1), (z << 1) + (i >>> 1), lvl + 1);
+            minY = Math.min(minY, minYs[lvl + 1][c]);
+            maxY = Math.max(maxY, maxYs[lvl + 1][c]);
+        }
+        minYs[lvl][idx(x, z, lvl)] = minY;
+        maxYs[lvl][idx(x, z, lvl)] = maxY;
     }
 
-    private void invisible(Matrix4f m, List<T> invisible, int level, int x, int z, int height) {
-        if (level == levels)
-            invisibleLeaf(m, invisible, level, x, z, height);
-        else
-            invisibleInnerNode(m, invisible, level, x, z, height);
+    /**
+     * Set the value of the cell <code>(x, z)</code> spanning heights from <code>0</code> to <code>0</code>.
+     */
+    public void set(int x, int z, T v) {
+        set(x, z, v, 0.0f, 0.0f);
     }
 
-    private void visibleLeaf(Matrix4f m, List<T> visible, int level, int x, int z, int height) {
-        if (outsideFrustum(m, level, x, z, height))
-            return;
-        @SuppressWarnings("unchecked")
-        T v = (T) leafNodes[idx(x, z, level)];
-        if (v != null)
-            visible.add(v);
+    /**
+     * Set the value of the cell <code>(x, z)</code> spanning the given heights.
+     */
+    public void set(int x, int z, T v, float minY, float maxY) {
+        set(x, z, v, leafNodes[idx(x, z, levels)] == null ? 1 : 0, minY, maxY);
     }
 
-    private void invisibleLeaf(Matrix4f m, List<T> invisible, int level, int x, int z, int height) {
-        if (!outsideFrustum(m, level, x, z, height))
-            return;
-        @SuppressWarnings("unchecked")
-        T v = (T) leafNodes[idx(x, z, level)];
-        if (v != null)
-            invisible.add(v);
+    public void unset(int x, int z) {
+        if (leafNodes[idx(x, z, levels)] != null)
+            set(x, z, null, -1, POSITIVE_INFINITY, NEGATIVE_INFINITY);
     }
 
-    private boolean outsideFrustum(Matrix4f m, int level, int x, int z, int height) {
-        return intersect(m, level, x, z, height) >= 0;
+    private boolean occupied(int level, int x, int z) {
+        return level == levels ? leafNodes[idx(x, z, level)] != null : innerNodes[level][idx(x, z, level)] != 0;
     }
 
-    private int intersect(Matrix4f m, int level, int x, int z, int height) {
-        int w = 1 << levels - level;
-        return fi.set(m).intersectAab(x * sx, 0, z * sz, (x + w) * sx, height, (z + w) * sz);
+    /*
+     * Test the node against the frustum planes in the mask and return the planes whose positive half space the node
+     * does not lie entirely in, or -1 if it lies entirely in the negative half space of any plane.
+     */
+    private int intersect(int level, int x, int z, int mask) {
+        int w = 1 << levels - level, i = idx(x, z, level);
+        float minX = x * w * sx, minY = minYs[level][i], minZ = z * w * sz;
+        float maxX = (x + 1) * w * sx, maxY = maxYs[level][i], maxZ = (z + 1) * w * sz;
+        for (int p = 0; p < 6; p++) {
+            if ((mask & 1 << p) == 0)
+                continue;
+            float a = planes[4 * p], b = planes[4 * p + 1], c = planes[4 * p + 2], d = planes[4 * p + 3];
+            if (a * (a < 0 ? minX : maxX) + b * (b < 0 ? minY : maxY) + c * (c < 0 ? minZ : maxZ) < -d)
+                return -1;
+            if (a * (a < 0 ? maxX : minX) + b * (b < 0 ? maxY : minY) + c * (c < 0 ? maxZ : minZ) >= -d)
+                mask &= ~(1 << p);
+        }
+        return mask;
     }
 
-    private boolean fullyInsideFrustum(Matrix4f m, int level, int x, int z, int height) {
-        return intersect(m, level, x, z, height) == FrustumIntersection.INSIDE;
+    private boolean occluded(int level, int x, int z) {
+        if (occluder == null)
+            return false;
+        int w = 1 << levels - level, i = idx(x, z, level);
+        return !occluder.testAabb(m, x * w * sx, minYs[level][i], z * w * sz, (x + 1) * w * sx, maxYs[level][i],
+                (z + 1) * w * sz);
     }
 
-    private void visibleInnerNode(Matrix4f m, List<T> visible, int level, int x, int z, int height) {
-        if (innerNodes[level][idx(x, z, level)] == 0 || outsideFrustum(m, level, x, z, height))
+    /*
+     * Collect either the visible or the invisible cells below the given node, which lies in the positive half spaces
+     * of all frustum planes not in the mask.
+     */
+    private void collect(List<T> list, boolean visible, int level, int x, int z, int mask) {
+        mask = intersect(level, x, z, mask);
+        if (mask < 0 || occluded(level, x, z)) {
+            if (!visible)
+                collectAll(list, level, x, z);
+            return;
+        }
+        if (mask == 0 && occluder == null) {
+            if (visible)
+                collectAll(list, level, x, z);
             return;
-        for (int i = 0; i < 4; i++)
-            visible(m, visible, level + 1, (x << 1) + (i & 1), (z << 1) + (i >>> 1 & 1), height);
+        }
+        if (level == levels) {
+            if (visible)
+                list.add(leaf(idx(x, z, level)));
+            return;
+        }
+        for (int i = 0; i < 4; i++) {
+            int cx = (x << 1) + (i & 1), cz = (z << 1) + (i >>> 1 & 1);
+            if (occupied(level + 1, cx, cz))
+                collect(list, visible, level + 1, cx, cz, mask);
+        }
     }
 
-    private void invisibleInnerNode(Matrix4f m, List<T> invisible, int level, int x, int z, int height) {
-        if (innerNodes[level][idx(x, z, level)] == 0 || fullyInsideFrustum(m, level, x, z, height))
-            return;
-        for (int i = 0; i < 4; i++)
-            invisible(m, invisible, level + 1, (x << 1) + (i & 1), (z << 1) + (i >>> 1 & 1), height);
+    private int visitNodes(NodeVisitor visitor, int target, int level, int x, int z, int mask) {
+        mask = intersect(level, x, z, mask);
+        if (mask < 0 || occluded(level, x, z))
+            return 0;
+        if (level == target) {
+            visitor.visit(x, z);
+            return 1;
+        }
+        if (mask == 0 && occluder == null)
+            return visitAll(visitor, target, level, x, z);
+        int count = 0;
+        for (int i = 0; i < 4; i++) {
+            int cx = (x << 1) + (i & 1), cz = (z << 1) + (i >>> 1 & 1);
+            if (occupied(level + 1, cx, cz))
+                count += visitNodes(visitor, target, level + 1, cx, cz, mask);
+        }
+        return count;
+    }
+
+    /*
+     * Visit all non-empty nodes of the target level below the given node without any further tests.
+     */
+    private int visitAll(NodeVisitor visitor, int target, int level, int x, int z) {
+        int w = 1 << target - level, count = 0;
+        for (int cz = z * w; cz < (z + 1) * w; cz++)
+            for (int cx = x * w; cx < (x + 1) * w; cx++)
+                if (occupied(target, cx, cz)) {
+                    visitor.visit(cx, cz);
+                    count++;
+                }
+        return count;
+    }
+
+    /*
+     * Collect the values of all cells below the given node without any further tests.
+     */
+    private void collectAll(List<T> list, int level, int x, int z) {
+        int w = 1 << levels - level, n = 1 << levels;
+        for (int cz = z * w; cz < (z + 1) * w; cz++)
+            for (int i = cz * n + x * w, end = i + w; i < end; i++)
+                if (leafNodes[i] != null)
+                    list.add(leaf(i));
+    }
+
+    @SuppressWarnings("unchecked")
+    private T leaf(int i) {
+        return (T) leafNodes[i];
     }
 }
@@ -0,0 +1,352 @@
+/*
+ * Copyright LWJGL. All rights reserved.
+ * License terms: https://www.lwjgl.org/license
+ */
+package org.lwjgl.demo.util;
+
+import java.util.Arrays;
+
+/**
+ * Sparse storage of byte voxels in bricks of <code>8 * 8 * 8</code> voxels, so that memory grows with the number of
+ * occupied bricks instead of the bounding volume.
+ * <p>
+ * The volume is divided into regions of <code>8 * 8 * 8</code> bricks, each of which has a table of its bricks once
+ * any of them is occupied. Each brick stores a palette of its distinct values and one index into the palette per voxel,
+ * packed with 0, 1, 2, 4 or 8 bits depending on the size of the palette. So random access takes two table lookups and
+ * a shift, and a brick with a single value needs no indices at all. Bricks becoming empty are freed, whereas palettes
+ * only grow until {@link #compact()} is called.
+ * <p>
+ * Voxels of a brick or of any box can be copied into the dense arrays used by {@link GreedyVoxels} and
+ * {@link GreedyMeshing} with {@link #copy(int, int, int, int, int, int, byte[])}.
+ *
+ * @author Kai Burjack
+ */
+public class Brickmap {
+    /**
+     * Visits occupied bricks.
+     */
+    public interface BrickVisitor {
+        void visit(int bx, int by, int bz);
+    }
+
+    public static final int BRICK_SHIFT = 3;
+    public static final int BRICK_SIZE = 1 << BRICK_SHIFT;
+    private static final int BRICK_VOXELS = BRICK_SIZE * BRICK_SIZE * BRICK_SIZE;
+    private static final int BRICK_MASK = BRICK_SIZE - 1;
+    /* Regions of BRICK_SIZE^3 bricks */
+    private static final int REGION_SHIFT = 3;
+    private static final int REGION_SIZE = 1 << REGION_SHIFT;
+    private static final int REGION_MASK = REGION_SIZE - 1;
+
+    private static final class Brick {
+        /* Indices into the palette, or null if there is only one value */
+        long[] indices;
+        int bits;
+        byte[] palette = new byte[1];
+        int paletteSize = 1;
+        /* Number of non-zero voxels */
+        int count;
+
+        int get(int i) {
+            if (bits == 0)
+                return palette[0] & 0xFF;
+            int b = i * bits;
+            return palette[(int) (indices[b >>> 6] >>> (b & 63)) & (1 << bits) - 1] & 0xFF;
+        }
+
+        int index(int i) {
+            if (bits == 0)
+                return 0;
+            int b = i * bits;
+            return (int) (indices[b >>> 6] >>> (b & 63)) & (1 << bits) - 1;
+        }
+
+        void setIndex(int i, int p) {
+            int b = i * bits;
+            long mask = ((1L << bits) - 1L) << (b & 63);
+            indices[b >>> 6] = indices[b >>> 6] & ~mask | (long) p << (b & 63);
+        }
+
+        /*
+         * Return the palette index of the value, adding it to the palette and widening the indices as needed.
+         */
+        int paletteIndex(int v) {
+            for (int p = 0; p < paletteSize; p++)
+                if ((palette[p] & 0xFF) == v)
+                    return p;
+            if (paletteSize == 1 << bits)
+                repack(bits == 0 ? 1 : bits << 1, null);
+            if (paletteSize == palette.length)
+                palette = Arrays.copyOf(palette, palette.length << 1);
+            palette[paletteSize] = (byte) v;
+            return paletteSize++;
+        }
+
+        /*
+         * Store the indices with the given number of bits, mapped through the remap table if not null.
+         */
+        void repack(int newBits, int[] remap) {
+            long[] newIndices = newBits == 0 ? null : new long[BRICK_VOXELS * newBits >>> 6];
+            for (int i = 0; i < BRICK_VOXELS && newBits != 0; i++) {
+                int p = index(i);
+                if (remap != null)
+                    p = remap[p];
+                int b = i * newBits;
+                newIndices[b >>> 6] |= (long) p << (b & 63);
+            }
+            indices = newIndices;
+            bits = newBits;
+        }
+    }
+
+    private final int sizeX, sizeY, sizeZ;
+    private final int regionsX, regionsY;
+    /* Brick table of each region, holding the index of each brick plus one, or null */
+    private final int[][] regions;
+    private Brick[] bricks = new Brick[64];
+    /* Number of used entries in bricks, and stack of the freed ones below it */
+    private int numBricks;
+    private int[] free = new int[16];
+    private int numFree;
+
+    /**
+     * Create an empty brickmap of <code>sizeX * sizeY * sizeZ</code> voxels.
+     */
+    public Brickmap(int sizeX, int sizeY, int sizeZ) {
+        if (sizeX < 1 || sizeX > 1 << 20)
+            throw new IllegalArgumentException("sizeX");
+        if (sizeY < 1 || sizeY > 1 << 20)
+            throw new IllegalArgumentException("sizeY");
+        if (sizeZ < 1 || sizeZ > 1 << 20)
+            throw new IllegalArgumentException("sizeZ");
+        this.sizeX = sizeX;
+        this.sizeY = sizeY;
+        this.sizeZ = sizeZ;
+        int shift = BRICK_SHIFT + REGION_SHIFT;
+        this.regionsX = (sizeX + (1 << shift) - 1) >>> shift;
+        this.regionsY = (sizeY + (1 << shift) - 1) >>> shift;
+        int regionsZ = (sizeZ + (1 << shift) - 1) >>> shift;
+        long regions = (long) regionsX * regionsY * regionsZ;
+        if (regions > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("size");
+        this.regions = new int[(int) regions][];
+    }
+
+    public int getSizeX() {
+        return sizeX;
+    }
+
+    public int getSizeY() {
+        return sizeY;
+    }
+
+    public int getSizeZ() {
+        return sizeZ;
+    }
+
+    /**
+     * @return the number of occupied bricks
+     */
+    public int getBrickCount() {
+        return numBricks - numFree;
+    }
+
+    private int regionIndex(int bx, int by, int bz) {
+        return (bx >>> REGION_SHIFT) + regionsX * ((by >>> REGION_SHIFT) + regionsY * (bz >>> REGION_SHIFT));
+    }
+
+    private static int brickIndex(int bx, int by, int bz) {
+        return (bx & REGION_MASK) | (by & REGION_MASK) << REGION_SHIFT | (bz & REGION_MASK) << 2 * REGION_SHIFT;
+    }
+
+    private static int voxelIndex(int x, int y, int z) {
+        return (x & BRICK_MASK) | (y & BRICK_MASK) << BRICK_SHIFT | (z & BRICK_MASK) << 2 * BRICK_SHIFT;
+    }
+
+    private Brick brick(int bx, int by, int bz) {
+        int[] table = regions[regionIndex(bx, by, bz)];
+        if (table == null)
+            return null;
+        int b = table[brickIndex(bx, by, bz)];
+        return b == 0 ? null : bricks[b - 1];
+    }
+
+    /**
+     * Return the value of the voxel <code>(x, y, z)</code>, which is <code>0</code> for empty voxels and voxels outside
+     * of the bounds.
+     */
+    public int get(int x, int y, int z) {
+        if (x < 0 || y < 0 || z < 0 || x >= sizeX || y >= sizeY || z >= sizeZ)
+            return 0;
+        Brick brick = brick(x >>> BRICK_SHIFT, y >>> BRICK_SHIFT, z >>> BRICK_SHIFT);
+        return brick == null ? 0 : brick.get(voxelIndex(x, y, z));
+    }
+
+    /**
+     * Set the value of the voxel <code>(x, y, z)</code> to <code>v</code> in <code>[0, 255]</code>, where
+     * <code>0</code> is empty.
+     */
+    public void set(int x, int y, int z, int v) {
+        if (x < 0 || y < 0 || z < 0 || x >= sizeX || y >= sizeY || z >= sizeZ)
+            throw new IndexOutOfBoundsException("(" + x + ", " + y + ", " + z + ")");
+        v &= 0xFF;
+        int bx = x >>> BRICK_SHIFT, by = y >>> BRICK_SHIFT, bz = z >>> BRICK_SHIFT;
+        int r = regionIndex(bx, by, bz);
+        int[] table = regions[r];
+        if (table == null) {
+            if (v == 0)
+                return;
+            table = regions[r] = new int[REGION_SIZE * REGION_SIZE * REGION_SIZE];
+        }
+        int t = brickIndex(bx, by, bz);
+        if (table[t] == 0) {
+            if (v == 0)
+                return;
+            table[t] = allocate() + 1;
+        }
+        Brick brick = bricks[table[t] - 1];
+        int i = voxelIndex(x, y, z), old = brick.get(i);
+        if (old == v)
+            return;
+        int p = brick.paletteIndex(v);
+        if (brick.bits != 0)
+            brick.setIndex(i, p);
+        brick.count += (v != 0 ? 1 : 0) - (old != 0 ? 1 : 0);
+        if (brick.count == 0)
+            release(table, t, r);
+    }
+
+    /**
+     * Set the voxels given in the packed format of {@link MagicaVoxelLoader.Model#voxels}, offset by
+     * <code>(ox, oy, oz)</code>.
+     */
+    public void set(int[] voxels, int ox, int oy, int oz) {
+        for (int v : voxels)
+            set(ox + (v & 0xFF), oy + (v >>> 8 & 0xFF), oz + (v >>> 16 & 0xFF), v >>> 24);
+    }
+
+    private int allocate() {
+        int b;
+        if (numFree > 0)
+            b = free[--numFree];
+        else {
+            if (numBricks == bricks.length)
+                bricks = Arrays.copyOf(bricks, bricks.length << 1);
+            b = numBricks++;
+        }
+        /* A new brick is entirely empty */
+        bricks[b] = new Brick();
+        return b;
+    }
+
+    private void release(int[] table, int t, int r) {
+        int b = table[t] - 1;
+        table[t] = 0;
+        bricks[b] = null;
+        if (numFree == free.length)
+            free = Arrays.copyOf(free, free.length << 1);
+        free[numFree++] = b;
+        for (int e : table)
+            if (e != 0)
+                return;
+        regions[r] = null;
+    }
+
+    /**
+     * Remove the values no longer used from the palettes of all bricks and store their indices with the fewest bits.
+     */
+    public void compact() {
+        int[] remap = new int[256];
+        boolean[] used = new boolean[256];
+        for (int b = 0; b < numBricks; b++) {
+            Brick brick = bricks[b];
+            if (brick == null || brick.bits == 0)
+                continue;
+            Arrays.fill(used, false);
+            for (int i = 0; i < BRICK_VOXELS; i++)
+                used[brick.index(i)] = true;
+            int size = 0;
+            for (int p = 0; p < brick.paletteSize; p++)
+                if (used[p]) {
+                    remap[p] = size;
+                    brick.palette[size++] = brick.palette[p];
+                }
+            int bits = size == 1 ? 0 : size <= 2 ? 1 : size <= 4 ? 2 : size <= 16 ? 4 : 8;
+            brick.repack(bits, remap);
+            brick.paletteSize = size;
+            brick.palette = Arrays.copyOf(brick.palette, size);
+        }
+    }
+
+    /**
+     * Visit all occupied bricks, region by region.
+     *
+     * @return the number of visited bricks
+     */
+    public int visitBricks(BrickVisitor visitor) {
+        int count = 0;
+        for (int r = 0; r < regions.length; r++) {
+            int[] table = regions[r];
+            if (table == null)
+                continue;
+            int rx = r % regionsX, ry = r / regionsX % regionsY, rz = r / regionsX / regionsY;
+            for (int t = 0; t < table.length; t++) {
+                if (table[t] == 0)
+                    continue;
+                visitor.visit(rx << REGION_SHIFT | t & REGION_MASK, ry << REGION_SHIFT | t >>> REGION_SHIFT & REGION_MASK,
+                        rz << REGION_SHIFT | t >>> 2 * REGION_SHIFT);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Copy the voxels of the box of <code>w * h * d</code> voxels starting at <code>(x0, y0, z0)</code> into
+     * <code>dest</code> at index <code>x + w * (y + h * z)</code> relative to the box, with voxels outside of the
+     * bounds being <code>0</code>.
+     * <p>
+     * The voxels of the brick <code>(bx, by, bz)</code> in the layout of {@link GreedyVoxels#merge(byte[], boolean[])}
+     * are the box at <code>(bx * 8, by * 8, bz * 8)</code> of size <code>8</code>, and in the layout of
+     * {@link GreedyMeshing#mesh(byte[], java.util.List)} with the neighboring voxels around them the box at
+     * <code>(bx * 8 - 1, by * 8 - 1, bz * 8 - 1)</code> of size <code>10</code>.
+     */
+    public void copy(int x0, int y0, int z0, int w, int h, int d, byte[] dest) {
+        Arrays.fill(dest, 0, w * h * d, (byte) 0);
+        int xs = Math.max(x0, 0), ys = Math.max(y0, 0), zs = Math.max(z0, 0);
+        int xe = Math.min(x0 + w, sizeX), ye = Math.min(y0 + h, sizeY), ze = Math.min(z0 + d, sizeZ);
+        for (int bz = zs >> BRICK_SHIFT; bz << BRICK_SHIFT < ze; bz++)
+            for (int by = ys >> BRICK_SHIFT; by << BRICK_SHIFT < ye; by++)
+                for (int bx = xs >> BRICK_SHIFT; bx << BRICK_SHIFT < xe; bx++) {
+                    Brick brick = brick(bx, by, bz);
+                    if (brick == null)
+                        continue;
+                    int x1 = Math.max(xs, bx << BRICK_SHIFT), x2 = Math.min(xe, bx + 1 << BRICK_SHIFT);
+                    int y1 = Math.max(ys, by << BRICK_SHIFT), y2 = Math.min(ye, by + 1 << BRICK_SHIFT);
+                    int z1 = Math.max(zs, bz << BRICK_SHIFT), z2 = Math.min(ze, bz + 1 << BRICK_SHIFT);
+                    for (int z = z1; z < z2; z++)
+                        for (int y = y1; y < y2; y++)
+                            for (int x = x1, i = x1 - x0 + w * (y - y0 + h * (z - z0)); x < x2; x++, i++)
+                                dest[i] = (byte) brick.get(voxelIndex(x, y, z));
+                }
+    }
+
+    /**
+     * @return the approximate number of bytes of memory used
+     */
+    public long memoryUsage() {
+        long bytes = 16L + 4L * regions.length + 4L * bricks.length + 4L * free.length;
+        for (int[] table : regions)
+            if (table != null)
+                bytes += 16L + 4L * table.length;
+        for (int b = 0; b < numBricks; b++) {
+            Brick brick = bricks[b];
+            if (brick == null)
+                continue;
+            bytes += 40L + 16L + brick.palette.length;
+            if (brick.indices != null)
+                bytes += 16L + 8L * brick.indices.length;
+        }
+        return bytes;
+    }
+}
@@ -1,63 +1,142 @@
-/*  
- * Copyright LWJGL. All rights reserved.    
- * License terms: https://www.lwjgl.org/license 
+/*
+ * Copyright LWJGL. All rights reserved.
+ * License terms: https://www.lwjgl.org/license
  */
 package org.lwjgl.demo.util;
 
 import static java.lang.Math.*;
 import static org.lwjgl.demo.util.ChunkIteratorVisitor.*;
 
-import java.util.BitSet;
-import java.util.PriorityQueue;
+import java.util.Arrays;
 
 import org.joml.*;
 
 /**
  * Iterates over chunk indices in front-to-back ordering.
- * 
+ * <p>
+ * Chunks are identified by a <code>long</code> packing their three coordinates and are queued in buckets of the same
+ * integer distance to the camera. Visited chunks are remembered in an open-addressing hash set, which is cleared by
+ * advancing a generation counter instead of touching its entries. So the chunk grid can either be bounded or
+ * unbounded around the camera with a maximum view distance, and once the buckets and the set have grown to the
+ * largest number of chunks visited, an iteration does not allocate any memory.
+ * <p>
+ * If a {@link Connectivity} is given, the faces through which each chunk was entered are remembered along with it in
+ * the set, and a neighboring chunk is only entered through a face which is {@link FaceConnectivity connected} to one
+ * of them, so that chunks behind solid walls are not visited at all. A chunk which is entered through another face
+ * after it was already visited is left again through the faces this additionally connects it to, without visiting it
+ * a second time, so that the traversal stays conservative.
+ *
  * @author Kai Burjack
  */
 public class ChunkIterator {
-    private final int w, h, d;
+    private static final int COORDINATE_BITS = 21;
+    private static final int MAX_COORDINATE = (1 << COORDINATE_BITS - 1) - 1;
+    private static final long COORDINATE_MASK = (1L << COORDINATE_BITS) - 1L;
+    /* Marks the chunk containing the camera, which can be left through any face */
+    private static final int START = 1 << 6;
+    /* Marks a chunk which was visited and left through the exits of its entries */
+    private static final int EXPANDED = 1 << 7;
+
+    /**
+     * Provides the face connectivity of a chunk.
+     */
+    public interface Connectivity {
+        /**
+         * @return the connectivity mask of the chunk <code>(x, y, z)</code>
+         * @see FaceConnectivity#connected(int, int, int)
+         */
+        int connectivity(int x, int y, int z);
+    }
+
+    private final int x0, y0, z0, x1, y1, z1;
+    private final float maxDistance;
+    private final Connectivity connectivity;
     private final FrustumIntersection fi = new FrustumIntersection();
-    private final BitSet visited;
-    private final PriorityQueue<Chunk> queue = new PriorityQueue<>(1024);
     private final Matrix4f vp = new Matrix4f();
+    private final Vector3f forward = new Vector3f();
     private float ox, oy, oz;
 
-    private class Chunk implements Comparable<Chunk> {
-        float d;
-        byte x, y, z;
+    /* Queued chunks of each integer distance */
+    private long[][] buckets = new long[0][];
+    private int[] bucketSizes = new int[0];
 
-        Chunk(byte x, byte y, byte z) {
-            this.d = distance2(x, y, z);
-            this.x = x;
-            this.y = y;
-            this.z = z;
-        }
+    /*
+     * Visited chunks and the faces through which they were entered, plus START; a key is only present if its stamp
+     * equals the current generation
+     */
+    private long[] keys = new long[1024];
+    private int[] stamps = new int[1024];
+    private byte[] entries = new byte[1024];
+    private int generation, size;
 
-        @Override
-        public int compareTo(Chunk o) {
-            return Float.compare(d, o.d);
-        }
+    /* Expanded chunks which were entered through additional faces, and the exits they gained by that */
+    private long[] pendingKeys = new long[16];
+    private byte[] pendingExits = new byte[16];
+    private int pendingSize;
 
-        @Override
-        public String toString() {
-            return "Chunk [x=" + x + ", y=" + y + ", z=" + z + "]";
-        }
+    /**
+     * Create an iterator over the bounded grid of <code>w * h * d</code> chunks starting at <code>(0, 0, 0)</code>.
+     */
+    public ChunkIterator(int w, int h, int d) {
+        this(w, h, d, null);
     }
 
-    public ChunkIterator(int w, int h, int d) {
-        if (w < 1 || w > 256)
+    /**
+     * Create an iterator over the bounded grid of <code>w * h * d</code> chunks starting at <code>(0, 0, 0)</code>,
+     * which only enters chunks through faces connected to the faces their neighbors were entered through.
+     */
+    public ChunkIterator(int w, int h, int d, Connectivity connectivity) {
+        if (w < 1 || w > MAX_COORDINATE)
             throw new IllegalArgumentException("w");
-        if (h < 1 || h > 256)
+        if (h < 1 || h > MAX_COORDINATE)
             throw new IllegalArgumentException("h");
-        if (d < 1 || d > 256)
+        if (d < 1 || d > MAX_COORDINATE)
             throw new IllegalArgumentException("d");
-        this.w = w;
-        this.h = h;
-        this.d = d;
-        this.visited = new BitSet(w * h * d);
+        this.x0 = this.y0 = this.z0 = 0;
+        this.x1 = w;
+        this.y1 = h;
+        this.z1 = d;
+        this.maxDistance = (float) sqrt((double) w * w + (double) h * h + (double) d * d);
+        this.connectivity = connectivity;
+    }
+
+    /**
+     * Create an iterator over an unbounded grid of chunks, which visits only chunks whose centers are at most
+     * <code>maxDistance</code> chunks away from the camera.
+     */
+    public ChunkIterator(float maxDistance) {
+        this(maxDistance, null);
+    }
+
+    /**
+     * Create an iterator over an unbounded grid of chunks, which visits only chunks whose centers are at most
+     * <code>maxDistance</code> chunks away from the camera and only enters chunks through faces connected to the faces
+     * their neighbors were entered through.
+     */
+    public ChunkIterator(float maxDistance, Connectivity connectivity) {
+        if (!(maxDistance > 0.0f) || maxDistance > MAX_COORDINATE)
+            throw new IllegalArgumentException("maxDistance");
+        this.x0 = this.y0 = this.z0 = -MAX_COORDINATE;
+        this.x1 = this.y1 = this.z1 = MAX_COORDINATE;
+        this.maxDistance = maxDistance;
+        this.connectivity = connectivity;
+    }
+
+    private static long key(int x, int y, int z) {
+        return x & COORDINATE_MASK | (y & COORDINATE_MASK) << COORDINATE_BITS
+                | (z & COORDINATE_MASK) << 2 * COORDINATE_BITS;
+    }
+
+    private static int x(long key) {
+        return (int) (key << 64 - COORDINATE_BITS >> 64 - COORDINATE_BITS);
+    }
+
+    private static int y(long key) {
+        return (int) (key << 64 - 2 * COORDINATE_BITS >> 64 - COORDINATE_BITS);
+    }
+
+    private static int z(long key) {
+        return (int) (key << 64 - 3 * COORDINATE_BITS >> 64 - COORDINATE_BITS);
     }
 
     private float distance2(int x1, int y1, int z1) {
@@ -65,12 +144,50 @@ public class ChunkIterator {
         return dx * dx + dy * dy + dz * dz;
     }
 
-    private void remember(int x, int y, int z) {
-        visited.set(x + w * (y + h * z));
+    private static int slot(long key, int mask) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ h >>> 32) & mask;
+    }
+
+    /*
+     * Add the key to the set of visited chunks and return its slot if it was already contained, or the bitwise
+     * complement of the slot it was added to.
+     */
+    private int remember(long key) {
+        if (size >= keys.length >>> 1)
+            grow();
+        int mask = keys.length - 1;
+        for (int i = slot(key, mask);; i = i + 1 & mask) {
+            if (stamps[i] != generation) {
+                keys[i] = key;
+                stamps[i] = generation;
+                size++;
+                return ~i;
+            }
+            if (keys[i] == key)
+                return i;
+        }
     }
 
-    private boolean has(int x, int y, int z) {
-        return visited.get(x + w * (y + h * z));
+    private void grow() {
+        long[] oldKeys = keys;
+        int[] oldStamps = stamps;
+        byte[] oldEntries = entries;
+        keys = new long[oldKeys.length << 1];
+        stamps = new int[oldKeys.length << 1];
+        entries = new byte[oldKeys.length << 1];
+        int mask = keys.length - 1;
+        /* Generation 0 of the new stamps never equals a current generation, which starts at 1 */
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldStamps[j] != generation)
+                continue;
+            int i = slot(oldKeys[j], mask);
+            while (stamps[i] == generation)
+                i = i + 1 & mask;
+            keys[i] = oldKeys[j];
+            stamps[i] = generation;
+            entries[i] = oldEntries[j];
+        }
     }
 
     public boolean visible(int x, int y, int z) {
@@ -85,41 +202,127 @@ public class ChunkIterator {
      *                 returns <code>true</code>
      */
     public void iterateFrontToBack(Vector3f rp, Quaternionf view, Matrix4f proj, ChunkIteratorVisitor consumer) {
-        ox = min(max(rp.x, 0.0f), w) - 0.5f;
-        oy = min(max(rp.y, 0.0f), h) - 0.5f;
-        oz = min(max(rp.z, 0.0f), d) - 0.5f;
-        Vector3f forward = view.positiveZ(new Vector3f()).negate();
+        float px = min(max(rp.x, x0), x1), py = min(max(rp.y, y0), y1), pz = min(max(rp.z, z0), z1);
+        ox = px - 0.5f;
+        oy = py - 0.5f;
+        oz = pz - 0.5f;
+        view.positiveZ(forward).negate();
         fi.set(vp.set(proj).rotate(view).translate(-rp.x, -rp.y, -rp.z));
-        add((int) ox, (int) oy, (int) oz);
-        double minD = Double.NaN;
-        loop: while (!queue.isEmpty()) {
-            Chunk c = queue.remove();
-            if (c.d < minD)
-                continue;
-            minD = c.d;
-            int r = consumer.visit(c.x, c.y, c.z, c.d);
-            switch (r) {
-            case ABORT: break loop;
-            case CANCEL: continue;
+        if (++generation == 0) {
+            Arrays.fill(stamps, 0);
+            generation = 1;
+        }
+        size = 0;
+        int sx = min((int) floor(px), x1 - 1), sy = min((int) floor(py), y1 - 1), sz = min((int) floor(pz), z1 - 1);
+        entries[~remember(key(sx, sy, sz))] = START;
+        add(sx, sy, sz, 0);
+        loop: for (int b = 0; b < bucketSizes.length; b++) {
+            /* Chunks closer than the current bucket are added to it, so its size can grow while iterating */
+            for (int i = 0; i < bucketSizes[b]; i++) {
+                long key = buckets[b][i];
+                int x = x(key), y = y(key), z = z(key);
+                int r = consumer.visit(x, y, z, distance2(x, y, z));
+                switch (r) {
+                case ABORT: break loop;
+                case CANCEL: continue;
+                }
+                if (connectivity == null) {
+                    leave(x, y, z, 63, b);
+                    continue;
+                }
+                /* The chunk is already contained, so this only returns its slot */
+                int slot = remember(key);
+                entries[slot] |= EXPANDED;
+                leave(x, y, z, exits(connectivity.connectivity(x, y, z), entries[slot]), b);
+                while (pendingSize > 0) {
+                    long k = pendingKeys[--pendingSize];
+                    leave(x(k), y(k), z(k), pendingExits[pendingSize], b);
+                }
             }
-            if (c.x < w - 1 && forward.x >= 0 && !has(c.x + 1, c.y, c.z) && visible(c.x + 1, c.y, c.z))
-                add(c.x + 1, c.y, c.z);
-            if (c.x > 0 && forward.x <= 0 && !has(c.x - 1, c.y, c.z) && visible(c.x - 1, c.y, c.z))
-                add(c.x - 1, c.y, c.z);
-            if (c.y < h - 1 && forward.y >= 0 && !has(c.x, c.y + 1, c.z) && visible(c.x, c.y + 1, c.z))
-                add(c.x, c.y + 1, c.z);
-            if (c.y > 0 && forward.y <= 0 && !has(c.x, c.y - 1, c.z) && visible(c.x, c.y - 1, c.z))
-                add(c.x, c.y - 1, c.z);
-            if (c.z < d - 1 && forward.z >= 0 && !has(c.x, c.y, c.z + 1) && visible(c.x, c.y, c.z + 1))
-                add(c.x, c.y, c.z + 1);
-            if (c.z > 0 && forward.z <= 0 && !has(c.x, c.y, c.z - 1) && visible(c.x, c.y, c.z - 1))
-                add(c.x, c.y, c.z - 1);
         }
-        queue.clear();
+        for (int b = 0; b < bucketSizes.length; b++)
+            bucketSizes[b] = 0;
+        pendingSize = 0;
     }
 
-    private void add(int x, int y, int z) {
-        remember(x, y, z);
-        queue.add(new Chunk((byte) x, (byte) y, (byte) z));
+    /*
+     * Enter the neighbors of the chunk through the given exits, queueing them in the current bucket or later ones.
+     */
+    private void leave(int x, int y, int z, int exits, int current) {
+        /* Leaving through the face f enters the neighbor through its opposite face f ^ 1 */
+        if ((exits & 2) != 0 && x < x1 - 1 && forward.x >= 0)
+            enter(x + 1, y, z, 0, current);
+        if ((exits & 1) != 0 && x > x0 && forward.x <= 0)
+            enter(x - 1, y, z, 1, current);
+        if ((exits & 8) != 0 && y < y1 - 1 && forward.y >= 0)
+            enter(x, y + 1, z, 2, current);
+        if ((exits & 4) != 0 && y > y0 && forward.y <= 0)
+            enter(x, y - 1, z, 3, current);
+        if ((exits & 32) != 0 && z < z1 - 1 && forward.z >= 0)
+            enter(x, y, z + 1, 4, current);
+        if ((exits & 16) != 0 && z > z0 && forward.z <= 0)
+            enter(x, y, z - 1, 5, current);
+    }
+
+    /*
+     * Determine the faces through which a chunk with the given connectivity can be left when it was entered through
+     * the given faces.
+     */
+    private static int exits(int mask, int entries) {
+        if ((entries & START) != 0)
+            return 63;
+        int exits = 0;
+        for (int f = 0; f < 6; f++)
+            for (int e = 0; e < 6; e++)
+                if ((entries & 1 << e) != 0 && FaceConnectivity.connected(mask, e, f)) {
+                    exits |= 1 << f;
+                    break;
+                }
+        return exits;
+    }
+
+    private void enter(int x, int y, int z, int face, int current) {
+        float d2 = distance2(x, y, z);
+        if (d2 > maxDistance * maxDistance || !visible(x, y, z))
+            return;
+        int slot = remember(key(x, y, z));
+        if (slot >= 0) {
+            /* Already queued or visited, so only remember the additional face through which it was entered */
+            int e = entries[slot];
+            entries[slot] |= 1 << face;
+            if ((e & EXPANDED) != 0 && (e & 1 << face) == 0) {
+                /* Already left through the exits of its other entries, so also leave it through the new ones */
+                int mask = connectivity.connectivity(x, y, z);
+                int gained = exits(mask, entries[slot]) & ~exits(mask, e);
+                if (gained != 0)
+                    pend(key(x, y, z), gained);
+            }
+            return;
+        }
+        entries[~slot] = (byte) (1 << face);
+        add(x, y, z, max((int) sqrt(d2), current));
+    }
+
+    private void pend(long key, int exits) {
+        if (pendingSize == pendingKeys.length) {
+            pendingKeys = Arrays.copyOf(pendingKeys, pendingSize << 1);
+            pendingExits = Arrays.copyOf(pendingExits, pendingSize << 1);
+        }
+        pendingKeys[pendingSize] = key;
+        pendingExits[pendingSize++] = (byte) exits;
+    }
+
+    private void add(int x, int y, int z, int bucket) {
+        if (bucket >= bucketSizes.length) {
+            long[][] newBuckets = new long[bucket + 1][];
+            System.arraycopy(buckets, 0, newBuckets, 0, buckets.length);
+            for (int b = buckets.length; b <= bucket; b++)
+                newBuckets[b] = new long[16];
+            buckets = newBuckets;
+            bucketSizes = Arrays.copyOf(bucketSizes, bucket + 1);
+        }
+        if (bucketSizes[bucket] == buckets[bucket].length)
+            buckets[bucket] = Arrays.copyOf(buckets[bucket], buckets[bucket].length << 1);
+        buckets[bucket][bucketSizes[bucket]++] = key(x, y, z);
     }
 }
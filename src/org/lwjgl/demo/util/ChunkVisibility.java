@@ -0,0 +1,163 @@
+/*
+ * Copyright LWJGL. All rights reserved.
+ * License terms: https://www.lwjgl.org/license
+ */
+package org.lwjgl.demo.util;
+
+import static java.lang.Math.*;
+import static java.util.Arrays.*;
+import static org.lwjgl.demo.util.Parallel.*;
+
+import java.util.BitSet;
+import java.util.concurrent.ForkJoinPool;
+
+import org.joml.*;
+
+/**
+ * Visibility graph of a grid of chunks, which combines the {@link FaceConnectivity face connectivity} of each chunk
+ * with the frustum culled front-to-back iteration of a {@link ChunkIterator}.
+ * <p>
+ * The connectivity mask of each chunk is cached and only recomputed by {@link #update(VoxelSource)} for the chunks
+ * which were {@link #markDirty(int, int, int) marked dirty}, in parallel on a {@link ForkJoinPool}.
+ * <p>
+ * {@link #iterateFrontToBack(Vector3f, Quaternionf, Matrix4f, ChunkIteratorVisitor)} passes the cached masks as the
+ * {@link ChunkIterator.Connectivity} of the iterator, which then only enters a neighboring chunk through a face which
+ * is connected to a face through which the current chunk was entered, so that chunks behind solid walls, such as all
+ * other caves when the camera is underground, are not visited at all.
+ * <p>
+ * Idea from: https://tomcc.github.io/2014/08/31/visibility-1.html
+ *
+ * @author Kai Burjack
+ */
+public class ChunkVisibility {
+
+    /**
+     * Provides the voxels of a chunk.
+     */
+    public interface VoxelSource {
+        /**
+         * Store the voxels of the chunk <code>(x, y, z)</code> into <code>ds</code>, with x varying fastest and
+         * <code>0</code> meaning empty.
+         * <p>
+         * This is called concurrently for different chunks.
+         */
+        void voxels(int x, int y, int z, byte[] ds);
+    }
+
+    private final int w, h, d;
+    private final int cw, ch, cd;
+    private final short[] masks;
+    private final BitSet dirty;
+    private final ForkJoinPool pool;
+    private final int jobs;
+    private final FaceConnectivity[] connectivities;
+    private final byte[][] voxels;
+    private int[] dirtyChunks = new int[0];
+
+    private final ChunkIterator iterator;
+
+    /**
+     * Create a visibility graph for <code>w * h * d</code> chunks of <code>cw * ch * cd</code> voxels each, using
+     * the {@link ForkJoinPool#commonPool() common pool}.
+     */
+    public ChunkVisibility(int w, int h, int d, int cw, int ch, int cd) {
+        this(w, h, d, cw, ch, cd, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Create a visibility graph for <code>w * h * d</code> chunks of <code>cw * ch * cd</code> voxels each.
+     * <p>
+     * All chunks are initially dirty and considered to have all faces connected.
+     */
+    public ChunkVisibility(int w, int h, int d, int cw, int ch, int cd, ForkJoinPool pool) {
+        this.iterator = new ChunkIterator(w, h, d, this::connectivity);
+        if ((long) w * h * d > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("w * h * d");
+        this.w = w;
+        this.h = h;
+        this.d = d;
+        this.cw = cw;
+        this.ch = ch;
+        this.cd = cd;
+        this.masks = new short[w * h * d];
+        this.dirty = new BitSet(w * h * d);
+        this.pool = pool;
+        this.jobs = pool.getParallelism();
+        this.connectivities = new FaceConnectivity[jobs];
+        this.voxels = new byte[jobs][];
+        fill(masks, (short) FaceConnectivity.ALL_CONNECTED);
+        dirty.set(0, w * h * d);
+    }
+
+    private int idx(int x, int y, int z) {
+        return x + w * (y + h * z);
+    }
+
+    /**
+     * Mark the chunk <code>(x, y, z)</code> to have its connectivity recomputed by the next
+     * {@link #update(VoxelSource)}, after any of its voxels changed.
+     */
+    public void markDirty(int x, int y, int z) {
+        dirty.set(idx(x, y, z));
+    }
+
+    /**
+     * @return the connectivity mask of the chunk <code>(x, y, z)</code> as of the last {@link #update(VoxelSource)}
+     * @see FaceConnectivity#connected(int, int, int)
+     */
+    public int connectivity(int x, int y, int z) {
+        return masks[idx(x, y, z)];
+    }
+
+    /**
+     * Recompute the connectivity masks of all dirty chunks in parallel.
+     *
+     * @return the number of recomputed chunks
+     */
+    public int update(VoxelSource source) {
+        int count = dirty.cardinality();
+        if (count == 0)
+            return 0;
+        if (dirtyChunks.length < count)
+            dirtyChunks = new int[count];
+        for (int i = dirty.nextSetBit(0), n = 0; i >= 0; i = dirty.nextSetBit(i + 1))
+            dirtyChunks[n++] = i;
+        /* One chunk of work per job, so that each job owns one FaceConnectivity and voxel array */
+        int chunks = min(count, jobs);
+        parallelFor(pool, chunks, c -> {
+            if (connectivities[c] == null) {
+                connectivities[c] = new FaceConnectivity(cw, ch, cd);
+                voxels[c] = new byte[cw * ch * cd];
+            }
+            FaceConnectivity fc = connectivities[c];
+            byte[] ds = voxels[c];
+            for (int i = chunkStart(c, count, chunks), to = chunkStart(c + 1, count, chunks); i < to; i++) {
+                int chunk = dirtyChunks[i], x = chunk % w, y = chunk / w % h, z = chunk / (w * h);
+                source.voxels(x, y, z, ds);
+                masks[chunk] = (short) fc.computeFaceConnectivity(ds);
+            }
+        });
+        dirty.clear();
+        return count;
+    }
+
+    public boolean visible(int x, int y, int z) {
+        return iterator.visible(x, y, z);
+    }
+
+    /**
+     * Iterate over all chunks in the frustum in front-to-back order which are reachable from the chunk containing
+     * the camera through connected faces.
+     *
+     * @param rp       position relative to the chunk's origin
+     * @param view     view orientation
+     * @param proj     projection matrix
+     * @param consumer consumes chunk indices; returns {@link ChunkIteratorVisitor#CANCEL} to not continue through
+     *                 the visited chunk and {@link ChunkIteratorVisitor#ABORT} to end the iteration
+     * @see ChunkIterator#iterateFrontToBack(Vector3f, Quaternionf, Matrix4f, ChunkIteratorVisitor)
+     */
+    public void iterateFrontToBack(Vector3f rp, Quaternionf view, Matrix4f proj, ChunkIteratorVisitor consumer) {
+        iterator.iterateFrontToBack(rp, view, proj, consumer);
+    }
+
+}
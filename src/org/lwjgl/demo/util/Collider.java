@@ -34,7 +34,8 @@ public class Collider {
     private static final int Z = 2;
 
     /* Scratch/temporary memory */
-    private final ArrayList<Voxel> candidates = new ArrayList<>(32);
+    private Voxel[] candidates = new Voxel[32];
+    private int candidatesCount;
     private final ArrayList<Contact> contacts = new ArrayList<>(32);
     private final Vector3f _tmp0 = new Vector3f();
     private final Vector3f _tmp1 = new Vector3f();
@@ -57,10 +58,13 @@ public class Collider {
 
     public void handleCollisionAabbAabbs(AABBf box, Vector3f v, KDTreei<Voxel> tree, Vector3f delta) {
         float minX = box.minX + min(0.0f, v.x), minY = box.minY + min(0.0f, v.y), minZ = box.minZ + min(0.0f, v.z);
-        float maxX = box.maxX + max(0.0f, v.x), maxY = box.maxY + max(0.0f, v.x), maxZ = box.maxZ + max(0.0f, v.z);
-        candidates.clear();
-        tree.intersects(minX, minY, minZ, maxX, maxY, maxZ, candidates);
-        if (candidates.isEmpty()) {
+        float maxX = box.maxX + max(0.0f, v.x), maxY = box.maxY + max(0.0f, v.y), maxZ = box.maxZ + max(0.0f, v.z);
+        candidatesCount = tree.intersects(minX, minY, minZ, maxX, maxY, maxZ, candidates);
+        if (candidatesCount > candidates.length) {
+            candidates = new Voxel[candidatesCount * 3 / 2];
+            tree.intersects(minX, minY, minZ, maxX, maxY, maxZ, candidates);
+        }
+        if (candidatesCount == 0) {
             delta.set(v);
             return;
         }
@@ -85,8 +89,8 @@ public class Collider {
 
     private void handleCollisionAabbAabbsCntd(AABBf box, Vector3f v, Vector3f delta) {
         contacts.clear();
-        for (Voxel c : candidates)
-            intersectAabbAabb(box, v, c);
+        for (int i = 0; i < candidatesCount; i++)
+            intersectAabbAabb(box, v, candidates[i]);
         removeImplausibleContacts();
         sort(contacts);
         delta.zero();
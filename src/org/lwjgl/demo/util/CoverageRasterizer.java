@@ -15,26 +15,47 @@ import org.joml.Matrix4f;
 
 /**
  * Coverage-mask-only software rasterizer.
+ * <p>
+ * The mask stores one bit per pixel, packed row by row into 64-bit words, of which each row starts with a new one.
+ * Pixels are rasterized in segments of up to 64 pixels of a row at once, whose coverage is first accumulated in a
+ * word and then tested against and written to the mask with a single AND and OR. Rows whose pixels are all covered
+ * are skipped, as are the covered pixels at the end of a row. The edge functions are still stepped per pixel, so
+ * that the covered pixels are the same as when testing every pixel of the bounding rectangle.
  * 
  * @author Kai Burjack
  */
 public class CoverageRasterizer {
     public final int width, height;
-    public final boolean[] maskbuffer;
+    /**
+     * The number of 64-bit words of each row of the {@link #maskbuffer}.
+     */
+    public final int wordsPerRow;
+    /**
+     * Bit <code>x % 64</code> of word <code>y * wordsPerRow + x / 64</code> is set if pixel <code>(x, y)</code> is
+     * covered.
+     */
+    public final long[] maskbuffer;
 
     public CoverageRasterizer(int width, int height) {
         this.width = width;
         this.height = height;
-        this.maskbuffer = new boolean[width * height];
+        this.wordsPerRow = (width + 63) >>> 6;
+        this.maskbuffer = new long[wordsPerRow * height];
         clearMask();
     }
 
     public void clearMask() {
-        fill(maskbuffer, false);
+        fill(maskbuffer, 0L);
+    }
+
+    public boolean isCovered(int x, int y) {
+        return (maskbuffer[y * wordsPerRow + (x >>> 6)] & 1L << x) != 0L;
     }
 
     public int rasterize_Vu8_Iu16(Matrix4f m, ByteBuffer vb, ShortBuffer ib, boolean maskTest, boolean maskWrite, int minSamples) {
         int samplesPassed = 0;
+        // The first sample passing always ends the call
+        minSamples = max(minSamples, 1);
         int irem = ib.remaining();
         for (int i = 0; i < irem; i += 3) {
             // Load next three indices
@@ -72,31 +93,64 @@ public class CoverageRasterizer {
             float b0 = s(v1xw, v1yw, v2xw, v2yw, miX, miY);
             float b1 = s(v2xw, v2yw, v0xw, v0yw, miX, miY);
             float b2 = s(v0xw, v0yw, v1xw, v1yw, miX, miY);
-            // Iterate over every pixel in the bounding rectangle
+            // Iterate over every row segment of up to 64 pixels in the bounding rectangle
             for (int y = miY; y <= maY; y++, b0 += x12, b1 += x20, b2 += x01) {
+                int row = y * wordsPerRow;
+                // Pixels after the last uncovered one of the row can neither pass nor end it, so skip them
+                int last = maX >>> 6;
+                long segment = -1L >>> 63 - (maX & 63);
+                for (int first = miX >>> 6; last >= first; last--, segment = -1L) {
+                    if (last == first)
+                        segment &= -1L << miX;
+                    if ((~maskbuffer[row + last] & segment) != 0L)
+                        break;
+                }
+                if (last < miX >>> 6)
+                    continue;
+                int rowEnd = min(last << 6 | 63, maX);
                 float w0 = b0, w1 = b1, w2 = b2;
-                boolean in = false;
-                for (int x = miX; x <= maX; x++, w0 += y21, w1 += y02, w2 += y10) {
-                    boolean covered = maskbuffer[x + y * width];
-                    if (covered)
+                boolean in = false, out = false;
+                for (int x = miX, word = row + (miX >>> 6); x <= rowEnd && !out; word++) {
+                    int end = min(x | 63, rowEnd);
+                    segment = -1L << x & -1L >>> 63 - (end & 63);
+                    long uncovered = ~maskbuffer[word] & segment;
+                    if (uncovered == 0L) {
+                        // Nothing to do for covered pixels, but the edge functions are stepped per pixel
+                        for (; x <= end; x++, w0 += y21, w1 += y02, w2 += y10)
+                            ;
                         continue;
-                    if (((floatToRawIntBits(w0)
-                        | floatToRawIntBits(w1)
-                        | floatToRawIntBits(w2)) & 0x80000000) != 0)
-                        if (in)
-                            break;
-                        else
+                    }
+                    long passed = 0L;
+                    for (; x <= end; x++, w0 += y21, w1 += y02, w2 += y10) {
+                        long bit = 1L << x;
+                        if ((uncovered & bit) == 0L)
                             continue;
-                    in = true;
-                    float d = w0 * v0zp + w1 * v1zp + w2 * v2zp;
-                    float s = w0 + w1 + w2;
-                    if (d < 0.0f || d > s)
-                        continue;
+                        if (((floatToRawIntBits(w0)
+                            | floatToRawIntBits(w1)
+                            | floatToRawIntBits(w2)) & 0x80000000) != 0)
+                            if (in) {
+                                out = true;
+                                break;
+                            } else
+                                continue;
+                        in = true;
+                        float d = w0 * v0zp + w1 * v1zp + w2 * v2zp;
+                        float s = w0 + w1 + w2;
+                        if (d < 0.0f || d > s)
+                            continue;
+                        passed |= bit;
+                    }
+                    int n = Long.bitCount(passed);
+                    if (samplesPassed + n >= minSamples) {
+                        for (int k = samplesPassed + n - minSamples; k > 0; k--)
+                            passed &= ~Long.highestOneBit(passed);
+                        if (maskWrite)
+                            maskbuffer[word] |= passed;
+                        return minSamples;
+                    }
+                    samplesPassed += n;
                     if (maskWrite)
-                        maskbuffer[x + y * width] = true;
-                    samplesPassed++;
-                    if (samplesPassed >= minSamples)
-                        return samplesPassed;
+                        maskbuffer[word] |= passed;
                 }
             }
         }
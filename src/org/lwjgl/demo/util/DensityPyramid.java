@@ -0,0 +1,199 @@
+/*
+ * Copyright LWJGL. All rights reserved.
+ * License terms: https://www.lwjgl.org/license
+ */
+package org.lwjgl.demo.util;
+
+/**
+ * Hierarchy of the minimum and maximum densities of the blocks of a density volume, used by
+ * {@link MarchingCubes#march(DensityPyramid, byte, DynamicByteBuffer, DynamicByteBuffer)} to skip all blocks which
+ * lie entirely inside or outside of the iso surface.
+ * <p>
+ * Level 0 stores the range of each block of {@link #BLOCK_SIZE}<sup>3</sup> cells, which includes the densities on
+ * all of its faces, so neighboring blocks share their boundary densities. Each further level stores the range of
+ * 2<sup>3</sup> blocks of the level below, until a single block remains.
+ * <p>
+ * The pyramid does not depend on the iso value, so it can be used for any number of extractions. When densities of
+ * the volume are modified, {@link #update(int, int, int, int, int, int)} must be called with the modified region to
+ * recompute only the affected blocks.
+ *
+ * @author Kai Burjack
+ */
+public class DensityPyramid {
+
+    /**
+     * The number of cells along each axis of a block on level 0.
+     */
+    public static final int BLOCK_SIZE = 8;
+
+    final byte[] ds;
+    final int dx, dy, dz;
+    private final int[] nx, ny, nz;
+    private final byte[][] min, max;
+
+    /**
+     * Create a pyramid for the given volume of <code>dx * dy * dz</code> densities, stored with x varying fastest.
+     * <p>
+     * The array is referenced, not copied.
+     */
+    public DensityPyramid(byte[] ds, int dx, int dy, int dz) {
+        if (dx < 2 || dy < 2 || dz < 2)
+            throw new IllegalArgumentException("dimensions must be at least 2");
+        if (ds.length < dx * dy * dz)
+            throw new IllegalArgumentException("ds");
+        this.ds = ds;
+        this.dx = dx;
+        this.dy = dy;
+        this.dz = dz;
+        int levels = 1;
+        int bx = blocks(dx), by = blocks(dy), bz = blocks(dz);
+        while (bx > 1 << levels - 1 || by > 1 << levels - 1 || bz > 1 << levels - 1)
+            levels++;
+        nx = new int[levels];
+        ny = new int[levels];
+        nz = new int[levels];
+        min = new byte[levels][];
+        max = new byte[levels][];
+        for (int l = 0; l < levels; l++) {
+            nx[l] = (bx + (1 << l) - 1) >> l;
+            ny[l] = (by + (1 << l) - 1) >> l;
+            nz[l] = (bz + (1 << l) - 1) >> l;
+            min[l] = new byte[nx[l] * ny[l] * nz[l]];
+            max[l] = new byte[nx[l] * ny[l] * nz[l]];
+        }
+        update(0, 0, 0, dx - 1, dy - 1, dz - 1);
+    }
+
+    private static int blocks(int d) {
+        return (d - 1 + BLOCK_SIZE - 1) / BLOCK_SIZE;
+    }
+
+    /**
+     * @return the number of levels
+     */
+    public int levels() {
+        return nx.length;
+    }
+
+    /**
+     * Recompute the blocks containing any of the densities in the given inclusive region, after they were modified.
+     */
+    public void update(int x0, int y0, int z0, int x1, int y1, int z1) {
+        x0 = Math.max(x0, 0);
+        y0 = Math.max(y0, 0);
+        z0 = Math.max(z0, 0);
+        x1 = Math.min(x1, dx - 1);
+        y1 = Math.min(y1, dy - 1);
+        z1 = Math.min(z1, dz - 1);
+        if (x0 > x1 || y0 > y1 || z0 > z1)
+            return;
+        /* Densities on a block boundary also belong to the block below */
+        int bx0 = Math.max(0, (x0 - 1) / BLOCK_SIZE), bx1 = Math.min(nx[0] - 1, x1 / BLOCK_SIZE);
+        int by0 = Math.max(0, (y0 - 1) / BLOCK_SIZE), by1 = Math.min(ny[0] - 1, y1 / BLOCK_SIZE);
+        int bz0 = Math.max(0, (z0 - 1) / BLOCK_SIZE), bz1 = Math.min(nz[0] - 1, z1 / BLOCK_SIZE);
+        for (int bz = bz0; bz <= bz1; bz++)
+            for (int by = by0; by <= by1; by++)
+                for (int bx = bx0; bx <= bx1; bx++)
+                    updateBlock(bx, by, bz);
+        for (int l = 1; l < nx.length; l++) {
+            bx0 >>= 1;
+            by0 >>= 1;
+            bz0 >>= 1;
+            bx1 >>= 1;
+            by1 >>= 1;
+            bz1 >>= 1;
+            for (int bz = bz0; bz <= bz1; bz++)
+                for (int by = by0; by <= by1; by++)
+                    for (int bx = bx0; bx <= bx1; bx++)
+                        updateNode(l, bx, by, bz);
+        }
+    }
+
+    private void updateBlock(int bx, int by, int bz) {
+        int x0 = bx * BLOCK_SIZE, x1 = Math.min(x0 + BLOCK_SIZE, dx - 1);
+        int y0 = by * BLOCK_SIZE, y1 = Math.min(y0 + BLOCK_SIZE, dy - 1);
+        int z0 = bz * BLOCK_SIZE, z1 = Math.min(z0 + BLOCK_SIZE, dz - 1);
+        int lo = Byte.MAX_VALUE, hi = Byte.MIN_VALUE;
+        for (int z = z0; z <= z1; z++)
+            for (int y = y0; y <= y1; y++)
+                for (int i = x0 + dx * (y + dy * z), end = i + x1 - x0; i <= end; i++) {
+                    int d = ds[i];
+                    lo = Math.min(lo, d);
+                    hi = Math.max(hi, d);
+                }
+        int i = bx + nx[0] * (by + ny[0] * bz);
+        min[0][i] = (byte) lo;
+        max[0][i] = (byte) hi;
+    }
+
+    private void updateNode(int l, int x, int y, int z) {
+        int lo = Byte.MAX_VALUE, hi = Byte.MIN_VALUE;
+        int cnx = nx[l - 1], cny = ny[l - 1];
+        byte[] cmin = min[l - 1], cmax = max[l - 1];
+        for (int cz = z << 1, cz1 = Math.min(cz + 2, nz[l - 1]); cz < cz1; cz++)
+            for (int cy = y << 1, cy1 = Math.min(cy + 2, cny); cy < cy1; cy++)
+                for (int cx = x << 1, cx1 = Math.min(cx + 2, cnx); cx < cx1; cx++) {
+                    int i = cx + cnx * (cy + cny * cz);
+                    lo = Math.min(lo, cmin[i]);
+                    hi = Math.max(hi, cmax[i]);
+                }
+        int i = x + nx[l] * (y + ny[l] * z);
+        min[l][i] = (byte) lo;
+        max[l][i] = (byte) hi;
+    }
+
+    /**
+     * Determine which blocks of the given layer of blocks along z are crossed by the iso surface, which are all
+     * blocks having densities both greater than and less than or equal to <code>iso</code>.
+     *
+     * @param bz
+     *            the index of the layer of blocks
+     * @param active
+     *            will receive whether the block <code>(bx, by)</code> of the layer is active at index
+     *            <code>bx + by * blocksX</code>, with <code>blocksX</code> being the number of blocks along x
+     * @return the number of active blocks
+     */
+    public int activeBlocks(byte iso, int bz, boolean[] active) {
+        int n = nx[0] * ny[0];
+        for (int i = 0; i < n; i++)
+            active[i] = false;
+        return activeBlocks(nx.length - 1, 0, 0, bz, iso, active);
+    }
+
+    private int activeBlocks(int l, int x, int y, int bz, byte iso, boolean[] active) {
+        int i = x + nx[l] * (y + ny[l] * (bz >> l));
+        if (min[l][i] > iso || max[l][i] <= iso)
+            return 0;
+        if (l == 0) {
+            active[i - nx[0] * ny[0] * bz] = true;
+            return 1;
+        }
+        int count = 0;
+        for (int cy = y << 1, cy1 = Math.min(cy + 2, ny[l - 1]); cy < cy1; cy++)
+            for (int cx = x << 1, cx1 = Math.min(cx + 2, nx[l - 1]); cx < cx1; cx++)
+                count += activeBlocks(l - 1, cx, cy, bz, iso, active);
+        return count;
+    }
+
+    /**
+     * @return the number of blocks along x on level 0
+     */
+    public int blocksX() {
+        return nx[0];
+    }
+
+    /**
+     * @return the number of blocks along y on level 0
+     */
+    public int blocksY() {
+        return ny[0];
+    }
+
+    /**
+     * @return the number of blocks along z on level 0
+     */
+    public int blocksZ() {
+        return nz[0];
+    }
+
+}
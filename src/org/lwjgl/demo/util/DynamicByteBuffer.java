@@ -10,6 +10,10 @@ import java.nio.*;
 
 /**
  * Dynamically growable {@link ByteBuffer}.
+ * <p>
+ * Besides the checked <code>put</code> methods, hot loops can call {@link #ensureCapacity(int)} once for a number of
+ * bytes and then write them with <code>memPut*(addr + pos, ...)</code> before advancing {@link #pos}. Buffers are
+ * reused with {@link #reset()} or by acquiring them from a {@link DynamicByteBufferPool}.
  * 
  * @author Kai Burjack
  */
@@ -18,6 +22,8 @@ public class DynamicByteBuffer {
     public long addr;
     public int pos;
     public int cap;
+    /* Capacity when acquired from a DynamicByteBufferPool, or -1 */
+    int pooledCap = -1;
 
     public DynamicByteBuffer() {
         this(8192);
@@ -28,61 +34,134 @@ public class DynamicByteBuffer {
         cap = initialSize;
     }
 
-    private void grow() {
-        int newCap = (int) (cap * 1.5f);
+    private void grow(long minCap) {
+        long newCap = Math.max((long) (cap * 1.5f), minCap);
+        if (newCap > Integer.MAX_VALUE) {
+            if (minCap > Integer.MAX_VALUE)
+                throw new OutOfMemoryError("DynamicByteBuffer capacity exceeds 2 GB");
+            newCap = Integer.MAX_VALUE;
+        }
         long newAddr = nmemRealloc(addr, newCap);
-        cap = newCap;
+        if (newAddr == NULL)
+            throw new OutOfMemoryError();
+        cap = (int) newCap;
         addr = newAddr;
     }
 
+    /**
+     * Make room for at least <code>bytes</code> more bytes after {@link #pos}, growing the buffer at most once.
+     */
+    public DynamicByteBuffer ensureCapacity(int bytes) {
+        if (cap - pos < bytes)
+            grow((long) pos + bytes);
+        return this;
+    }
+
+    /**
+     * Set the position to zero and keep the memory for reuse.
+     */
+    public DynamicByteBuffer reset() {
+        pos = 0;
+        return this;
+    }
+
     public void free() {
         nmemFree(addr);
     }
 
     public DynamicByteBuffer putFloat(float v) {
-        if (cap - pos < 4)
-            grow();
+        ensureCapacity(4);
         memPutFloat(addr + pos, v);
         pos += 4;
         return this;
     }
 
     public DynamicByteBuffer putLong(long v) {
-        if (cap - pos < 8)
-            grow();
+        ensureCapacity(8);
         memPutLong(addr + pos, v);
         pos += 8;
         return this;
     }
 
     public DynamicByteBuffer putInt(int v) {
-        if (cap - pos < 4)
-            grow();
+        ensureCapacity(4);
         memPutInt(addr + pos, v);
         pos += 4;
         return this;
     }
 
+    /**
+     * Put the lower 16 bits of <code>v</code>, which is a signed or an unsigned short.
+     */
     public DynamicByteBuffer putShort(int v) {
-        if (v > 1 << 16)
+        if (v < Short.MIN_VALUE || v > 0xFFFF)
             throw new IllegalArgumentException();
-        if (cap - pos < 2)
-            grow();
+        ensureCapacity(2);
         memPutShort(addr + pos, (short) v);
         pos += 2;
         return this;
     }
 
+    /**
+     * Put the lower 8 bits of <code>v</code>, which is a signed or an unsigned byte.
+     */
     public DynamicByteBuffer putByte(int v) {
-        if (v > 255)
+        if (v < Byte.MIN_VALUE || v > 0xFF)
             throw new IllegalArgumentException();
-        if (cap - pos < 1)
-            grow();
+        ensureCapacity(1);
         memPutByte(addr + pos, (byte) (v & 0xFF));
         pos++;
         return this;
     }
 
+    /**
+     * Append the bytes <code>[0, src.pos)</code> of the given buffer.
+     */
+    public DynamicByteBuffer put(DynamicByteBuffer src) {
+        return put(src.addr, src.pos);
+    }
+
+    /**
+     * Append the <code>length</code> bytes at the given address.
+     */
+    public DynamicByteBuffer put(long address, int length) {
+        ensureCapacity(length);
+        memCopy(address, addr + pos, length);
+        pos += length;
+        return this;
+    }
+
+    /**
+     * Append the bytes between the position and the limit of the given buffer, advancing its position to its limit.
+     */
+    public DynamicByteBuffer put(ByteBuffer src) {
+        int length = src.remaining();
+        ensureCapacity(length);
+        memByteBuffer(addr + pos, length).put(src);
+        pos += length;
+        return this;
+    }
+
+    /**
+     * Append <code>length</code> floats of the given array starting at <code>offset</code>.
+     */
+    public DynamicByteBuffer put(float[] src, int offset, int length) {
+        ensureCapacity(length << 2);
+        memFloatBuffer(addr + pos, length).put(src, offset, length);
+        pos += length << 2;
+        return this;
+    }
+
+    /**
+     * Append <code>length</code> ints of the given array starting at <code>offset</code>.
+     */
+    public DynamicByteBuffer put(int[] src, int offset, int length) {
+        ensureCapacity(length << 2);
+        memIntBuffer(addr + pos, length).put(src, offset, length);
+        pos += length << 2;
+        return this;
+    }
+
     public int remaining() {
         return (int) (cap - pos);
     }
@@ -0,0 +1,160 @@
+/*
+ * Copyright LWJGL. All rights reserved.
+ * License terms: https://www.lwjgl.org/license
+ */
+package org.lwjgl.demo.util;
+
+/**
+ * Pool of {@link DynamicByteBuffer}s, so that buffers rebuilt every frame reuse their native memory instead of
+ * allocating and freeing it each time.
+ * <p>
+ * Released buffers are kept in size classes of powers of two by their capacity, and a buffer is
+ * {@link #acquire(int) acquired} from the smallest class guaranteeing the requested capacity. A pool is not thread-safe;
+ * {@link #get()} returns the pool of the current thread, to which buffers must also be released.
+ *
+ * @author Kai Burjack
+ */
+public class DynamicByteBufferPool {
+    private static final int MIN_CLASS = 10;
+    private static final int CLASSES = 32 - MIN_CLASS;
+    private static final int DEFAULT_MAX_PER_CLASS = 8;
+
+    private static final ThreadLocal<DynamicByteBufferPool> POOLS = ThreadLocal
+            .withInitial(DynamicByteBufferPool::new);
+
+    private final DynamicByteBuffer[][] classes;
+    private final int[] sizes = new int[CLASSES];
+    private long bytesInUse;
+    private long bytesPooled;
+    private int buffersInUse;
+    private long acquires;
+    private long hits;
+
+    /**
+     * Create a pool keeping at most 8 released buffers per size class.
+     */
+    public DynamicByteBufferPool() {
+        this(DEFAULT_MAX_PER_CLASS);
+    }
+
+    /**
+     * Create a pool keeping at most <code>maxPerClass</code> released buffers per size class, freeing any further
+     * ones.
+     */
+    public DynamicByteBufferPool(int maxPerClass) {
+        this.classes = new DynamicByteBuffer[CLASSES][maxPerClass];
+    }
+
+    /**
+     * @return the pool of the current thread
+     */
+    public static DynamicByteBufferPool get() {
+        return POOLS.get();
+    }
+
+    /* Size class of which all buffers have a capacity of at least 1 << (class + MIN_CLASS) */
+    private static int floorClass(int capacity) {
+        return Math.max(0, 31 - Integer.numberOfLeadingZeros(capacity) - MIN_CLASS);
+    }
+
+    private static int ceilClass(int capacity) {
+        return capacity <= 1 << MIN_CLASS ? 0 : 32 - Integer.numberOfLeadingZeros(capacity - 1) - MIN_CLASS;
+    }
+
+    /**
+     * Acquire an empty buffer with a capacity of at least <code>capacity</code> bytes, reusing a released one if
+     * possible.
+     */
+    public DynamicByteBuffer acquire(int capacity) {
+        if (capacity < 0)
+            throw new IllegalArgumentException("capacity");
+        acquires++;
+        DynamicByteBuffer buffer = null;
+        for (int c = ceilClass(capacity); c < CLASSES && buffer == null; c++) {
+            if (sizes[c] > 0) {
+                buffer = classes[c][--sizes[c]];
+                classes[c][sizes[c]] = null;
+                bytesPooled -= buffer.cap;
+                hits++;
+            }
+        }
+        if (buffer == null) {
+            int c = ceilClass(capacity);
+            buffer = new DynamicByteBuffer(c < 31 - MIN_CLASS ? 1 << c + MIN_CLASS : Integer.MAX_VALUE);
+        }
+        buffer.pos = 0;
+        buffer.pooledCap = buffer.cap;
+        bytesInUse += buffer.cap;
+        buffersInUse++;
+        return buffer;
+    }
+
+    /**
+     * Release a buffer acquired from this pool, keeping it for reuse or freeing it if its size class is full. The
+     * buffer must not be used anymore.
+     */
+    public void release(DynamicByteBuffer buffer) {
+        if (buffer.pooledCap < 0)
+            throw new IllegalStateException("buffer was not acquired from a pool");
+        bytesInUse -= buffer.pooledCap;
+        buffersInUse--;
+        buffer.pooledCap = -1;
+        int c = floorClass(buffer.cap);
+        if (sizes[c] == classes[c].length) {
+            buffer.free();
+            return;
+        }
+        classes[c][sizes[c]++] = buffer;
+        bytesPooled += buffer.cap;
+    }
+
+    /**
+     * Free all released buffers kept by this pool.
+     */
+    public void trim() {
+        for (int c = 0; c < CLASSES; c++) {
+            for (int i = 0; i < sizes[c]; i++) {
+                classes[c][i].free();
+                classes[c][i] = null;
+            }
+            sizes[c] = 0;
+        }
+        bytesPooled = 0L;
+    }
+
+    /**
+     * @return the capacity in bytes of the buffers currently acquired, as of the time they were acquired
+     */
+    public long getBytesInUse() {
+        return bytesInUse;
+    }
+
+    /**
+     * @return the capacity in bytes of the released buffers kept for reuse
+     */
+    public long getBytesPooled() {
+        return bytesPooled;
+    }
+
+    /**
+     * @return the number of buffers currently acquired
+     */
+    public int getBuffersInUse() {
+        return buffersInUse;
+    }
+
+    /**
+     * @return the number of calls to {@link #acquire(int)}
+     */
+    public long getAcquireCount() {
+        return acquires;
+    }
+
+    /**
+     * @return the number of calls to {@link #acquire(int)} which reused a released buffer
+     */
+    public long getHitCount() {
+        return hits;
+    }
+
+}
@@ -9,11 +9,28 @@ import static java.util.Arrays.*;
 /**
  * Flood fill algorithm to compute face connectivity graph.
  * <p>
+ * The faces of the volume are numbered <code>-x, +x, -y, +y, -z, +z</code> from 0 to 5.
+ * {@link #computeFaceConnectivity(byte[])} computes for each of the 15 pairs of faces whether they are connected
+ * through empty voxels, which can be queried with {@link #connected(int, int, int)}.
+ * <p>
  * Idea from: https://tomcc.github.io/2014/08/31/visibility-1.html
  * 
  * @author Kai Burjack
  */
 public class FaceConnectivity {
+    /**
+     * Connectivity mask with all pairs of faces connected.
+     */
+    public static final int ALL_CONNECTED = (1 << 15) - 1;
+
+    /* Bit index of each pair of faces in the connectivity mask */
+    private static final int[] PAIRS = new int[36];
+    static {
+        for (int f0 = 0, bit = 0; f0 < 6; f0++)
+            for (int f1 = f0 + 1; f1 < 6; f1++, bit++)
+                PAIRS[f0 * 6 + f1] = PAIRS[f1 * 6 + f0] = bit;
+    }
+
     private final byte[] vs;
     private final int w, h, d;
     private final int[] stack;
@@ -42,6 +59,92 @@ public class FaceConnectivity {
         return computeX(ds) | (computeY(ds) << 6) | (computeZ(ds) << 12);
     }
 
+    /**
+     * Compute which pairs of faces of the volume are connected through empty voxels, which are voxels with value
+     * <code>0</code>, with neighboring voxels sharing a face being connected.
+     *
+     * @param ds
+     *            the <code>w * h * d</code> voxels, with x varying fastest
+     * @return the connectivity mask with one bit for each of the 15 pairs of faces
+     * @see #connected(int, int, int)
+     */
+    public int computeFaceConnectivity(byte[] ds) {
+        fill(vs, (byte) 0);
+        int ret = 0;
+        /* Only regions touching the boundary can connect faces, so start a flood fill at each boundary voxel */
+        for (int z = 0; z < d; z++)
+            for (int y = 0; y < h; y++) {
+                boolean boundary = z == 0 || z == d - 1 || y == 0 || y == h - 1;
+                for (int x = 0; x < w; x += boundary || x == w - 1 ? 1 : w - 1) {
+                    int faces = floodFill(ds, x, y, z);
+                    for (int f0 = 0; f0 < 6; f0++)
+                        if ((faces & 1 << f0) != 0)
+                            for (int f1 = f0 + 1; f1 < 6; f1++)
+                                if ((faces & 1 << f1) != 0)
+                                    ret |= 1 << PAIRS[f0 * 6 + f1];
+                }
+            }
+        return ret;
+    }
+
+    /**
+     * Determine whether the faces <code>f0</code> and <code>f1</code> are connected according to the given mask
+     * computed by {@link #computeFaceConnectivity(byte[])}.
+     * <p>
+     * A face is always considered to be connected to itself.
+     */
+    public static boolean connected(int mask, int f0, int f1) {
+        return f0 == f1 || (mask & 1 << PAIRS[f0 * 6 + f1]) != 0;
+    }
+
+    /*
+     * Flood fill all empty voxels connected to the given one in all six directions and return the faces they touch.
+     */
+    private int floodFill(byte[] ds, int x, int y, int z) {
+        int i = idx(x, y, z);
+        if (ds[i] != 0 || vs[i] != 0)
+            return 0;
+        vs[i] = 4;
+        stack[stackPos = 0] = x | y << 8 | z << 16;
+        int ret = 0;
+        while (stackPos >= 0) {
+            int sv = stack[stackPos--], px = sv & 0xFF, py = sv >>> 8 & 0xFF, pz = sv >>> 16 & 0xFF;
+            if (px > 0)
+                push(ds, px - 1, py, pz);
+            else
+                ret |= 1;
+            if (px < w - 1)
+                push(ds, px + 1, py, pz);
+            else
+                ret |= 2;
+            if (py > 0)
+                push(ds, px, py - 1, pz);
+            else
+                ret |= 4;
+            if (py < h - 1)
+                push(ds, px, py + 1, pz);
+            else
+                ret |= 8;
+            if (pz > 0)
+                push(ds, px, py, pz - 1);
+            else
+                ret |= 16;
+            if (pz < d - 1)
+                push(ds, px, py, pz + 1);
+            else
+                ret |= 32;
+        }
+        return ret;
+    }
+
+    private void push(byte[] ds, int x, int y, int z) {
+        int i = idx(x, y, z);
+        if (ds[i] != 0 || vs[i] != 0)
+            return;
+        vs[i] = 4;
+        stack[++stackPos] = x | y << 8 | z << 16;
+    }
+
     private int computeZ(byte[] ds) {
         int ret = 0;
         for (int y = 0; y < h; y++)
@@ -9,6 +9,7 @@ import static org.lwjgl.demo.util.GreedyMeshing.Face.*;
 import java.nio.*;
 
 import org.lwjgl.demo.util.GreedyMeshing.Face;
+import org.lwjgl.demo.util.GreedyMeshing.FaceConsumer;
 
 /**
  * @author Kai Burjack
@@ -25,100 +26,162 @@ public class FaceTriangulator {
 
     public static void triangulate_Vu16_Iu32(Iterable<Face> faces, ShortBuffer positions, IntBuffer indices) {
         int i = 0;
-        for (Face f : faces) {
-            switch (f.s) {
-            case SIDE_NX:
-            case SIDE_PX:
-                positions.put(f.p).put(f.u0).put(f.v0);
-                positions.put(f.p).put(f.u1).put(f.v0);
-                positions.put(f.p).put(f.u1).put(f.v1);
-                positions.put(f.p).put(f.u0).put(f.v1);
-                break;
-            case SIDE_NY:
-            case SIDE_PY:
-                positions.put(f.v0).put(f.p).put(f.u0);
-                positions.put(f.v0).put(f.p).put(f.u1);
-                positions.put(f.v1).put(f.p).put(f.u1);
-                positions.put(f.v1).put(f.p).put(f.u0);
-                break;
-            case SIDE_NZ:
-            case SIDE_PZ:
-                positions.put(f.u0).put(f.v0).put(f.p);
-                positions.put(f.u1).put(f.v0).put(f.p);
-                positions.put(f.u1).put(f.v1).put(f.p);
-                positions.put(f.u0).put(f.v1).put(f.p);
-                break;
-            }
-            if (isPositiveSide(f.s)) {
-                indices.put(i << 2).put((i << 2) + 1).put((i << 2) + 2);
-                indices.put((i << 2) + 2).put((i << 2) + 3).put(i << 2);
-            } else {
-                indices.put(i << 2).put((i << 2) + 3).put((i << 2) + 2);
-                indices.put((i << 2) + 2).put((i << 2) + 1).put(i << 2);
-            }
-            i++;
+        for (Face f : faces)
+            triangulate_Vu16_Iu32(i++, f.u0, f.v0, f.u1, f.v1, f.p, f.s, positions, indices);
+    }
+
+    /**
+     * Triangulate the <code>i</code>-th face.
+     */
+    public static void triangulate_Vu16_Iu32(int i, int u0, int v0, int u1, int v1, int p, int s,
+            ShortBuffer positions, IntBuffer indices) {
+        switch (s) {
+        case SIDE_NX:
+        case SIDE_PX:
+            put(positions, p, u0, v0);
+            put(positions, p, u1, v0);
+            put(positions, p, u1, v1);
+            put(positions, p, u0, v1);
+            break;
+        case SIDE_NY:
+        case SIDE_PY:
+            put(positions, v0, p, u0);
+            put(positions, v0, p, u1);
+            put(positions, v1, p, u1);
+            put(positions, v1, p, u0);
+            break;
+        case SIDE_NZ:
+        case SIDE_PZ:
+            put(positions, u0, v0, p);
+            put(positions, u1, v0, p);
+            put(positions, u1, v1, p);
+            put(positions, u0, v1, p);
+            break;
+        }
+        if (isPositiveSide(s)) {
+            indices.put(i << 2).put((i << 2) + 1).put((i << 2) + 2);
+            indices.put((i << 2) + 2).put((i << 2) + 3).put(i << 2);
+        } else {
+            indices.put(i << 2).put((i << 2) + 3).put((i << 2) + 2);
+            indices.put((i << 2) + 2).put((i << 2) + 1).put(i << 2);
         }
     }
 
+    private static void put(ShortBuffer positions, int x, int y, int z) {
+        positions.put((short) x).put((short) y).put((short) z);
+    }
+
     public static void triangulate_Vsn16_Iu32(int bits, Iterable<Face> faces, DynamicByteBuffer positions,
             DynamicByteBuffer normals, DynamicByteBuffer indices) {
         int i = 0;
-        for (Face f : faces) {
-            switch (f.s) {
-            case SIDE_NX:
-            case SIDE_PX:
-                positions.putShort(sn16(bits, f.p)).putShort(sn16(bits, f.u0)).putShort(sn16(bits, f.v0));
-                positions.putByte(0).putByte(-1).putByte(-1).putByte(0);
-                positions.putShort(sn16(bits, f.p)).putShort(sn16(bits, f.u1)).putShort(sn16(bits, f.v0));
-                positions.putByte(0).putByte(1).putByte(-1).putByte(0);
-                positions.putShort(sn16(bits, f.p)).putShort(sn16(bits, f.u1)).putShort(sn16(bits, f.v1));
-                positions.putByte(0).putByte(1).putByte(1).putByte(0);
-                positions.putShort(sn16(bits, f.p)).putShort(sn16(bits, f.u0)).putShort(sn16(bits, f.v1));
-                positions.putByte(0).putByte(-1).putByte(1).putByte(0);
-                normals.putByte(127 * ((f.s << 1) - 1)).putByte(0).putByte(0).putByte(0);
-                normals.putByte(127 * ((f.s << 1) - 1)).putByte(0).putByte(0).putByte(0);
-                normals.putByte(127 * ((f.s << 1) - 1)).putByte(0).putByte(0).putByte(0);
-                normals.putByte(127 * ((f.s << 1) - 1)).putByte(0).putByte(0).putByte(0);
-                break;
-            case SIDE_NY:
-            case SIDE_PY:
-                positions.putShort(sn16(bits, f.v0)).putShort(sn16(bits, f.p)).putShort(sn16(bits, f.u0));
-                positions.putByte(-1).putByte(0).putByte(-1).putByte(0);
-                positions.putShort(sn16(bits, f.v0)).putShort(sn16(bits, f.p)).putShort(sn16(bits, f.u1));
-                positions.putByte(-1).putByte(0).putByte(1).putByte(0);
-                positions.putShort(sn16(bits, f.v1)).putShort(sn16(bits, f.p)).putShort(sn16(bits, f.u1));
-                positions.putByte(1).putByte(0).putByte(1).putByte(0);
-                positions.putShort(sn16(bits, f.v1)).putShort(sn16(bits, f.p)).putShort(sn16(bits, f.u0));
-                positions.putByte(1).putByte(0).putByte(-1).putByte(0);
-                normals.putByte(0).putByte(127 * ((f.s << 1) - 5)).putByte(0).putByte(0);
-                normals.putByte(0).putByte(127 * ((f.s << 1) - 5)).putByte(0).putByte(0);
-                normals.putByte(0).putByte(127 * ((f.s << 1) - 5)).putByte(0).putByte(0);
-                normals.putByte(0).putByte(127 * ((f.s << 1) - 5)).putByte(0).putByte(0);
-                break;
-            case SIDE_NZ:
-            case SIDE_PZ:
-                positions.putShort(sn16(bits, f.u0)).putShort(sn16(bits, f.v0)).putShort(sn16(bits, f.p));
-                positions.putByte(-1).putByte(-1).putByte(0).putByte(0);
-                positions.putShort(sn16(bits, f.u1)).putShort(sn16(bits, f.v0)).putShort(sn16(bits, f.p));
-                positions.putByte(1).putByte(-1).putByte(0).putByte(0);
-                positions.putShort(sn16(bits, f.u1)).putShort(sn16(bits, f.v1)).putShort(sn16(bits, f.p));
-                positions.putByte(1).putByte(1).putByte(0).putByte(0);
-                positions.putShort(sn16(bits, f.u0)).putShort(sn16(bits, f.v1)).putShort(sn16(bits, f.p));
-                positions.putByte(-1).putByte(1).putByte(0).putByte(0);
-                normals.putByte(0).putByte(0).putByte(127 * ((f.s << 1) - 9)).putByte(0);
-                normals.putByte(0).putByte(0).putByte(127 * ((f.s << 1) - 9)).putByte(0);
-                normals.putByte(0).putByte(0).putByte(127 * ((f.s << 1) - 9)).putByte(0);
-                normals.putByte(0).putByte(0).putByte(127 * ((f.s << 1) - 9)).putByte(0);
-                break;
-            }
-            if (isPositiveSide(f.s)) {
-                indices.putInt(i << 2).putInt((i << 2) + 1).putInt((i << 2) + 2);
-                indices.putInt((i << 2) + 2).putInt((i << 2) + 3).putInt(i << 2);
-            } else {
-                indices.putInt(i << 2).putInt((i << 2) + 3).putInt((i << 2) + 2);
-                indices.putInt((i << 2) + 2).putInt((i << 2) + 1).putInt(i << 2);
-            }
-            i++;
+        for (Face f : faces)
+            triangulate_Vsn16_Iu32(bits, i++, f.u0, f.v0, f.u1, f.v1, f.p, f.s, positions, normals, indices);
+    }
+
+    /**
+     * Triangulate the <code>i</code>-th face.
+     */
+    public static void triangulate_Vsn16_Iu32(int bits, int i, int u0, int v0, int u1, int v1, int p, int s,
+            DynamicByteBuffer positions, DynamicByteBuffer normals, DynamicByteBuffer indices) {
+        switch (s) {
+        case SIDE_NX:
+        case SIDE_PX:
+            positions.putShort(sn16(bits, p)).putShort(sn16(bits, u0)).putShort(sn16(bits, v0));
+            positions.putByte(0).putByte(-1).putByte(-1).putByte(0);
+            positions.putShort(sn16(bits, p)).putShort(sn16(bits, u1)).putShort(sn16(bits, v0));
+            positions.putByte(0).putByte(1).putByte(-1).putByte(0);
+            positions.putShort(sn16(bits, p)).putShort(sn16(bits, u1)).putShort(sn16(bits, v1));
+            positions.putByte(0).putByte(1).putByte(1).putByte(0);
+            positions.putShort(sn16(bits, p)).putShort(sn16(bits, u0)).putShort(sn16(bits, v1));
+            positions.putByte(0).putByte(-1).putByte(1).putByte(0);
+            normals.putByte(127 * ((s << 1) - 1)).putByte(0).putByte(0).putByte(0);
+            normals.putByte(127 * ((s << 1) - 1)).putByte(0).putByte(0).putByte(0);
+            normals.putByte(127 * ((s << 1) - 1)).putByte(0).putByte(0).putByte(0);
+            normals.putByte(127 * ((s << 1) - 1)).putByte(0).putByte(0).putByte(0);
+            break;
+        case SIDE_NY:
+        case SIDE_PY:
+            positions.putShort(sn16(bits, v0)).putShort(sn16(bits, p)).putShort(sn16(bits, u0));
+            positions.putByte(-1).putByte(0).putByte(-1).putByte(0);
+            positions.putShort(sn16(bits, v0)).putShort(sn16(bits, p)).putShort(sn16(bits, u1));
+            positions.putByte(-1).putByte(0).putByte(1).putByte(0);
+            positions.putShort(sn16(bits, v1)).putShort(sn16(bits, p)).putShort(sn16(bits, u1));
+            positions.putByte(1).putByte(0).putByte(1).putByte(0);
+            positions.putShort(sn16(bits, v1)).putShort(sn16(bits, p)).putShort(sn16(bits, u0));
+            positions.putByte(1).putByte(0).putByte(-1).putByte(0);
+            normals.putByte(0).putByte(127 * ((s << 1) - 5)).putByte(0).putByte(0);
+            normals.putByte(0).putByte(127 * ((s << 1) - 5)).putByte(0).putByte(0);
+            normals.putByte(0).putByte(127 * ((s << 1) - 5)).putByte(0).putByte(0);
+            normals.putByte(0).putByte(127 * ((s << 1) - 5)).putByte(0).putByte(0);
+            break;
+        case SIDE_NZ:
+        case SIDE_PZ:
+            positions.putShort(sn16(bits, u0)).putShort(sn16(bits, v0)).putShort(sn16(bits, p));
+            positions.putByte(-1).putByte(-1).putByte(0).putByte(0);
+            positions.putShort(sn16(bits, u1)).putShort(sn16(bits, v0)).putShort(sn16(bits, p));
+            positions.putByte(1).putByte(-1).putByte(0).putByte(0);
+            positions.putShort(sn16(bits, u1)).putShort(sn16(bits, v1)).putShort(sn16(bits, p));
+            positions.putByte(1).putByte(1).putByte(0).putByte(0);
+            positions.putShort(sn16(bits, u0)).putShort(sn16(bits, v1)).putShort(sn16(bits, p));
+            positions.putByte(-1).putByte(1).putByte(0).putByte(0);
+            normals.putByte(0).putByte(0).putByte(127 * ((s << 1) - 9)).putByte(0);
+            normals.putByte(0).putByte(0).putByte(127 * ((s << 1) - 9)).putByte(0);
+            normals.putByte(0).putByte(0).putByte(127 * ((s << 1) - 9)).putByte(0);
+            normals.putByte(0).putByte(0).putByte(127 * ((s << 1) - 9)).putByte(0);
+            break;
+        }
+        if (isPositiveSide(s)) {
+            indices.putInt(i << 2).putInt((i << 2) + 1).putInt((i << 2) + 2);
+            indices.putInt((i << 2) + 2).putInt((i << 2) + 3).putInt(i << 2);
+        } else {
+            indices.putInt(i << 2).putInt((i << 2) + 3).putInt((i << 2) + 2);
+            indices.putInt((i << 2) + 2).putInt((i << 2) + 1).putInt(i << 2);
+        }
+    }
+
+    /**
+     * {@link FaceConsumer} triangulating the faces directly into the given buffers, as
+     * {@link FaceTriangulator#triangulate_Vu16_Iu32(Iterable, ShortBuffer, IntBuffer)} would.
+     */
+    public static class Vu16_Iu32 implements FaceConsumer {
+        private final ShortBuffer positions;
+        private final IntBuffer indices;
+        /** The number of faces triangulated so far */
+        public int count;
+
+        public Vu16_Iu32(ShortBuffer positions, IntBuffer indices) {
+            this.positions = positions;
+            this.indices = indices;
+        }
+
+        @Override
+        public void consume(int u0, int v0, int u1, int v1, int p, int s, int v) {
+            triangulate_Vu16_Iu32(count++, u0, v0, u1, v1, p, s, positions, indices);
+        }
+    }
+
+    /**
+     * {@link FaceConsumer} triangulating the faces directly into the given buffers, as
+     * {@link FaceTriangulator#triangulate_Vsn16_Iu32(int, Iterable, DynamicByteBuffer, DynamicByteBuffer, DynamicByteBuffer)}
+     * would.
+     */
+    public static class Vsn16_Iu32 implements FaceConsumer {
+        private final int bits;
+        private final DynamicByteBuffer positions, normals, indices;
+        /** The number of faces triangulated so far */
+        public int count;
+
+        public Vsn16_Iu32(int bits, DynamicByteBuffer positions, DynamicByteBuffer normals,
+                DynamicByteBuffer indices) {
+            this.bits = bits;
+            this.positions = positions;
+            this.normals = normals;
+            this.indices = indices;
+        }
+
+        @Override
+        public void consume(int u0, int v0, int u1, int v1, int p, int s, int v) {
+            triangulate_Vsn16_Iu32(bits, count++, u0, v0, u1, v1, p, s, positions, normals, indices);
         }
     }
 }
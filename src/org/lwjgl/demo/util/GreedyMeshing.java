@@ -12,6 +12,12 @@ import java.util.List;
  * Greedy meshing based on the JavaScript code from
  * https://0fps.net/2012/07/07/meshing-minecraft-part-2/
  * <p>
+ * When {@link #setSingleOpaque(boolean) single opaque} and {@link #setBinary(boolean) binary} meshing are enabled,
+ * the occupancy of the voxels is packed into 64-bit columns, so that the faces of a slice are determined 64 voxels at
+ * a time with shifts and ANDs and merged using bit scans (see
+ * https://github.com/cgerikj/binary-greedy-meshing). This generates the same faces in the same order as the scalar
+ * algorithm, but requires all dimensions to be at most 64.
+ * <p>
  * Instances of this class are <i>not</i> thread-safe, so calls to
  * {@link #mesh(byte[], List)} on the same instance must be externally
  * synchronized.
@@ -41,6 +47,14 @@ public class GreedyMeshing {
         }
     }
 
+    /**
+     * Receives the faces generated by {@link GreedyMeshing#mesh(byte[], FaceConsumer)} without allocating a
+     * {@link Face} for each of them.
+     */
+    public interface FaceConsumer {
+        void consume(int u0, int v0, int u1, int v1, int p, int s, int v);
+    }
+
     private final int[] m;
     private byte[] vs;
     private int dx, dy, dz;
@@ -48,6 +62,8 @@ public class GreedyMeshing {
     private int maxMergeLength = Integer.MAX_VALUE;
     private int splitShift = 16;
     private int splitMask = (1 << splitShift) - 1;
+    private boolean binary;
+    private long[] occX, occY, occZ, front, back, transposed;
 
     public GreedyMeshing(int dx, int dy, int dz) {
         if (dx < 1 || dx > Short.MAX_VALUE)
@@ -79,18 +95,56 @@ public class GreedyMeshing {
         return singleOpaque;
     }
 
+    /**
+     * Enable or disable binary meshing. Binary meshing is only used when {@link #setSingleOpaque(boolean) single
+     * opaque} is also enabled.
+     * 
+     * @throws IllegalStateException if any dimension is greater than 64
+     */
+    public void setBinary(boolean binary) {
+        if (binary && (dx > Long.SIZE || dy > Long.SIZE || dz > Long.SIZE))
+            throw new IllegalStateException("binary meshing requires all dimensions to be at most 64");
+        this.binary = binary;
+        if (binary && occX == null) {
+            occX = new long[(dx + 2) * dz];
+            occY = new long[(dy + 2) * dx];
+            occZ = new long[(dz + 2) * dy];
+            front = new long[max(dx, max(dy, dz))];
+            back = new long[front.length];
+            transposed = new long[Long.SIZE];
+        }
+    }
+
+    public boolean isBinary() {
+        return binary;
+    }
+
     private byte at(int x, int y, int z) {
         return vs[x + 1 + (dx + 2) * (y + 1 + (dy + 2) * (z + 1))];
     }
 
     public void mesh(byte[] vs, List<Face> faces) {
+        mesh(vs, (u0, v0, u1, v1, p, s, v) -> faces.add(new Face(u0, v0, u1, v1, p, s, (byte) v)));
+    }
+
+    /**
+     * Mesh the given voxels and stream the faces directly into the given {@link FaceConsumer}.
+     * <p>
+     * The arguments of each face are the same as the fields of {@link Face}, with <code>v</code> being the unsigned
+     * voxel value.
+     */
+    public void mesh(byte[] vs, FaceConsumer faces) {
         this.vs = vs;
+        if (binary && singleOpaque) {
+            meshBinary(faces);
+            return;
+        }
         meshX(faces);
         meshY(faces);
         meshZ(faces);
     }
 
-    private void meshX(List<Face> faces) {
+    private void meshX(FaceConsumer faces) {
         for (int x0 = -1; x0 < dx;) {
             generateMaskX(x0);
             x0++;
@@ -98,7 +152,7 @@ public class GreedyMeshing {
         }
     }
 
-    private void meshY(List<Face> faces) {
+    private void meshY(FaceConsumer faces) {
         for (int x1 = -1; x1 < dy;) {
             generateMaskY(x1);
             x1++;
@@ -106,7 +160,7 @@ public class GreedyMeshing {
         }
     }
 
-    private void meshZ(List<Face> faces) {
+    private void meshZ(FaceConsumer faces) {
         for (int x2 = -1; x2 < dz;) {
             generateMaskZ(x2);
             x2++;
@@ -156,56 +210,56 @@ public class GreedyMeshing {
             m[n] = -(singleOpaque ? 1 : b);
     }
 
-    private void mergeAndGenerateFacesX(List<Face> faces, int x0) {
+    private void mergeAndGenerateFacesX(FaceConsumer faces, int x0) {
         int i, j, n, incr;
         for (j = 0, n = 0; j < dz; j++)
             for (i = 0; i < dy; i += incr, n += incr)
                 incr = mergeAndGenerateFaceX(faces, x0, n, i, j);
     }
 
-    private void mergeAndGenerateFacesY(List<Face> faces, int x1) {
+    private void mergeAndGenerateFacesY(FaceConsumer faces, int x1) {
         int i, j, n, incr;
         for (j = 0, n = 0; j < dx; j++)
             for (i = 0; i < dz; i += incr, n += incr)
                 incr = mergeAndGenerateFaceY(faces, x1, n, i, j);
     }
 
-    private void mergeAndGenerateFacesZ(List<Face> faces, int x2) {
+    private void mergeAndGenerateFacesZ(FaceConsumer faces, int x2) {
         int i, j, n, incr;
         for (j = 0, n = 0; j < dy; j++)
             for (i = 0; i < dx; i += incr, n += incr)
                 incr = mergeAndGenerateFaceZ(faces, x2, n, i, j);
     }
 
-    private int mergeAndGenerateFaceX(List<Face> faces, int x0, int n, int i, int j) {
+    private int mergeAndGenerateFaceX(FaceConsumer faces, int x0, int n, int i, int j) {
         int mn = m[n];
         if (mn == 0)
             return 1;
         int w = determineWidthX(mn, n, i);
         int h = determineHeightX(mn, n, j, w);
-        faces.add(new Face(i, j, i + w, j + h, x0, 0 + (m[n] > 0 ? 1 : 0), (byte) (m[n] & 0xFF)));
+        faces.consume(i, j, i + w, j + h, x0, 0 + (mn > 0 ? 1 : 0), mn & 0xFF);
         eraseMaskX(n, w, h);
         return w;
     }
 
-    private int mergeAndGenerateFaceY(List<Face> faces, int x1, int n, int i, int j) {
+    private int mergeAndGenerateFaceY(FaceConsumer faces, int x1, int n, int i, int j) {
         int mn = m[n];
         if (mn == 0)
             return 1;
         int w = determineWidthY(mn, n, i);
         int h = determineHeightY(mn, n, j, w);
-        faces.add(new Face(i, j, i + w, j + h, x1, 2 + (m[n] > 0 ? 1 : 0), (byte) (m[n] & 0xFF)));
+        faces.consume(i, j, i + w, j + h, x1, 2 + (mn > 0 ? 1 : 0), mn & 0xFF);
         eraseMaskY(n, w, h);
         return w;
     }
 
-    private int mergeAndGenerateFaceZ(List<Face> faces, int x2, int n, int i, int j) {
+    private int mergeAndGenerateFaceZ(FaceConsumer faces, int x2, int n, int i, int j) {
         int mn = m[n];
         if (mn == 0)
             return 1;
         int w = determineWidthZ(mn, n, i);
         int h = determineHeightZ(mn, n, j, w);
-        faces.add(new Face(i, j, i + w, j + h, x2, 4 + (m[n] > 0 ? 1 : 0), (byte) (m[n] & 0xFF)));
+        faces.consume(i, j, i + w, j + h, x2, 4 + (mn > 0 ? 1 : 0), mn & 0xFF);
         eraseMaskZ(n, w, h);
         return w;
     }
@@ -275,4 +329,123 @@ public class GreedyMeshing {
                     return h;
         return h;
     }
+
+    /*
+     * Pack the occupancy of the voxels into columns along y (for slices along x), z (for slices along y) and x (for
+     * slices along z), including the padding along the slice axis. Only the columns along x are packed from the
+     * voxels directly, the others are transposes of them except for the padding.
+     */
+    private void generateOccupancy() {
+        for (int y = 0; y < dy; y++)
+            for (int z = -1; z <= dz; z++) {
+                int row = 1 + (dx + 2) * (y + 1 + (dy + 2) * (z + 1));
+                long bits = 0L;
+                for (int x = 0; x < dx; x++) {
+                    int v = vs[row + x];
+                    bits |= (long) ((v | -v) >>> 31) << x;
+                }
+                occZ[z + 1 + (dz + 2) * y] = bits;
+            }
+        long[] t = transposed;
+        for (int z = 0; z < dz; z++) {
+            for (int y = 0; y < Long.SIZE; y++)
+                t[y] = y < dy ? occZ[z + 1 + (dz + 2) * y] : 0L;
+            transpose(t);
+            for (int x = 0; x < dx; x++)
+                occX[x + 1 + (dx + 2) * z] = t[x];
+            occX[(dx + 2) * z] = column(-1, 0, z, dx + 2, dy);
+            occX[dx + 1 + (dx + 2) * z] = column(dx, 0, z, dx + 2, dy);
+        }
+        for (int y = 0; y < dy; y++) {
+            for (int z = 0; z < Long.SIZE; z++)
+                t[z] = z < dz ? occZ[z + 1 + (dz + 2) * y] : 0L;
+            transpose(t);
+            for (int x = 0; x < dx; x++)
+                occY[y + 1 + (dy + 2) * x] = t[x];
+        }
+        for (int x = 0; x < dx; x++) {
+            occY[(dy + 2) * x] = column(x, -1, 0, (dx + 2) * (dy + 2), dz);
+            occY[dy + 1 + (dy + 2) * x] = column(x, dy, 0, (dx + 2) * (dy + 2), dz);
+        }
+    }
+
+    /*
+     * Occupancy of 'n' voxels starting at (x, y, z) and advancing by 'stride' in the padded voxel array.
+     */
+    private long column(int x, int y, int z, int stride, int n) {
+        long bits = 0L;
+        for (int i = 0, o = x + 1 + (dx + 2) * (y + 1 + (dy + 2) * (z + 1)); i < n; i++, o += stride) {
+            int v = vs[o];
+            bits |= (long) ((v | -v) >>> 31) << i;
+        }
+        return bits;
+    }
+
+    /*
+     * Transpose the 64x64 bit matrix, such that bit j of a[i] becomes bit i of a[j].
+     */
+    private static void transpose(long[] a) {
+        long m = 0x00000000FFFFFFFFL;
+        for (int j = 32; j != 0; j >>>= 1, m ^= m << j) {
+            for (int k = 0; k < Long.SIZE; k = (k | j) + 1 & ~j) {
+                long t = (a[k] >>> j ^ a[k | j]) & m;
+                a[k] ^= t << j;
+                a[k | j] ^= t;
+            }
+        }
+    }
+
+    private void meshBinary(FaceConsumer faces) {
+        generateOccupancy();
+        for (int x0 = -1; x0 < dx; x0++) {
+            for (int j = 0, n = x0 + 1; j < dz; j++, n += dx + 2)
+                generateMaskBinary(j, occX[n], occX[n + 1]);
+            mergeAndGenerateFacesBinary(faces, x0 + 1, 0, dy, dz);
+        }
+        for (int x1 = -1; x1 < dy; x1++) {
+            for (int j = 0, n = x1 + 1; j < dx; j++, n += dy + 2)
+                generateMaskBinary(j, occY[n], occY[n + 1]);
+            mergeAndGenerateFacesBinary(faces, x1 + 1, 2, dz, dx);
+        }
+        for (int x2 = -1; x2 < dz; x2++) {
+            for (int j = 0, n = x2 + 1; j < dy; j++, n += dz + 2)
+                generateMaskBinary(j, occZ[n], occZ[n + 1]);
+            mergeAndGenerateFacesBinary(faces, x2 + 1, 4, dx, dy);
+        }
+    }
+
+    private void generateMaskBinary(int j, long a, long b) {
+        front[j] = a & ~b;
+        back[j] = ~a & b;
+    }
+
+    /*
+     * Same as mergeAndGenerateFacesX/Y/Z, but on rows of bits: 'w' is the number of bits in a row and 'h' the number
+     * of rows.
+     */
+    private void mergeAndGenerateFacesBinary(FaceConsumer faces, int p, int side, int w, int h) {
+        for (int j = 0; j < h; j++) {
+            long bits;
+            while ((bits = front[j] | back[j]) != 0L) {
+                int i = Long.numberOfTrailingZeros(bits);
+                boolean isFront = (front[j] & 1L << i) != 0L;
+                long[] rows = isFront ? front : back;
+                int fw = min(Long.numberOfTrailingZeros(~(rows[j] >>> i)), maxMergeLength(i, w));
+                long span = (fw == Long.SIZE ? -1L : (1L << fw) - 1L) << i;
+                int fh = 1, maxH = maxMergeLength(j, h);
+                while (fh < maxH && (rows[j + fh] & span) == span)
+                    fh++;
+                for (int l = 0; l < fh; l++)
+                    rows[j + l] &= ~span;
+                faces.consume(i, j, i + fw, j + fh, p, side + (isFront ? 1 : 0), isFront ? 1 : 0xFF);
+            }
+        }
+    }
+
+    /*
+     * Maximum length of a face starting at the given coordinate.
+     */
+    private int maxMergeLength(int start, int size) {
+        return min(min(size - start, maxMergeLength), (start | splitMask) + 1 - start);
+    }
 }
@@ -0,0 +1,320 @@
+/*
+ * Copyright LWJGL. All rights reserved.
+ * License terms: https://www.lwjgl.org/license
+ */
+package org.lwjgl.demo.util;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.lwjgl.demo.util.GreedyMeshing.Face;
+
+/**
+ * Meshes the chunks of a voxel world concurrently using {@link GreedyMeshing}.
+ * <p>
+ * Chunks are {@link #markDirty(int, int, int) marked dirty} by the thread editing the world and are then meshed by a
+ * fixed number of worker threads, nearest to the {@link #setFocus(float, float, float) focus} first. Each worker
+ * owns its own {@link GreedyMeshing} instance and voxel buffer. Results are published to a non-blocking queue which
+ * the render thread drains via {@link #poll()}.
+ * <p>
+ * Marking a chunk dirty which is still queued does not queue it again, and marking a chunk dirty which is currently
+ * being meshed queues it again once the worker is done, so the results of a chunk are always published in order.
+ * <p>
+ * If the {@link VoxelSource} or meshing throws, the worker publishes a {@link Result} with the {@link Result#error}
+ * and continues with the next chunk, and the chunk can be marked dirty again as usual.
+ *
+ * @author Kai Burjack
+ */
+public class GreedyMeshingService {
+
+    /**
+     * Provides the voxels of a chunk.
+     * <p>
+     * Implementations are called concurrently from all worker threads.
+     */
+    public interface VoxelSource {
+        /**
+         * Copy the voxels of the given chunk, including a border of one voxel of the neighboring chunks, into the
+         * given array in the layout expected by {@link GreedyMeshing#mesh(byte[], List)}.
+         */
+        void copy(int x, int y, int z, byte[] vs);
+    }
+
+    /**
+     * The faces of a meshed chunk, or the error which occurred while meshing it.
+     */
+    public static class Result {
+        public final int x, y, z;
+        /** The faces, or <code>null</code> if meshing failed */
+        public final List<Face> faces;
+        /** The error thrown while copying the voxels or meshing the chunk, or <code>null</code> */
+        public final Throwable error;
+        /** Nanoseconds from marking the chunk dirty until a worker started meshing it */
+        public final long queuedNanos;
+        /** Nanoseconds to copy the voxels and mesh the chunk */
+        public final long meshNanos;
+
+        Result(int x, int y, int z, List<Face> faces, Throwable error, long queuedNanos, long meshNanos) {
+            this.x = x;
+            this.y = y;
+            this.z = z;
+            this.faces = faces;
+            this.error = error;
+            this.queuedNanos = queuedNanos;
+            this.meshNanos = meshNanos;
+        }
+    }
+
+    private static final int QUEUED = 0;
+    private static final int RUNNING = 1;
+    private static final int RUNNING_DIRTY = 2;
+
+    private static class Task {
+        final int x, y, z;
+        final long key;
+        int state;
+        long dirtyTime;
+        long queuedNanos;
+        float distance2;
+
+        Task(int x, int y, int z, long key) {
+            this.x = x;
+            this.y = y;
+            this.z = z;
+            this.key = key;
+        }
+    }
+
+    private final int w, h, d;
+    private final int capacity;
+    private final VoxelSource source;
+    private final Thread[] workers;
+
+    /* Guarded by 'tasks' */
+    private final Map<Long, Task> tasks = new HashMap<>();
+    private final PriorityQueue<Task> queue = new PriorityQueue<>((a, b) -> Float.compare(a.distance2, b.distance2));
+    private float fx, fy, fz;
+    private boolean shutdown;
+
+    private final ConcurrentLinkedQueue<Result> results = new ConcurrentLinkedQueue<>();
+    private final AtomicLong meshedChunks = new AtomicLong();
+    private final AtomicLong failedChunks = new AtomicLong();
+    private final AtomicLong totalMeshNanos = new AtomicLong();
+    private final AtomicLong maxMeshNanos = new AtomicLong();
+    private final AtomicLong totalQueuedNanos = new AtomicLong();
+
+    /**
+     * Create a service meshing chunks of <code>w * h * d</code> voxels with the given number of worker threads.
+     *
+     * @param capacity the maximum number of chunks waiting to be meshed
+     */
+    public GreedyMeshingService(int w, int h, int d, boolean singleOpaque, int threads, int capacity,
+            VoxelSource source) {
+        if (threads < 1)
+            throw new IllegalArgumentException("threads");
+        if (capacity < 1)
+            throw new IllegalArgumentException("capacity");
+        this.w = w;
+        this.h = h;
+        this.d = d;
+        this.capacity = capacity;
+        this.source = source;
+        this.workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            GreedyMeshing gm = new GreedyMeshing(w, h, d);
+            gm.setSingleOpaque(singleOpaque);
+            Thread t = new Thread(() -> work(gm), "GreedyMeshingService-" + (i + 1));
+            t.setDaemon(true);
+            workers[i] = t;
+            t.start();
+        }
+    }
+
+    private static long key(int x, int y, int z) {
+        return (x & 0x1FFFFFL) | (y & 0x1FFFFFL) << 21 | (z & 0x1FFFFFL) << 42;
+    }
+
+    private float distance2(Task t) {
+        float dx = t.x + 0.5f - fx, dy = t.y + 0.5f - fy, dz = t.z + 0.5f - fz;
+        return dx * dx + dy * dy + dz * dz;
+    }
+
+    /**
+     * Set the position, in chunk coordinates, around which chunks are meshed first.
+     */
+    public void setFocus(float x, float y, float z) {
+        synchronized (tasks) {
+            fx = x;
+            fy = y;
+            fz = z;
+            if (queue.isEmpty())
+                return;
+            List<Task> queued = new ArrayList<>(queue);
+            queue.clear();
+            for (Task t : queued) {
+                t.distance2 = distance2(t);
+                queue.add(t);
+            }
+        }
+    }
+
+    /**
+     * Mark the given chunk as needing to be meshed (again).
+     *
+     * @return <code>false</code> if the queue is full and the chunk was not queued; the caller should try again later
+     */
+    public boolean markDirty(int x, int y, int z) {
+        long key = key(x, y, z);
+        synchronized (tasks) {
+            Task t = tasks.get(key);
+            if (t != null) {
+                if (t.state == RUNNING) {
+                    t.state = RUNNING_DIRTY;
+                    t.dirtyTime = System.nanoTime();
+                }
+                return true;
+            }
+            if (queue.size() >= capacity)
+                return false;
+            t = new Task(x, y, z, key);
+            t.dirtyTime = System.nanoTime();
+            t.distance2 = distance2(t);
+            tasks.put(key, t);
+            queue.add(t);
+            tasks.notify();
+            return true;
+        }
+    }
+
+    /**
+     * Return the next meshed chunk or <code>null</code> if there is none. This method never blocks.
+     */
+    public Result poll() {
+        return results.poll();
+    }
+
+    /**
+     * @return the number of chunks waiting to be meshed
+     */
+    public int getQueueDepth() {
+        synchronized (tasks) {
+            return queue.size();
+        }
+    }
+
+    public long getMeshedChunks() {
+        return meshedChunks.get();
+    }
+
+    /**
+     * @return the number of chunks for which meshing failed
+     */
+    public long getFailedChunks() {
+        return failedChunks.get();
+    }
+
+    /**
+     * @return the average nanoseconds to copy and mesh a chunk
+     */
+    public long getAverageMeshNanos() {
+        long n = meshedChunks.get();
+        return n == 0 ? 0 : totalMeshNanos.get() / n;
+    }
+
+    /**
+     * @return the maximum nanoseconds to copy and mesh a chunk
+     */
+    public long getMaxMeshNanos() {
+        return maxMeshNanos.get();
+    }
+
+    /**
+     * @return the average nanoseconds a chunk waited in the queue
+     */
+    public long getAverageQueuedNanos() {
+        long n = meshedChunks.get();
+        return n == 0 ? 0 : totalQueuedNanos.get() / n;
+    }
+
+    /**
+     * Stop all workers after they finished meshing their current chunk and discard all queued chunks.
+     */
+    public void shutdown() {
+        synchronized (tasks) {
+            shutdown = true;
+            queue.clear();
+            tasks.clear();
+            tasks.notifyAll();
+        }
+    }
+
+    /**
+     * Wait for all workers to terminate after {@link #shutdown()}.
+     */
+    public void awaitTermination() throws InterruptedException {
+        for (Thread t : workers)
+            t.join();
+    }
+
+    private Task take() {
+        synchronized (tasks) {
+            while (queue.isEmpty() && !shutdown) {
+                try {
+                    tasks.wait();
+                } catch (InterruptedException e) {
+                    return null;
+                }
+            }
+            if (shutdown)
+                return null;
+            Task t = queue.remove();
+            t.state = RUNNING;
+            t.queuedNanos = System.nanoTime() - t.dirtyTime;
+            return t;
+        }
+    }
+
+    private void done(Task t) {
+        synchronized (tasks) {
+            if (shutdown)
+                return;
+            if (t.state == RUNNING_DIRTY) {
+                t.state = QUEUED;
+                t.distance2 = distance2(t);
+                queue.add(t);
+                /* The queue is allowed to exceed its capacity here, since the chunk was accepted before */
+            } else {
+                tasks.remove(t.key);
+            }
+        }
+    }
+
+    private void work(GreedyMeshing gm) {
+        byte[] vs = new byte[(w + 2) * (h + 2) * (d + 2)];
+        Task t;
+        while ((t = take()) != null) {
+            long start = System.nanoTime();
+            try {
+                Arrays.fill(vs, (byte) 0);
+                source.copy(t.x, t.y, t.z, vs);
+                List<Face> faces = new ArrayList<>();
+                gm.mesh(vs, faces);
+                long meshNanos = System.nanoTime() - start;
+                results.add(new Result(t.x, t.y, t.z, faces, null, t.queuedNanos, meshNanos));
+                meshedChunks.incrementAndGet();
+                totalMeshNanos.addAndGet(meshNanos);
+                totalQueuedNanos.addAndGet(t.queuedNanos);
+                long max;
+                while ((max = maxMeshNanos.get()) < meshNanos && !maxMeshNanos.compareAndSet(max, meshNanos))
+                    ;
+            } catch (Throwable e) {
+                failedChunks.incrementAndGet();
+                results.add(new Result(t.x, t.y, t.z, null, e, t.queuedNanos, System.nanoTime() - start));
+            } finally {
+                /* Always release the chunk, so that it can be marked dirty and meshed again */
+                done(t);
+            }
+        }
+    }
+}
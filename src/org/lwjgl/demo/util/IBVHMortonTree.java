@@ -4,11 +4,21 @@
  */
 package org.lwjgl.demo.util;
 
+import static org.lwjgl.demo.util.Parallel.*;
+
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
 
 /**
  * Bounding Volume Hierarchy for integer lattices using morton code
  * partitioning.
+ * <p>
+ * The tree is built as a linear BVH in parallel: The morton codes of the voxel centers are sorted with a parallel
+ * radix sort, the internal nodes of the binary radix tree over the sorted codes are computed independently of each
+ * other (see "Maximizing Parallelism in the Construction of BVHs, Octrees, and k-d Trees" by Tero Karras) and the
+ * radix tree is then collapsed into leaves of at most <code>maxVoxelsPerNode</code> voxels, fitting the bounds of
+ * the nodes bottom-up. Finally, the ropes of all nodes are generated top-down.
  * 
  * @author Kai Burjack
  */
@@ -26,6 +36,10 @@ public class IBVHMortonTree<T extends MortonBoundable<T>> {
 
     public static final int MAX_POINTS_IN_NODE = 8;
 
+    private static final int PARALLEL_CUTOFF = 4096;
+    private static final int RADIX_BITS = 8;
+    private static final int RADIX = 1 << RADIX_BITS;
+
     public IBVHMortonTree<T> parent;
     public IBVHMortonTree<T> left;
     public IBVHMortonTree<T> right;
@@ -74,27 +88,6 @@ public class IBVHMortonTree<T extends MortonBoundable<T>> {
         return (expandBits(y) << 2L) + (expandBits(z) << 1L) + expandBits(x);
     }
 
-    private static <T extends MortonBoundable<T>> int findSplit(List<T> sortedMortonCodes, int first, int last) {
-        long firstCode = sortedMortonCodes.get(first).morton();
-        long lastCode = sortedMortonCodes.get(last).morton();
-        if (firstCode == lastCode)
-            return first + last >> 1;
-        int commonPrefix = Long.numberOfLeadingZeros(firstCode ^ lastCode);
-        int split = first;
-        int step = last - first;
-        do {
-            step = step + 1 >> 1;
-            int newSplit = split + step;
-            if (newSplit < last) {
-                long splitCode = sortedMortonCodes.get(newSplit).morton();
-                int splitPrefix = Long.numberOfLeadingZeros(firstCode ^ splitCode);
-                if (splitPrefix > commonPrefix)
-                    split = newSplit;
-            }
-        } while (step > 1);
-        return split;
-    }
-
     private boolean isLeafNode() {
         return left == null;
     }
@@ -104,45 +97,6 @@ public class IBVHMortonTree<T extends MortonBoundable<T>> {
         return new IBVHMortonTree[6];
     }
 
-    private void processNode(IBVHMortonTree<T>[] ropes) {
-        if (isLeafNode()) {
-            this.ropes = ropes;
-        } else {
-            int sideLeft;
-            int sideRight;
-            if (splitAxis == X) {
-                sideLeft = SIDE_X_NEG;
-                sideRight = SIDE_X_POS;
-            } else if (splitAxis == Y) {
-                sideLeft = SIDE_Y_NEG;
-                sideRight = SIDE_Y_POS;
-            } else if (splitAxis == Z) {
-                sideLeft = SIDE_Z_NEG;
-                sideRight = SIDE_Z_POS;
-            } else {
-                throw new AssertionError();
-            }
-            this.left.ropes = newArray();
-            System.arraycopy(ropes, 0, this.left.ropes, 0, 6);
-            this.left.ropes[sideRight] = this.right;
-            this.left.processNode(this.left.ropes);
-            this.right.ropes = newArray();
-            System.arraycopy(ropes, 0, this.right.ropes, 0, 6);
-            this.right.ropes[sideLeft] = this.left;
-            this.right.processNode(this.right.ropes);
-        }
-    }
-
-    private void optimizeRopes() {
-        for (int i = 0; i < 6; i++) {
-            ropes[i] = optimizeRope(ropes[i], i);
-        }
-        if (left != null)
-            left.optimizeRopes();
-        if (right != null)
-            right.optimizeRopes();
-    }
-
     private int isParallelTo(int side) {
         if (splitAxis == X) {
             return side == SIDE_X_NEG ? -1 : side == SIDE_X_POS ? +1 : 0;
@@ -202,50 +156,362 @@ public class IBVHMortonTree<T extends MortonBoundable<T>> {
         return r;
     }
 
+    /**
+     * Build a tree for the given voxels using the {@link ForkJoinPool#commonPool() common pool}.
+     * <p>
+     * The given list is sorted by the morton codes of the voxel centers, which are also stored in each voxel via
+     * {@link MortonBoundable#morton(long)}. The {@link #first} and {@link #last} indices of the nodes refer to that
+     * order.
+     */
     public static <T extends MortonBoundable<T>> IBVHMortonTree<T> build(List<T> voxels, int maxVoxelsPerNode,
             int maxDepth) {
-        voxels.forEach(v -> v
-                .morton(morton3d((v.max(X) + v.min(X)) / 2, (v.max(Y) + v.min(Y)) / 2, (v.max(Z) + v.min(Z)) / 2)));
-        Collections.sort(voxels);
-        IBVHMortonTree<T> root = build(null, voxels, 0, voxels.size() - 1, 0, maxVoxelsPerNode, maxDepth);
-        root.processNode(root.ropes = newArray());
-        root.optimizeRopes();
+        return build(voxels, maxVoxelsPerNode, maxDepth, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Build a tree for the given voxels using the given {@link ForkJoinPool}.
+     *
+     * @see #build(List, int, int)
+     */
+    @SuppressWarnings("unchecked")
+    public static <T extends MortonBoundable<T>> IBVHMortonTree<T> build(List<T> voxels, int maxVoxelsPerNode,
+            int maxDepth, ForkJoinPool pool) {
+        int n = voxels.size();
+        Object[] items = voxels.toArray();
+        int chunks = Math.max(1, Math.min(n / 4096, pool.getParallelism() * 4));
+        long[] keys = new long[n];
+        computeMortonCodes(pool, items, keys, chunks);
+        int[] indices = sortMortonCodes(pool, keys, chunks);
+        Object[] sorted = new Object[n];
+        parallelFor(pool, chunks, c -> {
+            for (int i = chunkStart(c, n, chunks), to = chunkStart(c + 1, n, chunks); i < to; i++)
+                sorted[i] = items[indices[i]];
+        });
+        if (voxels instanceof RandomAccess) {
+            parallelFor(pool, chunks, c -> {
+                for (int i = chunkStart(c, n, chunks), to = chunkStart(c + 1, n, chunks); i < to; i++)
+                    voxels.set(i, (T) sorted[i]);
+            });
+        } else {
+            ListIterator<T> it = voxels.listIterator();
+            for (int i = 0; i < n; i++) {
+                it.next();
+                it.set((T) sorted[i]);
+            }
+        }
+        List<T> sortedVoxels = (List<T>) (List<?>) Arrays.asList(sorted);
+        IBVHMortonTree<T> root;
+        if (n <= maxVoxelsPerNode || maxDepth <= 0) {
+            root = leaf(null, sortedVoxels, keys, 0, n - 1);
+        } else {
+            int[] children = new int[(n - 1) * 2];
+            int[] ends = new int[n - 1];
+            parallelFor(pool, chunks, c -> {
+                for (int i = chunkStart(c, n - 1, chunks), to = chunkStart(c + 1, n - 1, chunks); i < to; i++)
+                    buildInternalNode(keys, i, children, ends);
+            });
+            root = new IBVHMortonTree<T>(null, 0, n - 1);
+            pool.invoke(new NodeTask<T>(root, 0, 0, children, ends, keys, sortedVoxels, maxVoxelsPerNode, maxDepth));
+        }
+        root.ropes = newArray();
+        pool.invoke(new RopesTask<T>(root));
         return root;
     }
 
-    private static <T extends MortonBoundable<T>> IBVHMortonTree<T> build(IBVHMortonTree<T> parent,
-            List<T> mortonSortedTriangles, int first, int last, int depth, int maxVoxelsPerNode, int maxDepth) {
-        if (first > last - maxVoxelsPerNode || depth >= maxDepth)
-            return new IBVHMortonTree<T>(parent, mortonSortedTriangles, first, last);
-        int split = findSplit(mortonSortedTriangles, first, last);
-        IBVHMortonTree<T> tree = new IBVHMortonTree<T>(parent, first, last);
-        tree.left = build(tree, mortonSortedTriangles, first, split, depth, maxVoxelsPerNode, maxDepth);
-        tree.right = build(tree, mortonSortedTriangles, split + 1, last, depth, maxVoxelsPerNode, maxDepth);
-        tree.minX = java.lang.Math.min(tree.left.minX, tree.right.minX);
-        tree.minY = java.lang.Math.min(tree.left.minY, tree.right.minY);
-        tree.minZ = java.lang.Math.min(tree.left.minZ, tree.right.minZ);
-        tree.maxX = java.lang.Math.max(tree.left.maxX, tree.right.maxX);
-        tree.maxY = java.lang.Math.max(tree.left.maxY, tree.right.maxY);
-        tree.maxZ = java.lang.Math.max(tree.left.maxZ, tree.right.maxZ);
-        int cxl = (tree.left.maxX + tree.left.minX);
-        int cyl = (tree.left.maxY + tree.left.minY);
-        int czl = (tree.left.maxZ + tree.left.minZ);
-        int cxr = (tree.right.maxX + tree.right.minX);
-        int cyr = (tree.right.maxY + tree.right.minY);
-        int czr = (tree.right.maxZ + tree.right.minZ);
-        int dx = (cxl - cxr) * (cxl - cxr);
-        int dy = (cyl - cyr) * (cyl - cyr);
-        int dz = (czl - czr) * (czl - czr);
+    /*
+     * Compute the morton codes of the voxel centers relative to the minimum center.
+     */
+    @SuppressWarnings("unchecked")
+    private static <T extends MortonBoundable<T>> void computeMortonCodes(ForkJoinPool pool, Object[] items,
+            long[] keys, int chunks) {
+        int n = items.length;
+        /* Lattice coordinates may be negative but morton codes need non-negative coordinates */
+        int[] mins = new int[chunks * 3];
+        int[] maxs = new int[chunks * 3];
+        int[] centers = new int[n * 3];
+        parallelFor(pool, chunks, c -> {
+            int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE, minZ = Integer.MAX_VALUE;
+            int maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE, maxZ = Integer.MIN_VALUE;
+            for (int i = chunkStart(c, n, chunks), to = chunkStart(c + 1, n, chunks); i < to; i++) {
+                T v = (T) items[i];
+                int x = v.max(X) + v.min(X) >> 1, y = v.max(Y) + v.min(Y) >> 1, z = v.max(Z) + v.min(Z) >> 1;
+                centers[i * 3 + X] = x;
+                centers[i * 3 + Y] = y;
+                centers[i * 3 + Z] = z;
+                minX = minX < x ? minX : x;
+                minY = minY < y ? minY : y;
+                minZ = minZ < z ? minZ : z;
+                maxX = maxX > x ? maxX : x;
+                maxY = maxY > y ? maxY : y;
+                maxZ = maxZ > z ? maxZ : z;
+            }
+            mins[c * 3 + X] = minX;
+            mins[c * 3 + Y] = minY;
+            mins[c * 3 + Z] = minZ;
+            maxs[c * 3 + X] = maxX;
+            maxs[c * 3 + Y] = maxY;
+            maxs[c * 3 + Z] = maxZ;
+        });
+        int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE, minZ = Integer.MAX_VALUE, extent = 0;
+        for (int c = 0; c < chunks; c++) {
+            minX = Math.min(minX, mins[c * 3 + X]);
+            minY = Math.min(minY, mins[c * 3 + Y]);
+            minZ = Math.min(minZ, mins[c * 3 + Z]);
+        }
+        for (int c = 0; c < chunks; c++) {
+            extent = Math.max(extent, maxs[c * 3 + X] - minX);
+            extent = Math.max(extent, maxs[c * 3 + Y] - minY);
+            extent = Math.max(extent, maxs[c * 3 + Z] - minZ);
+        }
+        if (extent > 0x1fffff)
+            throw new IllegalArgumentException("voxels span more than 2^21 lattice cells");
+        int ox = minX, oy = minY, oz = minZ;
+        parallelFor(pool, chunks, c -> {
+            for (int i = chunkStart(c, n, chunks), to = chunkStart(c + 1, n, chunks); i < to; i++)
+                keys[i] = morton3d(centers[i * 3 + X] - ox, centers[i * 3 + Y] - oy, centers[i * 3 + Z] - oz);
+        });
+    }
+
+    /*
+     * Stable LSD radix sort of the given morton codes. Sorts the codes in place and returns the original index of each
+     * sorted code.
+     */
+    private static int[] sortMortonCodes(ForkJoinPool pool, long[] keys, int chunks) {
+        int n = keys.length;
+        int[] indices = new int[n];
+        long[] bits = new long[chunks];
+        parallelFor(pool, chunks, c -> {
+            long or = 0L;
+            for (int i = chunkStart(c, n, chunks), to = chunkStart(c + 1, n, chunks); i < to; i++) {
+                indices[i] = i;
+                or |= keys[i];
+            }
+            bits[c] = or;
+        });
+        long or = 0L;
+        for (long b : bits)
+            or |= b;
+        int passes = (64 - Long.numberOfLeadingZeros(or) + RADIX_BITS - 1) / RADIX_BITS;
+        long[] srcKeys = keys, dstKeys = new long[n];
+        int[] srcIndices = indices, dstIndices = new int[n];
+        int[] offsets = new int[chunks * RADIX];
+        for (int pass = 0; pass < passes; pass++) {
+            int shift = pass * RADIX_BITS;
+            long[] sk = srcKeys, dk = dstKeys;
+            int[] si = srcIndices, di = dstIndices;
+            Arrays.fill(offsets, 0);
+            parallelFor(pool, chunks, c -> {
+                int o = c * RADIX;
+                for (int i = chunkStart(c, n, chunks), to = chunkStart(c + 1, n, chunks); i < to; i++)
+                    offsets[o + (int) (sk[i] >>> shift & RADIX - 1)]++;
+            });
+            /* Skip digits which are the same for all codes */
+            boolean constant = false;
+            for (int d = 0, offset = 0; d < RADIX; d++) {
+                int count = 0;
+                for (int c = 0; c < chunks; c++) {
+                    int h = offsets[c * RADIX + d];
+                    offsets[c * RADIX + d] = offset;
+                    offset += h;
+                    count += h;
+                }
+                constant |= count == n;
+            }
+            if (constant)
+                continue;
+            parallelFor(pool, chunks, c -> {
+                int o = c * RADIX;
+                for (int i = chunkStart(c, n, chunks), to = chunkStart(c + 1, n, chunks); i < to; i++) {
+                    long k = sk[i];
+                    int dst = offsets[o + (int) (k >>> shift & RADIX - 1)]++;
+                    dk[dst] = k;
+                    di[dst] = si[i];
+                }
+            });
+            srcKeys = dk;
+            dstKeys = sk;
+            srcIndices = di;
+            dstIndices = si;
+        }
+        if (srcKeys != keys)
+            System.arraycopy(srcKeys, 0, keys, 0, n);
+        return srcIndices;
+    }
+
+    /*
+     * Length of the longest common prefix of the codes at i and j, with the indices as tie-breaker for duplicate codes,
+     * or -1 if j is out of range.
+     */
+    private static int delta(long[] keys, int i, int j) {
+        if (j < 0 || j >= keys.length)
+            return -1;
+        long x = keys[i] ^ keys[j];
+        return x == 0L ? 64 + Integer.numberOfLeadingZeros(i ^ j) : Long.numberOfLeadingZeros(x);
+    }
+
+    /*
+     * Compute the children of internal node i of the binary radix tree. Children are stored at children[i * 2] and
+     * children[i * 2 + 1], with leaves (single codes) encoded as ~index. The other end of the range of node i is
+     * stored in ends[i].
+     */
+    private static void buildInternalNode(long[] keys, int i, int[] children, int[] ends) {
+        int d = delta(keys, i, i + 1) - delta(keys, i, i - 1) >= 0 ? 1 : -1;
+        int deltaMin = delta(keys, i, i - d);
+        int lmax = 2;
+        while (delta(keys, i, i + lmax * d) > deltaMin)
+            lmax <<= 1;
+        int l = 0;
+        for (int t = lmax >> 1; t > 0; t >>= 1)
+            if (delta(keys, i, i + (l + t) * d) > deltaMin)
+                l += t;
+        int j = i + l * d;
+        int deltaNode = delta(keys, i, j);
+        int s = 0;
+        for (int div = 2;; div <<= 1) {
+            int t = (l + div - 1) / div;
+            if (delta(keys, i, i + (s + t) * d) > deltaNode)
+                s += t;
+            if (t == 1)
+                break;
+        }
+        int split = i + s * d + Math.min(d, 0);
+        children[i * 2] = Math.min(i, j) == split ? ~split : split;
+        children[i * 2 + 1] = Math.max(i, j) == split + 1 ? ~(split + 1) : split + 1;
+        ends[i] = j;
+    }
+
+    /*
+     * Creates the children of a node from the binary radix tree, collapsing small or deep subtrees into leaves, and
+     * fits the bounds of the node bottom-up.
+     */
+    private static final class NodeTask<T extends MortonBoundable<T>> extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final IBVHMortonTree<T> node;
+        private final int radixNode, depth;
+        private final int[] children, ends;
+        private final long[] keys;
+        private final List<T> voxels;
+        private final int maxVoxelsPerNode, maxDepth;
+
+        NodeTask(IBVHMortonTree<T> node, int radixNode, int depth, int[] children, int[] ends, long[] keys,
+                List<T> voxels, int maxVoxelsPerNode, int maxDepth) {
+            this.node = node;
+            this.radixNode = radixNode;
+            this.depth = depth;
+            this.children = children;
+            this.ends = ends;
+            this.keys = keys;
+            this.voxels = voxels;
+            this.maxVoxelsPerNode = maxVoxelsPerNode;
+            this.maxDepth = maxDepth;
+        }
+
+        protected void compute() {
+            int l = children[radixNode * 2], r = children[radixNode * 2 + 1];
+            boolean splitLeft = isSplit(l), splitRight = isSplit(r);
+            node.left = child(l, splitLeft);
+            node.right = child(r, splitRight);
+            NodeTask<T> leftTask = splitLeft ? task(node.left, l) : null;
+            NodeTask<T> rightTask = splitRight ? task(node.right, r) : null;
+            if (node.last - node.first + 1 > PARALLEL_CUTOFF && leftTask != null && rightTask != null) {
+                invokeAll(leftTask, rightTask);
+            } else {
+                if (leftTask != null)
+                    leftTask.compute();
+                if (rightTask != null)
+                    rightTask.compute();
+            }
+            node.fitChildren();
+        }
+
+        private boolean isSplit(int radixChild) {
+            return radixChild >= 0 && Math.abs(ends[radixChild] - radixChild) >= maxVoxelsPerNode
+                    && depth + 1 < maxDepth;
+        }
+
+        private IBVHMortonTree<T> child(int radixChild, boolean split) {
+            if (radixChild < 0)
+                return leaf(node, voxels, keys, ~radixChild, ~radixChild);
+            int first = Math.min(radixChild, ends[radixChild]), last = Math.max(radixChild, ends[radixChild]);
+            if (split)
+                return new IBVHMortonTree<T>(node, first, last);
+            return leaf(node, voxels, keys, first, last);
+        }
+
+        private NodeTask<T> task(IBVHMortonTree<T> child, int radixChild) {
+            return new NodeTask<T>(child, radixChild, depth + 1, children, ends, keys, voxels, maxVoxelsPerNode,
+                    maxDepth);
+        }
+    }
+
+    private static <T extends MortonBoundable<T>> IBVHMortonTree<T> leaf(IBVHMortonTree<T> parent, List<T> voxels,
+            long[] keys, int first, int last) {
+        for (int i = first; i <= last; i++)
+            voxels.get(i).morton(keys[i]);
+        return new IBVHMortonTree<T>(parent, voxels, first, last);
+    }
+
+    private void fitChildren() {
+        minX = Math.min(left.minX, right.minX);
+        minY = Math.min(left.minY, right.minY);
+        minZ = Math.min(left.minZ, right.minZ);
+        maxX = Math.max(left.maxX, right.maxX);
+        maxY = Math.max(left.maxY, right.maxY);
+        maxZ = Math.max(left.maxZ, right.maxZ);
+        /* Split between the centers of the children along the axis on which they are farthest apart */
+        int cxl = left.maxX + left.minX, cyl = left.maxY + left.minY, czl = left.maxZ + left.minZ;
+        int cxr = right.maxX + right.minX, cyr = right.maxY + right.minY, czr = right.maxZ + right.minZ;
+        long dx = (long) (cxl - cxr) * (cxl - cxr);
+        long dy = (long) (cyl - cyr) * (cyl - cyr);
+        long dz = (long) (czl - czr) * (czl - czr);
         if (dx > dy && dx > dz) {
-            tree.splitAxis = X;
-            tree.splitPos = (short) ((cxl + cxr) * 0.5f);
+            splitAxis = X;
+            splitPos = (short) ((cxl + cxr) / 4);
         } else if (dy > dz) {
-            tree.splitAxis = Y;
-            tree.splitPos = (short) ((cyl + cyr) * 0.5f);
+            splitAxis = Y;
+            splitPos = (short) ((cyl + cyr) / 4);
         } else {
-            tree.splitAxis = Z;
-            tree.splitPos = (short) ((czl + czr) * 0.5f);
+            splitAxis = Z;
+            splitPos = (short) ((czl + czr) / 4);
+        }
+    }
+
+    /*
+     * Optimizes the ropes of a node and derives the ropes of its children from them.
+     * <p>
+     * Since the bounds of a child lie within the bounds of its parent, optimizing the ropes of the child starting with
+     * the already optimized ropes of the parent yields the same ropes as starting with the unoptimized ones.
+     */
+    private static final class RopesTask<T extends MortonBoundable<T>> extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final IBVHMortonTree<T> node;
+
+        RopesTask(IBVHMortonTree<T> node) {
+            this.node = node;
+        }
+
+        protected void compute() {
+            IBVHMortonTree<T> node = this.node;
+            while (true) {
+                IBVHMortonTree<T>[] ropes = node.ropes;
+                for (int i = 0; i < 6; i++)
+                    ropes[i] = node.optimizeRope(ropes[i], i);
+                if (node.isLeafNode())
+                    return;
+                int sideLeft = node.splitAxis * 2, sideRight = sideLeft + 1;
+                node.left.ropes = newArray();
+                System.arraycopy(ropes, 0, node.left.ropes, 0, 6);
+                node.left.ropes[sideRight] = node.right;
+                node.right.ropes = newArray();
+                System.arraycopy(ropes, 0, node.right.ropes, 0, 6);
+                node.right.ropes[sideLeft] = node.left;
+                if (node.last - node.first + 1 > PARALLEL_CUTOFF) {
+                    invokeAll(new RopesTask<T>(node.left), new RopesTask<T>(node.right));
+                    return;
+                }
+                new RopesTask<T>(node.left).compute();
+                node = node.right;
+            }
         }
-        return tree;
     }
-}
\ No newline at end of file
+}
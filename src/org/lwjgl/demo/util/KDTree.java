@@ -4,10 +4,18 @@
  */
 package org.lwjgl.demo.util;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import org.joml.Vector3f;
 
@@ -51,8 +59,26 @@ public class KDTree {
     // threshold
     public int mSahThreshold = 6400;
 
+    // binned SAH parameters:
+    // number of bins
+    public int mBinCount = 32;
+
+    // parallel build parameters:
+    // build subtrees as parallel fork/join tasks
+    public boolean mParallelBuild = false;
+    // min primitives in node to build its subtrees as separate tasks
+    public int mParallelCutoff = 4096;
+    // max depth up to which ropes are built/optimized as separate tasks
+    public int mParallelRopesDepth = 8;
+    // pool executing the tasks (null = common pool)
+    public ForkJoinPool mPool;
+
     // for statistics
     private int mTriCount = 0;
+    private long mBoundsTime;
+    private long mSplitTime;
+    private long mRopesTime;
+    private long mOptimizeTime;
 
     public enum Axis {
         X_AXIS(0), Y_AXIS(1), Z_AXIS(2), NO_AXIS(-1);
@@ -64,9 +90,36 @@ public class KDTree {
     }
 
     public enum Split {
-        MEAN, MEDIAN, SAH
+        MEAN, MEDIAN, SAH, BINNED_SAH
+    }
+
+    /**
+     * Per-thread scratch arrays for {@link Split#BINNED_SAH}, so that no allocations happen per primitive or node.
+     */
+    private static class BinScratch {
+        float[] lo = new float[0];
+        float[] hi = new float[0];
+        int[] starts = new int[0];
+        int[] ends = new int[0];
+        float[] minStart = new float[0];
+        float[] maxEnd = new float[0];
+
+        void ensure(int nPrims, int nBins) {
+            if (lo.length < nPrims) {
+                lo = new float[nPrims + (nPrims >>> 1)];
+                hi = new float[lo.length];
+            }
+            if (starts.length < nBins) {
+                starts = new int[nBins];
+                ends = new int[nBins];
+                minStart = new float[nBins];
+                maxEnd = new float[nBins];
+            }
+        }
     }
 
+    private final ThreadLocal<BinScratch> mBinScratch = ThreadLocal.withInitial(BinScratch::new);
+
     private enum BoundaryType {
         LOWER_BOUND, UPPER_BOUND
     }
@@ -254,42 +307,50 @@ public class KDTree {
             if (isLeafNode()) {
                 this.ropes = ropes;
             } else {
-                int sideLeft;
-                int sideRight;
-                if (splitAxis == Axis.X_AXIS) {
-                    sideLeft = SIDE_X_NEG;
-                    sideRight = SIDE_X_POS;
-                } else if (splitAxis == Axis.Y_AXIS) {
-                    sideLeft = SIDE_Y_NEG;
-                    sideRight = SIDE_Y_POS;
-                } else if (splitAxis == Axis.Z_AXIS) {
-                    sideLeft = SIDE_Z_NEG;
-                    sideRight = SIDE_Z_POS;
-                } else {
-                    throw new AssertionError();
-                }
-                this.left.ropes = new Node[6];
-                System.arraycopy(ropes, 0, this.left.ropes, 0, 6);
-                this.left.ropes[sideRight] = this.right;
+                linkChildren(ropes);
                 this.left.processNode(this.left.ropes);
-                this.right.ropes = new Node[6];
-                System.arraycopy(ropes, 0, this.right.ropes, 0, 6);
-                this.right.ropes[sideLeft] = this.left;
                 this.right.processNode(this.right.ropes);
             }
         }
 
-        protected void optimizeRopes() {
-            /* Optimize ropes */
-            for (int i = 0; i < 6; i++) {
-                ropes[i] = optimizeRope(ropes[i], i);
+        void linkChildren(Node[] ropes) {
+            int sideLeft;
+            int sideRight;
+            if (splitAxis == Axis.X_AXIS) {
+                sideLeft = SIDE_X_NEG;
+                sideRight = SIDE_X_POS;
+            } else if (splitAxis == Axis.Y_AXIS) {
+                sideLeft = SIDE_Y_NEG;
+                sideRight = SIDE_Y_POS;
+            } else if (splitAxis == Axis.Z_AXIS) {
+                sideLeft = SIDE_Z_NEG;
+                sideRight = SIDE_Z_POS;
+            } else {
+                throw new AssertionError();
             }
+            this.left.ropes = new Node[6];
+            System.arraycopy(ropes, 0, this.left.ropes, 0, 6);
+            this.left.ropes[sideRight] = this.right;
+            this.right.ropes = new Node[6];
+            System.arraycopy(ropes, 0, this.right.ropes, 0, 6);
+            this.right.ropes[sideLeft] = this.left;
+        }
+
+        protected void optimizeRopes() {
+            optimizeOwnRopes();
             if (left != null)
                 left.optimizeRopes();
             if (right != null)
                 right.optimizeRopes();
         }
 
+        void optimizeOwnRopes() {
+            /* Optimize ropes */
+            for (int i = 0; i < 6; i++) {
+                ropes[i] = optimizeRope(ropes[i], i);
+            }
+        }
+
         protected Node optimizeRope(Node rope, int side) {
             if (rope == null) {
                 return rope;
@@ -327,8 +388,230 @@ public class KDTree {
         }
     }
 
+    /**
+     * Compact structure-of-arrays representation of a built {@link KDTree}.
+     * <p>
+     * Nodes are stored in breadth-first order, so that the right child of an inner node always directly follows its
+     * left child and a node is always stored before its children. A node takes 37 bytes (axis, plane, child/triangle
+     * range and the six ropes). The node bounds are not stored but derived from the root bounds and the split planes
+     * while writing.
+     * <p>
+     * The triangles referenced by the leaves are stored in leaf order, already in the std430 layout of the GLSL struct
+     * 'triangle' (three vec3 padded to vec4).
+     */
+    public static class FlatTree {
+        /**
+         * Size of the std430 GLSL struct 'node' in the compute shader 'ssboTriangleStacklessKdTree.glsl'.
+         */
+        public static final int NODE_SIZE = 80;
+        /**
+         * Size of the std430 GLSL struct 'triangle' in the compute shader 'ssboTriangleStacklessKdTree.glsl'.
+         */
+        public static final int TRIANGLE_SIZE = 48;
+        /**
+         * Kind of {@link TreeCache} files written by {@link #write(File, long, ByteBuffer[])}.
+         */
+        public static final int CACHE_KIND = 'K' | 'D' << 8 | 2 << 16;
+
+        public int nodeCount;
+        public int triangleCount;
+        // root bounds as minX, minY, minZ, maxX, maxY, maxZ
+        public final float[] bounds = new float[6];
+        // split axis, or -1 for leaves
+        public byte[] axis;
+        public float[] plane;
+        // index of the left child (right child is first + 1), or the first triangle for leaves
+        public int[] first;
+        // number of triangles of leaves
+        public int[] count;
+        // six ropes per node, -1 = no neighbor
+        public int[] ropes;
+        // triangle vertices, 12 floats per triangle
+        public float[] triangles;
+
+        public boolean isLeafNode(int node) {
+            return axis[node] < 0;
+        }
+
+        /**
+         * Write all nodes to the given {@link ByteBuffer} at its current position in the std430 layout of the GLSL
+         * struct 'node' and advance its position by {@link #nodeCount} * {@link #NODE_SIZE}.
+         */
+        public void writeNodes(ByteBuffer bb) {
+            int base = bb.position();
+            if (bb.remaining() < nodeCount * NODE_SIZE) {
+                throw new IllegalArgumentException("buffer too small");
+            }
+            for (int i = 0; i < 3; i++) {
+                bb.putFloat(base + 4 * i, bounds[i]);
+                bb.putFloat(base + 16 + 4 * i, bounds[3 + i]);
+            }
+            for (int n = 0; n < nodeCount; n++) {
+                int o = base + n * NODE_SIZE;
+                int ax = axis[n];
+                bb.putInt(o + 28, ax);
+                bb.putFloat(o + 32, plane[n]);
+                for (int i = 0; i < 6; i++) {
+                    bb.putInt(o + 36 + 4 * i, ropes[6 * n + i]);
+                }
+                if (ax < 0) {
+                    bb.putInt(o + 60, -1);
+                    bb.putInt(o + 64, -1);
+                    bb.putInt(o + 68, first[n]);
+                    bb.putInt(o + 72, count[n]);
+                } else {
+                    int l = base + first[n] * NODE_SIZE, r = l + NODE_SIZE;
+                    bb.putInt(o + 60, first[n]);
+                    bb.putInt(o + 64, first[n] + 1);
+                    bb.putInt(o + 68, 0);
+                    bb.putInt(o + 72, 0);
+                    // children inherit our bounds, clipped at the split plane
+                    for (int i = 0; i < 32; i += 4) {
+                        int v = bb.getInt(o + i);
+                        bb.putInt(l + i, v);
+                        bb.putInt(r + i, v);
+                    }
+                    bb.putFloat(l + 16 + 4 * ax, plane[n]);
+                    bb.putFloat(r + 4 * ax, plane[n]);
+                }
+                bb.putInt(o + 76, 0);
+            }
+            bb.position(base + nodeCount * NODE_SIZE);
+        }
+
+        /**
+         * Write all triangles to the given {@link ByteBuffer} at its current position in the std430 layout of the GLSL
+         * struct 'triangle' and advance its position by {@link #triangleCount} * {@link #TRIANGLE_SIZE}.
+         */
+        public void writeTriangles(ByteBuffer bb) {
+            int pos = bb.position();
+            bb.asFloatBuffer().put(triangles, 0, triangleCount * 12);
+            bb.position(pos + triangleCount * TRIANGLE_SIZE);
+        }
+
+        /**
+         * Return the sections of a {@link TreeCache} file of this tree: the root bounds as six floats, the nodes as
+         * written by {@link #writeNodes(ByteBuffer)} and the triangles as written by
+         * {@link #writeTriangles(ByteBuffer)}, in direct buffers which can be uploaded as they are.
+         */
+        public ByteBuffer[] buffers() {
+            ByteBuffer boundsBuffer = allocate(24), nodesBuffer = allocate(nodeCount * NODE_SIZE),
+                    trianglesBuffer = allocate(triangleCount * TRIANGLE_SIZE);
+            boundsBuffer.asFloatBuffer().put(bounds);
+            writeNodes(nodesBuffer);
+            nodesBuffer.flip();
+            writeTriangles(trianglesBuffer);
+            trianglesBuffer.flip();
+            return new ByteBuffer[] { boundsBuffer, nodesBuffer, trianglesBuffer };
+        }
+
+        private static ByteBuffer allocate(int size) {
+            return ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder());
+        }
+
+        /**
+         * Write the {@link #buffers()} into the given {@link TreeCache} file.
+         *
+         * @param sourceHash the hash of the triangles and of the {@link KDTree#hashParameters(long) build parameters}
+         *                   the tree was built from
+         */
+        public static void write(File file, long sourceHash, ByteBuffer[] buffers) throws IOException {
+            TreeCache.write(file, CACHE_KIND, sourceHash, buffers);
+        }
+
+        /**
+         * Memory-map the sections written by {@link #write(File, long, ByteBuffer[])}, or return <code>null</code> if
+         * there is no such file for the given source hash and the tree needs to be built.
+         * <p>
+         * The nodes and triangles sections are in the std430 layout and can be given to <code>glBufferData</code>
+         * without deserializing them.
+         */
+        public static ByteBuffer[] read(File file, long sourceHash) throws IOException {
+            ByteBuffer[] sections = TreeCache.read(file, CACHE_KIND, sourceHash);
+            if (sections == null || sections.length != 3 || sections[0].remaining() != 24
+                    || sections[1].remaining() % NODE_SIZE != 0 || sections[2].remaining() % TRIANGLE_SIZE != 0)
+                return null;
+            return sections;
+        }
+    }
+
+    /**
+     * Create the compact {@link FlatTree} representation of the built tree.
+     */
+    public FlatTree flatten() {
+        if (mRootNode == null) {
+            throw new IllegalStateException("!!! KDTree.flatten: tree not built");
+        }
+        // assign breadth-first indices, so that both children get consecutive indices
+        List<Node> nodes = new ArrayList<Node>();
+        Map<Node, Integer> indices = new IdentityHashMap<Node, Integer>();
+        nodes.add(mRootNode);
+        int numTris = 0;
+        for (int i = 0; i < nodes.size(); i++) {
+            Node n = nodes.get(i);
+            indices.put(n, Integer.valueOf(i));
+            if (n.isLeafNode()) {
+                numTris += n.triangles.size();
+            } else {
+                nodes.add(n.left);
+                nodes.add(n.right);
+            }
+        }
+        FlatTree t = new FlatTree();
+        int count = nodes.size();
+        t.nodeCount = count;
+        t.triangleCount = numTris;
+        t.bounds[0] = mBoundingBox.min.x;
+        t.bounds[1] = mBoundingBox.min.y;
+        t.bounds[2] = mBoundingBox.min.z;
+        t.bounds[3] = mBoundingBox.max.x;
+        t.bounds[4] = mBoundingBox.max.y;
+        t.bounds[5] = mBoundingBox.max.z;
+        t.axis = new byte[count];
+        t.plane = new float[count];
+        t.first = new int[count];
+        t.count = new int[count];
+        t.ropes = new int[count * 6];
+        t.triangles = new float[numTris * 12];
+        int triangleIndex = 0;
+        for (int i = 0; i < count; i++) {
+            Node n = nodes.get(i);
+            for (int r = 0; r < 6; r++) {
+                Node rope = n.ropes[r];
+                t.ropes[6 * i + r] = rope != null ? indices.get(rope).intValue() : -1;
+            }
+            if (n.isLeafNode()) {
+                t.axis[i] = -1;
+                t.first[i] = triangleIndex;
+                t.count[i] = n.triangles.size();
+                for (int j = 0; j < n.triangles.size(); j++) {
+                    Triangle tri = n.triangles.get(j);
+                    int o = 12 * triangleIndex++;
+                    putVertex(t.triangles, o, tri.v0);
+                    putVertex(t.triangles, o + 4, tri.v1);
+                    putVertex(t.triangles, o + 8, tri.v2);
+                }
+            } else {
+                t.axis[i] = (byte) n.splitAxis.dim;
+                t.plane[i] = n.splitPlane;
+                t.first[i] = indices.get(n.left).intValue();
+            }
+        }
+        return t;
+    }
+
+    private static void putVertex(float[] dst, int off, Vector3f v) {
+        dst[off] = v.x;
+        dst[off + 1] = v.y;
+        dst[off + 2] = v.z;
+        dst[off + 3] = 1.0f;
+    }
+
     /**
      * Build the kd-tree from the given Triangle list.
+     * <p>
+     * If {@link #mParallelBuild} is set, all subtrees of nodes with at least {@link #mParallelCutoff} triangles are
+     * built as {@link ForkJoinPool} tasks. The resulting tree and ropes are identical to the serial build.
      **/
     public void buildTree(List<Triangle> list, Box bbox) {
         long time = System.currentTimeMillis();
@@ -349,16 +632,132 @@ public class KDTree {
         mRootNode.boundingBox = bbox;
         mTriCount = list.size();
 
+        // compute all Triangle bounds upfront, so that tasks only ever read them
+        long t0 = System.nanoTime();
+        if (mParallelBuild) {
+            list.parallelStream().forEach(Triangle::getBounds);
+        } else {
+            list.forEach(Triangle::getBounds);
+        }
+        long t1 = System.nanoTime();
         // create the tree recursively, the children start as y-axis
-        buildTree(mRootNode, Axis.X_AXIS, 0);
+        if (mParallelBuild) {
+            pool().invoke(new BuildTask(mRootNode, Axis.X_AXIS, 0));
+        } else {
+            buildTree(mRootNode, Axis.X_AXIS, 0);
+        }
+        long t2 = System.nanoTime();
         // Build ropes
-        mRootNode.processNode(mRootNode.ropes = new Node[6]);
+        mRootNode.ropes = new Node[6];
+        if (mParallelBuild) {
+            pool().invoke(new RopesTask(mRootNode, mRootNode.ropes, 0));
+        } else {
+            mRootNode.processNode(mRootNode.ropes);
+        }
+        long t3 = System.nanoTime();
         // Optimize ropes
-        mRootNode.optimizeRopes();
+        if (mParallelBuild) {
+            pool().invoke(new OptimizeRopesTask(mRootNode, 0));
+        } else {
+            mRootNode.optimizeRopes();
+        }
+        long t4 = System.nanoTime();
+        mBoundsTime = t1 - t0;
+        mSplitTime = t2 - t1;
+        mRopesTime = t3 - t2;
+        mOptimizeTime = t4 - t3;
 
         statistics(time);
     }
 
+    private ForkJoinPool pool() {
+        return mPool != null ? mPool : ForkJoinPool.commonPool();
+    }
+
+    /**
+     * Builds the subtree of a node, forking the subtrees of both children as long as the node has at least
+     * {@link #mParallelCutoff} triangles.
+     */
+    private class BuildTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Node node;
+        private final Axis axis;
+        private final int depth;
+
+        BuildTask(Node node, Axis axis, int depth) {
+            this.node = node;
+            this.axis = axis;
+            this.depth = depth;
+        }
+
+        @Override
+        protected void compute() {
+            if (node.triangles.size() < mParallelCutoff) {
+                buildTree(node, axis, depth);
+                return;
+            }
+            if (!subdivide(node, axis, depth)) {
+                return;
+            }
+            Axis nextAxis = nextAxis(axis);
+            invokeAll(new BuildTask(node.left, nextAxis, depth + 1), new BuildTask(node.right, nextAxis, depth + 1));
+        }
+    }
+
+    /**
+     * Parallel version of {@link Node#processNode(Node[])} for the upper {@link #mParallelRopesDepth} levels.
+     */
+    private class RopesTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Node node;
+        private final Node[] ropes;
+        private final int depth;
+
+        RopesTask(Node node, Node[] ropes, int depth) {
+            this.node = node;
+            this.ropes = ropes;
+            this.depth = depth;
+        }
+
+        @Override
+        protected void compute() {
+            if (node.isLeafNode() || depth >= mParallelRopesDepth) {
+                node.processNode(ropes);
+                return;
+            }
+            node.linkChildren(ropes);
+            invokeAll(new RopesTask(node.left, node.left.ropes, depth + 1),
+                    new RopesTask(node.right, node.right.ropes, depth + 1));
+        }
+    }
+
+    /**
+     * Parallel version of {@link Node#optimizeRopes()} for the upper {@link #mParallelRopesDepth} levels.
+     */
+    private class OptimizeRopesTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Node node;
+        private final int depth;
+
+        OptimizeRopesTask(Node node, int depth) {
+            this.node = node;
+            this.depth = depth;
+        }
+
+        @Override
+        protected void compute() {
+            if (node.isLeafNode() || depth >= mParallelRopesDepth) {
+                node.optimizeRopes();
+                return;
+            }
+            node.optimizeOwnRopes();
+            invokeAll(new OptimizeRopesTask(node.left, depth + 1), new OptimizeRopesTask(node.right, depth + 1));
+        }
+    }
+
     /**
      * Initialize KDTree
      */
@@ -381,6 +780,13 @@ public class KDTree {
         statistics += "\n  split strategy : " + mSplitStrategy.name();
         statistics += "\n  triangles (in tree) : " + mTriCount + " (" + TriangleCount(mRootNode) + ")";
         statistics += "\n  build time (ms) : " + lTime;
+        statistics += "\n    bounds (ms) : " + mBoundsTime / 1000000L;
+        statistics += "\n    split (ms) : " + mSplitTime / 1000000L;
+        statistics += "\n    ropes (ms) : " + mRopesTime / 1000000L;
+        statistics += "\n    optimize ropes (ms) : " + mOptimizeTime / 1000000L;
+        if (mParallelBuild) {
+            statistics += "\n  parallelism : " + pool().getParallelism();
+        }
         statistics += "\n\n";
 
         System.out.print(statistics);
@@ -394,6 +800,38 @@ public class KDTree {
 
     // recursive tree building method
     private void buildTree(Node node, Axis axis, int depth) {
+        if (!subdivide(node, axis, depth)) {
+            return;
+        }
+
+        Axis nextAxis = nextAxis(axis);
+
+        // setup the subtrees
+        buildTree(node.left, nextAxis, depth + 1);
+        buildTree(node.right, nextAxis, depth + 1);
+    }
+
+    /**
+     * Continue the hash <code>h</code> with the parameters determining the built tree, such as the split strategy and
+     * the depth and leaf limits, for the source hash of {@link FlatTree#write(File, long, ByteBuffer[])}.
+     */
+    public long hashParameters(long h) {
+        h = TreeCache.hash(h, mSplitStrategy.ordinal());
+        h = TreeCache.hash(h, mMinPrim);
+        h = TreeCache.hash(h, mMaxDepth);
+        h = TreeCache.hash(h, mSahRes);
+        h = TreeCache.hash(h, Float.floatToIntBits(mSahIntCosts));
+        h = TreeCache.hash(h, Float.floatToIntBits(mSahTrvCosts));
+        h = TreeCache.hash(h, mSahThreshold);
+        return TreeCache.hash(h, mBinCount);
+    }
+
+    private static Axis nextAxis(Axis axis) {
+        return Axis.values()[(axis.ordinal() + 1) % 3];
+    }
+
+    // split the node and distribute its Triangles into both children, returns whether it was split
+    private boolean subdivide(Node node, Axis axis, int depth) {
         // just for debug
         if (node == null || node.left != null || node.right != null) {
             throw new IllegalStateException("!!! KDTree.buildTree: broken tree");
@@ -405,12 +843,19 @@ public class KDTree {
             node.splitPlane = findSplitPlane(node);
         } else {
             node.splitAxis = Axis.NO_AXIS;
-            return;
+            return false;
         }
 
         // maybe FindSplitPlane found out that it's better to not split anymore
         if (node.splitAxis.equals(Axis.NO_AXIS)) {
-            return;
+            return false;
+        }
+
+        // a split plane outside of the node would make the children overlap other nodes
+        if (node.splitPlane < Vector3f_get(node.boundingBox.min, node.splitAxis.dim)
+                || node.splitPlane > Vector3f_get(node.boundingBox.max, node.splitAxis.dim)) {
+            node.splitAxis = Axis.NO_AXIS;
+            return false;
         }
 
         // do only subdivide current node if Triangle number is still over the maximum
@@ -449,18 +894,12 @@ public class KDTree {
             // clear the node's Triangle list, since now the childrens do contain them
             node.triangles.clear();
 
-            Axis nextAxis = Axis.values()[(axis.ordinal() + 1) % 3];
-
-            // setup the subtrees
-            buildTree(node.left, nextAxis, depth + 1);
-            buildTree(node.right, nextAxis, depth + 1);
-
-            // do return
-            return;
+            return true;
         }
 
         // we can only be here, if we have reached a leaf node
         node.splitAxis = Axis.NO_AXIS;
+        return false;
     }
 
     // find optimal split
@@ -629,7 +1068,8 @@ public class KDTree {
                 alpha = (intervals.get(i).pos - Vector3f_get(bb.min, ax)) * inv_box_width;
                 float cost = mSahTrvCosts + mSahIntCosts
                         * ((done_intervals + open_intervals) * alpha + (nPrims - done_intervals) * (1.0f - alpha));
-                if (cost < mincost) {
+                // bounds of Triangles straddling the node can lie outside of it, which are no valid split planes
+                if (cost < mincost && alpha >= 0.0f && alpha <= 1.0f) {
                     minid = i;
                     mincost = cost;
                 }
@@ -648,9 +1088,457 @@ public class KDTree {
             return intervals.get(minid).pos;
         }
 
+        // use binned surface area heuristic
+        if (strategy.equals(Split.BINNED_SAH)) {
+            return findSplitPlaneBinned(node);
+        }
+
         throw new IllegalStateException("!!! KDTree.findSplitPlane: invalid value");
     }
 
+    /*
+     * Binned SAH: gather the triangle intervals along the longest axis into float arrays and count for each of the
+     * mBinCount equally sized bins how many intervals start and end in it. The candidate planes are the bin borders as
+     * well as the tightest interval start/end within each bin (to cut off empty space like the exact scan does). They
+     * are evaluated with one prefix sum from each side, counting intervals of the bin containing the plane
+     * conservatively.
+     */
+    private float findSplitPlaneBinned(Node node) {
+        Box bb = node.boundingBox;
+        int nPrims = node.triangles.size();
+        int nBins = Math.max(mBinCount, 2);
+        int ax = Vector3f_maxDimension(new Vector3f(bb.max).sub(bb.min));
+        float boxMin = Vector3f_get(bb.min, ax), boxMax = Vector3f_get(bb.max, ax);
+        if (boxMax - boxMin <= EPSILON) {
+            node.splitAxis = Axis.NO_AXIS;
+            return Float.POSITIVE_INFINITY;
+        }
+        BinScratch scratch = mBinScratch.get();
+        scratch.ensure(nPrims, nBins);
+        float[] lo = scratch.lo, hi = scratch.hi;
+        int[] starts = scratch.starts, ends = scratch.ends;
+        float[] minStart = scratch.minStart, maxEnd = scratch.maxEnd;
+
+        // gather intervals clipped to the node and the extent actually covered by them
+        float min = Float.POSITIVE_INFINITY, max = Float.NEGATIVE_INFINITY;
+        for (int i = 0; i < nPrims; i++) {
+            Box b = node.triangles.get(i).getBounds();
+            float l = Math.max(Vector3f_get(b.min, ax), boxMin);
+            float h = Math.min(Vector3f_get(b.max, ax), boxMax);
+            lo[i] = l;
+            hi[i] = h;
+            min = Math.min(min, l);
+            max = Math.max(max, h);
+        }
+        float width = max - min;
+        if (width <= EPSILON) {
+            node.splitAxis = Axis.NO_AXIS;
+            return Float.POSITIVE_INFINITY;
+        }
+
+        // bin interval starts and ends
+        for (int i = 0; i < nBins; i++) {
+            starts[i] = 0;
+            ends[i] = 0;
+            minStart[i] = Float.POSITIVE_INFINITY;
+            maxEnd[i] = Float.NEGATIVE_INFINITY;
+        }
+        float k = nBins * (1.0f - EPSILON) / width;
+        for (int i = 0; i < nPrims; i++) {
+            float l = lo[i], h = hi[i];
+            int bl = (int) ((l - min) * k);
+            int bh = (int) ((h - min) * k);
+            bl = bl < nBins ? bl : nBins - 1;
+            bh = bh < nBins ? bh : nBins - 1;
+            starts[bl]++;
+            ends[bh]++;
+            minStart[bl] = Math.min(minStart[bl], l);
+            maxEnd[bh] = Math.max(maxEnd[bh], h);
+        }
+
+        // sweep over the bins, with all intervals starting left of a plane being on the left side and all intervals
+        // ending right of it being on the right side
+        float invBoxWidth = 1.0f / (boxMax - boxMin);
+        float binWidth = width / nBins;
+        float splitPlane = Float.NaN;
+        float mincost = Float.MAX_VALUE;
+        int nLeft = 0, nRight = nPrims;
+        for (int i = 0; i < nBins; i++) {
+            // tightest start in this bin: all intervals of earlier bins start left of it
+            if (starts[i] > 0 && minStart[i] > boxMin) {
+                float cost = splitCost(minStart[i], boxMin, invBoxWidth, nLeft, nRight, nPrims);
+                if (cost < mincost) {
+                    splitPlane = minStart[i];
+                    mincost = cost;
+                }
+            }
+            nLeft += starts[i];
+            nRight -= ends[i];
+            // tightest end in this bin: no interval ending in it or earlier is right of it
+            if (ends[i] > 0 && maxEnd[i] < boxMax) {
+                float cost = splitCost(maxEnd[i], boxMin, invBoxWidth, nLeft, nRight, nPrims);
+                if (cost < mincost) {
+                    splitPlane = maxEnd[i];
+                    mincost = cost;
+                }
+            }
+            // border to the next bin
+            if (i < nBins - 1) {
+                float border = min + (i + 1) * binWidth;
+                float cost = splitCost(border, boxMin, invBoxWidth, nLeft, nRight, nPrims);
+                if (cost < mincost) {
+                    splitPlane = border;
+                    mincost = cost;
+                }
+            }
+        }
+        if (Float.isNaN(splitPlane)) {
+            node.splitAxis = Axis.NO_AXIS;
+            return Float.POSITIVE_INFINITY;
+        }
+        node.splitAxis = Axis.values()[ax];
+        return splitPlane;
+    }
+
+    private float splitCost(float plane, float boxMin, float invBoxWidth, int nLeft, int nRight, int nPrims) {
+        if (nLeft == nPrims && nRight == nPrims) {
+            // does not separate anything
+            return Float.MAX_VALUE;
+        }
+        float alpha = (plane - boxMin) * invBoxWidth;
+        return mSahTrvCosts + mSahIntCosts * (nLeft * alpha + nRight * (1.0f - alpha));
+    }
+
+    /**
+     * Per-thread state of the lanes of a ray packet during CPU traversal.
+     */
+    private static class Packet {
+        static final int MAX_SIZE = 32;
+        final float[] ox = new float[MAX_SIZE], oy = new float[MAX_SIZE], oz = new float[MAX_SIZE];
+        final float[] dx = new float[MAX_SIZE], dy = new float[MAX_SIZE], dz = new float[MAX_SIZE];
+        final float[] tEntry = new float[MAX_SIZE], tFar = new float[MAX_SIZE];
+        // axis and coordinate of the face the lane last entered a node through
+        final int[] faceDim = new int[MAX_SIZE];
+        final float[] facePos = new float[MAX_SIZE];
+        final float[] t = new float[MAX_SIZE], u = new float[MAX_SIZE], v = new float[MAX_SIZE];
+        final Triangle[] hit = new Triangle[MAX_SIZE];
+        final Node[] node = new Node[MAX_SIZE];
+
+        void set(int l, float ox, float oy, float oz, float dx, float dy, float dz, float tMax) {
+            this.ox[l] = ox;
+            this.oy[l] = oy;
+            this.oz[l] = oz;
+            this.dx[l] = dx;
+            this.dy[l] = dy;
+            this.dz[l] = dz;
+            this.t[l] = tMax;
+            this.hit[l] = null;
+        }
+    }
+
+    private final ThreadLocal<Packet> mPacket = ThreadLocal.withInitial(Packet::new);
+
+    /**
+     * Find the closest triangle hit by the given {@link Ray} using the stackless rope traversal.
+     * <p>
+     * If {@link Ray#t} is positive, it is the maximum distance along the ray, otherwise the ray is unbounded. On a hit,
+     * {@link Ray#t} is set to the hit distance, {@link Ray#u}/{@link Ray#v} to the barycentric coordinates and
+     * {@link Ray#hit} to the {@link Triangle}. On a miss, {@link Ray#hit} is set to <code>null</code>.
+     * <p>
+     * This method can be called concurrently from multiple threads.
+     * 
+     * @return whether the ray hit a triangle
+     */
+    public boolean intersect(Ray ray) {
+        Packet p = mPacket.get();
+        setLane(p, 0, ray);
+        trace(p, 1);
+        return getLane(p, 0, ray);
+    }
+
+    /**
+     * Like {@link #intersect(Ray)} for many rays, tracing <code>packetSize</code> consecutive rays together as one
+     * packet.
+     * <p>
+     * Rays of a packet share node fetches and triangle tests as long as they are in the same node, so the rays should be
+     * coherent, like rays through neighbouring pixels.
+     * 
+     * @param rays
+     *          the rays to trace
+     * @param packetSize
+     *          the number of rays to trace together, usually 1, 4 or 8 (at most 32)
+     * @return the number of rays that hit a triangle
+     */
+    public int intersect(Ray[] rays, int packetSize) {
+        checkPacketSize(packetSize);
+        Packet p = mPacket.get();
+        int hits = 0;
+        for (int i = 0; i < rays.length; i += packetSize) {
+            int n = Math.min(packetSize, rays.length - i);
+            for (int l = 0; l < n; l++) {
+                setLane(p, l, rays[i + l]);
+            }
+            trace(p, n);
+            for (int l = 0; l < n; l++) {
+                if (getLane(p, l, rays[i + l])) {
+                    hits++;
+                }
+            }
+        }
+        return hits;
+    }
+
+    /**
+     * Like {@link #intersect(Ray[], int)} for rays given as primitive arrays.
+     * 
+     * @param rays
+     *          six floats per ray: origin x, y, z and direction x, y, z
+     * @param count
+     *          the number of rays
+     * @param tuv
+     *          will receive three floats per ray: hit distance (or {@link Float#POSITIVE_INFINITY} on a miss) and the
+     *          barycentric coordinates u and v
+     * @param hits
+     *          will receive the hit {@link Triangle} per ray, or <code>null</code> on a miss (may be <code>null</code>)
+     * @param packetSize
+     *          the number of rays to trace together, usually 1, 4 or 8 (at most 32)
+     * @return the number of rays that hit a triangle
+     */
+    public int intersect(float[] rays, int count, float[] tuv, Triangle[] hits, int packetSize) {
+        checkPacketSize(packetSize);
+        Packet p = mPacket.get();
+        int numHits = 0;
+        for (int i = 0; i < count; i += packetSize) {
+            int n = Math.min(packetSize, count - i);
+            for (int l = 0; l < n; l++) {
+                int r = 6 * (i + l);
+                p.set(l, rays[r], rays[r + 1], rays[r + 2], rays[r + 3], rays[r + 4], rays[r + 5],
+                        Float.POSITIVE_INFINITY);
+            }
+            trace(p, n);
+            for (int l = 0; l < n; l++) {
+                int r = 3 * (i + l);
+                tuv[r] = p.t[l];
+                tuv[r + 1] = p.u[l];
+                tuv[r + 2] = p.v[l];
+                if (hits != null) {
+                    hits[i + l] = p.hit[l];
+                }
+                if (p.hit[l] != null) {
+                    numHits++;
+                }
+            }
+        }
+        return numHits;
+    }
+
+    private static void checkPacketSize(int packetSize) {
+        if (packetSize < 1 || packetSize > Packet.MAX_SIZE) {
+            throw new IllegalArgumentException("packetSize");
+        }
+    }
+
+    private static void setLane(Packet p, int l, Ray ray) {
+        p.set(l, ray.org.x, ray.org.y, ray.org.z, ray.dir.x, ray.dir.y, ray.dir.z,
+                ray.t > 0.0f ? ray.t : Float.POSITIVE_INFINITY);
+    }
+
+    private static boolean getLane(Packet p, int l, Ray ray) {
+        ray.hit = p.hit[l];
+        if (p.hit[l] == null) {
+            return false;
+        }
+        ray.t = p.t[l];
+        ray.u = p.u[l];
+        ray.v = p.v[l];
+        return true;
+    }
+
+    /*
+     * Trace the first n lanes of the packet. All lanes in the same node form a group which descends to a leaf together
+     * (lanes going to the other child stay there for a later group), tests the leaf's triangles together and then
+     * follows the ropes individually.
+     */
+    private void trace(Packet p, int n) {
+        if (mRootNode == null) {
+            throw new IllegalStateException("!!! KDTree.intersect: tree not built");
+        }
+        Box root = mRootNode.boundingBox;
+        int active = 0;
+        for (int l = 0; l < n; l++) {
+            float tNear = 0.0f, tFar = p.t[l];
+            for (int dim = 0; dim < 3 && tNear <= tFar; dim++) {
+                float o = dim == 0 ? p.ox[l] : dim == 1 ? p.oy[l] : p.oz[l];
+                float d = dim == 0 ? p.dx[l] : dim == 1 ? p.dy[l] : p.dz[l];
+                float min = Vector3f_get(root.min, dim), max = Vector3f_get(root.max, dim);
+                if (d == 0.0f) {
+                    if (o < min || o > max) {
+                        tNear = Float.POSITIVE_INFINITY;
+                    }
+                    continue;
+                }
+                float t0 = (min - o) / d, t1 = (max - o) / d;
+                tNear = Math.max(tNear, Math.min(t0, t1));
+                tFar = Math.min(tFar, Math.max(t0, t1));
+            }
+            if (tNear <= tFar) {
+                p.node[l] = mRootNode;
+                p.faceDim[l] = -1;
+                p.tEntry[l] = tNear;
+                p.tFar[l] = tFar;
+                active |= 1 << l;
+            }
+        }
+        while (active != 0) {
+            int lead = Integer.numberOfTrailingZeros(active);
+            Node node = p.node[lead];
+            int group = 0;
+            for (int m = active; m != 0; m &= m - 1) {
+                int l = Integer.numberOfTrailingZeros(m);
+                if (p.node[l] == node) {
+                    group |= 1 << l;
+                }
+            }
+            /* Descend to the leaf containing the entry point of the lead lane */
+            while (!node.isLeafNode()) {
+                int left = 0;
+                for (int m = group; m != 0; m &= m - 1) {
+                    int l = Integer.numberOfTrailingZeros(m);
+                    if (entersLeft(p, l, node.splitAxis.dim, node.splitPlane)) {
+                        left |= 1 << l;
+                    }
+                }
+                Node other;
+                int others;
+                if ((left & 1 << lead) != 0) {
+                    others = group & ~left;
+                    group = left;
+                    other = node.right;
+                    node = node.left;
+                } else {
+                    others = left;
+                    group &= ~left;
+                    other = node.left;
+                    node = node.right;
+                }
+                for (int m = others; m != 0; m &= m - 1) {
+                    p.node[Integer.numberOfTrailingZeros(m)] = other;
+                }
+            }
+            /* Test all triangles of the leaf against all lanes in the group */
+            List<Triangle> triangles = node.triangles;
+            for (int i = 0; i < triangles.size(); i++) {
+                Triangle tri = triangles.get(i);
+                for (int m = group; m != 0; m &= m - 1) {
+                    intersectTriangle(p, Integer.numberOfTrailingZeros(m), tri);
+                }
+            }
+            /* Leave the leaf through the rope of the exit face */
+            Box b = node.boundingBox;
+            for (int m = group; m != 0; m &= m - 1) {
+                int l = Integer.numberOfTrailingZeros(m);
+                float exit = Float.POSITIVE_INFINITY, face = 0.0f;
+                int side = -1;
+                if (p.dx[l] != 0.0f) {
+                    float fx = p.dx[l] > 0.0f ? b.max.x : b.min.x;
+                    exit = (fx - p.ox[l]) / p.dx[l];
+                    face = fx;
+                    side = p.dx[l] > 0.0f ? Node.SIDE_X_POS : Node.SIDE_X_NEG;
+                }
+                if (p.dy[l] != 0.0f) {
+                    float fy = p.dy[l] > 0.0f ? b.max.y : b.min.y;
+                    float ty = (fy - p.oy[l]) / p.dy[l];
+                    if (ty < exit) {
+                        exit = ty;
+                        face = fy;
+                        side = p.dy[l] > 0.0f ? Node.SIDE_Y_POS : Node.SIDE_Y_NEG;
+                    }
+                }
+                if (p.dz[l] != 0.0f) {
+                    float fz = p.dz[l] > 0.0f ? b.max.z : b.min.z;
+                    float tz = (fz - p.oz[l]) / p.dz[l];
+                    if (tz < exit) {
+                        exit = tz;
+                        face = fz;
+                        side = p.dz[l] > 0.0f ? Node.SIDE_Z_POS : Node.SIDE_Z_NEG;
+                    }
+                }
+                Node rope = side >= 0 ? node.ropes[side] : null;
+                if (p.t[l] <= exit || exit >= p.tFar[l] || rope == null) {
+                    // hit inside of this leaf or ray left the tree
+                    active &= ~(1 << l);
+                } else {
+                    p.node[l] = rope;
+                    p.faceDim[l] = side >> 1;
+                    p.facePos[l] = face;
+                    p.tEntry[l] = Math.max(exit, p.tEntry[l]);
+                }
+            }
+        }
+        for (int l = 0; l < n; l++) {
+            if (p.hit[l] == null) {
+                p.t[l] = Float.POSITIVE_INFINITY;
+            }
+        }
+    }
+
+    /*
+     * Whether the entry point of the lane lies on the left side of the split plane. On the axis of the face the lane
+     * entered through, the exact face coordinate is used instead of the computed entry point, and points on the plane
+     * are assigned to the side the ray is heading to, so that following a rope always makes progress.
+     */
+    private static boolean entersLeft(Packet p, int l, int dim, float plane) {
+        float o, d;
+        if (dim == 0) {
+            o = p.ox[l];
+            d = p.dx[l];
+        } else if (dim == 1) {
+            o = p.oy[l];
+            d = p.dy[l];
+        } else {
+            o = p.oz[l];
+            d = p.dz[l];
+        }
+        float pos = dim == p.faceDim[l] ? p.facePos[l] : o + d * p.tEntry[l];
+        if (pos != plane) {
+            return pos < plane;
+        }
+        return d <= 0.0f;
+    }
+
+    /*
+     * Two-sided Moeller-Trumbore ray/triangle intersection.
+     */
+    private static void intersectTriangle(Packet p, int l, Triangle tri) {
+        Vector3f v0 = tri.v0, v1 = tri.v1, v2 = tri.v2;
+        float e1x = v1.x - v0.x, e1y = v1.y - v0.y, e1z = v1.z - v0.z;
+        float e2x = v2.x - v0.x, e2y = v2.y - v0.y, e2z = v2.z - v0.z;
+        float dx = p.dx[l], dy = p.dy[l], dz = p.dz[l];
+        float px = dy * e2z - dz * e2y, py = dz * e2x - dx * e2z, pz = dx * e2y - dy * e2x;
+        float det = e1x * px + e1y * py + e1z * pz;
+        if (det == 0.0f) {
+            return;
+        }
+        float invDet = 1.0f / det;
+        float tx = p.ox[l] - v0.x, ty = p.oy[l] - v0.y, tz = p.oz[l] - v0.z;
+        float u = (tx * px + ty * py + tz * pz) * invDet;
+        if (u < 0.0f || u > 1.0f) {
+            return;
+        }
+        float qx = ty * e1z - tz * e1y, qy = tz * e1x - tx * e1z, qz = tx * e1y - ty * e1x;
+        float v = (dx * qx + dy * qy + dz * qz) * invDet;
+        if (v < 0.0f || u + v > 1.0f) {
+            return;
+        }
+        float t = (e2x * qx + e2y * qy + e2z * qz) * invDet;
+        if (t >= 0.0f && t < p.t[l]) {
+            p.t[l] = t;
+            p.u[l] = u;
+            p.v[l] = v;
+            p.hit[l] = tri;
+        }
+    }
+
     public int TriangleCount() {
         return mTriCount;
     }
@@ -26,6 +26,28 @@ public class KDTreei<T extends Boundable<T>> {
     private int maxVoxelCount = 4;
     private short[] intervals = new short[512];
 
+    /* State for incremental updates */
+    private int maxDepth;
+    private Node<T>[] neighbors;
+    private int size;
+    /* Cost of the tree as computed by cost(Node), kept up to date by local edits, and its value after the last build */
+    private long cost;
+    private double buildCost;
+    private float rebuildThreshold = 0.25f;
+
+    /* Scratch stack for region queries and relinking neighbors */
+    private Node<T>[] stack = newNodes(64);
+
+    /**
+     * Receives the boundables found by {@link KDTreei#intersects(float, float, float, float, float, float, Visitor)}.
+     */
+    public interface Visitor<B> {
+        /**
+         * @return <code>true</code> to continue the query, <code>false</code> to stop it
+         */
+        boolean visit(B boundable);
+    }
+
     public static class Box implements Boundable<Box> {
         public int minX, minY, minZ;
         public int maxX, maxY, maxZ;
@@ -338,22 +360,6 @@ public class KDTreei<T extends Boundable<T>> {
             return right.findNode(cameraPosition);
         }
 
-        private void intersects(float minX, float minY, float minZ, float maxX, float maxY, float maxZ,
-                List<B> boundables) {
-            Box b = boundingBox;
-            if (!b.intersects(minX, minY, minZ, maxX, maxY, maxZ))
-                return;
-            if (isLeafNode()) {
-                for (B voxel : boundables) {
-                    if (!voxel.intersects(minX, minY, minZ, maxX, maxY, maxZ))
-                        continue;
-                    boundables.add(voxel);
-                }
-            } else {
-                left.intersects(minX, minY, minZ, maxX, maxY, maxZ, boundables);
-                right.intersects(minX, minY, minZ, maxX, maxY, maxZ, boundables);
-            }
-        }
     }
 
     @SuppressWarnings("unchecked")
@@ -361,7 +367,30 @@ public class KDTreei<T extends Boundable<T>> {
         return build(boundables, new Node[6], maxDepth);
     }
 
+    /**
+     * Build a tree covering the given bounds instead of only the bounds of the given boundables.
+     * <p>
+     * This is useful for trees which are edited via {@link #insert(Boundable)}, since inserting outside of the bounds
+     * of the tree requires a full rebuild.
+     */
+    public static <T extends Boundable<T>> KDTreei<T> build(List<T> boundables, Box bounds, int maxDepth) {
+        KDTreei<T> root = new KDTreei<T>();
+        root.buildTree(boundables, new Box(bounds), KDTreei.<T> newNodes(6), maxDepth);
+        return root;
+    }
+
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    private static <T extends Boundable<T>> Node<T>[] newNodes(int length) {
+        return new Node[length];
+    }
+
     private static <T extends Boundable<T>> KDTreei<T> build(List<T> boundables, Node<T>[] neighbors, int maxDepth) {
+        KDTreei<T> root = new KDTreei<T>();
+        root.buildTree(boundables, bounds(boundables), neighbors, maxDepth);
+        return root;
+    }
+
+    private static <T extends Boundable<T>> Box bounds(List<T> boundables) {
         Box b = new Box(Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MIN_VALUE, Integer.MIN_VALUE,
                 Integer.MIN_VALUE);
         for (T v : boundables) {
@@ -374,13 +403,99 @@ public class KDTreei<T extends Boundable<T>> {
             b.maxY = b.maxY > vmaxy ? b.maxY : vmaxy;
             b.maxZ = b.maxZ > vmaxz ? b.maxZ : vmaxz;
         }
-        KDTreei<T> root = new KDTreei<T>();
-        root.buildTree(boundables, b, neighbors, maxDepth);
-        return root;
+        return b;
     }
 
+    /**
+     * Add all boundables intersecting the given box to the given list.
+     * <p>
+     * Region queries on the same tree must be externally synchronized.
+     */
     public void intersects(float minX, float minY, float minZ, float maxX, float maxY, float maxZ, List<T> boundables) {
-        root.intersects(minX, minY, minZ, maxX, maxY, maxZ, boundables);
+        intersects(minX, minY, minZ, maxX, maxY, maxZ, boundables, null, null);
+    }
+
+    /**
+     * Store the boundables intersecting the given box into the given array.
+     * <p>
+     * If more boundables than fit into the array intersect the box, then the array is filled and the total count is
+     * still returned, so that the caller can grow the array and repeat the query.
+     * <p>
+     * Region queries on the same tree must be externally synchronized.
+     * 
+     * @return the number of boundables intersecting the given box
+     */
+    public int intersects(float minX, float minY, float minZ, float maxX, float maxY, float maxZ, T[] boundables) {
+        return intersects(minX, minY, minZ, maxX, maxY, maxZ, null, boundables, null);
+    }
+
+    /**
+     * Call the given visitor for all boundables intersecting the given box until it returns <code>false</code>.
+     * <p>
+     * Region queries on the same tree must be externally synchronized.
+     * 
+     * @return the number of visited boundables
+     */
+    public int intersects(float minX, float minY, float minZ, float maxX, float maxY, float maxZ,
+            Visitor<? super T> visitor) {
+        return intersects(minX, minY, minZ, maxX, maxY, maxZ, null, null, visitor);
+    }
+
+    /**
+     * Count the boundables intersecting the given box.
+     * <p>
+     * Region queries on the same tree must be externally synchronized.
+     */
+    public int count(float minX, float minY, float minZ, float maxX, float maxY, float maxZ) {
+        return intersects(minX, minY, minZ, maxX, maxY, maxZ, null, null, null);
+    }
+
+    private int intersects(float minX, float minY, float minZ, float maxX, float maxY, float maxZ, List<T> list,
+            T[] array, Visitor<? super T> visitor) {
+        if (root == null || !root.boundingBox.intersects(minX, minY, minZ, maxX, maxY, maxZ))
+            return 0;
+        Node<T>[] stack = this.stack;
+        int sp = 0, count = 0;
+        Node<T> node = root;
+        while (true) {
+            if (node.isLeafNode()) {
+                List<T> boundables = node.boundables;
+                for (int i = 0, n = boundables.size(); i < n; i++) {
+                    T b = boundables.get(i);
+                    if (!b.intersects(minX, minY, minZ, maxX, maxY, maxZ))
+                        continue;
+                    if (list != null)
+                        list.add(b);
+                    else if (array != null && count < array.length)
+                        array[count] = b;
+                    else if (visitor != null && !visitor.visit(b))
+                        return count + 1;
+                    count++;
+                }
+                if (sp == 0)
+                    return count;
+                node = stack[--sp];
+                continue;
+            }
+            /* The children share the split plane, so only test the split axis */
+            float min = minX, max = maxX;
+            if (node.splitAxis == Y) {
+                min = minY;
+                max = maxY;
+            } else if (node.splitAxis == Z) {
+                min = minZ;
+                max = maxZ;
+            }
+            boolean left = min <= node.splitPos, right = max >= node.splitPos;
+            if (left && right) {
+                if (sp == stack.length)
+                    this.stack = stack = copyOf(stack, sp * 2);
+                stack[sp++] = node.right;
+                node = node.left;
+            } else {
+                node = left ? node.left : node.right;
+            }
+        }
     }
 
     public Node<T> findNode(Vector3d cameraPosition) {
@@ -393,12 +508,239 @@ public class KDTreei<T extends Boundable<T>> {
         root = new Node<T>();
         root.boundables = list;
         root.boundingBox = bbox;
+        this.maxDepth = maxDepth;
+        this.neighbors = neighbors;
+        this.size = list.size();
         if (intervals.length < list.size()) {
             intervals = new short[list.size()];
         }
         buildTree(root, 0, maxDepth);
         root.processNode(root.ropes = neighbors);
         root.optimizeRopes();
+        this.size = count(root);
+        this.cost = cost(root);
+        this.buildCost = relativeCost();
+    }
+
+    /*
+     * Cost of the leaves of the given subtree, which is one traversal step per leaf plus, for every boundable, the
+     * tests against all boundables of its leaf. Leaves overfilled at the maximum depth increase the cost
+     * quadratically and leaves emptied by removals linearly, whereas well-split inserts keep the cost per boundable.
+     */
+    private static <T extends Boundable<T>> long cost(Node<T> node) {
+        if (node.isLeafNode())
+            return leafCost(node);
+        return cost(node.left) + cost(node.right);
+    }
+
+    private static <T extends Boundable<T>> long leafCost(Node<T> leaf) {
+        long n = leaf.boundables.size();
+        return 1L + n * n;
+    }
+
+    private static <T extends Boundable<T>> int count(Node<T> node) {
+        if (node.isLeafNode())
+            return node.boundables.size();
+        return count(node.left) + count(node.right);
+    }
+
+    private double relativeCost() {
+        return (double) cost / Math.max(size, 64);
+    }
+
+    /*
+     * Whether the cost per boundable grew by more than the rebuild threshold since the last build.
+     */
+    private boolean degraded() {
+        return relativeCost() > buildCost * (1.0 + rebuildThreshold);
+    }
+
+    /**
+     * Set by which fraction the cost of the tree per boundable may grow by {@link #insert(Boundable) inserts} and
+     * {@link #remove(Boundable) removes} until the whole tree is rebuilt instead of being updated locally.
+     * <p>
+     * The cost is one traversal step per leaf plus, for every boundable, the number of boundables in its leaf. So it
+     * grows with leaves overfilled at the maximum depth and with leaves emptied by removals, but not with edits which
+     * are absorbed by local splits and merges, however many there are.
+     */
+    public void setRebuildThreshold(float rebuildThreshold) {
+        this.rebuildThreshold = rebuildThreshold;
+    }
+
+    /**
+     * Insert the given boundable into the tree.
+     * <p>
+     * Only the leaves overlapping the boundable are modified. A leaf exceeding the maximum number of boundables is split
+     * and the ropes of the new subtree as well as the ropes of the neighbors pointing to it are linked locally. If the
+     * boundable lies outside of the tree or the cost of the tree degraded beyond the
+     * {@link #setRebuildThreshold(float) rebuild threshold}, the tree is rebuilt.
+     */
+    public void insert(T boundable) {
+        Box b = root.boundingBox;
+        if (boundable.min(X) < b.minX || boundable.min(Y) < b.minY || boundable.min(Z) < b.minZ
+                || boundable.max(X) > b.maxX || boundable.max(Y) > b.maxY || boundable.max(Z) > b.maxZ) {
+            List<T> all = boundables();
+            all.add(boundable);
+            buildTree(all, union(bounds(all), b), neighbors, maxDepth);
+            return;
+        }
+        size += insert(root, boundable, 0);
+        if (degraded())
+            buildTree(boundables(), b, neighbors, maxDepth);
+    }
+
+    private int insert(Node<T> node, T boundable, int depth) {
+        if (!node.isLeafNode()) {
+            if (boundable.min(node.splitAxis) >= node.splitPos) {
+                return insert(node.right, boundable, depth + 1);
+            } else if (boundable.max(node.splitAxis) <= node.splitPos) {
+                return insert(node.left, boundable, depth + 1);
+            }
+            return insert(node.left, boundable.splitLeft(node.splitAxis, node.splitPos), depth + 1)
+                    + insert(node.right, boundable.splitRight(node.splitAxis, node.splitPos), depth + 1);
+        }
+        cost -= leafCost(node);
+        node.boundables.add(boundable);
+        if (node.boundables.size() <= maxVoxelCount || depth >= maxDepth) {
+            cost += leafCost(node);
+            return 1;
+        }
+        if (intervals.length < node.boundables.size()) {
+            intervals = new short[node.boundables.size()];
+        }
+        buildTree(node, depth, maxDepth);
+        cost += cost(node);
+        if (node.isLeafNode())
+            return 1;
+        node.processNode(node.ropes);
+        node.optimizeRopes();
+        relinkNeighbors(node, node, null);
+        return 1;
+    }
+
+    /**
+     * Remove the given boundable (including all parts it was split into) from the tree.
+     * <p>
+     * This removes all boundables lying completely inside of the bounds of the given boundable, which requires the
+     * boundables not to overlap each other (as is the case for voxels). Sibling leaves with a total of at most the
+     * maximum number of boundables are merged and the ropes of their neighbors are linked to the merged leaf. If the
+     * cost of the tree degraded beyond the {@link #setRebuildThreshold(float) rebuild threshold}, the tree is rebuilt.
+     * 
+     * @return <code>true</code> if anything was removed
+     */
+    public boolean remove(T boundable) {
+        int removed = remove(root, boundable);
+        if (removed == 0)
+            return false;
+        size -= removed;
+        if (degraded())
+            buildTree(boundables(), root.boundingBox, neighbors, maxDepth);
+        return true;
+    }
+
+    /**
+     * Replace the boundable <code>oldBoundable</code> by <code>newBoundable</code>.
+     * 
+     * @see #remove(Boundable)
+     * @see #insert(Boundable)
+     */
+    public void update(T oldBoundable, T newBoundable) {
+        remove(oldBoundable);
+        insert(newBoundable);
+    }
+
+    private int remove(Node<T> node, T boundable) {
+        if (node.isLeafNode()) {
+            int n = node.boundables.size();
+            cost -= leafCost(node);
+            node.boundables.removeIf(b -> b.min(X) >= boundable.min(X) && b.min(Y) >= boundable.min(Y)
+                    && b.min(Z) >= boundable.min(Z) && b.max(X) <= boundable.max(X) && b.max(Y) <= boundable.max(Y)
+                    && b.max(Z) <= boundable.max(Z));
+            cost += leafCost(node);
+            return n - node.boundables.size();
+        }
+        int removed = 0;
+        if (boundable.min(node.splitAxis) < node.splitPos)
+            removed += remove(node.left, boundable);
+        if (boundable.max(node.splitAxis) > node.splitPos)
+            removed += remove(node.right, boundable);
+        Node<T> left = node.left, right = node.right;
+        if (removed > 0 && left.isLeafNode() && right.isLeafNode()
+                && left.boundables.size() + right.boundables.size() <= maxVoxelCount) {
+            cost -= leafCost(left) + leafCost(right);
+            node.boundables = new ArrayList<>(left.boundables);
+            node.boundables.addAll(right.boundables);
+            node.splitAxis = -1;
+            node.left = null;
+            node.right = null;
+            cost += leafCost(node);
+            relinkNeighbors(node, left, right);
+        }
+        return removed;
+    }
+
+    /*
+     * Re-optimize the ropes of all nodes adjacent to the given node which point to the node itself or to one of the
+     * given replaced nodes.
+     */
+    private void relinkNeighbors(Node<T> node, Node<T> replaced0, Node<T> replaced1) {
+        Box b = node.boundingBox;
+        Node<T>[] stack = this.stack;
+        for (int side = 0; side < 6; side++) {
+            Node<T> neighbor = node.ropes[side];
+            if (neighbor == null)
+                continue;
+            int axis = side >> 1, opposite = side ^ 1;
+            int face = (side & 1) == 0 ? b.max(axis) : b.min(axis);
+            int top = 0;
+            stack[top++] = neighbor;
+            while (top > 0) {
+                Node<T> n = stack[--top];
+                Box nb = n.boundingBox;
+                if (nb.min(axis) > face || nb.max(axis) < face || !touches(b, nb, axis))
+                    continue;
+                Node<T> rope = n.ropes[opposite];
+                if (rope == node || rope == replaced0 || rope == replaced1)
+                    n.ropes[opposite] = n.optimizeRope(node, opposite);
+                if (!n.isLeafNode()) {
+                    if (top + 2 > stack.length)
+                        this.stack = stack = copyOf(stack, stack.length * 2);
+                    stack[top++] = n.left;
+                    stack[top++] = n.right;
+                }
+            }
+        }
+    }
+
+    private static Box union(Box a, Box b) {
+        return new Box(Math.min(a.minX, b.minX), Math.min(a.minY, b.minY), Math.min(a.minZ, b.minZ),
+                Math.max(a.maxX, b.maxX), Math.max(a.maxY, b.maxY), Math.max(a.maxZ, b.maxZ));
+    }
+
+    private static boolean touches(Box a, Box b, int axis) {
+        for (int k = 0; k < 3; k++) {
+            if (k != axis && (a.max(k) < b.min(k) || a.min(k) > b.max(k)))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Collect all boundables stored in the leaves of this tree.
+     */
+    public List<T> boundables() {
+        List<T> all = new ArrayList<>(size);
+        collect(root, all);
+        return all;
+    }
+
+    private static <T extends Boundable<T>> void collect(Node<T> node, List<T> all) {
+        if (node.isLeafNode()) {
+            all.addAll(node.boundables);
+        } else {
+            collect(node.left, all);
+            collect(node.right, all);
+        }
     }
 
     private void buildTree(Node<T> node, int depth, int maxDepth) {
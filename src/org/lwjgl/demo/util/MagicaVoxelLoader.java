@@ -6,11 +6,28 @@ package org.lwjgl.demo.util;
 
 import static java.lang.Math.*;
 import static java.nio.charset.StandardCharsets.*;
+import static org.lwjgl.demo.util.Parallel.*;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+import org.joml.Matrix4f;
 
 /**
  * Loader for MagicaVoxel .vox files.
+ * <p>
+ * Files are read from a {@link ByteBuffer}, which is memory-mapped when loading a {@link File}. The chunks are first
+ * walked without decoding any voxels, and then the voxels of all models are copied in bulk in parallel on a
+ * {@link ForkJoinPool}, since an XYZI voxel read as little-endian int already is <code>x | y &lt;&lt; 8 | z &lt;&lt; 16 |
+ * color &lt;&lt; 24</code>. The scene graph of transform, group and shape nodes is resolved into one {@link Instance} per placed
+ * model.
  * 
  * @author Kai Burjack
  */
@@ -44,6 +61,55 @@ public class MagicaVoxelLoader {
         public boolean plastic;
     }
 
+    /**
+     * The voxels of a SIZE and XYZI chunk pair.
+     */
+    public static class Model {
+        public int sizeX, sizeY, sizeZ;
+        /**
+         * The voxels, each packed as <code>x | y &lt;&lt; 8 | z &lt;&lt; 16 | color &lt;&lt; 24</code>.
+         */
+        public int[] voxels;
+        /* Position of the voxels in the file */
+        int offset;
+    }
+
+    /**
+     * A model placed in the scene.
+     */
+    public static class Instance {
+        public int model;
+        public String name;
+        public boolean hidden;
+        /**
+         * Transforms the voxel coordinates of the model into the scene. For files without a scene graph this is the
+         * identity, otherwise it is the product of all transform nodes above the model and the translation by minus
+         * half the size of the model, rounded down, to the model's center.
+         */
+        public final Matrix4f transform = new Matrix4f();
+    }
+
+    /**
+     * The contents of a .vox file.
+     */
+    public static class Scene {
+        public final List<Model> models = new ArrayList<>();
+        public final List<Instance> instances = new ArrayList<>();
+        public Material[] materials;
+    }
+
+    /*
+     * A transform (nTRN), group (nGRP) or shape (nSHP) node of the scene graph.
+     */
+    private static class Node {
+        int id;
+        String name;
+        boolean hidden;
+        Matrix4f transform;
+        int[] children;
+        int[] models;
+    }
+
     private static final int[] DEFAULT_PALETTE = { 0x00000000, 0xffffffff, 0xffccffff, 0xff99ffff, 0xff66ffff,
             0xff33ffff, 0xff00ffff, 0xffffccff, 0xffccccff, 0xff99ccff, 0xff66ccff, 0xff33ccff, 0xff00ccff, 0xffff99ff,
             0xffcc99ff, 0xff9999ff, 0xff6699ff, 0xff3399ff, 0xff0099ff, 0xffff66ff, 0xffcc66ff, 0xff9966ff, 0xff6666ff,
@@ -74,59 +140,105 @@ public class MagicaVoxelLoader {
             0xffaa0000, 0xff880000, 0xff770000, 0xff550000, 0xff440000, 0xff220000, 0xff110000, 0xffeeeeee, 0xffdddddd,
             0xffbbbbbb, 0xffaaaaaa, 0xff888888, 0xff777777, 0xff555555, 0xff444444, 0xff222222, 0xff111111 };
 
-    private final byte[] buf = new byte[4];
+    private static final int VOX = magicValue('V', 'O', 'X', ' '), MAIN = magicValue('M', 'A', 'I', 'N'),
+            SIZE = magicValue('S', 'I', 'Z', 'E'), XYZI = magicValue('X', 'Y', 'Z', 'I'),
+            RGBA = magicValue('R', 'G', 'B', 'A'), MATL = magicValue('M', 'A', 'T', 'L'),
+            nTRN = magicValue('n', 'T', 'R', 'N'), nGRP = magicValue('n', 'G', 'R', 'P'),
+            nSHP = magicValue('n', 'S', 'H', 'P');
 
-    private static void skip(InputStream input, int skip) throws IOException {
-        while (skip > 0) {
-            int skipped = (int) input.skip(skip);
-            if (skipped <= 0)
-                throw new IOException();
-            skip -= skipped;
-        }
+    private final ForkJoinPool pool;
+
+    /**
+     * Create a loader using the {@link ForkJoinPool#commonPool() common pool}.
+     */
+    public MagicaVoxelLoader() {
+        this(ForkJoinPool.commonPool());
     }
 
+    public MagicaVoxelLoader(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Read the given stream, report the size and voxels of each model in file order and then the palette to the
+     * callback.
+     */
     public void read(InputStream input, Callback callback) throws IOException {
-        Chunk chunk = new Chunk();
-        if (read32(input) != magicValue('V', 'O', 'X', ' '))
-            throw new IOException();
-        if (read32(input) < 150)
-            throw new IOException();
-        readChunk(input, chunk);
-        if (chunk.id != magicValue('M', 'A', 'I', 'N'))
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = input.read(buffer)) > 0)
+            baos.write(buffer, 0, read);
+        Scene scene = load(ByteBuffer.wrap(baos.toByteArray()));
+        for (Model model : scene.models) {
+            callback.size(model.sizeX, model.sizeY, model.sizeZ);
+            for (int v : model.voxels)
+                callback.voxel(v & 0xFF, v >>> 8 & 0xFF, v >>> 16 & 0xFF, (byte) (v >>> 24));
+        }
+        for (int p = 0; p < scene.materials.length; p++)
+            callback.paletteMaterial(p, scene.materials[p]);
+    }
+
+    /**
+     * Load the given file by memory-mapping it.
+     */
+    public Scene load(File file) throws IOException {
+        try (FileInputStream fis = new FileInputStream(file)) {
+            FileChannel fc = fis.getChannel();
+            return load(fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size()));
+        }
+    }
+
+    /**
+     * Load the file contents between the position and the limit of the given buffer.
+     */
+    public Scene load(ByteBuffer buffer) throws IOException {
+        ByteBuffer buf = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+        if (buf.remaining() < 20 || buf.getInt(0) != VOX || buf.getInt(4) < 150 || buf.getInt(8) != MAIN)
             throw new IOException();
-        skip(input, chunk.size);
+        Scene scene = new Scene();
+        Map<Integer, Node> nodes = new HashMap<>();
         boolean foundPalette = false;
         Material[] mats = new Material[512];
         for (int p = 0; p < 512; p++)
             mats[p] = new Material();
         int numMaterials = 0;
-        while (true) {
-            try {
-                readChunk(input, chunk);
-            } catch (IOException ignored) {
-                break;
-            }
-            if (chunk.id == magicValue('S', 'I', 'Z', 'E')) {
-                callback.size(read32(input), read32(input), read32(input));
-            } else if (chunk.id == magicValue('X', 'Y', 'Z', 'I')) {
-                int numVoxels = (int) read32(input);
-                for (int v = 0; v < numVoxels; v++)
-                    callback.voxel(input.read(), input.read(), input.read(), (byte) (input.read() & 0xff));
-            } else if (chunk.id == magicValue('R', 'G', 'B', 'A')) {
+        int sizeX = 0, sizeY = 0, sizeZ = 0;
+        int end = buf.limit();
+        for (int pos = 20 + buf.getInt(12); pos + 12 <= end;) {
+            int id = buf.getInt(pos), size = buf.getInt(pos + 4), childrenSize = buf.getInt(pos + 8);
+            int data = pos + 12;
+            if (size < 0 || childrenSize < 0 || data + (long) size + childrenSize > end)
+                throw new IOException();
+            buf.position(data);
+            if (id == SIZE) {
+                sizeX = buf.getInt();
+                sizeY = buf.getInt();
+                sizeZ = buf.getInt();
+            } else if (id == XYZI) {
+                int numVoxels = buf.getInt();
+                if (numVoxels < 0 || 4L + 4L * numVoxels > size)
+                    throw new IOException();
+                Model model = new Model();
+                model.sizeX = sizeX;
+                model.sizeY = sizeY;
+                model.sizeZ = sizeZ;
+                model.voxels = new int[numVoxels];
+                model.offset = data + 4;
+                scene.models.add(model);
+            } else if (id == RGBA) {
                 mats[0].color = DEFAULT_PALETTE[0];
                 numMaterials = max(numMaterials, 256);
                 for (int p = 1; p < 256; p++)
-                    mats[p].color = read32(input);
-                skip(input, 4);
+                    mats[p].color = buf.getInt();
                 foundPalette = true;
-            } else if (chunk.id == magicValue('M', 'A', 'T', 'L')) {
-                int mid = read32(input), dc = read32(input);
+            } else if (id == MATL) {
+                int mid = buf.getInt();
                 Material mat = mats[mid];
                 numMaterials = max(numMaterials, mid + 1);
-                for (int i = 0; i < dc; i++) {
-                    String k = readString(input);
-                    String v = readString(input);
-                    switch (k) {
+                for (Map.Entry<String, String> e : readDict(buf).entrySet()) {
+                    String v = e.getValue();
+                    switch (e.getKey()) {
                     case "_type":
                         mat.type = Material.Type.valueOf(v);
                         break;
@@ -153,42 +265,129 @@ public class MagicaVoxelLoader {
                         break;
                     }
                 }
-            } else {
-                // System.out.println("Unknown chunk type: " + magicaValueString(chunk.id));
-                skip(input, chunk.size + chunk.childrenCount);
+            } else if (id == nTRN || id == nGRP || id == nSHP) {
+                Node node = readNode(buf, id);
+                nodes.put(node.id, node);
             }
+            /* Chunks are only nested in MAIN, so the children of any other chunk are skipped with it */
+            pos = data + size + childrenSize;
         }
         if (!foundPalette) {
             for (int p = 0; p < numMaterials; p++)
                 mats[p].color = DEFAULT_PALETTE[p];
         }
-        for (int p = 0; p < numMaterials; p++)
-            callback.paletteMaterial(p, mats[p]);
+        scene.materials = new Material[numMaterials];
+        System.arraycopy(mats, 0, scene.materials, 0, numMaterials);
+        parallelFor(pool, scene.models.size(), m -> {
+            Model model = scene.models.get(m);
+            ByteBuffer voxels = buf.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+            voxels.position(model.offset);
+            voxels.asIntBuffer().get(model.voxels);
+        });
+        if (nodes.containsKey(0))
+            instantiate(scene, nodes, nodes.get(0), new Matrix4f(), null, false, 0);
+        else {
+            for (int m = 0; m < scene.models.size(); m++) {
+                Instance instance = new Instance();
+                instance.model = m;
+                scene.instances.add(instance);
+            }
+        }
+        return scene;
+    }
+
+    private static Node readNode(ByteBuffer buf, int type) throws IOException {
+        Node node = new Node();
+        node.id = buf.getInt();
+        Map<String, String> attributes = readDict(buf);
+        node.name = attributes.get("_name");
+        node.hidden = "1".equals(attributes.get("_hidden"));
+        if (type == nTRN) {
+            node.children = new int[] { buf.getInt() };
+            /* Reserved id and layer id */
+            buf.getInt();
+            buf.getInt();
+            int frames = buf.getInt();
+            node.transform = new Matrix4f();
+            /* Only the first frame of animated transforms is used */
+            if (frames > 0) {
+                Map<String, String> frame = readDict(buf);
+                String t = frame.get("_t"), r = frame.get("_r");
+                if (t != null) {
+                    String[] xyz = t.trim().split(" +");
+                    node.transform.translation(Integer.parseInt(xyz[0]), Integer.parseInt(xyz[1]),
+                            Integer.parseInt(xyz[2]));
+                }
+                if (r != null)
+                    rotation(Integer.parseInt(r.trim()), node.transform);
+            }
+        } else if (type == nGRP) {
+            node.children = new int[buf.getInt()];
+            for (int i = 0; i < node.children.length; i++)
+                node.children[i] = buf.getInt();
+        } else {
+            node.models = new int[buf.getInt()];
+            for (int i = 0; i < node.models.length; i++) {
+                node.models[i] = buf.getInt();
+                readDict(buf);
+            }
+        }
+        return node;
     }
 
-    private void readChunk(InputStream input, Chunk chunk) throws IOException {
-        chunk.id = read32(input);
-        chunk.size = read32(input);
-        chunk.childrenCount = read32(input);
+    /*
+     * Set the upper 3x3 of the matrix to the rotation encoded in a byte: bits 0-1 and 2-3 are the columns of the
+     * non-zero entries of the first and second row, and bits 4, 5 and 6 are the signs of the rows.
+     */
+    private static void rotation(int r, Matrix4f m) throws IOException {
+        int c0 = r & 3, c1 = r >>> 2 & 3, c2 = 3 - c0 - c1;
+        if (c0 > 2 || c1 > 2 || c0 == c1)
+            throw new IOException("Invalid rotation: " + r);
+        m.setRowColumn(0, 0, 0.0f).setRowColumn(1, 1, 0.0f).setRowColumn(2, 2, 0.0f);
+        m.setRowColumn(0, c0, (r & 1 << 4) != 0 ? -1.0f : 1.0f);
+        m.setRowColumn(1, c1, (r & 1 << 5) != 0 ? -1.0f : 1.0f);
+        m.setRowColumn(2, c2, (r & 1 << 6) != 0 ? -1.0f : 1.0f);
     }
 
-    private String readString(InputStream input) throws IOException {
-        int length = read32(input);
-        int read = 0;
-        byte[] str = new byte[length];
-        while (read < length) {
-            int r = input.read(str, read, length - read);
-            if (r == -1)
-                throw new IOException();
-            read += r;
+    private void instantiate(Scene scene, Map<Integer, Node> nodes, Node node, Matrix4f transform, String name,
+            boolean hidden, int depth) throws IOException {
+        if (node == null || depth > nodes.size())
+            throw new IOException("Invalid scene graph");
+        hidden |= node.hidden;
+        if (node.transform != null) {
+            transform = new Matrix4f(transform).mul(node.transform);
+            name = node.name;
+        }
+        if (node.children != null) {
+            for (int child : node.children)
+                instantiate(scene, nodes, nodes.get(child), transform, name, hidden, depth + 1);
+            return;
+        }
+        for (int m : node.models) {
+            if (m < 0 || m >= scene.models.size())
+                throw new IOException("Invalid model: " + m);
+            Model model = scene.models.get(m);
+            Instance instance = new Instance();
+            instance.model = m;
+            instance.name = name;
+            instance.hidden = hidden;
+            instance.transform.set(transform).translate(-(model.sizeX / 2), -(model.sizeY / 2), -(model.sizeZ / 2));
+            scene.instances.add(instance);
         }
-        return new String(str, US_ASCII);
     }
 
-    private int read32(InputStream input) throws IOException {
-        if (input.read(buf) < 4)
-            throw new IOException();
-        return buf[0] & 0xff | (buf[1] & 0xff) << 8 | (buf[2] & 0xff) << 16 | (buf[3] & 0xff) << 24;
+    private static Map<String, String> readDict(ByteBuffer buf) {
+        int n = buf.getInt();
+        Map<String, String> dict = new HashMap<>();
+        for (int i = 0; i < n; i++)
+            dict.put(readString(buf), readString(buf));
+        return dict;
+    }
+
+    private static String readString(ByteBuffer buf) {
+        byte[] str = new byte[buf.getInt()];
+        buf.get(str);
+        return new String(str, US_ASCII);
     }
 
     private static int magicValue(char c0, char c1, char c2, char c3) {
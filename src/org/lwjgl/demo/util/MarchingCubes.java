@@ -4,8 +4,13 @@
  */
 package org.lwjgl.demo.util;
 
+import static org.lwjgl.system.MemoryUtil.*;
+
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
 import org.joml.Vector3i;
 
 /**
@@ -130,4 +135,393 @@ public class MarchingCubes {
         return ci;
     }
 
+    /**
+     * Size in bytes of a vertex written by
+     * {@link #march(byte[], byte, int, int, int, DynamicByteBuffer, DynamicByteBuffer)}.
+     */
+    public static final int VERTEX_SIZE = 12;
+
+    /* Axis (0 = x, 1 = y, 2 = z) of each cell edge and the offset of its start corner */
+    private static final byte[] EA = new byte[12], EX = new byte[12], EY = new byte[12], EZ = new byte[12];
+    static {
+        for (int i = 0; i < 12; i++) {
+            int ox = CS[i] & 3, oy = CS[i] >>> 2 & 3, oz = CS[i] >>> 4 & 3;
+            EA[i] = (byte) (ox == 1 ? 0 : oy == 1 ? 1 : 2);
+            EX[i] = (byte) (ox >>> 1);
+            EY[i] = (byte) (oy >>> 1);
+            EZ[i] = (byte) (oz >>> 1);
+        }
+    }
+
+    /**
+     * Same as {@link #march(byte[], byte, int, int, int, DynamicByteBuffer, DynamicByteBuffer, ForkJoinPool)} using
+     * the {@link ForkJoinPool#commonPool() common pool}.
+     */
+    public static int march(byte[] ds, byte iso, int dx, int dy, int dz, DynamicByteBuffer vertices,
+            DynamicByteBuffer indices) {
+        return march(ds, iso, dx, dy, dz, vertices, indices, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Generate the same triangles as {@link #march(byte[], byte, int, int, int)}, but weld the vertices shared by
+     * neighboring cells and write them to the given buffers instead of allocating a {@link Vector3i} for each of them.
+     * <p>
+     * Each vertex is {@link #VERTEX_SIZE} bytes: the position as four 16-bit integers <code>(x, y, z, 0)</code> on the
+     * same doubled lattice as {@link #march(byte[], byte, int, int, int)}, followed by the normal, pointing from the
+     * inside (density greater than <code>iso</code>) to the outside, as four signed normalized bytes
+     * <code>(x, y, z, 0)</code> computed from the density gradient. Each triangle is three 32-bit indices relative to
+     * the first vertex written by this call.
+     * <p>
+     * The volume is split into slabs along z which are processed in parallel with the given {@link ForkJoinPool}.
+     * 
+     * @return the number of vertices written
+     */
+    public static int march(byte[] ds, byte iso, int dx, int dy, int dz, DynamicByteBuffer vertices,
+            DynamicByteBuffer indices, ForkJoinPool pool) {
+        return march(ds, null, iso, dx, dy, dz, vertices, indices, pool);
+    }
+
+    /**
+     * Same as {@link #march(DensityPyramid, byte, DynamicByteBuffer, DynamicByteBuffer, ForkJoinPool)} using the
+     * {@link ForkJoinPool#commonPool() common pool}.
+     */
+    public static int march(DensityPyramid pyramid, byte iso, DynamicByteBuffer vertices, DynamicByteBuffer indices) {
+        return march(pyramid, iso, vertices, indices, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Same as {@link #march(byte[], byte, int, int, int, DynamicByteBuffer, DynamicByteBuffer, ForkJoinPool)} for the
+     * volume of the given {@link DensityPyramid}, but only visit the cells of the blocks crossed by the iso surface.
+     * <p>
+     * The generated vertices and triangles are identical to the ones of the full extraction, but the time spent is
+     * proportional to the area of the iso surface instead of the volume.
+     * 
+     * @return the number of vertices written
+     */
+    public static int march(DensityPyramid pyramid, byte iso, DynamicByteBuffer vertices, DynamicByteBuffer indices,
+            ForkJoinPool pool) {
+        return march(pyramid.ds, pyramid, iso, pyramid.dx, pyramid.dy, pyramid.dz, vertices, indices, pool);
+    }
+
+    private static int march(byte[] ds, DensityPyramid pyramid, byte iso, int dx, int dy, int dz,
+            DynamicByteBuffer vertices, DynamicByteBuffer indices, ForkJoinPool pool) {
+        if (dx < 2 || dy < 2 || dz < 2 || dx > 16384 || dy > 16384 || dz > 16384)
+            throw new IllegalArgumentException("dimensions must be in [2, 16384]");
+        int layers = dz - 1;
+        /*
+         * Slabs start at block boundaries of the pyramid, also without a pyramid, so that both produce the same vertex
+         * order
+         */
+        int granularity = DensityPyramid.BLOCK_SIZE;
+        int units = (layers + granularity - 1) / granularity;
+        int slabs = Math.max(1, Math.min(pool.getParallelism() * 4, layers / MIN_SLAB_LAYERS));
+        if (slabs == 1)
+            return new Slab(ds, pyramid, iso, dx, dy, dz, 0, layers, vertices, indices).march();
+        DynamicByteBufferPool buffers = DynamicByteBufferPool.get();
+        DynamicByteBuffer[] slabBuffers = new DynamicByteBuffer[2 * slabs];
+        ForkJoinTask<?>[] tasks = new ForkJoinTask<?>[slabs];
+        try {
+            Slab[] s = new Slab[slabs];
+            for (int i = 0; i < slabs; i++) {
+                slabBuffers[2 * i] = buffers.acquire(8192);
+                slabBuffers[2 * i + 1] = buffers.acquire(8192);
+                s[i] = new Slab(ds, pyramid, iso, dx, dy, dz, units * i / slabs * granularity,
+                        Math.min(layers, units * (i + 1) / slabs * granularity), slabBuffers[2 * i],
+                        slabBuffers[2 * i + 1]);
+            }
+            for (int i = 0; i < slabs; i++)
+                tasks[i] = pool.submit(s[i]::march);
+            for (ForkJoinTask<?> t : tasks)
+                t.join();
+            /* Merge the seams by remapping the indices of the vertices owned by the next slab */
+            int[] bases = new int[slabs + 1];
+            for (int i = 0; i < slabs; i++)
+                bases[i + 1] = bases[i] + s[i].vertexCount;
+            for (int i = 0; i < slabs; i++) {
+                Slab slab = s[i];
+                int base = bases[i], nextBase = bases[i + 1];
+                tasks[i] = pool.submit(() -> slab.relocate(base, nextBase));
+            }
+            for (ForkJoinTask<?> t : tasks)
+                t.join();
+            for (Slab slab : s) {
+                vertices.put(slab.vertices);
+                indices.put(slab.indices);
+            }
+            return bases[slabs];
+        } finally {
+            /* When a slab failed, the others may still be writing into their buffers */
+            for (ForkJoinTask<?> t : tasks)
+                if (t != null)
+                    t.quietlyJoin();
+            for (DynamicByteBuffer b : slabBuffers)
+                if (b != null)
+                    buffers.release(b);
+        }
+    }
+
+    private static final int MIN_SLAB_LAYERS = 8;
+
+    /*
+     * Case index of a cell given the corner patterns of its columns at x and x + 1, with bit 0/1 of a pattern being the
+     * corners at y/y + 1 of plane z and bit 2/3 the corners at y/y + 1 of plane z + 1.
+     */
+    private static final byte[] CASES = new byte[256];
+    static {
+        for (int a = 0; a < 16; a++)
+            for (int b = 0; b < 16; b++)
+                CASES[a << 4 | b] = (byte) ((a & 1) | (b & 1) << 1 | (b >>> 1 & 1) << 2 | (a >>> 1 & 1) << 3
+                        | (a >>> 2 & 1) << 4 | (b >>> 2 & 1) << 5 | (b >>> 3 & 1) << 6 | (a >>> 3 & 1) << 7);
+    }
+
+    /*
+     * Welds the vertices of cell layers [z0, z1) via caches of the vertex indices on the edges of the current and next
+     * lattice plane. Vertices on the last plane z1 belong to the next slab (if any) and are referenced as ~n, with n
+     * being the index of that vertex among the vertices of the plane, which the next slab creates first and in the
+     * same order.
+     * 
+     * With a pyramid, each layer of blocks only visits the spans of lattice points along x covered by its active
+     * blocks. Every edge crossed by the surface lies in active blocks of all layers containing it, so the vertices and
+     * triangles are created in the same order as when visiting all lattice points. Inside flags of lattice points
+     * outside of the spans are stale and never read.
+     */
+    private static class Slab {
+        private final byte[] ds;
+        private final DensityPyramid pyramid;
+        private final byte iso;
+        private final int dx, dy, dz, z0, z1;
+        private final DynamicByteBuffer vertices, indices;
+        private byte[] inside0, inside1;
+        private int[] xEdges0, yEdges0, xEdges1, yEdges1;
+        private final int[] zEdges;
+        private int vertexCount;
+        /* Block size, number of block rows and, per block row, the inclusive [start, end] spans along x */
+        private final int bs, rows, stride;
+        private final boolean[] active;
+        private final int[] spans, spanCounts;
+
+        Slab(byte[] ds, DensityPyramid pyramid, byte iso, int dx, int dy, int dz, int z0, int z1,
+                DynamicByteBuffer vertices, DynamicByteBuffer indices) {
+            this.ds = ds;
+            this.pyramid = pyramid;
+            this.iso = iso;
+            this.dx = dx;
+            this.dy = dy;
+            this.dz = dz;
+            this.z0 = z0;
+            this.z1 = z1;
+            this.vertices = vertices;
+            this.indices = indices;
+            int n = dx * dy;
+            inside0 = new byte[n];
+            inside1 = new byte[n];
+            xEdges0 = new int[n];
+            yEdges0 = new int[n];
+            xEdges1 = new int[n];
+            yEdges1 = new int[n];
+            zEdges = new int[n];
+            if (pyramid != null) {
+                bs = DensityPyramid.BLOCK_SIZE;
+                rows = pyramid.blocksY();
+                active = new boolean[pyramid.blocksX() * rows];
+                stride = pyramid.blocksX() + 1;
+            } else {
+                bs = 1 << 14;
+                rows = 1;
+                active = new boolean[] { true };
+                stride = 2;
+            }
+            spans = new int[rows * stride];
+            spanCounts = new int[rows];
+        }
+
+        int march() {
+            for (int z = z0; z < z1;) {
+                int end = Math.min(z1, (z / bs + 1) * bs);
+                if (pyramid != null && pyramid.activeBlocks(iso, z / bs, active) == 0) {
+                    /* No edge of the planes of this layer is crossed by the surface */
+                    z = end;
+                    continue;
+                }
+                buildSpans();
+                if (z == z0)
+                    plane(z, inside0, xEdges0, yEdges0, true);
+                else
+                    /* The edges of this plane were created by the previous layer */
+                    flags(z, inside0);
+                for (; z < end; z++) {
+                    plane(z + 1, inside1, xEdges1, yEdges1, z + 1 < z1 || z1 == dz - 1);
+                    zEdges(z);
+                    cells();
+                    byte[] f = inside0;
+                    inside0 = inside1;
+                    inside1 = f;
+                    int[] t = xEdges0;
+                    xEdges0 = xEdges1;
+                    xEdges1 = t;
+                    t = yEdges0;
+                    yEdges0 = yEdges1;
+                    yEdges1 = t;
+                }
+            }
+            return vertexCount;
+        }
+
+        private void buildSpans() {
+            int cols = active.length / rows;
+            for (int by = 0; by < rows; by++) {
+                int n = 0, o = by * stride;
+                for (int bx = 0; bx < cols; bx++) {
+                    if (!active[bx + cols * by])
+                        continue;
+                    int start = bx * bs, end = Math.min(start + bs, dx - 1);
+                    if (n > 0 && spans[o + 2 * n - 1] == start)
+                        spans[o + 2 * n - 1] = end;
+                    else {
+                        spans[o + 2 * n] = start;
+                        spans[o + 2 * n + 1] = end;
+                        n++;
+                    }
+                }
+                spanCounts[by] = n;
+            }
+        }
+
+        /*
+         * The last lattice row (inclusive) whose edges along +y, +x and +z are visited by the given block row.
+         */
+        private int lastRow(int by) {
+            return by == rows - 1 ? dy - 1 : Math.min(by * bs + bs - 1, dy - 1);
+        }
+
+        private void cells() {
+            byte[] in0 = inside0, in1 = inside1;
+            for (int by = 0; by < rows; by++) {
+                for (int y = by * bs, y1 = Math.min(y + bs, dy - 1); y < y1; y++) {
+                    for (int k = 0, o = by * stride; k < spanCounts[by]; k++, o += 2) {
+                        int x = spans[o], x1 = spans[o + 1], e = x + dx * y;
+                        int a = in0[e] | in0[e + dx] << 1 | in1[e] << 2 | in1[e + dx] << 3;
+                        for (; x < x1; x++, e++) {
+                            int b = in0[e + 1] | in0[e + 1 + dx] << 1 | in1[e + 1] << 2 | in1[e + 1 + dx] << 3;
+                            int ci = CASES[a << 4 | b] & 0xFF;
+                            a = b;
+                            if (ci != 0 && ci != 0xFF)
+                                addTriangles(x, y, TS[ci]);
+                        }
+                    }
+                }
+            }
+        }
+
+        private void flags(int z, byte[] inside) {
+            int o = dx * dy * z;
+            for (int by = 0; by < rows; by++) {
+                if (spanCounts[by] == 0)
+                    continue;
+                for (int y = by * bs, y1 = Math.min(y + bs, dy - 1); y <= y1; y++) {
+                    for (int k = 0, so = by * stride; k < spanCounts[by]; k++, so += 2)
+                        for (int e = spans[so] + dx * y, end = spans[so + 1] + dx * y; e <= end; e++)
+                            inside[e] = (byte) (ds[o + e] > iso ? 1 : 0);
+                }
+            }
+        }
+
+        private void plane(int z, byte[] inside, int[] xEdges, int[] yEdges, boolean owned) {
+            flags(z, inside);
+            int foreign = 0;
+            for (int by = 0; by < rows; by++) {
+                for (int y = by * bs, y1 = lastRow(by); y <= y1; y++) {
+                    for (int k = 0, so = by * stride; k < spanCounts[by]; k++, so += 2) {
+                        for (int x = spans[so], x1 = spans[so + 1], e = x + dx * y; x <= x1; x++, e++) {
+                            byte in = inside[e];
+                            if (x < x1 && in != inside[e + 1])
+                                xEdges[e] = owned ? vertex(x, y, z, 0) : ~foreign++;
+                            if (y < dy - 1 && in != inside[e + dx])
+                                yEdges[e] = owned ? vertex(x, y, z, 1) : ~foreign++;
+                        }
+                    }
+                }
+            }
+        }
+
+        private void zEdges(int z) {
+            for (int by = 0; by < rows; by++) {
+                for (int y = by * bs, y1 = lastRow(by); y <= y1; y++) {
+                    for (int k = 0, so = by * stride; k < spanCounts[by]; k++, so += 2) {
+                        for (int x = spans[so], x1 = spans[so + 1], e = x + dx * y; x <= x1; x++, e++)
+                            if (inside0[e] != inside1[e])
+                                zEdges[e] = vertex(x, y, z, 2);
+                    }
+                }
+            }
+        }
+
+        private int vertex(int x, int y, int z, int axis) {
+            int gx = gradient(x, y, z, 0) + gradient(x + (axis == 0 ? 1 : 0), y + (axis == 1 ? 1 : 0),
+                    z + (axis == 2 ? 1 : 0), 0);
+            int gy = gradient(x, y, z, 1) + gradient(x + (axis == 0 ? 1 : 0), y + (axis == 1 ? 1 : 0),
+                    z + (axis == 2 ? 1 : 0), 1);
+            int gz = gradient(x, y, z, 2) + gradient(x + (axis == 0 ? 1 : 0), y + (axis == 1 ? 1 : 0),
+                    z + (axis == 2 ? 1 : 0), 2);
+            float len = (float) Math.sqrt(gx * gx + gy * gy + gz * gz);
+            float s = len == 0.0f ? 0.0f : -127.0f / len;
+            long a = vertices.ensureCapacity(12).addr + vertices.pos;
+            memPutShort(a, (short) ((x << 1) + (axis == 0 ? 1 : 0)));
+            memPutShort(a + 2, (short) ((y << 1) + (axis == 1 ? 1 : 0)));
+            memPutShort(a + 4, (short) ((z << 1) + (axis == 2 ? 1 : 0)));
+            memPutShort(a + 6, (short) 0);
+            memPutByte(a + 8, (byte) Math.round(gx * s));
+            memPutByte(a + 9, (byte) Math.round(gy * s));
+            memPutByte(a + 10, (byte) Math.round(gz * s));
+            memPutByte(a + 11, (byte) 0);
+            vertices.pos += 12;
+            return vertexCount++;
+        }
+
+        /*
+         * Central (or at the borders one-sided) difference of the density at the given lattice point.
+         */
+        private int gradient(int x, int y, int z, int axis) {
+            int c = axis == 0 ? x : axis == 1 ? y : z, n = axis == 0 ? dx : axis == 1 ? dy : dz;
+            int stride = axis == 0 ? 1 : axis == 1 ? dx : dx * dy;
+            int i = x + dx * (y + dy * z);
+            int i0 = c > 0 ? i - stride : i, i1 = c < n - 1 ? i + stride : i;
+            return ds[i1] - ds[i0];
+        }
+
+        private int edge(int x, int y, int e) {
+            int i = x + EX[e] + dx * (y + EY[e]);
+            switch (EA[e]) {
+            case 0:
+                return EZ[e] == 0 ? xEdges0[i] : xEdges1[i];
+            case 1:
+                return EZ[e] == 0 ? yEdges0[i] : yEdges1[i];
+            default:
+                return zEdges[i];
+            }
+        }
+
+        private void addTriangles(int x, int y, long c) {
+            while (c != 0L) {
+                int i1 = (int) (c & 0xF) - 1, i2 = (int) (c >>> 4 & 0xF) - 1, i3 = (int) (c >>> 8 & 0xF) - 1;
+                long a = indices.ensureCapacity(12).addr + indices.pos;
+                memPutInt(a, edge(x, y, i3));
+                memPutInt(a + 4, edge(x, y, i2));
+                memPutInt(a + 8, edge(x, y, i1));
+                indices.pos += 12;
+                c >>>= 12;
+            }
+        }
+
+        /*
+         * Offset the indices of this slab's own vertices by 'base' and the ones of the next slab by 'nextBase'.
+         */
+        void relocate(int base, int nextBase) {
+            for (long a = indices.addr, end = a + indices.pos; a < end; a += 4) {
+                int i = memGetInt(a);
+                memPutInt(a, i >= 0 ? base + i : nextBase + ~i);
+            }
+        }
+    }
+
 }
@@ -0,0 +1,62 @@
+/*
+ * Copyright LWJGL. All rights reserved.
+ * License terms: https://www.lwjgl.org/license
+ */
+package org.lwjgl.demo.util;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntConsumer;
+
+/**
+ * Parallel loops over chunk indices on a {@link ForkJoinPool}, shared by the utilities which split their work into
+ * chunks.
+ *
+ * @author Kai Burjack
+ */
+final class Parallel {
+
+    private Parallel() {
+    }
+
+    private static final class ParallelFor extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final int from, to;
+        private final IntConsumer body;
+
+        ParallelFor(int from, int to, IntConsumer body) {
+            this.from = from;
+            this.to = to;
+            this.body = body;
+        }
+
+        protected void compute() {
+            if (to - from == 1) {
+                body.accept(from);
+                return;
+            }
+            int mid = from + to >>> 1;
+            invokeAll(new ParallelFor(from, mid, body), new ParallelFor(mid, to, body));
+        }
+    }
+
+    /**
+     * Return the first of the <code>n</code> elements which belong to the given one of <code>chunks</code> equally
+     * sized chunks, so that chunk <code>c</code> covers <code>[chunkStart(c), chunkStart(c + 1))</code>.
+     */
+    static int chunkStart(int chunk, int n, int chunks) {
+        return (int) (chunk * (long) n / chunks);
+    }
+
+    /**
+     * Call the body with every chunk index in <code>[0, chunks)</code> in parallel on the given pool, or directly on
+     * the calling thread if there is only one chunk.
+     */
+    static void parallelFor(ForkJoinPool pool, int chunks, IntConsumer body) {
+        if (chunks == 1)
+            body.accept(0);
+        else if (chunks > 1)
+            pool.invoke(new ParallelFor(0, chunks, body));
+    }
+
+}
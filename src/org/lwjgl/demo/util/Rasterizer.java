@@ -15,26 +15,69 @@ import org.joml.Matrix4f;
 
 /**
  * Depth-only software rasterizer.
+ * <p>
+ * For occlusion queries, which test without writing depth, the maximum depth of each block of
+ * {@link #BLOCK_WIDTH} x {@link #BLOCK_HEIGHT} pixels is kept, and rows of blocks which are not farther than the
+ * nearest vertex of a triangle are skipped without testing any of their pixels.
  * 
  * @author Kai Burjack
  */
 public class Rasterizer {
+    public static final int BLOCK_WIDTH = 32;
+    public static final int BLOCK_HEIGHT = 16;
+
     public final int width, height;
+    /**
+     * The depth of all pixels, row by row.
+     * <p>
+     * After modifying it other than through this class, {@link #depthChanged()} must be called.
+     */
     public final float[] depthbuffer;
+    private final int blocksX;
+    /* Maximum depth of each block, which is only up to date if maxDepthsValid */
+    private final float[] maxDepths;
+    private boolean maxDepthsValid;
 
     public Rasterizer(int width, int height) {
         this.width = width;
         this.height = height;
         this.depthbuffer = new float[width * height];
+        this.blocksX = (width + BLOCK_WIDTH - 1) / BLOCK_WIDTH;
+        this.maxDepths = new float[blocksX * ((height + BLOCK_HEIGHT - 1) / BLOCK_HEIGHT)];
         clearDepth();
     }
 
     public void clearDepth() {
         fill(depthbuffer, 1.0f);
+        fill(maxDepths, 1.0f);
+        maxDepthsValid = true;
+    }
+
+    /**
+     * Notify this rasterizer that the {@link #depthbuffer} was modified directly.
+     */
+    public void depthChanged() {
+        maxDepthsValid = false;
+    }
+
+    private void updateMaxDepths() {
+        fill(maxDepths, NEGATIVE_INFINITY);
+        for (int y = 0; y < height; y++)
+            for (int x = 0, row = (y / BLOCK_HEIGHT) * blocksX; x < width; x++) {
+                int b = row + x / BLOCK_WIDTH;
+                maxDepths[b] = max(maxDepths[b], depthbuffer[x + y * width]);
+            }
+        maxDepthsValid = true;
     }
 
     public int rasterize_Vu8_Iu16(Matrix4f m, ByteBuffer vb, ShortBuffer ib, boolean depthTest, boolean depthWrite, int minSamples) {
         int samplesPassed = 0;
+        // Only queries can skip blocks, as writing would have to update their maximum depths per pixel
+        boolean skipBlocks = depthTest && !depthWrite;
+        if (skipBlocks && !maxDepthsValid)
+            updateMaxDepths();
+        if (depthWrite)
+            maxDepthsValid = false;
         int irem = ib.remaining();
         for (int i = 0; i < irem; i += 3) {
             // Load next three indices
@@ -72,8 +115,22 @@ public class Rasterizer {
             float b0 = s(v1xw, v1yw, v2xw, v2yw, miX, miY);
             float b1 = s(v2xw, v2yw, v0xw, v0yw, miX, miY);
             float b2 = s(v0xw, v0yw, v1xw, v1yw, miX, miY);
+            // The interpolated depth is not nearer than this, even with its rounding errors
+            float nearZ = minZ - 1E-6f * max(Math.abs(minZ), Math.abs(maxZ));
             // Iterate over every pixel in the bounding rectangle
+            int skipY = -1;
             for (int y = miY; y <= maY; y++, b0 += x12, b1 += x20, b2 += x01) {
+                if (skipBlocks && (y % BLOCK_HEIGHT == 0 || y == miY)) {
+                    // Skip the row of blocks if no pixel of it overlapped by the triangle is farther than the triangle
+                    skipY = min(y | BLOCK_HEIGHT - 1, maY);
+                    for (int b = (y / BLOCK_HEIGHT) * blocksX, bx = miX / BLOCK_WIDTH; bx <= maX / BLOCK_WIDTH; bx++)
+                        if (nearZ < maxDepths[b + bx]) {
+                            skipY = -1;
+                            break;
+                        }
+                }
+                if (y <= skipY)
+                    continue;
                 float w0 = b0, w1 = b1, w2 = b2;
                 boolean in = false;
                 for (int x = miX; x <= maX; x++, w0 += y21, w1 += y02, w2 += y10) {
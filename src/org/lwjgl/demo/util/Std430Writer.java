@@ -4,27 +4,49 @@
  */
 package org.lwjgl.demo.util;
 
+import static java.lang.invoke.MethodType.*;
+import static org.lwjgl.system.MemoryUtil.*;
+
 import java.lang.annotation.*;
-import java.lang.reflect.Array;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
 import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
 import java.nio.ByteBuffer;
 import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 
+import org.joml.Matrix3f;
+import org.joml.Matrix4f;
+import org.joml.Vector2f;
+import org.joml.Vector2i;
 import org.joml.Vector3f;
+import org.joml.Vector3i;
 import org.joml.Vector4f;
+import org.joml.Vector4i;
 
 /**
- * Writes a "struct" (i.e. a class with field members) to a {@link ByteBuffer} in std430 layout.
- * 
+ * Writes a "struct" (i.e. a class with field members) to a {@link ByteBuffer} in std430 or std140 layout.
+ * <p>
+ * The {@link Layout} of a class is computed once per class and layout rule, and compiles the fields into a single
+ * {@link MethodHandle} composed of the field getters and unchecked memory writes, so that writing a struct needs no
+ * reflection and no per-field lookups.
+ * <p>
+ * The GLSL types int, uint, bool, float, ivec2/3/4, vec2/3/4, mat3 and mat4 are mapped to the Java types
+ * <code>int</code>, <code>int</code>, <code>boolean</code>, <code>float</code>, {@link Vector2i}, {@link Vector3i},
+ * {@link Vector4i}, {@link Vector2f}, {@link Vector3f}, {@link Vector4f}, {@link Matrix3f} and {@link Matrix4f},
+ * respectively. Fields of any other class are nested structs, and arrays of all of these types need a
+ * {@link Member#length()}. Fields are laid out in the order in which they are declared, skipping static and transient
+ * fields.
+ *
  * @author Kai Burjack
  */
 public class Std430Writer {
 
     /**
      * Used to annotate a struct member (i.e. field in a class representing a GLSL struct).
-     * 
+     *
      * @author Kai Burjack
      */
     @Retention(RetentionPolicy.RUNTIME)
@@ -38,27 +60,135 @@ public class Std430Writer {
 
     }
 
-    private static final Map<Class<?>, Integer> SIZES = new IdentityHashMap<Class<?>, Integer>();
-    static {
-        SIZES.put(int.class, Integer.valueOf(1));
-        SIZES.put(float.class, Integer.valueOf(1));
-        SIZES.put(Vector3f.class, Integer.valueOf(3));
-        SIZES.put(Vector4f.class, Integer.valueOf(4));
+    /**
+     * The memory layout of a struct class under either the std430 or the std140 rules.
+     */
+    public static final class Layout {
+        /**
+         * The size in bytes of one struct including the padding at its end, which is the stride in arrays.
+         */
+        public final int size;
+        /**
+         * The base alignment in bytes of the struct.
+         */
+        public final int alignment;
+        /* (Object struct, long address)void */
+        private final MethodHandle writer;
+
+        Layout(int size, int alignment, MethodHandle writer) {
+            this.size = size;
+            this.alignment = alignment;
+            this.writer = writer;
+        }
+
+        /**
+         * Write the members of the given struct at the given address, leaving the padding untouched.
+         */
+        public void write(Object struct, long address) {
+            try {
+                writer.invokeExact(struct, address);
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        /**
+         * Write the given {@link List} of struct objects into the given {@link DynamicByteBuffer}, with zeroes as
+         * padding.
+         */
+        public void write(List<?> list, DynamicByteBuffer bb) {
+            long bytes = (long) list.size() * size;
+            if (bytes > Integer.MAX_VALUE - bb.pos)
+                throw new IllegalArgumentException("list too large");
+            bb.ensureCapacity((int) bytes);
+            long address = bb.addr + bb.pos;
+            memSet(address, 0, bytes);
+            for (Object struct : list) {
+                write(struct, address);
+                address += size;
+            }
+            bb.pos += (int) bytes;
+        }
     }
-    private static final Map<Class<?>, Integer> ALIGNMENTS = new IdentityHashMap<Class<?>, Integer>();
+
+    /* Size, alignment and writer (T value, long address)void of a member type */
+    private static final class Type {
+        final int size, alignment;
+        final MethodHandle writer;
+
+        Type(int size, int alignment, MethodHandle writer) {
+            this.size = size;
+            this.alignment = alignment;
+            this.writer = writer;
+        }
+    }
+
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+    private static final Map<Class<?>, Type> TYPES = new IdentityHashMap<Class<?>, Type>();
+    private static final MethodHandle ADD, NOTHING, PUT_INTS, PUT_FLOATS, PUT_OBJECTS;
     static {
-        ALIGNMENTS.put(int.class, Integer.valueOf(1));
-        ALIGNMENTS.put(float.class, Integer.valueOf(1));
-        ALIGNMENTS.put(Vector3f.class, Integer.valueOf(4));
-        ALIGNMENTS.put(Vector4f.class, Integer.valueOf(4));
+        try {
+            type(int.class, 4, 4, "putInt");
+            type(float.class, 4, 4, "putFloat");
+            type(boolean.class, 4, 4, "putBoolean");
+            type(Vector2i.class, 8, 8, "putVector2i");
+            type(Vector3i.class, 12, 16, "putVector3i");
+            type(Vector4i.class, 16, 16, "putVector4i");
+            type(Vector2f.class, 8, 8, "putVector2f");
+            type(Vector3f.class, 12, 16, "putVector3f");
+            type(Vector4f.class, 16, 16, "putVector4f");
+            type(Matrix3f.class, 48, 16, "putMatrix3f");
+            type(Matrix4f.class, 64, 16, "putMatrix4f");
+            ADD = LOOKUP.findStatic(Std430Writer.class, "add", methodType(long.class, long.class, long.class));
+            NOTHING = LOOKUP.findStatic(Std430Writer.class, "nothing", methodType(void.class, Object.class, long.class));
+            PUT_INTS = LOOKUP.findStatic(Std430Writer.class, "putInts",
+                    methodType(void.class, int[].class, long.class, int.class, int.class));
+            PUT_FLOATS = LOOKUP.findStatic(Std430Writer.class, "putFloats",
+                    methodType(void.class, float[].class, long.class, int.class, int.class));
+            PUT_OBJECTS = LOOKUP.findStatic(Std430Writer.class, "putObjects",
+                    methodType(void.class, Object[].class, long.class, int.class, int.class, MethodHandle.class));
+        } catch (ReflectiveOperationException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static final ClassValue<Layout> STD430 = new ClassValue<Layout>() {
+        protected Layout computeValue(Class<?> clazz) {
+            return layout(clazz, false);
+        }
+    };
+    private static final ClassValue<Layout> STD140 = new ClassValue<Layout>() {
+        protected Layout computeValue(Class<?> clazz) {
+            return layout(clazz, true);
+        }
+    };
+
+    private static void type(Class<?> clazz, int size, int alignment, String writer)
+            throws ReflectiveOperationException {
+        TYPES.put(clazz, new Type(size, alignment,
+                LOOKUP.findStatic(Std430Writer.class, writer, methodType(void.class, clazz, long.class))));
     }
 
     /**
-     * Write the given {@link List} of struct objects into the given {@link DynamicByteBuffer}, taking into account 
+     * Return the std430 layout of the given struct class.
+     */
+    public static Layout std430(Class<?> clazz) {
+        return STD430.get(clazz);
+    }
+
+    /**
+     * Return the std140 layout of the given struct class, in which arrays and nested structs are aligned to 16 bytes.
+     */
+    public static Layout std140(Class<?> clazz) {
+        return STD140.get(clazz);
+    }
+
+    /**
+     * Write the given {@link List} of struct objects into the given {@link DynamicByteBuffer}, taking into account
      * data type alignments and necessary paddings.
-     * <p>
-     * The GLSL types vec3 and vec4 are mapped to the JOML types {@link Vector3f} and {@link Vector4f}, respectively.
-     * 
+     *
      * @param list
      *          the list containing the struct objects to write
      * @param clazz
@@ -67,73 +197,190 @@ public class Std430Writer {
      *          the {@link DynamicByteBuffer} to write into
      */
     public static <T> void write(List<T> list, Class<T> clazz, DynamicByteBuffer bb) {
+        std430(clazz).write(list, bb);
+    }
+
+    private static int roundUp(int v, int alignment) {
+        return (v + alignment - 1) / alignment * alignment;
+    }
+
+    private static Layout layout(Class<?> clazz, boolean std140) {
+        MethodHandle writer = NOTHING;
+        int offset = 0, alignment = 0;
         Field[] fields = clazz.getDeclaredFields();
-        int ints = 0;
-        int[] paddings = new int[fields.length];
-        int largestAlign = 0;
-        /* Compute necessary padding after each field */
+        MethodHandle[] steps = new MethodHandle[fields.length];
         for (int i = 0; i < fields.length; i++) {
             Field f = fields[i];
+            if ((f.getModifiers() & (Modifier.STATIC | Modifier.TRANSIENT)) != 0 || f.isSynthetic())
+                continue;
+            Type t = memberType(f, std140);
+            offset = roundUp(offset, t.alignment);
+            alignment = Math.max(alignment, t.alignment);
             f.setAccessible(true);
-            Class<?> t = f.getType();
-            int len = 1;
-            if (t.isArray()) {
-                t = t.getComponentType();
-                Member mem = f.getAnnotation(Member.class);
-                len = mem.length();
-            }
-            int align = ALIGNMENTS.get(t).intValue();
-            largestAlign = Math.max(largestAlign, align);
-            if (i >= 1) {
-                int neededPadding = (align - ints % align) % align;
-                paddings[i - 1] = neededPadding;
-                ints += neededPadding;
-            }
-            int size = SIZES.get(t).intValue() * len;
-            ints += size;
-        }
-        /* Compute padding at the end of the struct */
-        int endPadding = (largestAlign - ints % largestAlign) % largestAlign;
-        paddings[fields.length - 1] = endPadding;
-        /* Write list */
-        for (T t : list) {
-            for (int i = 0; i < fields.length; i++) {
-                // Write field value
-                Field f = fields[i];
-                try {
-                    writeField(f, t, bb);
-                } catch (Exception e) {
-                    throw new RuntimeException("Could not write struct field: " + f, e);
-                }
-                // Write padding
-                int pad = paddings[i];
-                for (int p = 0; p < pad; p++)
-                    bb.putInt((byte) 0);
+            MethodHandle getter;
+            try {
+                getter = LOOKUP.unreflectGetter(f);
+            } catch (IllegalAccessException e) {
+                throw new IllegalArgumentException("Could not access struct field: " + f, e);
             }
+            /* (Object struct, long address) -> t.writer(struct.f, address + offset) */
+            MethodHandle step = t.writer.asType(methodType(void.class, f.getType(), long.class));
+            step = MethodHandles.filterArguments(step, 0, getter);
+            step = MethodHandles.filterArguments(step, 1, MethodHandles.insertArguments(ADD, 1, (long) offset));
+            steps[i] = step.asType(methodType(void.class, Object.class, long.class));
+            offset += t.size;
         }
+        if (alignment == 0)
+            throw new IllegalArgumentException("Struct has no members: " + clazz);
+        if (std140)
+            alignment = roundUp(alignment, 16);
+        for (int i = steps.length - 1; i >= 0; i--)
+            if (steps[i] != null)
+                writer = MethodHandles.foldArguments(writer, steps[i]);
+        return new Layout(roundUp(offset, alignment), alignment, writer);
     }
 
-    private static <T> void writeField(Field f, T obj, DynamicByteBuffer bb) throws IllegalArgumentException, IllegalAccessException {
+    private static Type memberType(Field f, boolean std140) {
         Class<?> t = f.getType();
-        if (t == int.class)
-            bb.putInt(f.getInt(obj));
-        else if (t == float.class)
-            bb.putFloat(f.getFloat(obj));
-        else if (t == Vector3f.class) {
-            Vector3f v = (Vector3f) f.get(obj);
-            bb.putFloat(v.x).putFloat(v.y).putFloat(v.z);
-        } else if (t.isArray()) {
-            Object arr = f.get(obj);
-            int len = Array.getLength(arr);
-            Class<?> ct = t.getComponentType();
-            for (int i = 0; i < len; i++) {
-                if (ct == int.class)
-                    bb.putInt(Array.getInt(arr, i));
-                else
-                    throw new UnsupportedOperationException("NYI");
-            }
-        } else
-            throw new UnsupportedOperationException("NYI");
+        if (!t.isArray())
+            return type(t, std140);
+        Member mem = f.getAnnotation(Member.class);
+        if (mem == null || mem.length() <= 0)
+            throw new IllegalArgumentException("Array struct field needs @Member(length): " + f);
+        Class<?> ct = t.getComponentType();
+        Type element = type(ct, std140);
+        int alignment = std140 ? roundUp(element.alignment, 16) : element.alignment;
+        int stride = roundUp(element.size, alignment), length = mem.length();
+        MethodHandle writer;
+        if (ct == int.class)
+            writer = MethodHandles.insertArguments(PUT_INTS, 2, length, stride);
+        else if (ct == float.class)
+            writer = MethodHandles.insertArguments(PUT_FLOATS, 2, length, stride);
+        else if (!ct.isPrimitive())
+            writer = MethodHandles.insertArguments(PUT_OBJECTS, 2, length, stride,
+                    element.writer.asType(methodType(void.class, Object.class, long.class)));
+        else
+            throw new IllegalArgumentException("Unsupported struct field type: " + f);
+        return new Type(stride * length, alignment, writer);
+    }
+
+    private static Type type(Class<?> t, boolean std140) {
+        Type type = TYPES.get(t);
+        if (type != null)
+            return type;
+        if (t.isPrimitive() || t.isArray() || t.isInterface() || t.getName().startsWith("java."))
+            throw new IllegalArgumentException("Unsupported struct field type: " + t);
+        Layout nested = std140 ? std140(t) : std430(t);
+        return new Type(nested.size, nested.alignment, nested.writer);
+    }
+
+    private static long add(long address, long offset) {
+        return address + offset;
+    }
+
+    private static void nothing(Object struct, long address) {
+    }
+
+    private static void putInt(int v, long address) {
+        memPutInt(address, v);
+    }
+
+    private static void putFloat(float v, long address) {
+        memPutFloat(address, v);
+    }
+
+    private static void putBoolean(boolean v, long address) {
+        memPutInt(address, v ? 1 : 0);
+    }
+
+    private static void putVector2i(Vector2i v, long address) {
+        memPutInt(address, v.x);
+        memPutInt(address + 4, v.y);
+    }
+
+    private static void putVector3i(Vector3i v, long address) {
+        memPutInt(address, v.x);
+        memPutInt(address + 4, v.y);
+        memPutInt(address + 8, v.z);
+    }
+
+    private static void putVector4i(Vector4i v, long address) {
+        memPutInt(address, v.x);
+        memPutInt(address + 4, v.y);
+        memPutInt(address + 8, v.z);
+        memPutInt(address + 12, v.w);
+    }
+
+    private static void putVector2f(Vector2f v, long address) {
+        memPutFloat(address, v.x);
+        memPutFloat(address + 4, v.y);
+    }
+
+    private static void putVector3f(Vector3f v, long address) {
+        memPutFloat(address, v.x);
+        memPutFloat(address + 4, v.y);
+        memPutFloat(address + 8, v.z);
+    }
+
+    private static void putVector4f(Vector4f v, long address) {
+        memPutFloat(address, v.x);
+        memPutFloat(address + 4, v.y);
+        memPutFloat(address + 8, v.z);
+        memPutFloat(address + 12, v.w);
+    }
+
+    /* Column-major, with each column padded to a vec4 */
+    private static void putMatrix3f(Matrix3f m, long address) {
+        memPutFloat(address, m.m00());
+        memPutFloat(address + 4, m.m01());
+        memPutFloat(address + 8, m.m02());
+        memPutFloat(address + 16, m.m10());
+        memPutFloat(address + 20, m.m11());
+        memPutFloat(address + 24, m.m12());
+        memPutFloat(address + 32, m.m20());
+        memPutFloat(address + 36, m.m21());
+        memPutFloat(address + 40, m.m22());
+    }
+
+    private static void putMatrix4f(Matrix4f m, long address) {
+        memPutFloat(address, m.m00());
+        memPutFloat(address + 4, m.m01());
+        memPutFloat(address + 8, m.m02());
+        memPutFloat(address + 12, m.m03());
+        memPutFloat(address + 16, m.m10());
+        memPutFloat(address + 20, m.m11());
+        memPutFloat(address + 24, m.m12());
+        memPutFloat(address + 28, m.m13());
+        memPutFloat(address + 32, m.m20());
+        memPutFloat(address + 36, m.m21());
+        memPutFloat(address + 40, m.m22());
+        memPutFloat(address + 44, m.m23());
+        memPutFloat(address + 48, m.m30());
+        memPutFloat(address + 52, m.m31());
+        memPutFloat(address + 56, m.m32());
+        memPutFloat(address + 60, m.m33());
+    }
+
+    private static void putInts(int[] v, long address, int length, int stride) {
+        if (v.length < length)
+            throw new IllegalArgumentException("array shorter than its @Member(length): " + v.length);
+        for (int i = 0; i < length; i++)
+            memPutInt(address + (long) i * stride, v[i]);
+    }
+
+    private static void putFloats(float[] v, long address, int length, int stride) {
+        if (v.length < length)
+            throw new IllegalArgumentException("array shorter than its @Member(length): " + v.length);
+        for (int i = 0; i < length; i++)
+            memPutFloat(address + (long) i * stride, v[i]);
+    }
+
+    private static void putObjects(Object[] v, long address, int length, int stride, MethodHandle element)
+            throws Throwable {
+        if (v.length < length)
+            throw new IllegalArgumentException("array shorter than its @Member(length): " + v.length);
+        for (int i = 0; i < length; i++)
+            element.invokeExact(v[i], address + (long) i * stride);
     }
 
 }
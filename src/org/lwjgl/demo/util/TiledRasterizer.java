@@ -0,0 +1,475 @@
+/*
+ * Copyright LWJGL. All rights reserved.
+ * License terms: https://www.lwjgl.org/license
+ */
+package org.lwjgl.demo.util;
+
+import static java.lang.Float.*;
+import static java.lang.Integer.*;
+import static java.util.Arrays.*;
+import static org.lwjgl.demo.util.Parallel.*;
+
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+import java.util.concurrent.ForkJoinPool;
+
+import org.joml.Matrix4f;
+
+/**
+ * Depth-only software rasterizer for occlusion culling, which rasterizes the same triangles as
+ * {@link Rasterizer#rasterize_Vu8_Iu16(Matrix4f, ByteBuffer, ShortBuffer, boolean, boolean, int)} using multiple
+ * threads.
+ * <p>
+ * The screen is divided into tiles of {@link #TILE_WIDTH} x {@link #TILE_HEIGHT} pixels, each of which is stored
+ * contiguously in the {@link #depthbuffer}. Rasterizing a batch of triangles first transforms the triangles and bins
+ * them into all tiles overlapped by their bounding rectangles, using one bin per thread and tile so that threads never
+ * share a bin. Afterwards the tiles are rasterized in parallel, each by a single thread.
+ * <p>
+ * The depth of a pixel is the normalized device z coordinate, which is expected to be in <code>[0, 1]</code>, as is
+ * the case for projections created with <code>zZeroToOne = true</code>.
+ * <p>
+ * After each batch of triangles, the maximum depth of each tile is recomputed and a hierarchy of maximum depths over
+ * 2x2 tiles is built on top of it. Tiles are skipped for triangles which are entirely behind them, and
+ * {@link #testAabb(Matrix4f, float, float, float, float, float, float) occlusion queries} first test against the
+ * level of the hierarchy covered by at most 2x2 of its entries, so that most occluded boxes are rejected without
+ * looking at any pixel.
+ *
+ * @author Kai Burjack
+ */
+public class TiledRasterizer {
+    public static final int TILE_WIDTH = 32;
+    public static final int TILE_HEIGHT = 16;
+    private static final int TILE_SIZE = TILE_WIDTH * TILE_HEIGHT;
+
+    /*
+     * Edge functions (a, b, c) of the three edges of a triangle in window space, the reciprocals of their a
+     * coefficients, the depths of the vertices and the minimum depth
+     */
+    private static final int SETUP_SIZE = 16;
+
+    public final int width, height;
+    public final int tilesX, tilesY;
+    /**
+     * The depth of all pixels, tile by tile, with the pixels of a tile stored row by row.
+     *
+     * @see #depth(int, int)
+     */
+    public final float[] depthbuffer;
+
+    private final ForkJoinPool pool;
+    private final int jobs;
+    private float[] setup = new float[0];
+    private int[] rects = new int[0];
+    private final int[][] bins;
+    private final int[] binCounts;
+    /* Maximum depth of each tile on level 0 and of 2x2 entries of the level below on each further level */
+    private final float[][] maxDepths;
+    private final int[] levelWidths;
+    private boolean conservativeDepth;
+
+    /**
+     * Create a rasterizer using the {@link ForkJoinPool#commonPool() common pool}.
+     */
+    public TiledRasterizer(int width, int height) {
+        this(width, height, ForkJoinPool.commonPool());
+    }
+
+    public TiledRasterizer(int width, int height, ForkJoinPool pool) {
+        this.width = width;
+        this.height = height;
+        this.tilesX = (width + TILE_WIDTH - 1) / TILE_WIDTH;
+        this.tilesY = (height + TILE_HEIGHT - 1) / TILE_HEIGHT;
+        this.depthbuffer = new float[tilesX * tilesY * TILE_SIZE];
+        this.pool = pool;
+        this.jobs = pool.getParallelism();
+        this.bins = new int[jobs * tilesX * tilesY][16];
+        this.binCounts = new int[jobs * tilesX * tilesY];
+        int levels = 1;
+        while (max(tilesX, tilesY) > 1 << levels - 1)
+            levels++;
+        this.maxDepths = new float[levels][];
+        this.levelWidths = new int[levels];
+        for (int l = 0; l < levels; l++) {
+            levelWidths[l] = (tilesX + (1 << l) - 1) >> l;
+            maxDepths[l] = new float[levelWidths[l] * ((tilesY + (1 << l) - 1) >> l)];
+        }
+        clearDepth();
+    }
+
+    public void clearDepth() {
+        fill(depthbuffer, 1.0f);
+        for (float[] level : maxDepths)
+            fill(level, 1.0f);
+    }
+
+    /**
+     * Set whether triangles are rasterized with the constant maximum depth of their vertices instead of the
+     * interpolated depth.
+     * <p>
+     * This is for occluder meshes which are not contained in the objects they stand for, such as simplified or
+     * inner hulls, and additionally saves the depth interpolation.
+     */
+    public void setConservativeDepth(boolean conservativeDepth) {
+        this.conservativeDepth = conservativeDepth;
+    }
+
+    public boolean isConservativeDepth() {
+        return conservativeDepth;
+    }
+
+    /**
+     * @return the index of the pixel <code>(x, y)</code> in the {@link #depthbuffer}
+     */
+    public int index(int x, int y) {
+        return ((y / TILE_HEIGHT) * tilesX + x / TILE_WIDTH) * TILE_SIZE + (y % TILE_HEIGHT) * TILE_WIDTH
+                + x % TILE_WIDTH;
+    }
+
+    public float depth(int x, int y) {
+        return depthbuffer[index(x, y)];
+    }
+
+    /**
+     * Rasterize the given triangles with depth test and depth write.
+     *
+     * @param m
+     *            the transformation from the vertex positions to clip space
+     * @param vb
+     *            the vertex positions as three unsigned bytes per vertex
+     * @param ib
+     *            three unsigned short indices per triangle
+     * @return the number of triangles which were not culled
+     */
+    public int rasterize_Vu8_Iu16(Matrix4f m, ByteBuffer vb, ShortBuffer ib) {
+        int triangles = ib.remaining() / 3;
+        if (setup.length < triangles * SETUP_SIZE) {
+            setup = new float[triangles * SETUP_SIZE];
+            rects = new int[triangles * 4];
+        }
+        int chunks = max(1, min(jobs, triangles / 64));
+        int[] visible = new int[chunks];
+        parallelFor(pool, chunks, c -> {
+            int from = chunkStart(c, triangles, chunks), to = chunkStart(c + 1, triangles, chunks);
+            visible[c] = bin(m, vb, ib, from, to, c * tilesX * tilesY);
+        });
+        int tiles = tilesX * tilesY, tileChunks = jobs == 1 ? 1 : min(tiles, jobs * 4);
+        parallelFor(pool, tileChunks, c -> {
+            for (int t = chunkStart(c, tiles, tileChunks), to = chunkStart(c + 1, tiles, tileChunks); t < to; t++)
+                rasterizeTile(t, chunks);
+        });
+        updateMaxDepths();
+        int count = 0;
+        for (int c = 0; c < chunks; c++)
+            count += visible[c];
+        return count;
+    }
+
+    private int bin(Matrix4f m, ByteBuffer vb, ShortBuffer ib, int from, int to, int binOffset) {
+        int count = 0;
+        for (int i = from; i < to; i++) {
+            int i0 = idx(ib, 3 * i), i1 = idx(ib, 3 * i + 1), i2 = idx(ib, 3 * i + 2);
+            int v0x = vx(vb, i0), v0y = vy(vb, i0), v0z = vz(vb, i0);
+            int v1x = vx(vb, i1), v1y = vy(vb, i1), v1z = vz(vb, i1);
+            int v2x = vx(vb, i2), v2y = vy(vb, i2), v2z = vz(vb, i2);
+            float w0 = w(m, v0x, v0y, v0z), w1 = w(m, v1x, v1y, v1z), w2 = w(m, v2x, v2y, v2z);
+            // Drop triangles crossing the near plane, which only makes the occlusion more conservative
+            if (w0 <= 0.0f || w1 <= 0.0f || w2 <= 0.0f)
+                continue;
+            float w0i = 1.0f / w0, w1i = 1.0f / w1, w2i = 1.0f / w2;
+            float v0xp = dx(m, v0x, v0y, v0z) * w0i, v0yp = dy(m, v0x, v0y, v0z) * w0i, v0zp = dz(m, v0x, v0y, v0z) * w0i;
+            float v1xp = dx(m, v1x, v1y, v1z) * w1i, v1yp = dy(m, v1x, v1y, v1z) * w1i, v1zp = dz(m, v1x, v1y, v1z) * w1i;
+            float v2xp = dx(m, v2x, v2y, v2z) * w2i, v2yp = dy(m, v2x, v2y, v2z) * w2i, v2zp = dz(m, v2x, v2y, v2z) * w2i;
+            // Cull backfaces with clockwise winding
+            if (s(v0xp, v0yp, v1xp, v1yp, v2xp, v2yp) <= 0)
+                continue;
+            float v0xw = winx(v0xp), v0yw = winy(v0yp);
+            float v1xw = winx(v1xp), v1yw = winy(v1yp);
+            float v2xw = winx(v2xp), v2yw = winy(v2yp);
+            float minX = min3(v0xw, v1xw, v2xw), minY = min3(v0yw, v1yw, v2yw), minZ = min3(v0zp, v1zp, v2zp);
+            float maxX = max3(v0xw, v1xw, v2xw), maxY = max3(v0yw, v1yw, v2yw), maxZ = max3(v0zp, v1zp, v2zp);
+            if (minX >= width || minY >= height || maxX < 0 || maxY < 0 || minZ > 1.0f || maxZ < 0.0f)
+                continue;
+            float area = s(v0xw, v0yw, v1xw, v1yw, v2xw, v2yw);
+            if (area <= 0.0f)
+                continue;
+            int miX = max(min((int) minX, width - 1), 0), miY = max(min((int) minY, height - 1), 0);
+            int maX = max(min((int) maxX, width - 1), 0), maY = max(min((int) maxY, height - 1), 0);
+            // Edge functions, each being the barycentric weight of the opposite vertex scaled by the area
+            float a0 = v1yw - v2yw, b0 = v2xw - v1xw, c0 = v1xw * v2yw - v1yw * v2xw;
+            float a1 = v2yw - v0yw, b1 = v0xw - v2xw, c1 = v2xw * v0yw - v2yw * v0xw;
+            float a2 = v0yw - v1yw, b2 = v1xw - v0xw, c2 = v0xw * v1yw - v0yw * v1xw;
+            float[] st = setup;
+            int o = i * SETUP_SIZE;
+            st[o] = a0;
+            st[o + 1] = b0;
+            st[o + 2] = c0;
+            st[o + 3] = a1;
+            st[o + 4] = b1;
+            st[o + 5] = c1;
+            st[o + 6] = a2;
+            st[o + 7] = b2;
+            st[o + 8] = c2;
+            st[o + 9] = 1.0f / a0;
+            st[o + 10] = 1.0f / a1;
+            st[o + 11] = 1.0f / a2;
+            if (conservativeDepth) {
+                st[o + 12] = st[o + 13] = st[o + 14] = st[o + 15] = maxZ;
+            } else {
+                st[o + 12] = v0zp;
+                st[o + 13] = v1zp;
+                st[o + 14] = v2zp;
+                st[o + 15] = minZ;
+            }
+            rects[4 * i] = miX;
+            rects[4 * i + 1] = miY;
+            rects[4 * i + 2] = maX;
+            rects[4 * i + 3] = maY;
+            for (int ty = miY / TILE_HEIGHT; ty <= maY / TILE_HEIGHT; ty++)
+                for (int tx = miX / TILE_WIDTH; tx <= maX / TILE_WIDTH; tx++)
+                    addToBin(binOffset + ty * tilesX + tx, i);
+            count++;
+        }
+        return count;
+    }
+
+    private void addToBin(int bin, int triangle) {
+        int n = binCounts[bin];
+        int[] b = bins[bin];
+        if (n == b.length)
+            bins[bin] = b = copyOf(b, n * 2);
+        b[n] = triangle;
+        binCounts[bin] = n + 1;
+    }
+
+    private void rasterizeTile(int t, int chunks) {
+        int tx0 = (t % tilesX) * TILE_WIDTH, ty0 = (t / tilesX) * TILE_HEIGHT;
+        int tx1 = min(tx0 + TILE_WIDTH, width) - 1, ty1 = min(ty0 + TILE_HEIGHT, height) - 1;
+        int tileOffset = t * TILE_SIZE;
+        float[] db = depthbuffer;
+        float tileMaxDepth = maxDepths[0][t];
+        boolean written = false;
+        for (int c = 0; c < chunks; c++) {
+            int bin = c * tilesX * tilesY + t;
+            int[] b = bins[bin];
+            for (int j = 0, n = binCounts[bin]; j < n; j++) {
+                int i = b[j], o = i * SETUP_SIZE;
+                // Skip triangles entirely behind the tile as of the previous batch
+                if (setup[o + 15] >= tileMaxDepth)
+                    continue;
+                written = true;
+                int miX = max(rects[4 * i], tx0), miY = max(rects[4 * i + 1], ty0);
+                int maX = min(rects[4 * i + 2], tx1), maY = min(rects[4 * i + 3], ty1);
+                float[] st = setup;
+                float a0 = st[o], b0 = st[o + 1], c0 = st[o + 2];
+                float a1 = st[o + 3], b1 = st[o + 4], c1 = st[o + 5];
+                float a2 = st[o + 6], b2 = st[o + 7], c2 = st[o + 8];
+                float ia0 = st[o + 9], ia1 = st[o + 10], ia2 = st[o + 11];
+                float z0 = st[o + 12], z1 = st[o + 13], z2 = st[o + 14];
+                for (int y = miY; y <= maY; y++) {
+                    float e0 = b0 * y + c0, e1 = b1 * y + c1, e2 = b2 * y + c2;
+                    // Span of the row inside all edges, widened by a pixel on both sides to account for rounding
+                    float lo = miX, hi = maX;
+                    float x0 = -e0 * ia0;
+                    if (a0 > 0.0f) {
+                        if (x0 > lo)
+                            lo = x0;
+                    } else if (a0 < 0.0f) {
+                        if (x0 < hi)
+                            hi = x0;
+                    } else if (e0 < 0.0f)
+                        continue;
+                    float x1 = -e1 * ia1;
+                    if (a1 > 0.0f) {
+                        if (x1 > lo)
+                            lo = x1;
+                    } else if (a1 < 0.0f) {
+                        if (x1 < hi)
+                            hi = x1;
+                    } else if (e1 < 0.0f)
+                        continue;
+                    float x2 = -e2 * ia2;
+                    if (a2 > 0.0f) {
+                        if (x2 > lo)
+                            lo = x2;
+                    } else if (a2 < 0.0f) {
+                        if (x2 < hi)
+                            hi = x2;
+                    } else if (e2 < 0.0f)
+                        continue;
+                    int xs = max((int) lo - 1, miX), xe = min((int) hi + 1, maX);
+                    float w0 = a0 * xs + e0, w1 = a1 * xs + e1, w2 = a2 * xs + e2;
+                    int p = tileOffset + (y - ty0) * TILE_WIDTH + xs - tx0;
+                    for (int x = xs; x <= xe; x++, p++, w0 += a0, w1 += a1, w2 += a2) {
+                        if (((floatToRawIntBits(w0) | floatToRawIntBits(w1) | floatToRawIntBits(w2)) & 0x80000000) != 0)
+                            continue;
+                        float d = (w0 * z0 + w1 * z1 + w2 * z2) / (w0 + w1 + w2);
+                        if (d < 0.0f || d > 1.0f || db[p] - d <= 1E-6f)
+                            continue;
+                        db[p] = d;
+                    }
+                }
+            }
+            binCounts[bin] = 0;
+        }
+        if (written) {
+            float m = 0.0f;
+            for (int p = tileOffset, end = p + TILE_SIZE; p < end; p++)
+                m = db[p] > m ? db[p] : m;
+            maxDepths[0][t] = m;
+        }
+    }
+
+    private void updateMaxDepths() {
+        for (int l = 1; l < maxDepths.length; l++) {
+            float[] src = maxDepths[l - 1], dst = maxDepths[l];
+            int sw = levelWidths[l - 1], sh = src.length / sw, dw = levelWidths[l];
+            for (int i = 0; i < dst.length; i++) {
+                int x = (i % dw) << 1, y = (i / dw) << 1;
+                float m = src[x + y * sw];
+                if (x + 1 < sw)
+                    m = max(m, src[x + 1 + y * sw]);
+                if (y + 1 < sh) {
+                    m = max(m, src[x + (y + 1) * sw]);
+                    if (x + 1 < sw)
+                        m = max(m, src[x + 1 + (y + 1) * sw]);
+                }
+                dst[i] = m;
+            }
+        }
+    }
+
+    /**
+     * Test the given axis-aligned boxes against the depth buffer.
+     *
+     * @param m
+     *            the transformation from the box coordinates to clip space
+     * @param aabbs
+     *            <code>(minX, minY, minZ, maxX, maxY, maxZ)</code> of each box
+     * @param count
+     *            the number of boxes
+     * @param visible
+     *            will receive whether each box is potentially visible
+     * @return the number of potentially visible boxes
+     */
+    public int testAabbOcclusion(Matrix4f m, float[] aabbs, int count, boolean[] visible) {
+        int chunks = max(1, min(jobs * 4, count / 256));
+        parallelFor(pool, chunks, c -> {
+            for (int i = chunkStart(c, count, chunks), to = chunkStart(c + 1, count, chunks); i < to; i++)
+                visible[i] = testAabb(m, aabbs[6 * i], aabbs[6 * i + 1], aabbs[6 * i + 2], aabbs[6 * i + 3],
+                        aabbs[6 * i + 4], aabbs[6 * i + 5]);
+        });
+        int n = 0;
+        for (int i = 0; i < count; i++)
+            if (visible[i])
+                n++;
+        return n;
+    }
+
+    /**
+     * Determine whether the given axis-aligned box is potentially visible, which is the case if it lies inside the
+     * view frustum and is not entirely behind the depth buffer.
+     * <p>
+     * The box is conservatively represented by its bounding rectangle in window space at the depth of its nearest
+     * corner. Boxes intersecting the near plane are always visible.
+     */
+    public boolean testAabb(Matrix4f m, float minX, float minY, float minZ, float maxX, float maxY, float maxZ) {
+        float rMinX = POSITIVE_INFINITY, rMinY = POSITIVE_INFINITY, rMinZ = POSITIVE_INFINITY;
+        float rMaxX = NEGATIVE_INFINITY, rMaxY = NEGATIVE_INFINITY;
+        for (int c = 0; c < 8; c++) {
+            float x = (c & 1) == 0 ? minX : maxX, y = (c & 2) == 0 ? minY : maxY, z = (c & 4) == 0 ? minZ : maxZ;
+            float w = m.m03() * x + m.m13() * y + m.m23() * z + m.m33();
+            if (w <= 0.0f)
+                return true;
+            float wi = 1.0f / w;
+            float xw = winx((m.m00() * x + m.m10() * y + m.m20() * z + m.m30()) * wi);
+            float yw = winy((m.m01() * x + m.m11() * y + m.m21() * z + m.m31()) * wi);
+            float zp = (m.m02() * x + m.m12() * y + m.m22() * z + m.m32()) * wi;
+            rMinX = min(rMinX, xw);
+            rMinY = min(rMinY, yw);
+            rMaxX = max(rMaxX, xw);
+            rMaxY = max(rMaxY, yw);
+            rMinZ = min(rMinZ, zp);
+        }
+        if (rMinX >= width || rMinY >= height || rMaxX < 0 || rMaxY < 0 || rMinZ > 1.0f)
+            return false;
+        int miX = max((int) rMinX, 0), miY = max((int) rMinY, 0);
+        // Clamp before converting, as corners close to the eye plane project far outside of any int
+        int maX = (int) min(rMaxX + 1.0f, width - 1), maY = (int) min(rMaxY + 1.0f, height - 1);
+        int tx0 = miX / TILE_WIDTH, ty0 = miY / TILE_HEIGHT, tx1 = maX / TILE_WIDTH, ty1 = maY / TILE_HEIGHT;
+        // Reject the box with the level on which its rectangle overlaps at most 2x2 entries
+        int l = 0;
+        while ((tx1 >> l) - (tx0 >> l) > 1 || (ty1 >> l) - (ty0 >> l) > 1)
+            l++;
+        float[] level = maxDepths[l];
+        int lw = levelWidths[l];
+        if (rMinZ >= level[(tx0 >> l) + (ty0 >> l) * lw] && rMinZ >= level[(tx1 >> l) + (ty0 >> l) * lw]
+                && rMinZ >= level[(tx0 >> l) + (ty1 >> l) * lw] && rMinZ >= level[(tx1 >> l) + (ty1 >> l) * lw])
+            return false;
+        for (int ty = ty0; ty <= ty1; ty++) {
+            for (int tx = tx0; tx <= tx1; tx++) {
+                if (rMinZ >= maxDepths[0][tx + ty * tilesX])
+                    continue;
+                int tileOffset = (ty * tilesX + tx) * TILE_SIZE;
+                int x0 = max(miX - tx * TILE_WIDTH, 0), x1 = min(maX - tx * TILE_WIDTH, TILE_WIDTH - 1);
+                int y0 = max(miY - ty * TILE_HEIGHT, 0), y1 = min(maY - ty * TILE_HEIGHT, TILE_HEIGHT - 1);
+                for (int y = y0; y <= y1; y++)
+                    for (int p = tileOffset + y * TILE_WIDTH + x0, end = p + x1 - x0; p <= end; p++)
+                        if (rMinZ < depthbuffer[p])
+                            return true;
+            }
+        }
+        return false;
+    }
+
+    private static float s(float ax, float ay, float bx, float by, float cx, float cy) {
+        return (bx - ax) * (cy - ay) - (by - ay) * (cx - ax);
+    }
+
+    private static float max3(float v0, float v1, float v2) {
+        return max(max(v0, v1), v2);
+    }
+
+    private static float min3(float v0, float v1, float v2) {
+        return min(min(v0, v1), v2);
+    }
+
+    private float winy(float yp) {
+        return ((yp * 0.5f) + 0.5f) * height - 0.5f;
+    }
+
+    private float winx(float xp) {
+        return ((xp * 0.5f) + 0.5f) * width - 0.5f;
+    }
+
+    private static int idx(ShortBuffer ib, int i) {
+        return ib.get(ib.position() + i) & 0xFFFF;
+    }
+
+    private static int vz(ByteBuffer vb, int i) {
+        return vb.get(vb.position() + 3 * i + 2) & 0xFF;
+    }
+
+    private static int vy(ByteBuffer vb, int i) {
+        return vb.get(vb.position() + 3 * i + 1) & 0xFF;
+    }
+
+    private static int vx(ByteBuffer vb, int i) {
+        return vb.get(vb.position() + 3 * i) & 0xFF;
+    }
+
+    private static float dz(Matrix4f m, int vx, int vy, int vz) {
+        return m.m02() * vx + m.m12() * vy + m.m22() * vz + m.m32();
+    }
+
+    private static float dy(Matrix4f m, int vx, int vy, int vz) {
+        return m.m01() * vx + m.m11() * vy + m.m21() * vz + m.m31();
+    }
+
+    private static float dx(Matrix4f m, int vx, int vy, int vz) {
+        return m.m00() * vx + m.m10() * vy + m.m20() * vz + m.m30();
+    }
+
+    private static float w(Matrix4f m, int vx, int vy, int vz) {
+        return m.m03() * vx + m.m13() * vy + m.m23() * vz + m.m33();
+    }
+}
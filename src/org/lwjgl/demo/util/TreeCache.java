@@ -0,0 +1,196 @@
+/*
+ * Copyright LWJGL. All rights reserved.
+ * License terms: https://www.lwjgl.org/license
+ */
+package org.lwjgl.demo.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Binary cache file for built acceleration structures.
+ * <p>
+ * A cache file holds any number of sections, such as flat nodes, ropes, primitive ranges or the buffers uploaded to the
+ * GPU, together with the kind and version of the structure and a hash of the source content it was built from.
+ * {@link #read(File, int, long) Reading} memory-maps the file and returns the sections as slices of the mapping, which
+ * can be given to <code>glBufferData</code> or read on the CPU as they are. A missing file, a file of another
+ * version, kind, byte order or source hash reads as <code>null</code>, which tells the caller to build the structure
+ * and {@link #write(File, int, long, ByteBuffer...) write} it again.
+ * <p>
+ * The sections are stored in native byte order and aligned to 16 bytes.
+ *
+ * @author Kai Burjack
+ */
+public class TreeCache {
+    /**
+     * Version of the file format, which is incremented with every change to it.
+     */
+    public static final int VERSION = 1;
+
+    private static final int MAGIC = 'L' | 'T' << 8 | 'R' << 16 | 'C' << 24;
+    private static final int HEADER_SIZE = 32;
+    private static final int ALIGNMENT = 16;
+
+    private TreeCache() {
+    }
+
+    /**
+     * Return the directory for cache files, which is <code>lwjgl3-demos</code> in the temporary directory.
+     */
+    public static File directory() {
+        return new File(System.getProperty("java.io.tmpdir"), "lwjgl3-demos");
+    }
+
+    /**
+     * Continue the hash <code>h</code> with the bytes between the position and the limit of the given buffer.
+     * <p>
+     * This is a fast 64-bit hash to detect changed sources, not a cryptographic one.
+     */
+    public static long hash(long h, ByteBuffer data) {
+        ByteBuffer bb = data.slice().order(ByteOrder.LITTLE_ENDIAN);
+        int n = bb.remaining(), i = 0;
+        for (; i + 8 <= n; i += 8)
+            h = mix(h, bb.getLong(i));
+        for (; i < n; i++)
+            h = mix(h, bb.get(i));
+        return mix(h, n);
+    }
+
+    /**
+     * Continue the hash <code>h</code> with the floats between the position and the limit of the given buffer.
+     */
+    public static long hash(long h, FloatBuffer data) {
+        int n = data.remaining(), p = data.position();
+        for (int i = 0; i < n; i++)
+            h = mix(h, Float.floatToRawIntBits(data.get(p + i)));
+        return mix(h, n);
+    }
+
+    /**
+     * Continue the hash <code>h</code> with the given value, such as a build parameter.
+     */
+    public static long hash(long h, long v) {
+        return mix(h, v);
+    }
+
+    private static long mix(long h, long v) {
+        h = (h ^ v) * 0x9E3779B97F4A7C15L;
+        return h ^ h >>> 29;
+    }
+
+    /**
+     * Write the sections between their positions and limits into the given file, creating its directory if needed.
+     * <p>
+     * The file is written next to the destination and then moved over it, so that readers never see a partial file.
+     *
+     * @param file       the cache file
+     * @param kind       identifies the kind and version of the structure, which is checked when reading
+     * @param sourceHash the hash of the source content the structure was built from
+     * @param sections   the sections
+     */
+    public static void write(File file, int kind, long sourceHash, ByteBuffer... sections) throws IOException {
+        File dir = file.getAbsoluteFile().getParentFile();
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Could not create directory: " + dir);
+        long offset = align(HEADER_SIZE + 16L * sections.length);
+        ByteBuffer header = ByteBuffer.allocate((int) offset).order(ByteOrder.nativeOrder());
+        header.putInt(MAGIC).putInt(VERSION).putInt(kind).putInt(sections.length);
+        header.putLong(sourceHash);
+        header.put((byte) (ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN ? 0 : 1));
+        header.position(HEADER_SIZE);
+        for (ByteBuffer section : sections) {
+            header.putLong(offset).putLong(section.remaining());
+            offset = align(offset + section.remaining());
+        }
+        header.clear();
+        File tmp = File.createTempFile(file.getName(), ".tmp", dir);
+        try {
+            try (RandomAccessFile raf = new RandomAccessFile(tmp, "rw"); FileChannel fc = raf.getChannel()) {
+                writeFully(fc, header, 0L);
+                long position = header.capacity();
+                for (ByteBuffer section : sections) {
+                    writeFully(fc, section.duplicate(), position);
+                    position = align(position + section.remaining());
+                }
+                raf.setLength(position);
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            tmp.delete();
+        }
+    }
+
+    private static void writeFully(FileChannel fc, ByteBuffer bb, long position) throws IOException {
+        while (bb.hasRemaining())
+            position += fc.write(bb, position);
+    }
+
+    private static long align(long offset) {
+        return offset + ALIGNMENT - 1 & -ALIGNMENT;
+    }
+
+    /**
+     * Memory-map the given cache file and return its sections in native byte order, or <code>null</code> if the file
+     * does not exist or does not match the given kind, source hash, the current {@link #VERSION} or the native byte
+     * order.
+     *
+     * @param file       the cache file
+     * @param kind       the expected kind and version of the structure
+     * @param sourceHash the hash of the current source content
+     * @return the sections, or <code>null</code> if the structure needs to be built
+     */
+    public static ByteBuffer[] read(File file, int kind, long sourceHash) throws IOException {
+        if (!file.isFile())
+            return null;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel fc = raf.getChannel()) {
+            long size = fc.size();
+            if (size < HEADER_SIZE || size > Integer.MAX_VALUE)
+                return null;
+            /*
+             * Validate the header and the section table before mapping, so that a stale file is not kept mapped and can
+             * be replaced by the following write() also on Windows
+             */
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.nativeOrder());
+            readFully(fc, header, 0L);
+            byte order = (byte) (ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN ? 0 : 1);
+            int count = header.getInt(12);
+            if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION || header.getInt(8) != kind
+                    || header.getLong(16) != sourceHash || header.get(24) != order || count < 0
+                    || HEADER_SIZE + 16L * count > size)
+                return null;
+            ByteBuffer table = ByteBuffer.allocate(16 * count).order(ByteOrder.nativeOrder());
+            readFully(fc, table, HEADER_SIZE);
+            for (int i = 0; i < count; i++) {
+                long offset = table.getLong(16 * i), length = table.getLong(16 * i + 8);
+                if (offset < 0 || length < 0 || offset + length > size)
+                    return null;
+            }
+            ByteBuffer map = fc.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            ByteBuffer[] sections = new ByteBuffer[count];
+            for (int i = 0; i < count; i++) {
+                int offset = (int) table.getLong(16 * i), length = (int) table.getLong(16 * i + 8);
+                map.limit(offset + length).position(offset);
+                sections[i] = map.slice().order(ByteOrder.nativeOrder());
+                map.clear();
+            }
+            return sections;
+        }
+    }
+
+    private static void readFully(FileChannel fc, ByteBuffer bb, long position) throws IOException {
+        while (bb.hasRemaining()) {
+            int n = fc.read(bb, position + bb.position());
+            if (n < 0)
+                throw new IOException("Unexpected end of file");
+        }
+        bb.flip();
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright LWJGL. All rights reserved.
+ * License terms: https://www.lwjgl.org/license
+ */
+package org.lwjgl.demo.util;
+
+import java.util.Arrays;
+
+/**
+ * Reorders the triangles of an indexed triangle list for the post-transform vertex cache of the GPU, so that the
+ * vertex shader runs for fewer vertices than there are indices.
+ * <p>
+ * This is Tom Forsyth's "Linear-Speed Vertex Cache Optimisation": triangles are emitted greedily by a score of their
+ * vertices, which favours vertices recently used in a simulated LRU cache and vertices with few remaining triangles.
+ *
+ * @author Kai Burjack
+ */
+public class VertexCacheOptimizer {
+    private static final int CACHE_SIZE = 32;
+    private static final float CACHE_DECAY_POWER = 1.5f;
+    private static final float LAST_TRIANGLE_SCORE = 0.75f;
+    private static final float VALENCE_BOOST_SCALE = 2.0f;
+    private static final float VALENCE_BOOST_POWER = 0.5f;
+
+    private static final float[] CACHE_SCORES = new float[CACHE_SIZE];
+    private static final float[] VALENCE_SCORES = new float[64];
+    static {
+        for (int i = 0; i < CACHE_SIZE; i++)
+            CACHE_SCORES[i] = i < 3 ? LAST_TRIANGLE_SCORE
+                    : (float) Math.pow(1.0f - (i - 3) / (float) (CACHE_SIZE - 3), CACHE_DECAY_POWER);
+        for (int i = 0; i < VALENCE_SCORES.length; i++)
+            VALENCE_SCORES[i] = valenceScore(i);
+    }
+
+    private VertexCacheOptimizer() {
+    }
+
+    private static float valenceScore(int remaining) {
+        return VALENCE_BOOST_SCALE * (float) Math.pow(remaining, -VALENCE_BOOST_POWER);
+    }
+
+    private static float score(int cachePosition, int remaining) {
+        if (remaining == 0)
+            return -1.0f;
+        float score = cachePosition < 0 ? 0.0f : CACHE_SCORES[cachePosition];
+        return score + (remaining < VALENCE_SCORES.length ? VALENCE_SCORES[remaining] : valenceScore(remaining));
+    }
+
+    /**
+     * Reorder the triangles given by the <code>count</code> indices starting at <code>offset</code> in place.
+     *
+     * @param indices     the triangle list
+     * @param offset      the first index of the triangles to reorder
+     * @param count       the number of indices, which is a multiple of three
+     * @param numVertices the number of vertices, which is larger than every index
+     */
+    public static void optimize(int[] indices, int offset, int count, int numVertices) {
+        int triangles = count / 3;
+        if (triangles < 2)
+            return;
+        /* Triangles using each vertex, of which the first remaining[v] are not yet emitted */
+        int[] remaining = new int[numVertices];
+        for (int i = offset; i < offset + 3 * triangles; i++)
+            remaining[indices[i]]++;
+        int[] adjacencyStart = new int[numVertices + 1];
+        for (int v = 0; v < numVertices; v++)
+            adjacencyStart[v + 1] = adjacencyStart[v] + remaining[v];
+        int[] adjacency = new int[3 * triangles];
+        int[] fill = Arrays.copyOf(adjacencyStart, numVertices);
+        for (int t = 0; t < triangles; t++)
+            for (int k = 0; k < 3; k++)
+                adjacency[fill[indices[offset + 3 * t + k]]++] = t;
+
+        int[] cachePosition = new int[numVertices];
+        Arrays.fill(cachePosition, -1);
+        float[] vertexScore = new float[numVertices];
+        for (int v = 0; v < numVertices; v++)
+            vertexScore[v] = score(-1, remaining[v]);
+        float[] triangleScore = new float[triangles];
+        boolean[] emitted = new boolean[triangles];
+        for (int t = 0; t < triangles; t++)
+            for (int k = 0; k < 3; k++)
+                triangleScore[t] += vertexScore[indices[offset + 3 * t + k]];
+
+        int[] cache = new int[CACHE_SIZE + 3], newCache = new int[CACHE_SIZE + 3];
+        int cacheCount = 0;
+        int[] output = new int[3 * triangles];
+        int best = 0, next = 0;
+        for (int o = 0; o < triangles; o++) {
+            if (best < 0) {
+                /* No triangle touches the cache, so continue with the next triangle in input order */
+                while (emitted[next])
+                    next++;
+                best = next;
+            }
+            emitted[best] = true;
+            int newCount = 0;
+            for (int k = 0; k < 3; k++) {
+                int v = indices[offset + 3 * best + k];
+                output[3 * o + k] = v;
+                newCache[newCount++] = v;
+                /* Remove the triangle from the remaining triangles of the vertex */
+                int start = adjacencyStart[v], end = start + --remaining[v];
+                for (int i = start; i <= end; i++)
+                    if (adjacency[i] == best) {
+                        adjacency[i] = adjacency[end];
+                        adjacency[end] = best;
+                        break;
+                    }
+            }
+            for (int i = 0; i < cacheCount; i++) {
+                int v = cache[i];
+                if (v != newCache[0] && v != newCache[1] && v != newCache[2])
+                    newCache[newCount++] = v;
+            }
+            int[] t = cache;
+            cache = newCache;
+            newCache = t;
+            cacheCount = newCount;
+            /* Rescore the vertices in the cache including those just evicted and their remaining triangles */
+            for (int i = 0; i < cacheCount; i++) {
+                int v = cache[i];
+                cachePosition[v] = i < CACHE_SIZE ? i : -1;
+                float score = score(cachePosition[v], remaining[v]);
+                float delta = score - vertexScore[v];
+                vertexScore[v] = score;
+                for (int j = adjacencyStart[v], end = j + remaining[v]; j < end; j++)
+                    triangleScore[adjacency[j]] += delta;
+            }
+            cacheCount = Math.min(cacheCount, CACHE_SIZE);
+            best = -1;
+            float bestScore = -1.0f;
+            for (int i = 0; i < cacheCount; i++) {
+                int v = cache[i];
+                for (int j = adjacencyStart[v], end = j + remaining[v]; j < end; j++) {
+                    int tri = adjacency[j];
+                    if (triangleScore[tri] > bestScore) {
+                        bestScore = triangleScore[tri];
+                        best = tri;
+                    }
+                }
+            }
+        }
+        System.arraycopy(output, 0, indices, offset, 3 * triangles);
+    }
+
+    /**
+     * Compute the average number of vertex shader invocations per triangle of the given triangles with a FIFO
+     * post-transform cache of the given size, which is the usual measure of how well a triangle list uses the cache.
+     */
+    public static float averageCacheMissRatio(int[] indices, int offset, int count, int numVertices, int cacheSize) {
+        int triangles = count / 3;
+        if (triangles == 0)
+            return 0.0f;
+        /* Time each vertex entered the cache, which is still in it while the time is within cacheSize misses */
+        int[] entered = new int[numVertices];
+        Arrays.fill(entered, Integer.MIN_VALUE);
+        int misses = 0;
+        for (int i = offset; i < offset + 3 * triangles; i++) {
+            int v = indices[i];
+            if (entered[v] == Integer.MIN_VALUE || misses - entered[v] >= cacheSize)
+                entered[v] = misses++;
+        }
+        return (float) misses / triangles;
+    }
+}
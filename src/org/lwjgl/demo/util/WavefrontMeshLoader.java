@@ -4,15 +4,20 @@
  */
 package org.lwjgl.demo.util;
 
-import java.io.BufferedReader;
-import java.io.ByteArrayInputStream;
+import static org.lwjgl.demo.util.Parallel.*;
+import static org.lwjgl.system.MemoryUtil.*;
+
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 import java.util.zip.ZipInputStream;
 
 import org.lwjgl.BufferUtils;
@@ -23,7 +28,20 @@ import org.joml.Vector3f;
  * A simple Wavefront obj file loader.
  * <p>
  * Does not load material files.
- * 
+ * <p>
+ * The file is parsed directly from a {@link ByteBuffer}, which is memory-mapped for plain <code>.obj</code> files, in
+ * line-aligned chunks in parallel on a {@link ForkJoinPool}. Each chunk collects its vertices, normals and faces
+ * off-heap in a single pass, after which the faces of all chunks are resolved in parallel into the {@link Mesh}.
+ * Numbers are parsed by hand, falling back to {@link Float#parseFloat(String)} only for the rare numbers which can
+ * not be parsed exactly that way, so that the results are identical to parsing every number with it.
+ * <p>
+ * Faces are triangles with positive indices of the form <code>v/vt/vn</code> or <code>v//vn</code>. Only the first
+ * three vertices of a face are used.
+ * <p>
+ * By default, every face is expanded into three vertices. In {@link #setIndexed(boolean) indexed} mode, equal pairs of
+ * position and normal are stored only once and the triangles are given by 16- or 32-bit indices, optionally
+ * {@link #setOptimizeVertexCache(boolean) reordered} within each object for the post-transform vertex cache.
+ *
  * @author Kai Burjack
  */
 public class WavefrontMeshLoader {
@@ -32,16 +50,14 @@ public class WavefrontMeshLoader {
         public FloatBuffer positions;
         public FloatBuffer normals;
         public int numVertices;
+        /* Indices of the triangles in indexed mode, or null, and the size of each index in bytes */
+        public ByteBuffer indices;
+        public int numIndices;
+        public int indexSize;
         public float boundingSphereRadius;
         public List<MeshObject> objects = new ArrayList<MeshObject>();
     }
 
-    private static class WavefrontInfo {
-        int numberOfVertices;
-        int numberOfFaces;
-        int numberOfNormals;
-    }
-
     public class MeshObject {
         public String name;
         public int first;
@@ -54,9 +70,32 @@ public class WavefrontMeshLoader {
         }
     }
 
+    /* Size of the parts a file is split into for parallel parsing */
+    private static final int CHUNK_SIZE = 1 << 20;
+
+    private static final double[] POWERS_OF_TEN = new double[23];
+    static {
+        POWERS_OF_TEN[0] = 1.0;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++)
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10.0;
+    }
+
+    private final ForkJoinPool pool;
+    private final int jobs;
     private boolean fourComponentPosition;
+    private boolean indexed;
+    private boolean optimizeVertexCache = true;
 
+    /**
+     * Create a loader using the {@link ForkJoinPool#commonPool() common pool}.
+     */
     public WavefrontMeshLoader() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    public WavefrontMeshLoader(ForkJoinPool pool) {
+        this.pool = pool;
+        this.jobs = pool.getParallelism();
     }
 
     public boolean isFourComponentPosition() {
@@ -67,31 +106,35 @@ public class WavefrontMeshLoader {
         this.fourComponentPosition = fourComponentPosition;
     }
 
-    private static WavefrontInfo getInfo(BufferedReader reader) throws IOException {
-        String line = "";
-        WavefrontInfo info = new WavefrontInfo();
-        while (true) {
-            line = reader.readLine();
-            if (line == null) {
-                break;
-            }
-            if (line.startsWith("v ")) {
-                info.numberOfVertices++;
-            } else if (line.startsWith("f ")) {
-                info.numberOfFaces++;
-            } else if (line.startsWith("vn ")) {
-                info.numberOfNormals++;
-            }
-        }
-        return info;
+    public boolean isIndexed() {
+        return indexed;
+    }
+
+    /**
+     * Set whether meshes have one vertex per distinct pair of position and normal and an index buffer, in which
+     * {@link MeshObject#first} and {@link MeshObject#count} are triangles, instead of three vertices per triangle.
+     */
+    public void setIndexed(boolean indexed) {
+        this.indexed = indexed;
+    }
+
+    public boolean isOptimizeVertexCache() {
+        return optimizeVertexCache;
+    }
+
+    /**
+     * Set whether the triangles of each object of an indexed mesh are reordered with the {@link VertexCacheOptimizer}.
+     * This is enabled by default.
+     */
+    public void setOptimizeVertexCache(boolean optimizeVertexCache) {
+        this.optimizeVertexCache = optimizeVertexCache;
     }
 
-    private static byte[] readSingleFileZip(String zipResource) throws IOException {
-        ZipInputStream zipStream = new ZipInputStream(WavefrontMeshLoader.class.getClassLoader().getResourceAsStream(
-                zipResource));
+    private static byte[] readSingleFileZip(InputStream in) throws IOException {
+        ZipInputStream zipStream = new ZipInputStream(in);
         zipStream.getNextEntry();
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        byte[] buffer = new byte[1024];
+        byte[] buffer = new byte[8192];
         int read = 0;
         while ((read = zipStream.read(buffer)) > 0) {
             baos.write(buffer, 0, read);
@@ -100,145 +143,490 @@ public class WavefrontMeshLoader {
         return baos.toByteArray();
     }
 
+    /**
+     * Load the mesh from the given classpath resource, which is a zip file containing a single obj file.
+     */
     public Mesh loadMesh(String resource) throws IOException {
-        byte[] arr = readSingleFileZip(resource);
-        WavefrontInfo info = getInfo(new BufferedReader(new InputStreamReader(new ByteArrayInputStream(arr))));
+        InputStream in = WavefrontMeshLoader.class.getClassLoader().getResourceAsStream(resource);
+        if (in == null)
+            throw new IOException("Classpath resource not found: " + resource);
+        return loadMesh(ByteBuffer.wrap(readSingleFileZip(in)));
+    }
 
-        // Allocate buffers for all vertices/normal
-        ByteBuffer positionByteBuffer = BufferUtils.createByteBuffer(3 * info.numberOfVertices * 4);
-        ByteBuffer normalByteBuffer = BufferUtils.createByteBuffer(3 * info.numberOfNormals * 4);
-        FloatBuffer positions = positionByteBuffer.asFloatBuffer();
-        FloatBuffer normals = normalByteBuffer.asFloatBuffer();
+    /**
+     * Load the mesh from the given file, which is either a zip file containing a single obj file, if its name ends
+     * with <code>.zip</code>, or a plain obj file, which is memory-mapped.
+     */
+    public Mesh loadMesh(File file) throws IOException {
+        try (FileInputStream fis = new FileInputStream(file)) {
+            if (file.getName().endsWith(".zip"))
+                return loadMesh(ByteBuffer.wrap(readSingleFileZip(fis)));
+            FileChannel fc = fis.getChannel();
+            return loadMesh(fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size()));
+        }
+    }
+
+    /**
+     * Load the mesh from the obj file contents between the position and the limit of the given buffer.
+     */
+    public Mesh loadMesh(ByteBuffer obj) {
+        if (!obj.isDirect()) {
+            ByteBuffer direct = BufferUtils.createByteBuffer(obj.remaining());
+            direct.put(obj.duplicate()).flip();
+            obj = direct;
+        }
+        long address = memAddress0(obj);
+        int start = obj.position(), end = obj.limit();
+        int chunks = jobs == 1 ? 1 : Math.max(1, Math.min(jobs * 4, (end - start) / CHUNK_SIZE));
+        int[] starts = new int[chunks + 1];
+        starts[chunks] = end;
+        for (int c = 1; c < chunks; c++) {
+            int i = Math.max(starts[c - 1], start + (int) ((long) (end - start) * c / chunks));
+            while (i < end && memGetByte(address + i) != '\n')
+                i++;
+            starts[c] = Math.min(i + 1, end);
+        }
+        starts[0] = start;
 
-        // Allocate buffers for the actual face vertices/normals
-        ByteBuffer positionDataByteBuffer = BufferUtils.createByteBuffer((fourComponentPosition ? 4 : 3) * 3 * info.numberOfFaces * 4);
-        ByteBuffer normalDataByteBuffer = BufferUtils.createByteBuffer(3 * 3 * info.numberOfFaces * 4);
-        FloatBuffer positionData = positionDataByteBuffer.asFloatBuffer();
-        FloatBuffer normalData = normalDataByteBuffer.asFloatBuffer();
+        Parser[] parsers = new Parser[chunks];
+        try {
+            parallelFor(pool, chunks, c -> {
+                parsers[c] = new Parser(address, starts[c], starts[c + 1]);
+                parsers[c].parse();
+            });
+            return resolve(parsers);
+        } finally {
+            for (Parser parser : parsers)
+                if (parser != null)
+                    parser.free();
+        }
+    }
 
+    /*
+     * Gather the vertices and normals of all chunks and look up the faces of each chunk in parallel.
+     */
+    private Mesh resolve(Parser[] parsers) {
+        int chunks = parsers.length;
+        int[] faceOffsets = new int[chunks + 1];
+        int vertexBytes = 0, normalBytes = 0;
         Mesh mesh = new Mesh();
-        MeshObject object = null;
-
-        float minX = 1E38f, minY = 1E38f, minZ = 1E38f;
-        float maxX = -1E38f, maxY = -1E38f, maxZ = -1E38f;
-
-        BufferedReader reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(arr)));
-        String line;
-        int faceIndex = 0;
-        Vector3f tmp = new Vector3f();
-        while ((line = reader.readLine()) != null) {
-            if (line.startsWith("o ")) {
-                String name = line.substring(2);
-                object = new MeshObject();
-                object.name = name;
-                object.first = faceIndex;
+        for (int c = 0; c < chunks; c++) {
+            Parser parser = parsers[c];
+            faceOffsets[c + 1] = faceOffsets[c] + parser.faces.pos / Parser.FACE_SIZE;
+            vertexBytes += parser.vertices.pos;
+            normalBytes += parser.normals.pos;
+            for (MeshObject object : parser.objects) {
+                object.first += faceOffsets[c];
                 mesh.objects.add(object);
-            } else if (line.startsWith("vn ")) {
-                String[] ns = line.split(" +");
-                float x = Float.parseFloat(ns[1]);
-                float y = Float.parseFloat(ns[2]);
-                float z = Float.parseFloat(ns[3]);
-                normals.put(x).put(y).put(z);
-            } else if (line.startsWith("v ")) {
-                String[] vs = line.split(" +");
-                float x = Float.parseFloat(vs[1]);
-                float y = Float.parseFloat(vs[2]);
-                float z = Float.parseFloat(vs[3]);
-                positions.put(x).put(y).put(z);
-            } else if (line.startsWith("f")) {
-                String[] fs = line.split(" +");
-                String[] f1 = fs[1].split("/");
-                String[] f2 = fs[2].split("/");
-                String[] f3 = fs[3].split("/");
-                int v1 = Integer.parseInt(f1[0]);
-                int v2 = Integer.parseInt(f2[0]);
-                int v3 = Integer.parseInt(f3[0]);
-                int n1 = Integer.parseInt(f1[2]);
-                int n2 = Integer.parseInt(f2[2]);
-                int n3 = Integer.parseInt(f3[2]);
-                float ver1X = positions.get(3 * (v1 - 1) + 0);
-                float ver1Y = positions.get(3 * (v1 - 1) + 1);
-                float ver1Z = positions.get(3 * (v1 - 1) + 2);
-                minX = minX < ver1X ? minX : ver1X;
-                minY = minY < ver1Y ? minY : ver1Y;
-                minZ = minZ < ver1Z ? minZ : ver1Z;
-                maxX = maxX > ver1X ? maxX : ver1X;
-                maxY = maxY > ver1Y ? maxY : ver1Y;
-                maxZ = maxZ > ver1Z ? maxZ : ver1Z;
-                tmp.set(ver1X, ver1Y, ver1Z);
-                if (object != null) {
-                    object.min.min(tmp);
-                    object.max.max(tmp);
-                }
-                float ver2X = positions.get(3 * (v2 - 1) + 0);
-                float ver2Y = positions.get(3 * (v2 - 1) + 1);
-                float ver2Z = positions.get(3 * (v2 - 1) + 2);
-                minX = minX < ver2X ? minX : ver2X;
-                minY = minY < ver2Y ? minY : ver2Y;
-                minZ = minZ < ver2Z ? minZ : ver2Z;
-                maxX = maxX > ver2X ? maxX : ver2X;
-                maxY = maxY > ver2Y ? maxY : ver2Y;
-                maxZ = maxZ > ver2Z ? maxZ : ver2Z;
-                tmp.set(ver2X, ver2Y, ver2Z);
-                if (object != null) {
-                    object.min.min(tmp);
-                    object.max.max(tmp);
-                }
-                float ver3X = positions.get(3 * (v3 - 1) + 0);
-                float ver3Y = positions.get(3 * (v3 - 1) + 1);
-                float ver3Z = positions.get(3 * (v3 - 1) + 2);
-                minX = minX < ver3X ? minX : ver3X;
-                minY = minY < ver3Y ? minY : ver3Y;
-                minZ = minZ < ver3Z ? minZ : ver3Z;
-                maxX = maxX > ver3X ? maxX : ver3X;
-                maxY = maxY > ver3Y ? maxY : ver3Y;
-                maxZ = maxZ > ver3Z ? maxZ : ver3Z;
-                tmp.set(ver3X, ver3Y, ver3Z);
-                if (object != null) {
-                    object.min.min(tmp);
-                    object.max.max(tmp);
+            }
+        }
+        int faces = faceOffsets[chunks];
+        int numVertices = vertexBytes / 12, numNormals = normalBytes / 12;
+        long vertices = nmemAlloc(Math.max(vertexBytes, 1)), normals = nmemAlloc(Math.max(normalBytes, 1));
+        try {
+            for (int c = 0, v = 0, n = 0; c < chunks; c++) {
+                memCopy(parsers[c].vertices.addr, vertices + v, parsers[c].vertices.pos);
+                memCopy(parsers[c].normals.addr, normals + n, parsers[c].normals.pos);
+                v += parsers[c].vertices.pos;
+                n += parsers[c].normals.pos;
+            }
+            int positionSize = fourComponentPosition ? 4 : 3;
+            boolean expand = !indexed;
+            FloatBuffer positionData = BufferUtils.createFloatBuffer(expand ? positionSize * 3 * faces : 0);
+            FloatBuffer normalData = BufferUtils.createFloatBuffer(expand ? 3 * 3 * faces : 0);
+            long positionAddr = memAddress(positionData), normalAddr = memAddress(normalData);
+            int objects = mesh.objects.size();
+            /* Index of the object each chunk starts in, or -1 */
+            int[] firstObjects = new int[chunks];
+            for (int c = 0, o = -1; c < chunks; c++) {
+                while (o + 1 < objects && mesh.objects.get(o + 1).first <= faceOffsets[c])
+                    o++;
+                firstObjects[c] = o;
+            }
+            float[][] bounds = new float[chunks][];
+            parallelFor(pool, chunks, c -> {
+                int o = firstObjects[c], objectsInChunk = parsers[c].objects.size() + 1;
+                /* Minimum and maximum of all vertices of the chunk and of each object overlapping the chunk */
+                float[] b = new float[6 * (objectsInChunk + 1)];
+                for (int i = 0; i < b.length; i += 6) {
+                    b[i] = b[i + 1] = b[i + 2] = 1E38f;
+                    b[i + 3] = b[i + 4] = b[i + 5] = -1E38f;
                 }
-                positionData.put(ver1X).put(ver1Y).put(ver1Z);
-                if (fourComponentPosition) {
-                    positionData.put(1.0f);
+                long face = parsers[c].faces.addr;
+                for (int f = faceOffsets[c]; f < faceOffsets[c + 1]; f++, face += Parser.FACE_SIZE) {
+                    while (o + 1 < objects && mesh.objects.get(o + 1).first <= f)
+                        o++;
+                    int ob = o < 0 ? -1 : 6 * (o - firstObjects[c] + 1);
+                    for (int k = 0; k < 3; k++) {
+                        int v = memGetInt(face + 8 * k), n = memGetInt(face + 8 * k + 4);
+                        if (v < 0 || v >= numVertices)
+                            throw new IndexOutOfBoundsException("vertex index " + (v + 1));
+                        float x = memGetFloat(vertices + 12L * v), y = memGetFloat(vertices + 12L * v + 4),
+                                z = memGetFloat(vertices + 12L * v + 8);
+                        b[0] = b[0] < x ? b[0] : x;
+                        b[1] = b[1] < y ? b[1] : y;
+                        b[2] = b[2] < z ? b[2] : z;
+                        b[3] = b[3] > x ? b[3] : x;
+                        b[4] = b[4] > y ? b[4] : y;
+                        b[5] = b[5] > z ? b[5] : z;
+                        if (ob >= 0) {
+                            b[ob] = b[ob] < x ? b[ob] : x;
+                            b[ob + 1] = b[ob + 1] < y ? b[ob + 1] : y;
+                            b[ob + 2] = b[ob + 2] < z ? b[ob + 2] : z;
+                            b[ob + 3] = b[ob + 3] > x ? b[ob + 3] : x;
+                            b[ob + 4] = b[ob + 4] > y ? b[ob + 4] : y;
+                            b[ob + 5] = b[ob + 5] > z ? b[ob + 5] : z;
+                        }
+                        if (n >= numNormals)
+                            throw new IndexOutOfBoundsException("normal index " + (n + 1));
+                        if (!expand)
+                            continue;
+                        long p = positionAddr + 4L * positionSize * (3L * f + k);
+                        memPutFloat(p, x);
+                        memPutFloat(p + 4, y);
+                        memPutFloat(p + 8, z);
+                        if (positionSize == 4)
+                            memPutFloat(p + 12, 1.0f);
+                        /* Faces without normals get zero normals */
+                        long np = normalAddr + 12L * (3L * f + k);
+                        if (n < 0) {
+                            memPutFloat(np, 0.0f);
+                            memPutFloat(np + 4, 0.0f);
+                            memPutFloat(np + 8, 0.0f);
+                        } else
+                            memCopy(normals + 12L * n, np, 12L);
+                    }
                 }
-                positionData.put(ver2X).put(ver2Y).put(ver2Z);
-                if (fourComponentPosition) {
-                    positionData.put(1.0f);
+                bounds[c] = b;
+            });
+            /* Merge the bounds in chunk order, which gives the same results as a sequential pass */
+            float minX = 1E38f, minY = 1E38f, minZ = 1E38f;
+            float maxX = -1E38f, maxY = -1E38f, maxZ = -1E38f;
+            Vector3f tmp = new Vector3f();
+            for (int c = 0; c < chunks; c++) {
+                float[] b = bounds[c];
+                minX = minX < b[0] ? minX : b[0];
+                minY = minY < b[1] ? minY : b[1];
+                minZ = minZ < b[2] ? minZ : b[2];
+                maxX = maxX > b[3] ? maxX : b[3];
+                maxY = maxY > b[4] ? maxY : b[4];
+                maxZ = maxZ > b[5] ? maxZ : b[5];
+                for (int o = Math.max(firstObjects[c], 0), i = 6 * (o - firstObjects[c] + 1); i < b.length
+                        && o < objects; o++, i += 6) {
+                    MeshObject object = mesh.objects.get(o);
+                    if (b[i] > b[i + 3])
+                        continue;
+                    object.min.min(tmp.set(b[i], b[i + 1], b[i + 2]));
+                    object.max.max(tmp.set(b[i + 3], b[i + 4], b[i + 5]));
                 }
-                positionData.put(ver3X).put(ver3Y).put(ver3Z);
-                if (fourComponentPosition) {
-                    positionData.put(1.0f);
+            }
+            for (int o = 0; o < objects; o++) {
+                MeshObject object = mesh.objects.get(o);
+                object.count = (o + 1 < objects ? mesh.objects.get(o + 1).first : faces) - object.first;
+            }
+            if (mesh.objects.isEmpty()) {
+                MeshObject object = new MeshObject();
+                object.count = faces;
+                mesh.objects.add(object);
+            }
+            mesh.boundingSphereRadius = Math.max(maxX - minX, Math.max(maxY - minY, maxZ - minZ)) * 0.5f;
+            if (expand) {
+                mesh.positions = positionData;
+                mesh.normals = normalData;
+                mesh.numVertices = 3 * faces;
+            } else
+                index(mesh, parsers, faces, vertices, normals);
+            return mesh;
+        } finally {
+            nmemFree(vertices);
+            nmemFree(normals);
+        }
+    }
+
+    /*
+     * Build the vertices and indices of an indexed mesh.
+     */
+    private void index(Mesh mesh, Parser[] parsers, int faces, long vertices, long normals) {
+        int[] indices = new int[3 * faces];
+        /* Pair of position and normal index of each distinct vertex, in order of first occurrence */
+        long[] pairs = new long[3 * faces];
+        int numVertices = 0;
+        /* Open-addressing map from a pair to its vertex plus one, grown at half load */
+        long[] keys = new long[1024];
+        int[] values = new int[1024];
+        for (int c = 0, i = 0; c < parsers.length; c++) {
+            long face = parsers[c].faces.addr, end = face + parsers[c].faces.pos;
+            for (; face < end; face += 8, i++) {
+                long pair = (long) memGetInt(face) << 32 | memGetInt(face + 4) & 0xFFFFFFFFL;
+                if (numVertices >= keys.length >>> 1) {
+                    long[] oldKeys = keys;
+                    int[] oldValues = values;
+                    keys = new long[oldKeys.length << 1];
+                    values = new int[oldKeys.length << 1];
+                    for (int j = 0; j < oldKeys.length; j++)
+                        if (oldValues[j] != 0) {
+                            int s = slot(oldKeys[j], keys.length - 1);
+                            while (values[s] != 0)
+                                s = s + 1 & keys.length - 1;
+                            keys[s] = oldKeys[j];
+                            values[s] = oldValues[j];
+                        }
                 }
-                float norm1X = normals.get(3 * (n1 - 1) + 0);
-                float norm1Y = normals.get(3 * (n1 - 1) + 1);
-                float norm1Z = normals.get(3 * (n1 - 1) + 2);
-                float norm2X = normals.get(3 * (n2 - 1) + 0);
-                float norm2Y = normals.get(3 * (n2 - 1) + 1);
-                float norm2Z = normals.get(3 * (n2 - 1) + 2);
-                float norm3X = normals.get(3 * (n3 - 1) + 0);
-                float norm3Y = normals.get(3 * (n3 - 1) + 1);
-                float norm3Z = normals.get(3 * (n3 - 1) + 2);
-                normalData.put(norm1X).put(norm1Y).put(norm1Z);
-                normalData.put(norm2X).put(norm2Y).put(norm2Z);
-                normalData.put(norm3X).put(norm3Y).put(norm3Z);
-                faceIndex++;
-                if (object != null) {
-                    object.count++;
+                int s = slot(pair, keys.length - 1);
+                while (values[s] != 0 && keys[s] != pair)
+                    s = s + 1 & keys.length - 1;
+                if (values[s] == 0) {
+                    keys[s] = pair;
+                    values[s] = numVertices + 1;
+                    pairs[numVertices++] = pair;
                 }
+                indices[i] = values[s] - 1;
             }
         }
-        if (mesh.objects.isEmpty()) {
-            object = new MeshObject();
-            object.count = faceIndex;
-            mesh.objects.add(object);
+        if (optimizeVertexCache) {
+            /* Only reorder within objects, so that their ranges of triangles stay the same */
+            int[] local = new int[numVertices], global = new int[numVertices];
+            int start = 0;
+            for (MeshObject object : mesh.objects) {
+                optimizeVertexCache(indices, 3 * start, 3 * object.first, local, global);
+                start = object.first;
+            }
+            optimizeVertexCache(indices, 3 * start, 3 * faces, local, global);
+        }
+        /* Number the vertices in the order they are first used by the triangles */
+        int[] remap = new int[numVertices];
+        int positionSize = fourComponentPosition ? 4 : 3;
+        FloatBuffer positionData = BufferUtils.createFloatBuffer(positionSize * numVertices);
+        FloatBuffer normalData = BufferUtils.createFloatBuffer(3 * numVertices);
+        long positionAddr = memAddress(positionData), normalAddr = memAddress(normalData);
+        int indexSize = numVertices <= 1 << 16 ? 2 : 4;
+        ByteBuffer indexData = BufferUtils.createByteBuffer(indexSize * indices.length);
+        long indexAddr = memAddress(indexData);
+        for (int i = 0, next = 0; i < indices.length; i++) {
+            int v = indices[i];
+            if (remap[v] == 0) {
+                remap[v] = ++next;
+                int position = (int) (pairs[v] >> 32), normal = (int) pairs[v];
+                long p = positionAddr + 4L * positionSize * (next - 1);
+                memCopy(vertices + 12L * position, p, 12L);
+                if (positionSize == 4)
+                    memPutFloat(p + 12, 1.0f);
+                if (normal >= 0)
+                    memCopy(normals + 12L * normal, normalAddr + 12L * (next - 1), 12L);
+            }
+            if (indexSize == 2)
+                memPutShort(indexAddr + 2L * i, (short) (remap[v] - 1));
+            else
+                memPutInt(indexAddr + 4L * i, remap[v] - 1);
         }
-        positionData.flip();
-        normalData.flip();
-        mesh.boundingSphereRadius = Math.max(maxX - minX, Math.max(maxY - minY, maxZ - minZ)) * 0.5f;
         mesh.positions = positionData;
         mesh.normals = normalData;
-        mesh.numVertices = positionData.limit() / (fourComponentPosition ? 4 : 3);
-        return mesh;
+        mesh.numVertices = numVertices;
+        mesh.indices = indexData;
+        mesh.numIndices = indices.length;
+        mesh.indexSize = indexSize;
+    }
+
+    /*
+     * Reorder the triangles of the indices from..to-1 with the vertices numbered locally in the order they are first
+     * used, so that the optimizer only works on as many vertices as the range uses. local is all zero before and
+     * after, and holds one plus the local number of each vertex in between, whose global number global holds.
+     */
+    private static void optimizeVertexCache(int[] indices, int from, int to, int[] local, int[] global) {
+        int k = 0;
+        for (int i = from; i < to; i++) {
+            int v = indices[i];
+            if (local[v] == 0) {
+                global[k] = v;
+                local[v] = ++k;
+            }
+            indices[i] = local[v] - 1;
+        }
+        VertexCacheOptimizer.optimize(indices, from, to - from, k);
+        for (int i = from; i < to; i++)
+            indices[i] = global[indices[i]];
+        for (int j = 0; j < k; j++)
+            local[global[j]] = 0;
+    }
+
+    private static int slot(long key, int mask) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ h >>> 32) & mask;
+    }
+
+    /*
+     * Parses the lines of a part of an obj file.
+     */
+    private final class Parser {
+        /* Zero-based vertex and normal index of each of the three corners */
+        static final int FACE_SIZE = 6 * 4;
+
+        private final long address;
+        private final int end;
+        private int p;
+        final DynamicByteBuffer vertices = new DynamicByteBuffer(), normals = new DynamicByteBuffer(),
+                faces = new DynamicByteBuffer();
+        /* Objects starting in this part, with their first face relative to this part */
+        final List<MeshObject> objects = new ArrayList<MeshObject>();
+
+        Parser(long address, int start, int end) {
+            this.address = address;
+            this.p = start;
+            this.end = end;
+        }
+
+        void free() {
+            vertices.free();
+            normals.free();
+            faces.free();
+        }
+
+        private int at(int i) {
+            return i < end ? memGetByte(address + i) : '\n';
+        }
+
+        void parse() {
+            while (p < end) {
+                int c0 = at(p), c1 = at(p + 1);
+                if (c0 == 'o' && c1 == ' ') {
+                    int i = p + 2;
+                    while (!eol(at(i)))
+                        i++;
+                    byte[] name = new byte[i - p - 2];
+                    for (int j = 0; j < name.length; j++)
+                        name[j] = memGetByte(address + p + 2 + j);
+                    MeshObject object = new MeshObject();
+                    object.name = new String(name);
+                    object.first = faces.pos / FACE_SIZE;
+                    objects.add(object);
+                } else if (c0 == 'v' && c1 == ' ') {
+                    p += 2;
+                    vertices.putFloat(parseFloat()).putFloat(parseFloat()).putFloat(parseFloat());
+                } else if (c0 == 'v' && c1 == 'n' && at(p + 2) == ' ') {
+                    p += 3;
+                    normals.putFloat(parseFloat()).putFloat(parseFloat()).putFloat(parseFloat());
+                } else if (c0 == 'f' && c1 == ' ') {
+                    p += 2;
+                    for (int k = 0; k < 3; k++) {
+                        int v = parseInt(), n = 0;
+                        if (at(p) == '/') {
+                            p++;
+                            if (at(p) != '/')
+                                parseInt();
+                            if (at(p) == '/') {
+                                p++;
+                                n = parseInt();
+                            }
+                        }
+                        faces.putInt(v - 1).putInt(n - 1);
+                    }
+                }
+                while (!eol(at(p)))
+                    p++;
+                p++;
+            }
+        }
+
+        private boolean eol(int c) {
+            return c == '\n' || c == '\r';
+        }
+
+        private void skipSpaces() {
+            int c;
+            while ((c = at(p)) == ' ' || c == '\t')
+                p++;
+        }
+
+        private int parseInt() {
+            skipSpaces();
+            boolean negative = at(p) == '-';
+            if (negative)
+                p++;
+            int v = 0, c;
+            while ((c = at(p) - '0') >= 0 && c <= 9) {
+                v = v * 10 + c;
+                p++;
+            }
+            return negative ? -v : v;
+        }
+
+        /*
+         * Parse the decimal significand of up to 18 digits and the exponent and compute the double nearest to it, which
+         * rounded to float is the float nearest to it unless the double lies exactly halfway between two floats.
+         * Everything else is given to Float.parseFloat.
+         */
+        private float parseFloat() {
+            skipSpaces();
+            int start = p, c = at(p);
+            boolean negative = c == '-';
+            if (c == '-' || c == '+')
+                p++;
+            long significand = 0L;
+            int digits = 0, exponent = 0;
+            boolean exact = true, any = false;
+            while ((c = at(p) - '0') >= 0 && c <= 9) {
+                any = true;
+                if (digits < 18) {
+                    significand = significand * 10 + c;
+                    if (significand != 0L)
+                        digits++;
+                } else {
+                    exact &= c == 0;
+                    exponent++;
+                }
+                p++;
+            }
+            if (at(p) == '.') {
+                p++;
+                while ((c = at(p) - '0') >= 0 && c <= 9) {
+                    any = true;
+                    if (digits < 18) {
+                        significand = significand * 10 + c;
+                        if (significand != 0L)
+                            digits++;
+                        exponent--;
+                    } else
+                        exact &= c == 0;
+                    p++;
+                }
+            }
+            if (any && ((c = at(p)) == 'e' || c == 'E')) {
+                p++;
+                boolean negativeExponent = at(p) == '-';
+                if (negativeExponent || at(p) == '+')
+                    p++;
+                int e = 0;
+                any = false;
+                while ((c = at(p) - '0') >= 0 && c <= 9) {
+                    any = true;
+                    e = Math.min(e * 10 + c, 1000);
+                    p++;
+                }
+                exponent += negativeExponent ? -e : e;
+            }
+            c = at(p);
+            if (!any || !exact || !(c == ' ' || c == '\t' || eol(c)))
+                return fallback(start);
+            if (significand == 0L)
+                return negative ? -0.0f : 0.0f;
+            if (significand >= 1L << 53 || exponent < -22 || exponent > 22)
+                return fallback(start);
+            double d = exponent >= 0 ? significand * POWERS_OF_TEN[exponent] : significand / POWERS_OF_TEN[-exponent];
+            if ((Double.doubleToRawLongBits(d) & 0x1FFFFFFFL) == 0x10000000L || d < Float.MIN_NORMAL
+                    || d > Float.MAX_VALUE)
+                return fallback(start);
+            return (float) (negative ? -d : d);
+        }
+
+        private float fallback(int start) {
+            p = start;
+            int c;
+            while (!((c = at(p)) == ' ' || c == '\t' || eol(c)))
+                p++;
+            byte[] token = new byte[p - start];
+            for (int i = 0; i < token.length; i++)
+                token[i] = memGetByte(address + start + i);
+            return Float.parseFloat(new String(token));
+        }
     }
 }